@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.file.reader.IlluminaFileReader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.picard.util.Log;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Pick reader buffer size, compression threads and compression level for this host
+ * by converting the first tile of a lane under a few settings within a time limit.
+ *
+ * The tile is read once without measuring to warm up file system cache and JIT,
+ * then the reader buffer size giving the fastest reading without output is chosen.
+ * For compressed file output the fastest number of compression threads is chosen for fastq,
+ * then the highest compression level at least nearly as fast as the fastest level,
+ * so that output is compressed more when compression is not what limits the speed.
+ *
+ * Trial output is written next to the real output and deleted afterwards.
+ * The chosen settings are applied to the lane and picard default compression level.
+ *
+ */
+public class AutoTuner {
+
+    private final Log log = Log.getInstance(AutoTuner.class);
+
+    static final int [] BUFFER_SIZES = {8 * 1024, 64 * 1024, 512 * 1024};
+    static final int [] COMPRESSION_LEVELS = {1, 3, 5, 7};
+
+    //a higher compression level is chosen if its speed is at least this part of the fastest level
+    private static final double LEVEL_SPEED_TOLERANCE = 0.9;
+
+    private final Lane lane;
+    private final int tileNumber;
+    private final File output;
+    private final long maxNanos;
+
+    private final List<String> trialSummaries = new ArrayList<String>();
+    private long startNanos;
+    private long lastTrialNanos;
+
+    private int bufferSize;
+    private int compressionThreads;
+    private int compressionLevel;
+
+    /**
+     *
+     * @param lane lane with configs read and tile list set
+     * @param tileNumber tile to convert for each trial
+     * @param output lane output file, compression is only tuned for bam or gzipped fastq files, could be null
+     * @param maxSeconds time limit for all trials, trials not started within it are skipped
+     */
+    public AutoTuner(Lane lane, int tileNumber, File output, int maxSeconds){
+        this.lane = lane;
+        this.tileNumber = tileNumber;
+        this.output = output;
+        this.maxNanos = maxSeconds * 1000000000L;
+        this.bufferSize = IlluminaFileReader.getBufferSize();
+        this.compressionThreads = lane.getCompressionThreads();
+        this.compressionLevel = lane.getCompressionLevel();
+    }
+
+    /**
+     * run all trials within time limit and apply the chosen settings
+     *
+     * @throws Exception
+     */
+    public void tune() throws Exception {
+
+        this.startNanos = System.nanoTime();
+
+        log.info("Warming up with tile " + this.tileNumber);
+        this.runTrial(null, null);
+
+        double bestSpeed = 0;
+        for(int size : BUFFER_SIZES){
+            if(!this.hasTime()){
+                break;
+            }
+            IlluminaFileReader.setBufferSize(size);
+            double speed = this.runTrial("reader buffer size " + size, null);
+            if(speed > bestSpeed){
+                bestSpeed = speed;
+                this.bufferSize = size;
+            }
+        }
+        IlluminaFileReader.setBufferSize(this.bufferSize);
+
+        boolean bamOutput = this.output != null && this.output.getName().endsWith(".bam");
+        boolean gzipFastqOutput = this.output != null && FastqWriter.isFastqFile(this.output)
+                && this.output.getName().endsWith(".gz");
+
+        if(gzipFastqOutput){
+            bestSpeed = 0;
+            for(int threads : getThreadCandidates(Runtime.getRuntime().availableProcessors())){
+                if(!this.hasTime()){
+                    break;
+                }
+                this.lane.setCompressionThreads(threads);
+                double speed = this.runTrial("COMPRESSION_THREADS=" + threads, this.output);
+                if(speed > bestSpeed){
+                    bestSpeed = speed;
+                    this.compressionThreads = threads;
+                }
+            }
+            this.lane.setCompressionThreads(this.compressionThreads);
+        }
+
+        if(bamOutput || gzipFastqOutput){
+            double [] levelSpeeds = new double[COMPRESSION_LEVELS.length];
+            for(int i = 0; i < COMPRESSION_LEVELS.length; i++){
+                if(!this.hasTime()){
+                    break;
+                }
+                this.applyCompressionLevel(COMPRESSION_LEVELS[i]);
+                levelSpeeds[i] = this.runTrial("COMPRESSION_LEVEL=" + COMPRESSION_LEVELS[i], this.output);
+            }
+            this.compressionLevel = chooseCompressionLevel(COMPRESSION_LEVELS, levelSpeeds, this.compressionLevel);
+        }
+        this.applyCompressionLevel(this.compressionLevel);
+
+        log.info("Chosen settings: " + this.getChosenSettings());
+    }
+
+    /**
+     * Reader buffer size has no command line option, so it is labelled apart from the options.
+     *
+     * @return chosen options in command line format, then the chosen reader buffer size
+     */
+    public String getChosenSettings() {
+        return "COMPRESSION_THREADS=" + this.compressionThreads
+                + " COMPRESSION_LEVEL=" + this.compressionLevel
+                + " (reader buffer size " + this.bufferSize + ", not an option)";
+    }
+
+    /**
+     * @return setting and speed of each trial
+     */
+    public List<String> getTrialSummaries() {
+        return trialSummaries;
+    }
+
+    /**
+     * @return the chosen reader buffer size
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the chosen number of compression threads
+     */
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * @return the chosen compression level
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     *
+     * @param levels compression levels in increasing order
+     * @param speeds clusters per second of each level, 0 if not tried
+     * @param defaultLevel level to keep if no level was tried
+     * @return the highest level at least nearly as fast as the fastest one
+     */
+    static int chooseCompressionLevel(int [] levels, double [] speeds, int defaultLevel){
+        double bestSpeed = 0;
+        for(double speed : speeds){
+            bestSpeed = Math.max(bestSpeed, speed);
+        }
+        int chosenLevel = defaultLevel;
+        for(int i = 0; i < levels.length; i++){
+            if(bestSpeed > 0 && speeds[i] >= LEVEL_SPEED_TOLERANCE * bestSpeed){
+                chosenLevel = levels[i];
+            }
+        }
+        return chosenLevel;
+    }
+
+    /**
+     * @param processors
+     * @return powers of two below the number of processors and the number of processors
+     */
+    static List<Integer> getThreadCandidates(int processors){
+        List<Integer> candidates = new ArrayList<Integer>();
+        for(int threads = 1; threads < processors; threads *= 2){
+            candidates.add(threads);
+        }
+        candidates.add(processors);
+        return candidates;
+    }
+
+    private void applyCompressionLevel(int level){
+        this.lane.setCompressionLevel(level);
+        BlockCompressedOutputStream.setDefaultCompressionLevel(level);
+    }
+
+    private boolean hasTime(){
+        boolean hasTime = System.nanoTime() - this.startNanos + this.lastTrialNanos <= this.maxNanos;
+        if(!hasTime){
+            log.info("No time left for more trials");
+        }
+        return hasTime;
+    }
+
+    /**
+     * convert the tile once
+     *
+     * @param setting setting of this trial for summary, null if not recorded
+     * @param trialOutput output of the same kind as the lane output, discarded if null
+     * @return clusters per second
+     * @throws Exception
+     */
+    private double runTrial(String setting, File trialOutput) throws Exception {
+
+        File trialFile = null;
+        if(trialOutput != null){
+            String name = trialOutput.getName();
+            String extension = name.endsWith(".gz") ? name.substring(name.lastIndexOf('.', name.length() - 4)) : name.substring(name.lastIndexOf('.'));
+            trialFile = new File(trialOutput.getAbsoluteFile().getParentFile(), "autotune_trial_" + System.nanoTime() + extension);
+        }
+
+        long start = System.nanoTime();
+        ClusterSink sink = (trialFile != null)
+                ? this.lane.wrapOutputSamStream(this.lane.generateOutputSamStream(trialFile))
+                : new NullClusterSink();
+        TrialSink trialSink = new TrialSink(sink);
+        try {
+            this.lane.processTile(this.tileNumber, trialSink);
+            trialSink.close();
+        } finally {
+            if(trialFile != null){
+                this.deleteTrialFiles(trialFile);
+            }
+        }
+        this.lastTrialNanos = System.nanoTime() - start;
+
+        double speed = trialSink.clusters * 1e9 / Math.max(this.lastTrialNanos, 1);
+        if(setting != null){
+            String summary = setting + ": " + Math.round(speed) + " clusters/s";
+            log.info("Trial " + summary);
+            this.trialSummaries.add(summary);
+        }
+        return speed;
+    }
+
+    private void deleteTrialFiles(File trialFile){
+        String prefix = trialFile.getName().substring(0, trialFile.getName().indexOf('.'));
+        File [] files = trialFile.getAbsoluteFile().getParentFile().listFiles();
+        if(files == null){
+            return;
+        }
+        for(File file : files){
+            if(file.getName().startsWith(prefix) && !file.delete()){
+                log.warn("Could not delete trial output " + file);
+            }
+        }
+    }
+
+    /**
+     * pass clusters to the trial output and count them
+     */
+    private static class TrialSink implements ClusterSink {
+
+        private final ClusterSink sink;
+        private long clusters = 0;
+
+        TrialSink(ClusterSink sink){
+            this.sink = sink;
+        }
+
+        @Override
+        public void startTile(int tileNumber) {
+            this.sink.startTile(tileNumber);
+        }
+
+        @Override
+        public void addCluster(String readName, int clusterIndex, byte[][] baseQuals, String secondBases,
+                byte[][] baseQualsIndex, int filter, boolean paired, boolean firstRead, boolean barcodesMatch, boolean isControl, boolean isDuplicate) {
+            if(firstRead){
+                this.clusters++;
+            }
+            this.sink.addCluster(readName, clusterIndex, baseQuals, secondBases, baseQualsIndex,
+                    filter, paired, firstRead, barcodesMatch, isControl, isDuplicate);
+        }
+
+        @Override
+        public void endTile(int tileNumber) {
+            this.sink.endTile(tileNumber);
+        }
+
+        @Override
+        public void close() {
+            this.sink.close();
+        }
+    }
+}
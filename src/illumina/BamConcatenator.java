@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import net.sf.picard.cmdline.Option;
+import net.sf.picard.cmdline.StandardOptionDefinitions;
+import net.sf.picard.cmdline.Usage;
+import net.sf.picard.io.IoUtil;
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+/**
+ * A command-line tool to concatenate BAM files, for example from Illumina2bam runs
+ * on different tiles of a lane, without decompressing and compressing all records again.
+ *
+ * The header of the first input is used, with read groups only in other inputs added.
+ * All inputs must have the same reference sequences.
+ *
+ */
+public class BamConcatenator extends Illumina2bamCommandLine {
+
+    private final Log log = Log.getInstance(BamConcatenator.class);
+
+    private final String programName = "BamConcatenator";
+
+    private final String programDS = "Concatenate BAM files at BGZF block level without recompressing records";
+
+    @Usage(programVersion= version)
+    public final String USAGE = this.getStandardUsagePreamble() + this.programDS + ". ";
+
+    @Option(shortName=StandardOptionDefinitions.INPUT_SHORT_NAME, doc="The input BAM files in output order.")
+    public final List<File> INPUT = new ArrayList<File>();
+
+    @Option(shortName=StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc="The output BAM file.")
+    public File OUTPUT;
+
+    @Override
+    protected int doWork() {
+
+        log.info("Checking input and output files");
+        for(File input : INPUT){
+            IoUtil.assertFileIsReadable(input);
+        }
+        IoUtil.assertFileIsWritable(OUTPUT);
+
+        SAMFileHeader header = this.mergeHeaders(INPUT);
+        this.addProgramRecordToHead(header, this.getThisProgramRecord(programName, programDS));
+
+        BgzfConcatenator concatenator = new BgzfConcatenator(OUTPUT, header, COMPRESSION_LEVEL, CREATE_MD5_FILE);
+        for(File input : INPUT){
+            log.info("Concatenating " + input);
+            concatenator.addBamFile(input);
+        }
+        concatenator.close();
+
+        log.info("Concatenating finished: " + OUTPUT);
+        return 0;
+    }
+
+    /**
+     * header of the first input with read groups from other inputs added
+     *
+     * @param inputs
+     * @return merged header
+     */
+    public SAMFileHeader mergeHeaders(List<File> inputs){
+
+        SAMFileHeader mergedHeader = null;
+        for(File input : inputs){
+            SAMFileReader reader = new SAMFileReader(input);
+            reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+            SAMFileHeader header = reader.getFileHeader();
+            reader.close();
+
+            if(mergedHeader == null){
+                mergedHeader = header.clone();
+                continue;
+            }
+            if( !this.sameSequences(mergedHeader, header) ){
+                throw new RuntimeException("Reference sequences in " + input + " are different from the first input");
+            }
+            for(SAMReadGroupRecord readGroup : header.getReadGroups()){
+                if(mergedHeader.getReadGroup(readGroup.getId()) == null){
+                    mergedHeader.addReadGroup(readGroup);
+                }
+            }
+        }
+        return mergedHeader;
+    }
+
+    private boolean sameSequences(SAMFileHeader header1, SAMFileHeader header2){
+        List<SAMSequenceRecord> sequences1 = header1.getSequenceDictionary().getSequences();
+        List<SAMSequenceRecord> sequences2 = header2.getSequenceDictionary().getSequences();
+        if(sequences1.size() != sequences2.size()){
+            return false;
+        }
+        for(int i = 0; i < sequences1.size(); i++){
+            if( !sequences1.get(i).getSequenceName().equals(sequences2.get(i).getSequenceName())
+                    || sequences1.get(i).getSequenceLength() != sequences2.get(i).getSequenceLength() ){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected String[] customCommandLineValidation() {
+        if(INPUT.isEmpty()){
+            return new String[]{"At least one INPUT must be given"};
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param argv
+     */
+    public static void main(final String[] argv) {
+        System.exit(new BamConcatenator().instanceMain(argv));
+    }
+}
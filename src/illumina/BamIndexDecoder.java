@@ -34,6 +34,7 @@ import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMProgramRecord;
 import net.sf.samtools.SAMReadGroupRecord;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMRecordIterator;
@@ -109,6 +110,14 @@ public class BamIndexDecoder extends Illumina2bamCommandLine {
     @Option(doc="Keep output of reads with undetermined barcodes. ")
     public boolean KEEP_UNDETERMINED = false;
 
+    @Option(doc="Memory budget for output writers and their buffers, such as 4g or 512m. "
+            + "Fails with a clear message if the output files of all barcodes do not fit, "
+            + "and the peak is logged at the end. No limit if not given.", optional=true)
+    public String MAX_MEMORY;
+
+    //memory of one bam writer: BGZF buffers and deflater
+    private static final long WRITER_MEMORY = 384 * 1024;
+
     private int barcodeLength;
     
     private IndexDecoder indexDecoder;
@@ -119,12 +128,26 @@ public class BamIndexDecoder extends Illumina2bamCommandLine {
     private HashMap<String, SAMFileWriter> outputList;
     private HashMap<String, SAMFileWriter> outputFilterList;
     private HashMap<String, String> barcodeNameList;
+    private long reservedWriterMemory = 0;
+    
+    //program record added to output headers, this program itself if not given
+    private SAMProgramRecord programRecord;
     
     public BamIndexDecoder() {
     }
 
     @Override
     protected int doWork() {
+
+        MemoryBudget budget = this.startMemoryBudget(this.MAX_MEMORY);
+        try {
+            return this.decodeFile();
+        } finally {
+            this.finishMemoryBudget(budget);
+        }
+    }
+
+    private int decodeFile() {
         
         this.log.info("Checking input and output file");
         IoUtil.assertFileIsReadable(INPUT);
@@ -146,104 +169,13 @@ public class BamIndexDecoder extends Illumina2bamCommandLine {
         SAMRecordIterator inIterator = in.iterator();
         while(inIterator.hasNext()){
             
-            String barcodeRead = null;
-
             SAMRecord record = inIterator.next();            
-            String readName = record.getReadName();
-            boolean isPaired = record.getReadPairedFlag();
-            boolean isPf = ! record.getReadFailsVendorQualityCheckFlag();
-            Object barcodeReadObject = record.getAttribute(this.BARCODE_TAG_NAME);
-            if(barcodeReadObject != null){
-                barcodeRead = barcodeReadObject.toString();
-            }
-            
             SAMRecord pairedRecord = null;
-            
-            if(isPaired){
-                
+            if(record.getReadPairedFlag()){
                 pairedRecord = inIterator.next();
-                String readName2 = pairedRecord.getReadName();
-                boolean isPaired2 = pairedRecord.getReadPairedFlag();
-                
-                if( !readName.equals(readName2) || !isPaired2 ){
-                    throw new RuntimeException("The paired reads are not together: " + readName + " " + readName2);
-                }
-                
-                Object barcodeReadObject2= pairedRecord.getAttribute(this.BARCODE_TAG_NAME);
-                if(barcodeReadObject != null
-                        && barcodeReadObject2 != null
-                        && ! barcodeReadObject.equals(barcodeReadObject2) ){
-                    
-                    //throw new RuntimeException("barcode read bases are different in paired two reads: "
-                    //        + barcodeReadObject + " " + barcodeReadObject2);
-                } else if( barcodeRead == null && barcodeReadObject2 != null ){
-                    barcodeRead = barcodeReadObject2.toString();
-                }                
-            }
-            
-            if(barcodeRead == null ){
-                barcodeRead = "";
-                isPf = true;
-                //    throw new RuntimeException("No barcode read found for record: " + readName );
-            }
-            
-            if(barcodeRead.length() < this.barcodeLength){
-                throw new RuntimeException("The barcode read length is less than barcode length: " + readName );
-            }else{            
-                barcodeRead = barcodeRead.substring(0, this.barcodeLength);
-            }
-
-            IndexDecoder.BarcodeMatch match = this.indexDecoder.extractBarcode(barcodeRead, isPf);
-            String barcode = match.barcode;
-            String originalBarcode = match.originalBarcode;
-            
-            if( match.matched ) {
-               barcode = barcode.toUpperCase();
-               originalBarcode = originalBarcode.toUpperCase();
-            } else {
-               barcode = "undetermined";
-               originalBarcode = "undetermined";
-            }
-            
-//            String barcodeName = this.barcodeNameList.get(barcode);
-
-            record.setReadName(readName + "." + originalBarcode);
-            record.setAttribute("RG", record.getAttribute("RG") + "." + originalBarcode);
-            if (isPaired) {
-                pairedRecord.setReadName(readName + "." + originalBarcode);
-                pairedRecord.setAttribute("RG", pairedRecord.getAttribute("RG") + "." + originalBarcode);
             }
-            
-            boolean isControl = (record.getAttribute("XC") != null);
-            boolean isFiltered = record.getReadFailsVendorQualityCheckFlag();
-
-            //Write to file
-            if (isControl) {
-                this.controlsOut.addAlignment(record);
-                if(isPaired){
-                    this.controlsOut.addAlignment(pairedRecord);
-                }
-            } else if (isFiltered) {
 
-                if (this.KEEP_UNDETERMINED && "undetermined".equals(barcode)) {
-                    SAMFileWriter filteredOut = (OUTPUT != null) ? this.filterOut : this.outputFilterList.get(barcode);
-
-                    filteredOut.addAlignment(record);
-                    if(isPaired){
-                        filteredOut.addAlignment(pairedRecord);
-                    }
-                }
-            } else {
-                if (this.KEEP_UNDETERMINED && "undetermined".equals(barcode)) {
-                    SAMFileWriter currentOut = (OUTPUT != null) ? this.out : this.outputList.get(barcode);
-
-                    currentOut.addAlignment(record);
-                    if(isPaired){
-                        currentOut.addAlignment(pairedRecord);
-                    }
-                }
-            }
-            
+            this.decodeRecords(record, pairedRecord);
         }
         
         this.closeOutputList();
@@ -260,6 +192,113 @@ public class BamIndexDecoder extends Illumina2bamCommandLine {
         return 0;
     }
     
+    /**
+     * decode one read or one pair of reads by the barcode read in tag,
+     * change read name and read group and write them to the output for their barcode
+     * 
+     * @param record the read or the first read of a pair
+     * @param pairedRecord the second read of a pair, null if not paired
+     */
+    public void decodeRecords(SAMRecord record, SAMRecord pairedRecord) {
+        
+        String barcodeRead = null;
+
+        String readName = record.getReadName();
+        boolean isPaired = record.getReadPairedFlag();
+        boolean isPf = ! record.getReadFailsVendorQualityCheckFlag();
+        Object barcodeReadObject = record.getAttribute(this.BARCODE_TAG_NAME);
+        if(barcodeReadObject != null){
+            barcodeRead = barcodeReadObject.toString();
+        }
+        
+        if(isPaired){
+            
+            if(pairedRecord == null){
+                throw new RuntimeException("The paired read is missing: " + readName);
+            }
+            String readName2 = pairedRecord.getReadName();
+            boolean isPaired2 = pairedRecord.getReadPairedFlag();
+            
+            if( !readName.equals(readName2) || !isPaired2 ){
+                throw new RuntimeException("The paired reads are not together: " + readName + " " + readName2);
+            }
+            
+            Object barcodeReadObject2= pairedRecord.getAttribute(this.BARCODE_TAG_NAME);
+            if(barcodeReadObject != null
+                    && barcodeReadObject2 != null
+                    && ! barcodeReadObject.equals(barcodeReadObject2) ){
+                
+                //throw new RuntimeException("barcode read bases are different in paired two reads: "
+                //        + barcodeReadObject + " " + barcodeReadObject2);
+            } else if( barcodeRead == null && barcodeReadObject2 != null ){
+                barcodeRead = barcodeReadObject2.toString();
+            }                
+        }
+        
+        if(barcodeRead == null ){
+            barcodeRead = "";
+            isPf = true;
+            //    throw new RuntimeException("No barcode read found for record: " + readName );
+        }
+        
+        if(barcodeRead.length() < this.barcodeLength){
+            throw new RuntimeException("The barcode read length is less than barcode length: " + readName );
+        }else{            
+            barcodeRead = barcodeRead.substring(0, this.barcodeLength);
+        }
+
+        IndexDecoder.BarcodeMatch match = this.indexDecoder.extractBarcode(barcodeRead, isPf);
+        String barcode = match.barcode;
+        String originalBarcode = match.originalBarcode;
+        
+        if( match.matched ) {
+           barcode = barcode.toUpperCase();
+           originalBarcode = originalBarcode.toUpperCase();
+        } else {
+           barcode = "undetermined";
+           originalBarcode = "undetermined";
+        }
+        
+//            String barcodeName = this.barcodeNameList.get(barcode);
+
+        record.setReadName(readName + "." + originalBarcode);
+        record.setAttribute("RG", record.getAttribute("RG") + "." + originalBarcode);
+        if (isPaired) {
+            pairedRecord.setReadName(readName + "." + originalBarcode);
+            pairedRecord.setAttribute("RG", pairedRecord.getAttribute("RG") + "." + originalBarcode);
+        }
+        
+        boolean isControl = (record.getAttribute("XC") != null);
+        boolean isFiltered = record.getReadFailsVendorQualityCheckFlag();
+
+        //Write to file
+        if (isControl) {
+            this.controlsOut.addAlignment(record);
+            if(isPaired){
+                this.controlsOut.addAlignment(pairedRecord);
+            }
+        } else if (isFiltered) {
+
+            if (this.KEEP_UNDETERMINED && "undetermined".equals(barcode)) {
+                SAMFileWriter filteredOut = (OUTPUT != null) ? this.filterOut : this.outputFilterList.get(barcode);
+
+                filteredOut.addAlignment(record);
+                if(isPaired){
+                    filteredOut.addAlignment(pairedRecord);
+                }
+            }
+        } else {
+            if (this.KEEP_UNDETERMINED && "undetermined".equals(barcode)) {
+                SAMFileWriter currentOut = (OUTPUT != null) ? this.out : this.outputList.get(barcode);
+
+                currentOut.addAlignment(record);
+                if(isPaired){
+                    currentOut.addAlignment(pairedRecord);
+                }
+            }
+        }
+    }
+    
     public void generateOutputFile(SAMFileHeader header) {
         
         List<IndexDecoder.NamedBarcode> barcodeList = indexDecoder.getNamedBarcodes(); 
@@ -403,9 +442,9 @@ public class BamIndexDecoder extends Illumina2bamCommandLine {
 
                 final SAMFileHeader outputHeader = header.clone();
                 outputHeader.setReadGroups(readGroupList);
-                this.addProgramRecordToHead(outputHeader, this.getThisProgramRecord(programName, programDS));
+                this.addProgramRecordToHead(outputHeader, this.getDecoderProgramRecord());
                 if (this.KEEP_UNDETERMINED && "Undetermined".equals(namedBarcode.project)) {
-                    final SAMFileWriter outPerBarcode = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader, true, new File(barcodeBamOutputName));
+                    final SAMFileWriter outPerBarcode = this.makeWriter(outputHeader, new File(barcodeBamOutputName));
                     outputList.put(barcode, outPerBarcode);
                 }
                     
@@ -446,7 +485,7 @@ public class BamIndexDecoder extends Illumina2bamCommandLine {
                 }
                 
                 if (this.KEEP_UNDETERMINED && "Undetermined".equals(namedBarcode.project)) {
-                    final SAMFileWriter outPerFilterBarcode = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader, true, new File(barcodeFilterBamOutputName));
+                    final SAMFileWriter outPerFilterBarcode = this.makeWriter(outputHeader, new File(barcodeFilterBamOutputName));
                     outputFilterList.put(barcode, outPerFilterBarcode);
                 }
 
@@ -478,29 +517,65 @@ public class BamIndexDecoder extends Illumina2bamCommandLine {
 
         final SAMFileHeader outputControlsHeader = header.clone();
         outputControlsHeader.setReadGroups(fullReadGroupList);
-        this.addProgramRecordToHead(outputControlsHeader, this.getThisProgramRecord(programName, programDS));
+        this.addProgramRecordToHead(outputControlsHeader, this.getDecoderProgramRecord());
         final SAMFileHeader outputHeader = header.clone();
-        this.controlsOut = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader, true, new File(barcodeControlBamOutputName));
+        this.controlsOut = this.makeWriter(outputHeader, new File(barcodeControlBamOutputName));
 
         if (OUTPUT != null) {
             log.info("Open output file with header: " + OUTPUT.getName());
             final SAMFileHeader singleOutputHeader = header.clone();
             singleOutputHeader.setReadGroups(fullReadGroupList);
-            this.addProgramRecordToHead(singleOutputHeader, this.getThisProgramRecord(programName, programDS));
-            this.out = new SAMFileWriterFactory().makeSAMOrBAMWriter(singleOutputHeader, true, OUTPUT);
+            this.addProgramRecordToHead(singleOutputHeader, this.getDecoderProgramRecord());
+            this.out = this.makeWriter(singleOutputHeader, OUTPUT);
 
             String filteredFileName = OUTPUT.getAbsolutePath();
             filteredFileName = filteredFileName.replaceAll("\\.sam", "_" + fcid + "_" + lane + "_non_pf.sam").replaceAll("\\.bam", "_" + fcid + "_" + lane + "_non_pf.bam");
             log.info("Open filtered output file with header: " + filteredFileName);
             final SAMFileHeader filteredOutputHeader = header.clone();
             filteredOutputHeader.setReadGroups(fullReadGroupList);
-            this.addProgramRecordToHead(filteredOutputHeader, this.getThisProgramRecord(programName, programDS));
-            this.filterOut = new SAMFileWriterFactory().makeSAMOrBAMWriter(filteredOutputHeader, true, new File(filteredFileName));
+            this.addProgramRecordToHead(filteredOutputHeader, this.getDecoderProgramRecord());
+            this.filterOut = this.makeWriter(filteredOutputHeader, new File(filteredFileName));
 
         }
 
     }
     
+    /**
+     * open an output writer with its memory reserved from memory budget
+     *
+     * @param header
+     * @param output
+     * @return sam or bam writer
+     */
+    private SAMFileWriter makeWriter(SAMFileHeader header, File output) {
+        MemoryBudget.reserveDefault(WRITER_MEMORY, "Output writer " + output.getName());
+        this.reservedWriterMemory += WRITER_MEMORY;
+        return new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, output);
+    }
+
+    /**
+     * set the program record for output headers, used when decoding is not run from command line
+     * 
+     * @param programRecord
+     */
+    public void setProgramRecord(SAMProgramRecord programRecord) {
+        this.programRecord = programRecord;
+    }
+    
+    private SAMProgramRecord getDecoderProgramRecord() {
+        if(this.programRecord != null){
+            return new SAMProgramRecord(this.programRecord.getProgramGroupId(), this.programRecord);
+        }
+        return this.getThisProgramRecord(programName, programDS);
+    }
+    
+    /**
+     * @return the index decoder holding barcode metrics
+     */
+    public IndexDecoder getIndexDecoder() {
+        return indexDecoder;
+    }
+
     public void closeOutputList(){
         if( this.outputList != null ){
             for(SAMFileWriter writer: this.outputList.values()){
@@ -522,6 +597,8 @@ public class BamIndexDecoder extends Illumina2bamCommandLine {
         if(this.out != null){
            this.out.close();
         }
+        MemoryBudget.releaseDefault(this.reservedWriterMemory);
+        this.reservedWriterMemory = 0;
         
     }
 
@@ -545,6 +622,11 @@ public class BamIndexDecoder extends Illumina2bamCommandLine {
         indexDecoder.setMaxNoCalls(MAX_NO_CALLS);
         indexDecoder.setMinMismatchDelta(this.MIN_MISMATCH_DELTA);
         
+        String memoryMessage = this.checkMemorySize(MAX_MEMORY);
+        if (memoryMessage != null) {
+            messages.add(memoryMessage);
+        }
+
         indexDecoder.prepareDecode(messages);
         this.barcodeLength = indexDecoder.getBarcodeLength();
 
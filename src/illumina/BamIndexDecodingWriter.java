@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+
+import net.sf.picard.metrics.MetricsFile;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * SAM file writer which decodes barcodes of the records while they are written.
+ *
+ * Records from Illumina2bam are passed to BamIndexDecoder one read or one pair at a time,
+ * so read names, read groups and output files per barcode are the same as
+ * running BamIndexDecoder on the lane bam file, without writing and reading the lane bam.
+ *
+ */
+public class BamIndexDecodingWriter implements SAMFileWriter {
+
+    private final BamIndexDecoder decoder;
+    private final SAMFileHeader header;
+
+    //first read of a pair waiting for its mate
+    private SAMRecord firstRecord;
+
+    /**
+     *
+     * @param decoder index decoder with command line options set and validated
+     * @param header lane bam header, used as the base of output headers per barcode
+     */
+    public BamIndexDecodingWriter(BamIndexDecoder decoder, SAMFileHeader header){
+        this.decoder = decoder;
+        this.header = header;
+        this.decoder.generateOutputFile(header);
+    }
+
+    @Override
+    public void addAlignment(SAMRecord alignment) {
+
+        if( !alignment.getReadPairedFlag() ){
+            this.decoder.decodeRecords(alignment, null);
+        } else if( this.firstRecord == null ){
+            this.firstRecord = alignment;
+        } else {
+            this.decoder.decodeRecords(this.firstRecord, alignment);
+            this.firstRecord = null;
+        }
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return this.header;
+    }
+
+    @Override
+    public void close() {
+        if( this.firstRecord != null ){
+            throw new RuntimeException("The paired read is missing: " + this.firstRecord.getReadName());
+        }
+        this.decoder.closeOutputList();
+    }
+
+    /**
+     * write barcode metrics, the same as BamIndexDecoder
+     *
+     * @param metrics
+     * @param metricsFile
+     */
+    public void writeMetrics(MetricsFile<IndexDecoder.BarcodeMetric, Integer> metrics, File metricsFile){
+        this.decoder.getIndexDecoder().writeMetrics(metrics, metricsFile);
+    }
+}
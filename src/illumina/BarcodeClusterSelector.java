@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.file.reader.BCLFileReader;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sf.picard.util.Log;
+
+/**
+ * Select clusters whose index reads decode to chosen barcodes.
+ *
+ * Only the index cycles of a tile are read to decode barcodes,
+ * so template cycles are read for the clusters of the chosen samples only.
+ *
+ */
+public class BarcodeClusterSelector implements ClusterSelector {
+
+    private final Log log = Log.getInstance(BarcodeClusterSelector.class);
+
+    private final IndexDecoder indexDecoder;
+    private final Set<String> selectedBarcodes = new HashSet<String>();
+    private final String selection;
+
+    /**
+     *
+     * @param indexDecoder index decoder prepared with the barcodes of the lane,
+     *                     only used by this selector because it counts the clusters decoded
+     * @param selectNames barcode names, sample names, library names or barcode sequences to select
+     */
+    public BarcodeClusterSelector(IndexDecoder indexDecoder, List<String> selectNames){
+
+        this.indexDecoder = indexDecoder;
+
+        Set<String> names = new HashSet<String>(selectNames);
+        Set<String> namesFound = new HashSet<String>();
+        for(IndexDecoder.NamedBarcode namedBarcode : indexDecoder.getNamedBarcodes()){
+            for(String name : new String[]{namedBarcode.barcode, namedBarcode.barcodeName,
+                                           namedBarcode.sampleName, namedBarcode.libraryName}){
+                if(name != null && names.contains(name)){
+                    this.selectedBarcodes.add(namedBarcode.barcode);
+                    namesFound.add(name);
+                }
+            }
+        }
+        names.removeAll(namesFound);
+        if(!names.isEmpty()){
+            throw new IllegalArgumentException("No barcode found for " + names);
+        }
+
+        StringBuilder selectionString = new StringBuilder();
+        for(String name : selectNames){
+            selectionString.append(" SELECT_BARCODE=").append(name);
+        }
+        this.selection = selectionString.toString().trim();
+    }
+
+    @Override
+    public BitSet selectClusters(Tile tile, int totalClusters) throws Exception {
+
+        BCLFileReader [] indexFileReaders = tile.openIndexBCLFiles();
+        if(indexFileReaders.length == 0){
+            throw new IllegalArgumentException("Barcodes can not be selected without index reads in tile " + tile.getTileNumber());
+        }
+        int barcodeLength = this.indexDecoder.getBarcodeLength();
+        if(indexFileReaders.length < barcodeLength){
+            throw new IllegalArgumentException("The barcode read length is less than barcode length: " + indexFileReaders.length);
+        }
+
+        BitSet selected = new BitSet(totalClusters);
+        byte [] barcodeBases = new byte[barcodeLength];
+        try {
+            for(int i = 0; i < totalClusters; i++){
+                for(int cycle = 0; cycle < indexFileReaders.length; cycle++){
+                    byte [] baseQual = indexFileReaders[cycle].next();
+                    if(baseQual == null){
+                        throw new Exception("No more cluster in index BCL file "
+                                + indexFileReaders[cycle].getFileName() + " after cluster " + i);
+                    }
+                    if(cycle < barcodeLength){
+                        barcodeBases[cycle] = baseQual[0];
+                    }
+                }
+                IndexDecoder.BarcodeMatch match = this.indexDecoder.extractBarcode(new String(barcodeBases, "US-ASCII"), true);
+                if(match.matched && this.selectedBarcodes.contains(match.barcode)){
+                    selected.set(i);
+                }
+            }
+        } finally {
+            for(BCLFileReader fileReader : indexFileReaders){
+                fileReader.close();
+            }
+        }
+        log.info(selected.cardinality() + " clusters matched selected barcodes in tile " + tile.getTileNumber());
+        return selected;
+    }
+
+    @Override
+    public String toString() {
+        return this.selection;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+import net.sf.samtools.util.Md5CalculatingOutputStream;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Concatenate BAM files and BAM record fragments at BGZF block level.
+ *
+ * The merged header is written once. For each BAM file, only the block where its header ends
+ * is decompressed, the records left in that block are compressed again
+ * and all following blocks are copied without decompression.
+ * Record fragments without header, for example tile checkpoints, are copied block by block.
+ * The EOF block of each input is dropped and one EOF block is written at the end.
+ *
+ * Output is written to a temporary file next to the output file
+ * and renamed when closed, so the output file only appears when complete.
+ *
+ */
+public class BgzfConcatenator {
+
+    private final Log log = Log.getInstance(BgzfConcatenator.class);
+
+    private static final int BLOCK_HEADER_LENGTH = 12;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte [] BAM_MAGIC = {'B', 'A', 'M', 1};
+
+    private final File output;
+    private final File tempOutput;
+    private final OutputStream outputStream;
+    private final BlockCompressedOutputStream blockCompressedOutputStream;
+    private final byte [] buffer = new byte[BUFFER_SIZE];
+
+    private int numberOfInputs = 0;
+
+    /**
+     *
+     * @param output output bam file
+     * @param header merged header, records in all inputs must fit in with its sequence dictionary
+     * @param compressionLevel compression level for header and records compressed again
+     * @param createMd5File create md5 file for output or not
+     */
+    public BgzfConcatenator(File output, SAMFileHeader header, int compressionLevel, boolean createMd5File){
+
+        this.output = output;
+        this.tempOutput = new File(output.getAbsolutePath() + ".part");
+        try {
+            OutputStream out = new FileOutputStream(this.tempOutput, false);
+            if(createMd5File){
+                out = new Md5CalculatingOutputStream(out, new File(output.getAbsolutePath() + ".md5"));
+            }
+            this.outputStream = out;
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to open output file " + this.tempOutput, ex);
+        }
+        this.blockCompressedOutputStream = new BlockCompressedOutputStream(this.outputStream, output, compressionLevel);
+        UnalignedBamWriter.writeHeader(header, this.blockCompressedOutputStream);
+    }
+
+    /**
+     * add records of a BAM file, its header is skipped
+     *
+     * @param bam
+     */
+    public void addBamFile(File bam){
+
+        long length = bam.length();
+        try {
+            checkEofBlock(bam);
+
+            InputStream in = new BufferedInputStream(new FileInputStream(bam), BUFFER_SIZE);
+            ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+            long position = 0;
+            int headerLength = -1;
+            while(headerLength < 0){
+                byte [] block = readBlock(in);
+                if(block == null){
+                    in.close();
+                    throw new IOException("No complete BAM header found");
+                }
+                position += block.length;
+                inflateBlock(block, uncompressed);
+                headerLength = getHeaderLength(uncompressed.toByteArray());
+            }
+
+            //records sharing the last block of the header
+            byte [] data = uncompressed.toByteArray();
+            this.blockCompressedOutputStream.write(data, headerLength, data.length - headerLength);
+            this.blockCompressedOutputStream.flush();
+
+            copyBytes(in, this.outputStream, length - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length - position, this.buffer);
+            in.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to concatenate bam file " + bam, ex);
+        }
+        this.numberOfInputs++;
+    }
+
+    /**
+     * add a BGZF file with BAM records only, without header
+     *
+     * @param fragment
+     */
+    public void addRecordFragment(File fragment){
+
+        try {
+            this.blockCompressedOutputStream.flush();
+            copyWithoutEofBlock(fragment, this.outputStream, this.buffer);
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to concatenate bam fragment " + fragment, ex);
+        }
+        this.numberOfInputs++;
+    }
+
+    /**
+     * write EOF block and rename the output into place
+     */
+    public void close(){
+
+        try {
+            this.blockCompressedOutputStream.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to close output file " + this.tempOutput, ex);
+        }
+        if( (this.output.exists() && !this.output.delete()) || !this.tempOutput.renameTo(this.output) ){
+            throw new RuntimeIOException("Failed to rename " + this.tempOutput + " to " + this.output);
+        }
+        log.info(this.numberOfInputs + " inputs concatenated into " + this.output);
+    }
+
+    /**
+     * copy a BGZF file without its EOF block
+     *
+     * @param bgzfFile
+     * @param out
+     * @param buffer
+     * @throws IOException
+     */
+    public static void copyWithoutEofBlock(File bgzfFile, OutputStream out, byte [] buffer) throws IOException {
+
+        checkEofBlock(bgzfFile);
+        InputStream in = new FileInputStream(bgzfFile);
+        copyBytes(in, out, bgzfFile.length() - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length, buffer);
+        in.close();
+    }
+
+    /**
+     * check a BGZF file is complete, ending with an EOF block
+     *
+     * @param bgzfFile
+     * @throws IOException
+     */
+    public static void checkEofBlock(File bgzfFile) throws IOException {
+
+        byte [] eofBlock = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+        long length = bgzfFile.length();
+
+        byte [] lastBlock = new byte[eofBlock.length];
+        if(length >= eofBlock.length){
+            RandomAccessFile raf = new RandomAccessFile(bgzfFile, "r");
+            raf.seek(length - eofBlock.length);
+            raf.readFully(lastBlock);
+            raf.close();
+        }
+        if( !Arrays.equals(lastBlock, eofBlock) ){
+            throw new IOException("BGZF file is not complete, no EOF block found: " + bgzfFile);
+        }
+    }
+
+    /**
+     * read one BGZF block with its gzip header and footer
+     *
+     * @param in
+     * @return the block, null at the end of input
+     * @throws IOException
+     */
+    static byte [] readBlock(InputStream in) throws IOException {
+
+        byte [] header = new byte[BLOCK_HEADER_LENGTH];
+        int read = readFully(in, header, 0, BLOCK_HEADER_LENGTH);
+        if(read == 0){
+            return null;
+        }
+        if(read < BLOCK_HEADER_LENGTH || (header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || (header[3] & 4) == 0){
+            throw new IOException("Invalid BGZF block header");
+        }
+        int extraLength = readShort(header, 10);
+        byte [] extra = new byte[extraLength];
+        if(readFully(in, extra, 0, extraLength) < extraLength){
+            throw new EOFException("Truncated BGZF block header");
+        }
+
+        int blockSize = -1;
+        for(int i = 0; i + 4 <= extraLength; i += 4 + readShort(extra, i + 2)){
+            if(extra[i] == 'B' && extra[i + 1] == 'C' && readShort(extra, i + 2) == 2){
+                blockSize = readShort(extra, i + 4) + 1;
+            }
+        }
+        if(blockSize < BLOCK_HEADER_LENGTH + extraLength){
+            throw new IOException("No BGZF block size found");
+        }
+
+        byte [] block = new byte[blockSize];
+        System.arraycopy(header, 0, block, 0, BLOCK_HEADER_LENGTH);
+        System.arraycopy(extra, 0, block, BLOCK_HEADER_LENGTH, extraLength);
+        int offset = BLOCK_HEADER_LENGTH + extraLength;
+        if(readFully(in, block, offset, blockSize - offset) < blockSize - offset){
+            throw new EOFException("Truncated BGZF block");
+        }
+        return block;
+    }
+
+    /**
+     * decompress one BGZF block
+     *
+     * @param block
+     * @param out
+     * @throws IOException
+     */
+    static void inflateBlock(byte [] block, ByteArrayOutputStream out) throws IOException {
+
+        int dataOffset = BLOCK_HEADER_LENGTH + readShort(block, 10);
+        int dataLength = block.length - dataOffset - 8;
+        int uncompressedLength = readShort(block, block.length - 4) | (readShort(block, block.length - 2) << 16);
+
+        byte [] uncompressed = new byte[uncompressedLength];
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(block, dataOffset, dataLength);
+        try {
+            if(inflater.inflate(uncompressed) != uncompressedLength){
+                throw new IOException("BGZF block size does not match");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Problems to decompress BGZF block: " + ex.getMessage());
+        } finally {
+            inflater.end();
+        }
+        out.write(uncompressed);
+    }
+
+    /**
+     * length of the BAM header: magic, text and reference sequences
+     *
+     * @param data uncompressed bytes from the start of a BAM file
+     * @return header length, -1 if not all the header in data
+     * @throws IOException
+     */
+    static int getHeaderLength(byte [] data) throws IOException {
+
+        if(data.length < 8){
+            return -1;
+        }
+        for(int i = 0; i < BAM_MAGIC.length; i++){
+            if(data[i] != BAM_MAGIC[i]){
+                throw new IOException("Not a BAM file, wrong magic number");
+            }
+        }
+        long position = 8 + readInt(data, 4);
+        if(position + 4 > data.length){
+            return -1;
+        }
+        int numberOfReferences = readInt(data, (int) position);
+        position += 4;
+        for(int i = 0; i < numberOfReferences; i++){
+            if(position + 4 > data.length){
+                return -1;
+            }
+            position += 4 + readInt(data, (int) position) + 4;
+        }
+        return (position <= data.length) ? (int) position : -1;
+    }
+
+    private static void copyBytes(InputStream in, OutputStream out, long length, byte [] buffer) throws IOException {
+        long remaining = length;
+        while(remaining > 0){
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if(read < 0){
+                throw new EOFException("Unexpected end of input");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private static int readFully(InputStream in, byte [] data, int offset, int length) throws IOException {
+        int total = 0;
+        while(total < length){
+            int read = in.read(data, offset + total, length - total);
+            if(read < 0){
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static int readShort(byte [] data, int offset){
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int readInt(byte [] data, int offset){
+        return readShort(data, offset) | (readShort(data, offset + 2) << 16);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+/**
+ * One cluster streamed by ClusterPublisher: position, filter and control flags,
+ * bases and qualities of each read and second base calls if included.
+ *
+ * The same object and the same arrays are reused for the next cluster, so they must be
+ * copied if they are kept after ClusterSubscriber.onNext returns. Arrays may be longer
+ * than the read, only the first getLength(read) bytes belong to this cluster.
+ *
+ */
+public class Cluster {
+
+    /** first read */
+    public static final int READ1 = 0;
+
+    /** second read, empty if not paired */
+    public static final int READ2 = 1;
+
+    /** index reads, both index reads one after the other if there are two, empty if not indexed */
+    public static final int INDEX = 2;
+
+    private static final int NUMBER_OF_READS = 3;
+
+    private int tileNumber;
+    private int clusterIndex;
+    private int x;
+    private int y;
+    private boolean passingFilter;
+    private boolean control;
+    private boolean paired;
+
+    private final byte [][] bases = new byte[NUMBER_OF_READS][0];
+    private final byte [][] qualities = new byte[NUMBER_OF_READS][0];
+    private final byte [][] secondBases = new byte[NUMBER_OF_READS][0];
+    private final int [] lengths = new int[NUMBER_OF_READS];
+    private final boolean [] hasSecondBases = new boolean[NUMBER_OF_READS];
+
+    /**
+     * start a new cluster, clearing all reads
+     *
+     * @param tileNumber
+     * @param clusterIndex
+     * @param x
+     * @param y
+     * @param passingFilter
+     * @param control
+     * @param paired
+     */
+    void reset(int tileNumber, int clusterIndex, int x, int y,
+            boolean passingFilter, boolean control, boolean paired){
+        this.tileNumber = tileNumber;
+        this.clusterIndex = clusterIndex;
+        this.x = x;
+        this.y = y;
+        this.passingFilter = passingFilter;
+        this.control = control;
+        this.paired = paired;
+        for(int read = 0; read < NUMBER_OF_READS; read++){
+            this.lengths[read] = 0;
+            this.hasSecondBases[read] = false;
+        }
+    }
+
+    /**
+     * make the buffers of one read long enough to be filled in place
+     *
+     * @param read READ1, READ2 or INDEX
+     * @param length number of bases of the read
+     * @param withSecondBases second base calls filled as well or not
+     */
+    void setLength(int read, int length, boolean withSecondBases){
+        if(this.bases[read].length < length){
+            this.bases[read] = new byte[length];
+            this.qualities[read] = new byte[length];
+        }
+        if(withSecondBases && this.secondBases[read].length < length){
+            this.secondBases[read] = new byte[length];
+        }
+        this.lengths[read] = length;
+        this.hasSecondBases[read] = withSecondBases;
+    }
+
+    /**
+     * @return the tile number
+     */
+    public int getTileNumber() {
+        return tileNumber;
+    }
+
+    /**
+     * @return index of this cluster in its tile, starting from 1
+     */
+    public int getClusterIndex() {
+        return clusterIndex;
+    }
+
+    /**
+     * @return x coordinate, the same as in read names
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return y coordinate, the same as in read names
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * @return passing filter or not
+     */
+    public boolean isPassingFilter() {
+        return passingFilter;
+    }
+
+    /**
+     * @return identified as a control or not
+     */
+    public boolean isControl() {
+        return control;
+    }
+
+    /**
+     * @return the paired
+     */
+    public boolean isPaired() {
+        return paired;
+    }
+
+    /**
+     * @param read READ1, READ2 or INDEX
+     * @return number of bases of the read, 0 if there is no such read
+     */
+    public int getLength(int read) {
+        return this.lengths[read];
+    }
+
+    /**
+     * @param read READ1, READ2 or INDEX
+     * @return buffer with bases of the read as ASCII characters
+     */
+    public byte [] getBases(int read) {
+        return this.bases[read];
+    }
+
+    /**
+     * @param read READ1, READ2 or INDEX
+     * @return buffer with phred qualities of the read
+     */
+    public byte [] getQualities(int read) {
+        return this.qualities[read];
+    }
+
+    /**
+     * @param read READ1 or READ2
+     * @return buffer with second base calls of the read as ASCII characters, null if not included
+     */
+    public byte [] getSecondBases(int read) {
+        return this.hasSecondBases[read] ? this.secondBases[read] : null;
+    }
+}
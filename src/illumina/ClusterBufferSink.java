@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+/**
+ * Cluster sink taking whole clusters read by Tile straight into the reused buffers of one Cluster,
+ * without read names, strings or arrays for each cluster.
+ *
+ * Tile fills the cluster given by getCluster and passes it to addCluster instead of
+ * calling addCluster for each read.
+ *
+ */
+public interface ClusterBufferSink extends ClusterSink {
+
+    /**
+     * @return cluster with the buffers to fill, reused for each cluster
+     */
+    public Cluster getCluster();
+
+    /**
+     * called after all reads of the cluster are filled
+     *
+     * @param cluster
+     */
+    public void addCluster(Cluster cluster);
+}
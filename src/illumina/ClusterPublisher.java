@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.picard.util.Log;
+
+/**
+ * Stream clusters of a lane straight from base call files to other code in the same JVM,
+ * without building bam records.
+ *
+ * Tile reads positions, bases and qualities of each cluster straight into the buffers of
+ * a reused Cluster object, which is passed to a ClusterSubscriber, as many as requested
+ * through its ClusterSubscription. A publisher could be split into partitions of tiles,
+ * each with its own subscriber, to read tiles in parallel.
+ *
+ */
+public class ClusterPublisher {
+
+    private final Log log = Log.getInstance(ClusterPublisher.class);
+
+    private final Lane lane;
+    private final int [] tileList;
+
+    /**
+     *
+     * @param lane lane with config files read
+     */
+    public ClusterPublisher(Lane lane){
+        this(lane, lane.getTileList());
+    }
+
+    /**
+     *
+     * @param lane lane with config files read
+     * @param tileList tiles to stream, in this order
+     */
+    public ClusterPublisher(Lane lane, int [] tileList){
+        if(tileList == null){
+            throw new IllegalArgumentException("No tile to stream for lane");
+        }
+        this.lane = lane;
+        this.tileList = tileList;
+    }
+
+    /**
+     * open a lane of a run folder and read its config files
+     *
+     * @param intensityDir Illumina intensities directory including config xml file
+     * @param baseCallDir Illumina basecalls directory, using BaseCalls directory under intensities if null
+     * @param laneNumber lane number
+     * @param secondCall include second base calls or not
+     * @param pfFilter stream only clusters passing filter or all of them
+     * @return publisher of all tiles of the lane
+     * @throws Exception
+     */
+    public static ClusterPublisher open(File intensityDir, File baseCallDir, int laneNumber,
+            boolean secondCall, boolean pfFilter) throws Exception {
+
+        if(baseCallDir == null){
+            baseCallDir = new File(intensityDir, "BaseCalls");
+        }
+        Lane lane = new Lane(intensityDir.getAbsolutePath(),
+                baseCallDir.getAbsolutePath(),
+                System.getProperty("java.io.tmpdir"),
+                laneNumber, secondCall, pfFilter,
+                null, "BC", "QT", false);
+        lane.readConfigs();
+        return new ClusterPublisher(lane);
+    }
+
+    /**
+     * split tiles into partitions to be streamed in parallel,
+     * tiles are dealt out in turn so each partition gets tiles from all over the lane
+     *
+     * @param partitions maximum number of partitions
+     * @return publishers of the partitions, fewer than asked if there are not enough tiles
+     */
+    public List<ClusterPublisher> partition(int partitions){
+        if(partitions < 1){
+            throw new IllegalArgumentException("Number of partitions must be positive: " + partitions);
+        }
+        int count = Math.min(partitions, this.tileList.length);
+        List<ClusterPublisher> publishers = new ArrayList<ClusterPublisher>(count);
+        for(int i = 0; i < count; i++){
+            int [] tiles = new int[(this.tileList.length - i + count - 1) / count];
+            for(int j = 0; j < tiles.length; j++){
+                tiles[j] = this.tileList[i + j * count];
+            }
+            publishers.add(new ClusterPublisher(this.lane, tiles));
+        }
+        return publishers;
+    }
+
+    /**
+     * stream all clusters to a subscriber in the calling thread,
+     * returning after onComplete or onError is called or the subscription is cancelled
+     *
+     * @param subscriber
+     */
+    public void subscribe(ClusterSubscriber subscriber){
+
+        StreamSink sink = new StreamSink(subscriber);
+        subscriber.onSubscribe(sink);
+        try {
+            for(int tileNumber : this.tileList){
+                if(sink.isCancelled()){
+                    log.info("Cluster stream cancelled before tile " + tileNumber);
+                    return;
+                }
+                this.lane.processTile(tileNumber, sink);
+            }
+        } catch (StreamCancelledException ex) {
+            log.info("Cluster stream cancelled in tile " + sink.tileNumber);
+            return;
+        } catch (Throwable ex) {
+            subscriber.onError(ex);
+            return;
+        }
+        subscriber.onComplete();
+    }
+
+    /**
+     * stream each publisher to its own subscriber in its own thread and wait for all of them
+     *
+     * @param publishers for example from partition
+     * @param subscribers one for each publisher
+     * @throws InterruptedException
+     */
+    public static void subscribeInParallel(List<ClusterPublisher> publishers,
+            List<? extends ClusterSubscriber> subscribers) throws InterruptedException {
+
+        if(publishers.size() != subscribers.size()){
+            throw new IllegalArgumentException("Number of subscribers " + subscribers.size()
+                    + " not the same as publishers " + publishers.size());
+        }
+        List<Thread> threads = new ArrayList<Thread>(publishers.size());
+        for(int i = 0; i < publishers.size(); i++){
+            final ClusterPublisher publisher = publishers.get(i);
+            final ClusterSubscriber subscriber = subscribers.get(i);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    publisher.subscribe(subscriber);
+                }
+            }, "ClusterPublisher-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+    }
+
+    /**
+     * @return tiles streamed by this publisher
+     */
+    public int [] getTileList() {
+        return Arrays.copyOf(this.tileList, this.tileList.length);
+    }
+
+    /**
+     * thrown inside the tile reading loop to stop it after the subscription is cancelled
+     */
+    static class StreamCancelledException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        StreamCancelledException(){
+            super("Cluster stream cancelled");
+        }
+    }
+
+    /**
+     * cluster sink passing the cluster filled by Tile on when requested
+     */
+    static class StreamSink implements ClusterBufferSink, ClusterSubscription {
+
+        private final ClusterSubscriber subscriber;
+        private final Cluster cluster = new Cluster();
+
+        private int tileNumber;
+        private long demand = 0;
+        private boolean cancelled = false;
+        private IllegalArgumentException requestError;
+
+        StreamSink(ClusterSubscriber subscriber){
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public synchronized void request(long n) {
+            if(n <= 0){
+                this.requestError = new IllegalArgumentException("Number of clusters requested must be positive: " + n);
+            }else{
+                this.demand = (this.demand + n < 0) ? Long.MAX_VALUE : this.demand + n;
+            }
+            this.notifyAll();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            this.cancelled = true;
+            this.notifyAll();
+        }
+
+        synchronized boolean isCancelled() {
+            return this.cancelled;
+        }
+
+        @Override
+        public void startTile(int tileNumber) {
+            this.tileNumber = tileNumber;
+        }
+
+        @Override
+        public Cluster getCluster() {
+            return this.cluster;
+        }
+
+        @Override
+        public void addCluster(Cluster cluster) {
+            this.waitForDemand();
+            this.subscriber.onNext(cluster);
+        }
+
+        /**
+         * not used, Tile fills the cluster of this sink instead
+         */
+        @Override
+        public void addCluster(String readName,
+                int clusterIndex,
+                byte [][] baseQuals,
+                String secondBases,
+                byte [][] baseQualsIndex,
+                int filter,
+                boolean paired,
+                boolean firstRead,
+                boolean barcodesMatch,
+                boolean isControl,
+                boolean isDuplicate){
+            throw new UnsupportedOperationException("Clusters are streamed through the buffers of getCluster");
+        }
+
+        private synchronized void waitForDemand(){
+            while(this.demand == 0 && !this.cancelled && this.requestError == null){
+                try {
+                    this.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for clusters to be requested", ex);
+                }
+            }
+            if(this.cancelled){
+                throw new StreamCancelledException();
+            }
+            if(this.requestError != null){
+                throw this.requestError;
+            }
+            if(this.demand != Long.MAX_VALUE){
+                this.demand--;
+            }
+        }
+
+        @Override
+        public void endTile(int tileNumber) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.util.BitSet;
+
+/**
+ * Select a fraction of clusters by a hash of seed, tile number and cluster index,
+ * so the same clusters are chosen each time with the same seed.
+ *
+ */
+public class ClusterSampler implements ClusterSelector {
+
+    private final double fraction;
+    private final long seed;
+
+    //clusters with the top 53 bits of their hash below this are sampled
+    private final long threshold;
+
+    /**
+     *
+     * @param fraction fraction of clusters to select, more than 0 and up to 1
+     * @param seed
+     */
+    public ClusterSampler(double fraction, long seed){
+        if(fraction <= 0 || fraction > 1){
+            throw new IllegalArgumentException("Sample fraction must be more than 0 and up to 1: " + fraction);
+        }
+        this.fraction = fraction;
+        this.seed = seed;
+        this.threshold = (long) Math.ceil(fraction * (1L << 53));
+    }
+
+    /**
+     *
+     * @param tileNumber
+     * @param clusterIndex cluster index in the tile, from 1
+     * @return true if the cluster is in the sample
+     */
+    public boolean isSampled(int tileNumber, int clusterIndex){
+        long hash = mix(this.seed ^ mix(((long) tileNumber << 32) | (clusterIndex & 0xFFFFFFFFL)));
+        return (hash >>> 11) < this.threshold;
+    }
+
+    @Override
+    public BitSet selectClusters(Tile tile, int totalClusters) {
+        BitSet selected = new BitSet(totalClusters);
+        for(int i = 0; i < totalClusters; i++){
+            if(this.isSampled(tile.getTileNumber(), i + 1)){
+                selected.set(i);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * 64 bits mixing function from SplitMix64
+     *
+     * @param value
+     * @return mixed value
+     */
+    private static long mix(long value){
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        return "SAMPLE_FRACTION=" + this.fraction + " SEED=" + this.seed;
+    }
+}
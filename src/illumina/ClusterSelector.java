@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.util.BitSet;
+
+/**
+ * Choose which clusters of a tile to convert.
+ *
+ * Base calls are only read for selected clusters, skipping over the others in each cycle file,
+ * while position, filter and control files are still read for every cluster.
+ *
+ */
+public interface ClusterSelector {
+
+    /**
+     *
+     * @param tile tile to select clusters from
+     * @param totalClusters number of clusters in the tile from filter file
+     * @return selected clusters by cluster index from 0
+     * @throws Exception
+     */
+    BitSet selectClusters(Tile tile, int totalClusters) throws Exception;
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+/**
+ * Output of Illumina2bam: where the reads of each tile go.
+ *
+ * Lane calls startTile and endTile around each tile and Tile adds clusters in between.
+ * Implementations write bam/sam (SamFileWriterSink), fastq (FastqWriter),
+ * or just discard or count reads to measure reading and decoding speed
+ * without output compression (NullClusterSink, CountingClusterSink).
+ *
+ */
+public interface ClusterSink extends ClusterWriter {
+
+    /**
+     * called before the first cluster of a tile
+     *
+     * @param tileNumber
+     */
+    public void startTile(int tileNumber);
+
+    /**
+     * called after the last cluster of a tile
+     *
+     * @param tileNumber
+     */
+    public void endTile(int tileNumber);
+
+    /**
+     * finish all output
+     */
+    public void close();
+}
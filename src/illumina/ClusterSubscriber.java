@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+/**
+ * Consumer of clusters from ClusterPublisher, in the style of java.util.concurrent.Flow.Subscriber.
+ *
+ * onSubscribe is called first, then onNext for each cluster as long as clusters are requested,
+ * then either onComplete or onError once, unless the subscription is cancelled.
+ *
+ */
+public interface ClusterSubscriber {
+
+    /**
+     * called before any cluster, no cluster is sent until some are requested
+     *
+     * @param subscription
+     */
+    public void onSubscribe(ClusterSubscription subscription);
+
+    /**
+     * called for each requested cluster
+     *
+     * @param cluster reused for the next cluster, copy what is needed after returning
+     */
+    public void onNext(Cluster cluster);
+
+    /**
+     * called after an error, no more clusters are sent
+     *
+     * @param throwable
+     */
+    public void onError(Throwable throwable);
+
+    /**
+     * called after the last cluster
+     */
+    public void onComplete();
+}
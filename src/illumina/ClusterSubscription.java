@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+/**
+ * Link between ClusterPublisher and ClusterSubscriber, in the style of java.util.concurrent.Flow.Subscription.
+ *
+ * Reading base calls waits while no cluster is requested, so a slow subscriber
+ * holds back the publisher instead of clusters piling up in memory.
+ * Both methods could be called from any thread, including from ClusterSubscriber.onNext.
+ *
+ */
+public interface ClusterSubscription {
+
+    /**
+     * request more clusters, Long.MAX_VALUE for all of them
+     *
+     * @param n number of clusters, must be positive
+     */
+    public void request(long n);
+
+    /**
+     * stop sending clusters, the current tile is not read any further
+     */
+    public void cancel();
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+/**
+ * Writer which takes the reads of a cluster straight from base call arrays,
+ * so Tile does not need to build a SAMRecord for each read.
+ *
+ */
+public interface ClusterWriter {
+
+    /**
+     * write one read of a cluster, the same content as Tile.getSAMRecord
+     *
+     * @param readName
+     * @param clusterIndex
+     * @param baseQuals bases as the first array and phred qualities as the second one
+     * @param secondBases could be null
+     * @param baseQualsIndex could be null, only given with the first read
+     * @param filter
+     * @param paired
+     * @param firstRead
+     * @param barcodesMatch
+     * @param isControl
+     * @param isDuplicate likely optical duplicate of a nearby cluster
+     */
+    public void addCluster(String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate);
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.util.zip.CRC32;
+
+import net.sf.picard.util.Log;
+
+/**
+ * Cluster sink counting reads and bases and calculating a checksum of all bases and qualities,
+ * to measure reading speed without output and to compare two runs.
+ *
+ */
+public class CountingClusterSink implements ClusterSink {
+
+    private final Log log = Log.getInstance(CountingClusterSink.class);
+
+    private final CRC32 checksum = new CRC32();
+
+    private long clusters = 0;
+    private long reads = 0;
+    private long bases = 0;
+    private long tileReads = 0;
+
+    @Override
+    public void startTile(int tileNumber) {
+        this.tileReads = 0;
+    }
+
+    @Override
+    public void addCluster(String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate){
+
+        if(firstRead){
+            this.clusters++;
+        }
+        this.reads++;
+        this.tileReads++;
+        this.bases += baseQuals[0].length;
+
+        this.checksum.update(baseQuals[0]);
+        this.checksum.update(baseQuals[1]);
+        if(baseQualsIndex != null){
+            this.checksum.update(baseQualsIndex[0]);
+            this.checksum.update(baseQualsIndex[1]);
+        }
+    }
+
+    @Override
+    public void endTile(int tileNumber) {
+        log.info(this.tileReads + " reads in tile " + tileNumber);
+    }
+
+    @Override
+    public void close() {
+        log.info("Total clusters: " + this.clusters
+                + ", reads: " + this.reads
+                + ", bases: " + this.bases
+                + ", checksum: " + Long.toHexString(this.getChecksum()));
+    }
+
+    /**
+     * @return number of clusters written
+     */
+    public long getClusters() {
+        return clusters;
+    }
+
+    /**
+     * @return number of reads written
+     */
+    public long getReads() {
+        return reads;
+    }
+
+    /**
+     * @return number of bases written, not including index reads
+     */
+    public long getBases() {
+        return bases;
+    }
+
+    /**
+     * @return CRC32 of bases and qualities of all reads and index reads in order
+     */
+    public long getChecksum() {
+        return checksum.getValue();
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sf.picard.util.Log;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Buffer of base calls for a lane, filled cycle by cycle while the sequencer is still running.
+ *
+ * When the BCL files of a cycle are complete for all tiles, the base call bytes of each tile
+ * are appended to one column file per tile in the buffer directory,
+ * and the cycle is recorded in the buffer index, so a restarted conversion keeps cycles already done.
+ * When all cycles are buffered, reads are built from the column files of each tile
+ * with a few large reads per cycle instead of reading all BCL files byte by byte.
+ *
+ * Only first base calls are buffered, second calls in SCL files are not.
+ *
+ */
+public class CycleColumnBuffer {
+
+    private final Log log = Log.getInstance(CycleColumnBuffer.class);
+
+    public static final String INDEX_FILE_NAME = "cycle_buffer.txt";
+    private static final String INDEX_HEADER = "#tile\tcycle\toffset\tclusters";
+
+    //clusters read from column files at once
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    //the same conversion of a BCL byte as BCLFileReader
+    private static final byte [] BASES = new byte[256];
+    private static final byte [] QUALITIES = new byte[256];
+    private static final byte MAX_QUALITY_SCORE = 60;
+    static {
+        byte [] baseArray = {65, 67, 71, 84};
+        for(int i = 0; i < 256; i++){
+            QUALITIES[i] = (byte) ((i & 0xFC) >> 2);
+            BASES[i] = (QUALITIES[i] != 0) ? baseArray[i & 0x3] : 78;
+        }
+    }
+
+    private final File bufferDir;
+    private final File indexFile;
+    private final String baseCallDir;
+    private final int laneNumber;
+    private final int [] tileList;
+
+    //offsets of cycles in the column file and number of clusters, by tile
+    private final HashMap<Integer, TreeMap<Integer, Long>> offsetsByTile = new HashMap<Integer, TreeMap<Integer, Long>>();
+    private final HashMap<Integer, Integer> clustersByTile = new HashMap<Integer, Integer>();
+
+    /**
+     *
+     * @param bufferDir directory for column files and buffer index
+     * @param baseCallDir base call directory of the run
+     * @param laneNumber
+     * @param tileList tiles to buffer
+     */
+    public CycleColumnBuffer(File bufferDir, String baseCallDir, int laneNumber, int [] tileList){
+
+        this.bufferDir = bufferDir;
+        this.indexFile = new File(bufferDir, INDEX_FILE_NAME);
+        this.baseCallDir = baseCallDir;
+        this.laneNumber = laneNumber;
+        this.tileList = tileList;
+
+        for(int tileNumber : tileList){
+            this.offsetsByTile.put(tileNumber, new TreeMap<Integer, Long>());
+        }
+        this.readIndex();
+    }
+
+    /**
+     * @param cycle
+     * @return true if the cycle is buffered for all tiles
+     */
+    public boolean hasCycle(int cycle){
+        for(int tileNumber : this.tileList){
+            if( !this.offsetsByTile.get(tileNumber).containsKey(cycle) ){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * a BCL file is complete when its length matches the number of clusters in its header
+     *
+     * @param cycle
+     * @return true if BCL files of all tiles for this cycle are complete
+     */
+    public boolean isCycleComplete(int cycle){
+
+        for(int tileNumber : this.tileList){
+            File bclFile = this.getBclFile(tileNumber, cycle);
+            long length = bclFile.length();
+            if(length < 4){
+                return false;
+            }
+            try {
+                if(length != 4 + readClusterNumber(bclFile)){
+                    return false;
+                }
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * append base calls of one cycle to the column file of each tile
+     *
+     * @param cycle
+     */
+    public void ingestCycle(int cycle){
+
+        byte [] buffer = new byte[CHUNK_SIZE];
+        for(int tileNumber : this.tileList){
+
+            TreeMap<Integer, Long> offsets = this.offsetsByTile.get(tileNumber);
+            if(offsets.containsKey(cycle)){
+                continue;
+            }
+            File bclFile = this.getBclFile(tileNumber, cycle);
+            File columnFile = this.getColumnFile(tileNumber);
+            try {
+                DataInputStream in = new DataInputStream(new FileInputStream(bclFile));
+                byte [] header = new byte[4];
+                in.readFully(header);
+                int clusters = readInt(header);
+                Integer tileClusters = this.clustersByTile.get(tileNumber);
+                if(tileClusters != null && tileClusters != clusters){
+                    in.close();
+                    throw new RuntimeException("Number of clusters in BCL file " + bclFile + " " + clusters
+                            + " not as expected:" + tileClusters);
+                }
+
+                long offset = columnFile.length();
+                FileOutputStream out = new FileOutputStream(columnFile, true);
+                int remaining = clusters;
+                while(remaining > 0){
+                    int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                    if(read < 0){
+                        break;
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+                out.getFD().sync();
+                out.close();
+                in.close();
+                if(remaining > 0){
+                    throw new IOException("BCL file is not complete: " + bclFile);
+                }
+
+                this.appendIndex(tileNumber + "\t" + cycle + "\t" + offset + "\t" + clusters);
+                offsets.put(cycle, offset);
+                this.clustersByTile.put(tileNumber, clusters);
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Problems to buffer cycle " + cycle + " of tile " + tileNumber, ex);
+            }
+        }
+        log.info("Cycle " + cycle + " buffered for " + this.tileList.length + " tiles");
+    }
+
+    /**
+     *
+     * @param tileNumber
+     * @return base calls of a tile from the column file
+     */
+    public TileColumns openTile(int tileNumber){
+        TreeMap<Integer, Long> offsets = this.offsetsByTile.get(tileNumber);
+        if(offsets == null || offsets.isEmpty()){
+            throw new IllegalArgumentException("Tile " + tileNumber + " not in cycle buffer " + this.bufferDir);
+        }
+        try {
+            return new TileColumns(this.getColumnFile(tileNumber), offsets, this.clustersByTile.get(tileNumber));
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to open cycle buffer of tile " + tileNumber, ex);
+        }
+    }
+
+    /**
+     * remove column files and buffer index
+     */
+    public void delete(){
+        for(int tileNumber : this.tileList){
+            this.getColumnFile(tileNumber).delete();
+        }
+        this.indexFile.delete();
+    }
+
+    private File getBclFile(int tileNumber, int cycle){
+        return new File(Tile.getBaseCallFileName(this.baseCallDir, this.laneNumber, tileNumber, cycle, true));
+    }
+
+    private File getColumnFile(int tileNumber){
+        return new File(this.bufferDir, "s_" + this.laneNumber + "_" + tileNumber + ".columns");
+    }
+
+    private static int readClusterNumber(File bclFile) throws IOException {
+        InputStream in = new FileInputStream(bclFile);
+        byte [] header = new byte[4];
+        int read = in.read(header);
+        in.close();
+        if(read != 4){
+            throw new IOException("No BCL header in " + bclFile);
+        }
+        return readInt(header);
+    }
+
+    private static int readInt(byte [] header){
+        return (header[0] & 0xFF) | ((header[1] & 0xFF) << 8) | ((header[2] & 0xFF) << 16) | ((header[3] & 0xFF) << 24);
+    }
+
+    private void appendIndex(String line) throws IOException {
+        boolean newIndex = !this.indexFile.exists();
+        FileOutputStream out = new FileOutputStream(this.indexFile, true);
+        if(newIndex){
+            out.write((INDEX_HEADER + "\n").getBytes());
+        }
+        out.write((line + "\n").getBytes());
+        out.getFD().sync();
+        out.close();
+    }
+
+    private void readIndex(){
+
+        if( !this.indexFile.exists() ){
+            return;
+        }
+        int cycles = 0;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(this.indexFile));
+            String line;
+            while((line = reader.readLine()) != null){
+                String [] fields = line.split("\t");
+                if(line.startsWith("#") || fields.length != 4){
+                    continue;
+                }
+                int tileNumber = Integer.parseInt(fields[0]);
+                TreeMap<Integer, Long> offsets = this.offsetsByTile.get(tileNumber);
+                if(offsets != null){
+                    offsets.put(Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+                    this.clustersByTile.put(tileNumber, Integer.parseInt(fields[3]));
+                    cycles++;
+                }
+            }
+            reader.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to read cycle buffer index " + this.indexFile, ex);
+        }
+        log.info(cycles + " tile cycles found in cycle buffer " + this.bufferDir);
+    }
+
+    /**
+     * base calls of one tile, read from the column file in chunks of clusters
+     */
+    public static class TileColumns implements CycleColumns {
+
+        private final RandomAccessFile columnFile;
+        private final TreeMap<Integer, Long> offsets;
+        private final int totalClusters;
+
+        //columns of the current chunk, in the order of cycles
+        private final HashMap<Integer, Integer> columnByCycle = new HashMap<Integer, Integer>();
+        private final byte [][] chunk;
+        private int chunkStart = -1;
+        private int chunkLength = 0;
+
+        TileColumns(File columnFile, TreeMap<Integer, Long> offsets, int totalClusters) throws IOException {
+            this.columnFile = new RandomAccessFile(columnFile, "r");
+            this.offsets = offsets;
+            this.totalClusters = totalClusters;
+            for(int cycle : offsets.keySet()){
+                this.columnByCycle.put(cycle, this.columnByCycle.size());
+            }
+            this.chunk = new byte[offsets.size()][Math.min(CHUNK_SIZE, totalClusters)];
+        }
+
+        /**
+         *
+         * @param cycleRange first and last cycle of a read
+         * @param cluster cluster number in the tile, from 0
+         * @return bases as the first array and phred qualities as the second one
+         */
+        @Override
+        public byte [][] getBaseQuals(int [] cycleRange, int cluster){
+            byte [][] baseQuals = new byte[2][cycleRange[1] - cycleRange[0] + 1];
+            this.getBaseQuals(cycleRange, cluster, baseQuals[0], baseQuals[1], 0);
+            return baseQuals;
+        }
+
+        @Override
+        public void getBaseQuals(int [] cycleRange, int cluster, byte [] bases, byte [] qualities, int offset){
+
+            if(cluster < this.chunkStart || cluster >= this.chunkStart + this.chunkLength){
+                this.readChunk(cluster - cluster % CHUNK_SIZE);
+            }
+            int position = cluster - this.chunkStart;
+            int readLength = cycleRange[1] - cycleRange[0] + 1;
+            for(int i = 0; i < readLength; i++){
+                Integer column = this.columnByCycle.get(cycleRange[0] + i);
+                if(column == null){
+                    throw new IllegalStateException("Cycle " + (cycleRange[0] + i) + " not in cycle buffer");
+                }
+                int value = this.chunk[column][position] & 0xFF;
+                if(QUALITIES[value] > MAX_QUALITY_SCORE){
+                    throw new IllegalArgumentException("Invalid quality score: " + QUALITIES[value]
+                            + " in cycle " + (cycleRange[0] + i) + " in position " + cluster);
+                }
+                bases[offset + i] = BASES[value];
+                qualities[offset + i] = QUALITIES[value];
+            }
+        }
+
+        private void readChunk(int start){
+            this.chunkStart = start;
+            this.chunkLength = Math.min(CHUNK_SIZE, this.totalClusters - start);
+            try {
+                for(Map.Entry<Integer, Long> entry : this.offsets.entrySet()){
+                    this.columnFile.seek(entry.getValue() + start);
+                    this.columnFile.readFully(this.chunk[this.columnByCycle.get(entry.getKey())], 0, this.chunkLength);
+                }
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Problems to read cycle buffer", ex);
+            }
+        }
+
+        /**
+         * @return number of clusters in the tile
+         */
+        @Override
+        public int getTotalClusters() {
+            return totalClusters;
+        }
+
+        @Override
+        public void close(){
+            try {
+                this.columnFile.close();
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Problems to close cycle buffer", ex);
+            }
+        }
+    }
+}
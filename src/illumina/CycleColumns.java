@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+/**
+ * Base calls of one tile read by cycle instead of from BCL files
+ *
+ */
+public interface CycleColumns {
+
+    /**
+     *
+     * @param cycleRange first and last cycle of a read
+     * @param cluster cluster number in the tile, from 0
+     * @return bases as the first array and phred qualities as the second one
+     */
+    public byte [][] getBaseQuals(int [] cycleRange, int cluster);
+
+    /**
+     * read bases and qualities into arrays owned by the caller
+     *
+     * @param cycleRange first and last cycle of a read
+     * @param cluster cluster number in the tile, from 0
+     * @param bases
+     * @param qualities
+     * @param offset position in both arrays of the first cycle
+     */
+    public void getBaseQuals(int [] cycleRange, int cluster, byte [] bases, byte [] qualities, int offset);
+
+    /**
+     * @return number of clusters in the tile
+     */
+    public int getTotalClusters();
+
+    public void close();
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.picard.metrics.MetricBase;
+import net.sf.picard.metrics.MetricsFile;
+
+/**
+ * Base composition and quality distribution by cycle, counted while base calls are converted.
+ *
+ * Each tile counts into its own histogram, which is merged into the lane histogram
+ * when the tile ends, so tiles converted at the same time never share counters.
+ *
+ */
+public class CycleHistogram {
+
+    //A, C, G, T and no-calls
+    private static final int BASE_TYPES = 5;
+    private static final String BASES = "ACGTN";
+    private static final int [] BASE_INDEX = new int[256];
+    static {
+        Arrays.fill(BASE_INDEX, 4);
+        for(int i = 0; i < 4; i++){
+            BASE_INDEX[BASES.charAt(i)] = i;
+        }
+    }
+
+    //bcl files use six bits for quality
+    private static final int QUALITY_VALUES = 64;
+
+    private int cycles = 0;
+    private String [] readByCycle = new String[0];
+    private long [] baseCounts = new long[0];
+    private long [] qualityCounts = new long[0];
+
+    /**
+     * make room for the cycles of a read
+     *
+     * @param read read name such as read1 or readIndex1
+     * @param cycleRange first and last cycle of the read
+     */
+    public void addRead(String read, int [] cycleRange){
+        this.ensureCycles(cycleRange[1]);
+        for(int cycle = cycleRange[0]; cycle <= cycleRange[1]; cycle++){
+            this.readByCycle[cycle - 1] = read;
+        }
+    }
+
+    /**
+     * count the bases and qualities of one read of a cluster
+     *
+     * @param firstCycle cycle of the first base
+     * @param baseQuals bases as the first array and phred qualities as the second one
+     */
+    public void add(int firstCycle, byte [][] baseQuals){
+        byte [] bases = baseQuals[0];
+        byte [] quals = baseQuals[1];
+        int baseOffset = (firstCycle - 1) * BASE_TYPES;
+        int qualityOffset = (firstCycle - 1) * QUALITY_VALUES;
+        for(int i = 0; i < bases.length; i++){
+            this.baseCounts[baseOffset + BASE_INDEX[bases[i] & 0xFF]]++;
+            this.qualityCounts[qualityOffset + (quals[i] & 0x3F)]++;
+            baseOffset += BASE_TYPES;
+            qualityOffset += QUALITY_VALUES;
+        }
+    }
+
+    /**
+     * add all counts of another histogram to this one
+     *
+     * @param other
+     */
+    public synchronized void merge(CycleHistogram other){
+        this.ensureCycles(other.cycles);
+        for(int i = 0; i < other.cycles; i++){
+            if(other.readByCycle[i] != null){
+                this.readByCycle[i] = other.readByCycle[i];
+            }
+        }
+        for(int i = 0; i < other.baseCounts.length; i++){
+            this.baseCounts[i] += other.baseCounts[i];
+        }
+        for(int i = 0; i < other.qualityCounts.length; i++){
+            this.qualityCounts[i] += other.qualityCounts[i];
+        }
+    }
+
+    /**
+     * @return one metric for each cycle with base calls counted
+     */
+    public synchronized List<CycleMetric> getMetrics(){
+
+        List<CycleMetric> metrics = new ArrayList<CycleMetric>();
+        for(int cycle = 1; cycle <= this.cycles; cycle++){
+
+            int baseOffset = (cycle - 1) * BASE_TYPES;
+            int qualityOffset = (cycle - 1) * QUALITY_VALUES;
+            long bases = 0;
+            for(int i = 0; i < BASE_TYPES; i++){
+                bases += this.baseCounts[baseOffset + i];
+            }
+            if(bases == 0){
+                continue;
+            }
+
+            CycleMetric metric = new CycleMetric();
+            metric.READ = this.readByCycle[cycle - 1];
+            metric.CYCLE = cycle;
+            metric.BASES = bases;
+            metric.PCT_A = 100.0 * this.baseCounts[baseOffset] / bases;
+            metric.PCT_C = 100.0 * this.baseCounts[baseOffset + 1] / bases;
+            metric.PCT_G = 100.0 * this.baseCounts[baseOffset + 2] / bases;
+            metric.PCT_T = 100.0 * this.baseCounts[baseOffset + 3] / bases;
+            metric.PCT_N = 100.0 * this.baseCounts[baseOffset + 4] / bases;
+
+            long qualitySum = 0;
+            long q20 = 0;
+            long q30 = 0;
+            long counted = 0;
+            StringBuilder histogram = new StringBuilder();
+            for(int quality = 0; quality < QUALITY_VALUES; quality++){
+                long count = this.qualityCounts[qualityOffset + quality];
+                if(count == 0){
+                    continue;
+                }
+                qualitySum += count * quality;
+                if(quality >= 20){
+                    q20 += count;
+                }
+                if(quality >= 30){
+                    q30 += count;
+                }
+                if(counted < (bases + 1) / 2 && counted + count >= (bases + 1) / 2){
+                    metric.MEDIAN_QUALITY = quality;
+                }
+                counted += count;
+                if(histogram.length() > 0){
+                    histogram.append(",");
+                }
+                histogram.append(quality).append(":").append(count);
+            }
+            metric.MEAN_QUALITY = (double) qualitySum / bases;
+            metric.PCT_Q20 = 100.0 * q20 / bases;
+            metric.PCT_Q30 = 100.0 * q30 / bases;
+            metric.QUALITY_HISTOGRAM = histogram.toString();
+            metrics.add(metric);
+        }
+        return metrics;
+    }
+
+    /**
+     * write metrics of all cycles
+     *
+     * @param metricsFile
+     * @param output
+     */
+    public void writeMetrics(MetricsFile<CycleMetric, Integer> metricsFile, File output){
+        for(CycleMetric metric : this.getMetrics()){
+            metricsFile.addMetric(metric);
+        }
+        metricsFile.write(output);
+    }
+
+    private void ensureCycles(int newCycles){
+        if(newCycles <= this.cycles){
+            return;
+        }
+        this.readByCycle = Arrays.copyOf(this.readByCycle, newCycles);
+        this.baseCounts = Arrays.copyOf(this.baseCounts, newCycles * BASE_TYPES);
+        this.qualityCounts = Arrays.copyOf(this.qualityCounts, newCycles * QUALITY_VALUES);
+        this.cycles = newCycles;
+    }
+
+    /**
+     * Base composition and qualities of one cycle over all converted reads.
+     */
+    public static class CycleMetric extends MetricBase {
+
+        /** Read of the cycle, such as read1, read2 or readIndex1. */
+        public String READ;
+
+        /** Cycle number in the run. */
+        public int CYCLE;
+
+        /** Number of base calls in this cycle. */
+        public long BASES;
+
+        /** Percentage of A calls. */
+        public double PCT_A;
+
+        /** Percentage of C calls. */
+        public double PCT_C;
+
+        /** Percentage of G calls. */
+        public double PCT_G;
+
+        /** Percentage of T calls. */
+        public double PCT_T;
+
+        /** Percentage of no-calls. */
+        public double PCT_N;
+
+        /** Mean quality. */
+        public double MEAN_QUALITY;
+
+        /** Median quality. */
+        public int MEDIAN_QUALITY;
+
+        /** Percentage of calls with quality 20 or more. */
+        public double PCT_Q20;
+
+        /** Percentage of calls with quality 30 or more. */
+        public double PCT_Q30;
+
+        /** Number of calls for each quality, as quality:count separated by commas. */
+        public String QUALITY_HISTOGRAM;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.Md5CalculatingOutputStream;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * FASTQ writer for Illumina reads.
+ *
+ * Read 1 and read 2 go to files named by the output file name with _R1 and _R2,
+ * index reads to _I1 and _I2 files or into the read name line.
+ * The read name line follows Casava 1.8: @readName read:filtered:control:index.
+ *
+ * Output files ending with .gz are compressed by ParallelGzipOutputStream.
+ *
+ */
+public class FastqWriter implements SAMFileWriter, ClusterSink {
+
+    private final Log log = Log.getInstance(FastqWriter.class);
+
+    private final SAMFileHeader header;
+    private final boolean indexInReadName;
+    private final String barcodeSeqTagName;
+    private final int index1Length;
+
+    private final ExecutorService executor;
+    private final OutputStream [] readOutputs = new OutputStream[2];
+    private final OutputStream [] indexOutputs = new OutputStream[2];
+
+    private byte [] buffer = new byte[1024];
+    private int position;
+
+    //index of the first read of the current cluster, also put into the read name line of read 2
+    private byte [] firstReadIndex;
+
+    /**
+     *
+     * @param header SAM header, not written into FASTQ
+     * @param output output file name, for example lane.fastq.gz for lane_R1.fastq.gz and lane_R2.fastq.gz
+     * @param paired write read 2 file or not
+     * @param indexLengths lengths of index reads, empty if not indexed
+     * @param indexInReadName put index read into read name line instead of index files
+     * @param barcodeSeqTagName tag name for barcode sequence, used for SAMRecord added
+     * @param threads number of threads to compress gzip output
+     * @param compressionLevel gzip compression level
+     * @param createMd5File create md5 file for each output or not
+     */
+    public FastqWriter(SAMFileHeader header,
+            File output,
+            boolean paired,
+            int [] indexLengths,
+            boolean indexInReadName,
+            String barcodeSeqTagName,
+            int threads,
+            int compressionLevel,
+            boolean createMd5File){
+
+        this.header = header;
+        this.indexInReadName = indexInReadName;
+        this.barcodeSeqTagName = barcodeSeqTagName;
+        this.index1Length = (indexLengths.length > 1) ? indexLengths[0] : -1;
+
+        boolean compressed = output.getName().endsWith(".gz");
+        this.executor = compressed ? Executors.newFixedThreadPool(threads, new DaemonThreadFactory()) : null;
+
+        this.readOutputs[0] = this.openOutput(output, "R1", threads, compressionLevel, createMd5File);
+        if(paired){
+            this.readOutputs[1] = this.openOutput(output, "R2", threads, compressionLevel, createMd5File);
+        }
+        if(!indexInReadName){
+            for(int i = 0; i < indexLengths.length && i < 2; i++){
+                this.indexOutputs[i] = this.openOutput(output, "I" + (i + 1), threads, compressionLevel, createMd5File);
+            }
+        }
+    }
+
+    /**
+     * output file name with read type inserted before .fastq or .fq extension
+     *
+     * @param output
+     * @param readType R1, R2, I1 or I2
+     * @return file for this read type
+     */
+    public static File getFastqFile(File output, String readType){
+
+        String name = output.getName();
+        int extensionStart = name.lastIndexOf(".fastq");
+        if(extensionStart < 0){
+            extensionStart = name.lastIndexOf(".fq");
+        }
+        if(extensionStart < 0){
+            extensionStart = name.length();
+        }
+        String fileName = name.substring(0, extensionStart) + "_" + readType + name.substring(extensionStart);
+        return new File(output.getAbsoluteFile().getParentFile(), fileName);
+    }
+
+    /**
+     * @param output
+     * @return true if the output file name is a FASTQ file name
+     */
+    public static boolean isFastqFile(File output){
+        String name = output.getName();
+        return name.endsWith(".fastq") || name.endsWith(".fq")
+                || name.endsWith(".fastq.gz") || name.endsWith(".fq.gz");
+    }
+
+    @Override
+    public void startTile(int tileNumber) {
+    }
+
+    @Override
+    public void endTile(int tileNumber) {
+    }
+
+    @Override
+    public void addCluster(String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate){
+
+        int readNumber = (firstRead || !paired) ? 1 : 2;
+        byte [] index = this.getClusterIndex(readNumber, (baseQualsIndex != null) ? baseQualsIndex[0] : null);
+
+        this.writeRecord(readNumber - 1, readName, readNumber, filter == 0, isControl, index,
+                baseQuals[0], baseQuals[1], 0, baseQuals[0].length);
+
+        if(baseQualsIndex != null && !this.indexInReadName){
+            if(this.index1Length < 0){
+                this.writeIndexRecord(0, readName, filter == 0, isControl, baseQualsIndex, 0, baseQualsIndex[0].length);
+            }else{
+                this.writeIndexRecord(0, readName, filter == 0, isControl, baseQualsIndex, 0, this.index1Length);
+                this.writeIndexRecord(1, readName, filter == 0, isControl, baseQualsIndex, this.index1Length, baseQualsIndex[0].length - this.index1Length);
+            }
+        }
+    }
+
+    /**
+     * write a SAMRecord into read 1 or read 2 file, quality in SAMRecord is phred score
+     *
+     * @param alignment
+     */
+    @Override
+    public void addAlignment(SAMRecord alignment) {
+
+        int readNumber = (alignment.getReadPairedFlag() && alignment.getSecondOfPairFlag()) ? 2 : 1;
+        byte [] index = null;
+        Object barcode = alignment.getAttribute(this.barcodeSeqTagName);
+        if(barcode != null){
+            index = barcode.toString().getBytes();
+        }
+        index = this.getClusterIndex(readNumber, index);
+        byte [] bases = alignment.getReadBases();
+        this.writeRecord(readNumber - 1, alignment.getReadName(), readNumber,
+                alignment.getReadFailsVendorQualityCheckFlag(), alignment.getAttribute("XC") != null,
+                index, bases, alignment.getBaseQualities(), 0, bases.length);
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return this.header;
+    }
+
+    @Override
+    public void close() {
+        try {
+            for(OutputStream out : this.readOutputs){
+                if(out != null){
+                    out.close();
+                }
+            }
+            for(OutputStream out : this.indexOutputs){
+                if(out != null){
+                    out.close();
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to close fastq file", ex);
+        } finally {
+            if(this.executor != null){
+                this.executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * keep the index of read 1, read 2 is given without index
+     *
+     * @param readNumber
+     * @param index index given with this read, could be null
+     * @return index for the read name line of this read
+     */
+    private byte [] getClusterIndex(int readNumber, byte [] index){
+        if(readNumber == 1){
+            this.firstReadIndex = index;
+            return index;
+        }
+        return (index != null) ? index : this.firstReadIndex;
+    }
+
+    private void writeIndexRecord(int indexNumber, String readName, boolean filtered, boolean isControl,
+            byte [][] baseQualsIndex, int start, int length){
+        this.position = 0;
+        this.appendHeader(readName, indexNumber + 1, filtered, isControl, null);
+        this.appendSequence(baseQualsIndex[0], baseQualsIndex[1], start, length);
+        this.flushRecord(this.indexOutputs[indexNumber]);
+    }
+
+    private void writeRecord(int output, String readName, int readNumber, boolean filtered, boolean isControl,
+            byte [] index, byte [] bases, byte [] quals, int start, int length){
+        this.position = 0;
+        this.appendHeader(readName, readNumber, filtered, isControl, this.indexInReadName ? index : null);
+        this.appendSequence(bases, quals, start, length);
+        this.flushRecord(this.readOutputs[output]);
+    }
+
+    private void appendHeader(String readName, int readNumber, boolean filtered, boolean isControl, byte [] index){
+
+        this.ensureCapacity(readName.length() + (index != null ? index.length : 0) + 16);
+        this.buffer[this.position++] = '@';
+        for(int i = 0; i < readName.length(); i++){
+            this.buffer[this.position++] = (byte) readName.charAt(i);
+        }
+        this.buffer[this.position++] = ' ';
+        this.buffer[this.position++] = (byte) ('0' + readNumber);
+        this.buffer[this.position++] = ':';
+        this.buffer[this.position++] = (byte) (filtered ? 'Y' : 'N');
+        this.buffer[this.position++] = ':';
+        this.buffer[this.position++] = (byte) (isControl ? '1' : '0');
+        this.buffer[this.position++] = ':';
+        if(index != null){
+            System.arraycopy(index, 0, this.buffer, this.position, index.length);
+            this.position += index.length;
+        }
+        this.buffer[this.position++] = '\n';
+    }
+
+    private void appendSequence(byte [] bases, byte [] quals, int start, int length){
+
+        this.ensureCapacity(this.position + 2 * length + 4);
+        System.arraycopy(bases, start, this.buffer, this.position, length);
+        this.position += length;
+        this.buffer[this.position++] = '\n';
+        this.buffer[this.position++] = '+';
+        this.buffer[this.position++] = '\n';
+        for(int i = start; i < start + length; i++){
+            this.buffer[this.position++] = (byte) (quals[i] + 33);
+        }
+        this.buffer[this.position++] = '\n';
+    }
+
+    private void flushRecord(OutputStream out){
+        try {
+            out.write(this.buffer, 0, this.position);
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to write fastq record", ex);
+        }
+    }
+
+    private void ensureCapacity(int size){
+        if(this.buffer.length < size){
+            byte [] newBuffer = new byte[Math.max(size, this.buffer.length * 2)];
+            System.arraycopy(this.buffer, 0, newBuffer, 0, this.position);
+            this.buffer = newBuffer;
+        }
+    }
+
+    private OutputStream openOutput(File output, String readType, int threads, int compressionLevel, boolean createMd5File){
+
+        File fastq = getFastqFile(output, readType);
+        log.info("Open fastq file: " + fastq);
+        try {
+            OutputStream out = new FileOutputStream(fastq, false);
+            if(createMd5File){
+                out = new Md5CalculatingOutputStream(out, new File(fastq.getAbsolutePath() + ".md5"));
+            }
+            if(this.executor != null){
+                return new ParallelGzipOutputStream(out, this.executor, threads, compressionLevel, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
+            }
+            return new BufferedOutputStream(out, 64 * 1024);
+        } catch (FileNotFoundException ex) {
+            throw new RuntimeIOException("Problems to open fastq file " + fastq, ex);
+        }
+    }
+
+    /**
+     * daemon threads, so a failed conversion does not keep the JVM running
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = this.defaultFactory.newThread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
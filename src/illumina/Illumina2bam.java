@@ -19,13 +19,20 @@
 
 package illumina;
 
+import illumina.file.reader.IlluminaFileReader;
+
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import net.sf.picard.cmdline.Option;
 import net.sf.picard.cmdline.Usage;
-import net.sf.samtools.SAMFileWriter;
 
 import net.sf.picard.io.IoUtil;
+import net.sf.picard.metrics.MetricsFile;
+import net.sf.picard.metrics.StringHeader;
 import net.sf.picard.util.Log;
 import net.sf.samtools.SAMReadGroupRecord;
 import net.sf.samtools.util.Iso8601Date;
@@ -58,7 +65,10 @@ public class Illumina2bam extends Illumina2bamCommandLine {
     @Option(shortName="L", doc="Lane number.")
     public Integer LANE;
 
-    @Option(shortName="O", doc="Output file name.")
+    @Option(shortName="O", doc="Output file name. Paired fastq files are written if the name ends with .fastq, .fq, .fastq.gz or .fq.gz, "
+            + "for example lane.fastq.gz for lane_R1.fastq.gz, lane_R2.fastq.gz and index reads in lane_I1.fastq.gz and lane_I2.fastq.gz. "
+            + "Use - to write to standard output, flushed after each tile. Not needed with LANE_SUMMARY_FILE or ARCHIVE_OUTPUT_DIR.",
+            mutex = {"OUTPUT_DIR"}, optional=true)
     public File OUTPUT;
 
     @Option(shortName="E2", doc="Including second base call or not, default false.", optional=true)
@@ -107,6 +117,162 @@ public class Illumina2bam extends Illumina2bamCommandLine {
     @Option(shortName="BC_QUAL", doc="Tag name for barcode quality.")
     public String BARCODE_QUALITY_TAG_NAME = "QT";
 
+    @Option(doc="Encode BAM records directly from base calls instead of building SAMRecord objects, only for BAM output, default true.", optional=true)
+    public boolean FAST_BAM_ENCODING = true;
+
+    @Option(doc="Where reads go: file to write OUTPUT, null to discard all reads, "
+            + "count to only log read numbers and a checksum, default file. OUTPUT is not written with null or count.", optional=true)
+    public String OUTPUT_SINK = "file";
+
+    @Option(doc="Put index reads into the read name line of fastq output instead of separate index fastq files, default false.", optional=true)
+    public boolean FASTQ_INDEX_IN_READ_NAME = false;
+
+    @Option(doc="Number of threads to compress gzipped fastq output, using the number of processors if not given.", optional=true)
+    public Integer COMPRESSION_THREADS;
+
+    @Option(doc="Tab-delimited file of barcode sequences to decode reads while converting, the same format as BamIndexDecoder. "
+            + "No decoding if not given.", optional=true)
+    public File BARCODE_FILE;
+
+    @Option(doc="Per-barcode and per-lane metrics written to this file, required with BARCODE_FILE.", optional=true)
+    public File METRICS_FILE;
+
+    @Option(doc="The output directory for bam files for each barcode if you want to split the output when decoding.", mutex = {"OUTPUT"}, optional=true)
+    public File OUTPUT_DIR;
+
+    @Option(doc="The timeId used for the undetermined directory containing barcodes when decoding with OUTPUT_DIR.", optional=true)
+    public String UNDETERMINED_TIME_ID;
+
+    @Option(doc="The extension name for split file when decoding with OUTPUT_DIR, or the format written to standard output with OUTPUT=-: bam or sam. "
+            + "Bam to standard output is not compressed.", optional=true)
+    public String OUTPUT_FORMAT = "bam";
+
+    @Option(doc="Maximum mismatches for a barcode to be considered a match when decoding.", optional=true)
+    public int MAX_MISMATCHES = 1;
+
+    @Option(doc="Minimum difference between number of mismatches in the best and second best barcodes for a barcode to be considered a match when decoding.", optional=true)
+    public int MIN_MISMATCH_DELTA = 1;
+
+    @Option(doc="Maximum allowable number of no-calls in a barcode read before it is considered unmatchable when decoding.", optional=true)
+    public int MAX_NO_CALLS = 2;
+
+    @Option(doc="Keep output of reads with undetermined barcodes when decoding.", optional=true)
+    public boolean KEEP_UNDETERMINED = false;
+
+    @Option(doc="Barcode name, sample name, library name or barcode sequence from BARCODE_FILE to convert. "
+            + "Index cycles are decoded first and only clusters matching these barcodes are converted. "
+            + "All clusters are converted if not given. Barcode metrics only count converted clusters.", optional=true)
+    public List<String> SELECT_BARCODE = new ArrayList<String>();
+
+    @Option(doc="Directory to checkpoint each tile while writing a bam OUTPUT. Running again with the same directory "
+            + "skips the tiles already done, the bam file is written when all tiles are done.", optional=true)
+    public File CHECKPOINT_DIR;
+
+    @Option(doc="Split bam OUTPUT into shards with this number of clusters each, never splitting a pair. "
+            + "Shards are named with a number added before .bam and listed in a .shards.txt manifest. No splitting if not given.", optional=true)
+    public Long SHARD_SIZE;
+
+    @Option(doc="Write a tile index file next to bam OUTPUT with the BGZF virtual offset of the first record of each tile, "
+            + "to read one tile without reading from the start. Only with FAST_BAM_ENCODING, default false.", optional=true)
+    public boolean CREATE_TILE_INDEX = false;
+
+    @Option(doc="Also add a tile index entry every this number of clusters in a tile. Only tile starts if not given.", optional=true)
+    public Integer TILE_INDEX_INTERVAL;
+
+    @Option(doc="Directory to buffer base calls of each cycle as soon as the cycle is complete, for conversion while the run is still going on. "
+            + "Illumina2bam waits for all cycles of the lane, then reads base calls from the buffer. "
+            + "Second base calls are not supported. No buffering if not given.", optional=true)
+    public File CYCLE_BUFFER_DIR;
+
+    @Option(doc="Seconds to wait before checking an incomplete cycle again with CYCLE_BUFFER_DIR, 60 if not given.", optional=true)
+    public Integer CYCLE_POLL_SECONDS;
+
+    @Option(doc="Cache file for the list of run folder files of this lane. Directories are listed once and written to this file, "
+            + "later runs on the same run folder read it instead of checking each file again. No listing if not given.", optional=true)
+    public File RUN_MANIFEST_CACHE;
+
+    @Option(doc="Metrics file with the time spent opening, reading, decoding, building records and writing for each tile, "
+            + "with clusters per second and MB per second for each input file type. The slowest tiles are listed first. "
+            + "No timing if not given.", optional=true)
+    public File TIMING_METRICS_FILE;
+
+    @Option(doc="Memory budget for reader buffers, second base calls and output buffers, such as 4g or 512m. "
+            + "Buffers shrink or wait while the budget is low, and the peak is logged at the end. No limit if not given.", optional=true)
+    public String MAX_MEMORY;
+
+    @Option(doc="Convert the first tile under a few reader buffer sizes, compression threads and compression levels, "
+            + "then convert the lane with the fastest settings. COMPRESSION_LEVEL and COMPRESSION_THREADS are overridden. "
+            + "The chosen settings are logged and added to metrics file headers.", optional=true)
+    public boolean AUTOTUNE = false;
+
+    @Option(doc="Time limit in seconds for AUTOTUNE trials, 60 if not given.", optional=true)
+    public Integer AUTOTUNE_SECONDS;
+
+    @Option(doc="Convert only this fraction of clusters in each tile, between 0 and 1. Clusters are chosen by a hash of "
+            + "SEED, tile and cluster index, so the same clusters are chosen again with the same SEED, "
+            + "and base calls of the other clusters are skipped.", optional=true)
+    public Double SAMPLE_FRACTION;
+
+    @Option(doc="Seed to choose clusters with SAMPLE_FRACTION, 0 if not given.", optional=true)
+    public Long SEED;
+
+    @Option(doc="Bin quality scores while reading base calls: ILLUMINA8 for Illumina 8 level binning, "
+            + "or comma separated quality ranges with the value to map to, such as 2-9:6,10-19:15. "
+            + "Qualities outside the ranges are not changed. The quality map is added to the @PG record. "
+            + "No binning if not given.", optional=true)
+    public String QUALITY_BINNING;
+
+    @Option(doc="Find likely optical duplicates while converting: clusters within this distance in x and y, "
+            + "in read name coordinates, with the same bases at the start of each read as an earlier cluster "
+            + "are tagged with XD:i:1. No duplicates searched if not given.", optional=true)
+    public Integer OPTICAL_DUPLICATE_PIXEL_DISTANCE;
+
+    @Option(doc="Number of bases compared from the start of each read to find optical duplicates, up to 15, 10 if not given.", optional=true)
+    public Integer OPTICAL_DUPLICATE_PREFIX_LENGTH;
+
+    @Option(doc="Metrics file with the number and percentage of optical duplicates per tile.", optional=true)
+    public File OPTICAL_DUPLICATE_METRICS_FILE;
+
+    @Option(doc="Metrics file with cluster density, percentage passing filter, mean quality, mean quality of each cycle "
+            + "and percentage of no-calls in square bins of each tile.", optional=true)
+    public File SPATIAL_QC_METRICS_FILE;
+
+    @Option(doc="Width and height of the bins for SPATIAL_QC_METRICS_FILE in read name coordinates, 5000 if not given.", optional=true)
+    public Integer SPATIAL_QC_BIN_SIZE;
+
+    @Option(doc="Metrics file with base composition, mean, median and Q20/Q30 percentages and the quality histogram "
+            + "of each cycle, counted over all converted reads.", optional=true)
+    public File CYCLE_METRICS_FILE;
+
+    @Option(doc="Only count clusters, passing filter clusters and control clusters of each tile and the lane "
+            + "from filter and control files, write them to this metrics file and do not convert. "
+            + "Tiles are counted in parallel, one thread per processor, and OUTPUT is not written.", optional=true)
+    public File LANE_SUMMARY_FILE;
+
+    @Option(doc="Directory shared by several processes converting this lane to the same bam OUTPUT, on one or more hosts. "
+            + "Each process claims tiles through files in this directory, writes a fragment for each tile, "
+            + "takes over tiles of processes which stopped and converts tiles of slow processes again when idle. "
+            + "The last fragments are put into OUTPUT by one of the processes. Metrics files of converted reads can not be written.", optional=true)
+    public File WORK_QUEUE_DIR;
+
+    @Option(doc="Seconds after which a tile claim in WORK_QUEUE_DIR not kept alive is taken over by another process, "
+            + "300 if not given.", optional=true)
+    public Integer WORK_QUEUE_STALE_SECONDS;
+
+    @Option(doc="Only archive the lane into this directory and do not convert: one file per tile with base calls of all cycles "
+            + "in compressed blocks, filter, control and clocs or pos file, to convert the lane again later with ARCHIVE_DIR. "
+            + "Tiles are archived in parallel with COMPRESSION_THREADS threads and OUTPUT is not written.", optional=true)
+    public File ARCHIVE_OUTPUT_DIR;
+
+    @Option(doc="Directory with tile files written by ARCHIVE_OUTPUT_DIR, read instead of BCL, filter, control and position files "
+            + "of the run folder. Config files of the run folder are still read. Blocks are decompressed with COMPRESSION_THREADS threads. "
+            + "Second base calls are not supported.", optional=true)
+    public File ARCHIVE_DIR;
+
+    private BamIndexDecoder indexDecoder;
+
+    private BarcodeClusterSelector barcodeSelector;
+
     //TODO: add command option to add ci tag
     
     //TODO: add command option to overwrite cycle range per read   
@@ -118,7 +284,58 @@ public class Illumina2bam extends Illumina2bamCommandLine {
     @Override
     protected int doWork() {
 
-        IoUtil.assertFileIsWritable(OUTPUT);
+        MemoryBudget budget = this.startMemoryBudget(this.MAX_MEMORY);
+        try {
+            return this.convertLane();
+        } finally {
+            this.finishMemoryBudget(budget);
+            IlluminaFileReader.setBufferSize(IlluminaFileReader.DEFAULT_BUFFER_SIZE);
+        }
+    }
+
+    private int convertLane() {
+
+        if(LANE_SUMMARY_FILE != null){
+            IoUtil.assertFileIsWritable(LANE_SUMMARY_FILE);
+        }else if(ARCHIVE_OUTPUT_DIR != null){
+            ARCHIVE_OUTPUT_DIR.mkdirs();
+            IoUtil.assertDirectoryIsWritable(ARCHIVE_OUTPUT_DIR);
+        }else if(OUTPUT != null && !Illumina2bamUtils.isStandardOutput(OUTPUT)){
+            IoUtil.assertFileIsWritable(OUTPUT);
+        }
+        if(OUTPUT_DIR != null){
+            IoUtil.assertDirectoryIsWritable(OUTPUT_DIR);
+        }
+        if(this.indexDecoder != null){
+            IoUtil.assertFileIsWritable(METRICS_FILE);
+        }
+        if(ARCHIVE_DIR != null){
+            IoUtil.assertDirectoryIsReadable(ARCHIVE_DIR);
+        }
+        if(CYCLE_BUFFER_DIR != null){
+            CYCLE_BUFFER_DIR.mkdirs();
+            IoUtil.assertDirectoryIsWritable(CYCLE_BUFFER_DIR);
+        }
+        if(CHECKPOINT_DIR != null){
+            CHECKPOINT_DIR.mkdirs();
+            IoUtil.assertDirectoryIsWritable(CHECKPOINT_DIR);
+        }
+        if(WORK_QUEUE_DIR != null){
+            WORK_QUEUE_DIR.mkdirs();
+            IoUtil.assertDirectoryIsWritable(WORK_QUEUE_DIR);
+        }
+        if(TIMING_METRICS_FILE != null){
+            IoUtil.assertFileIsWritable(TIMING_METRICS_FILE);
+        }
+        if(OPTICAL_DUPLICATE_METRICS_FILE != null){
+            IoUtil.assertFileIsWritable(OPTICAL_DUPLICATE_METRICS_FILE);
+        }
+        if(SPATIAL_QC_METRICS_FILE != null){
+            IoUtil.assertFileIsWritable(SPATIAL_QC_METRICS_FILE);
+        }
+        if(CYCLE_METRICS_FILE != null){
+            IoUtil.assertFileIsWritable(CYCLE_METRICS_FILE);
+        }
         
         if(this.BASECALLS_DIR == null){
             
@@ -126,32 +343,6 @@ public class Illumina2bam extends Illumina2bamCommandLine {
           log.info("BaseCalls directory not given, using " + this.BASECALLS_DIR);
         }
 
-        boolean useLaneSpecificConfig = false;
-        if (this.READ_IDENTIFIER != null) {
-            
-            //Use boolean for lane init later
-            useLaneSpecificConfig = true;
-            
-            //Create new config files named config_lane_XX.xml - they will be read by the lane
-            ModifyIlluminaConfig illuminaConfigModifier = new ModifyIlluminaConfig();
-            illuminaConfigModifier.READ_IDENTIFIER = this.READ_IDENTIFIER;
-            illuminaConfigModifier.KEEP_OLD_CONFIG = false;
-            illuminaConfigModifier.BASECALLS_DIR = this.BASECALLS_DIR;
-            illuminaConfigModifier.INTENSITY_DIR = this.INTENSITY_DIR;
-            illuminaConfigModifier.LANE = this.LANE;
-            illuminaConfigModifier.QUIET = this.QUIET;
-            illuminaConfigModifier.TEMP_DIR = this.TEMP_DIR;
-            int modifyConfigResult = illuminaConfigModifier.doWork();
-            
-            if (modifyConfigResult == 0) {
-                log.info("Finished modifying lane specific config files for lane " + this.LANE + ".");
-            } else {
-                log.error("Something went wrong when trying to modify the config xml files.");
-                return 1;
-            }
-            
-        }
-
         Lane lane = new Lane(this.INTENSITY_DIR.getAbsolutePath(),
                 this.BASECALLS_DIR.getAbsolutePath(),
                 this.TEMP_DIR.getAbsolutePath(),
@@ -160,7 +351,20 @@ public class Illumina2bam extends Illumina2bamCommandLine {
                 OUTPUT,
                 this.BARCODE_SEQUENCE_TAG_NAME,
                 this.BARCODE_QUALITY_TAG_NAME,
-                useLaneSpecificConfig);
+                false);
+        if (this.READ_IDENTIFIER != null) {
+            lane.setReadStructure(new ReadStructure(this.READ_IDENTIFIER));
+        }
+        lane.setFastBamEncoding(this.FAST_BAM_ENCODING);
+        lane.setCreateMd5File(this.CREATE_MD5_FILE);
+        lane.setOutputFormat(this.OUTPUT_FORMAT);
+        lane.setFastqIndexInReadName(this.FASTQ_INDEX_IN_READ_NAME);
+        lane.setCompressionLevel(this.COMPRESSION_LEVEL);
+        if(this.COMPRESSION_THREADS != null){
+            lane.setCompressionThreads(this.COMPRESSION_THREADS);
+        }else{
+            lane.setCompressionThreads(Runtime.getRuntime().availableProcessors());
+        }
 
         try {
             log.info("Reading config xml files");
@@ -171,7 +375,15 @@ public class Illumina2bam extends Illumina2bamCommandLine {
         }
         
         log.info("Generating illumina2bam program record");
-        lane.setIllumina2bamProgram(this.getThisProgramRecord(this.programName, this.programDS));
+        if(this.QUALITY_BINNING != null){
+            QualityBinning qualityBinning = new QualityBinning(this.QUALITY_BINNING);
+            log.info("Quality scores binned: " + qualityBinning);
+            lane.setQualityBinning(qualityBinning);
+            lane.setIllumina2bamProgram(this.getThisProgramRecord(this.programName,
+                    this.programDS + ". Quality scores binned " + qualityBinning));
+        }else{
+            lane.setIllumina2bamProgram(this.getThisProgramRecord(this.programName, this.programDS));
+        }
         
         log.info("Generating read group record");
         //String runfolderConfig = lane.getRunfolderConfig();
@@ -194,18 +406,210 @@ public class Illumina2bam extends Illumina2bamCommandLine {
             lane.reduceTileList(this.FIRST_TILE, this.TILE_LIMIT);
         }
 
-        log.info("Generating bam or sam file output stream with header");
-        SAMFileWriter outBam = lane.generateOutputSamStream();
+        CycleColumnBuffer cycleBuffer = null;
+        if(this.CYCLE_BUFFER_DIR != null){
+            log.info("Buffering cycles in " + this.CYCLE_BUFFER_DIR + " as soon as they are complete");
+            try {
+                cycleBuffer = lane.bufferCycles(this.CYCLE_BUFFER_DIR,
+                        1000L * (this.CYCLE_POLL_SECONDS != null ? this.CYCLE_POLL_SECONDS : 60));
+            } catch (InterruptedException ex) {
+                log.error("Interrupted while waiting for cycles");
+                return 1;
+            }
+        }
+
+        //listed after all cycles are buffered
+        if(this.RUN_MANIFEST_CACHE != null){
+            try {
+                lane.loadRunFolderManifest(this.RUN_MANIFEST_CACHE);
+            } catch (IOException ex) {
+                log.error("Problems to load run folder manifest " + ex.getMessage());
+                return 1;
+            }
+        }
+
+        if(this.LANE_SUMMARY_FILE != null){
+            log.info("Counting clusters from filter and control files only");
+            try {
+                MetricsFile<LaneSummary.LaneSummaryMetric, Integer> metrics = getMetricsFile();
+                lane.generateLaneSummary().writeMetrics(Runtime.getRuntime().availableProcessors(), metrics, this.LANE_SUMMARY_FILE);
+            } catch (Exception ex) {
+                log.error(ex, "Problems to count clusters");
+                return 1;
+            }
+            return 0;
+        }
+
+        if(this.ARCHIVE_OUTPUT_DIR != null){
+            log.info("Archiving tiles in " + this.ARCHIVE_OUTPUT_DIR);
+            try {
+                lane.writeRunArchive(this.ARCHIVE_OUTPUT_DIR, lane.getCompressionThreads());
+            } catch (Exception ex) {
+                log.error(ex, "Problems to archive tiles");
+                return 1;
+            }
+            return 0;
+        }
+
+        if(this.ARCHIVE_DIR != null){
+            log.info("Reading tiles from run archive " + this.ARCHIVE_DIR);
+            lane.setRunArchive(new RunArchive(this.ARCHIVE_DIR, this.LANE));
+        }
+
+        if(this.barcodeSelector != null){
+            log.info("Converting clusters of selected barcodes only: " + this.barcodeSelector);
+            lane.setClusterSelector(this.barcodeSelector);
+        }
+
+        if(this.SAMPLE_FRACTION != null){
+            ClusterSampler sampler = new ClusterSampler(this.SAMPLE_FRACTION, this.SEED != null ? this.SEED : 0);
+            log.info("Converting sampled clusters only: " + sampler);
+            lane.setClusterSelector(sampler);
+        }
+
+        if(this.AUTOTUNE && lane.getTileList().length > 0){
+            File tuneOutput = ("file".equalsIgnoreCase(this.OUTPUT_SINK) && this.OUTPUT != null
+                    && !Illumina2bamUtils.isStandardOutput(this.OUTPUT)) ? this.OUTPUT : null;
+            AutoTuner tuner = new AutoTuner(lane, lane.getTileList()[0], tuneOutput,
+                    this.AUTOTUNE_SECONDS != null ? this.AUTOTUNE_SECONDS : 60);
+            try {
+                tuner.tune();
+            } catch (Exception ex) {
+                log.error("Problems to tune settings " + ex.getMessage());
+                return 1;
+            }
+            this.getDefaultHeaders().add(new StringHeader("AUTOTUNE " + tuner.getChosenSettings()));
+            for(String trial : tuner.getTrialSummaries()){
+                this.getDefaultHeaders().add(new StringHeader("AUTOTUNE trial " + trial));
+            }
+        }
+
+        StageTimer stageTimer = null;
+        if(this.TIMING_METRICS_FILE != null){
+            stageTimer = new StageTimer();
+            lane.setStageTimer(stageTimer);
+        }
+
+        OpticalDuplicateFinder duplicateFinder = null;
+        if(this.OPTICAL_DUPLICATE_PIXEL_DISTANCE != null){
+            duplicateFinder = new OpticalDuplicateFinder(this.OPTICAL_DUPLICATE_PIXEL_DISTANCE,
+                    this.OPTICAL_DUPLICATE_PREFIX_LENGTH != null ? this.OPTICAL_DUPLICATE_PREFIX_LENGTH : 10);
+            lane.setOpticalDuplicateFinder(duplicateFinder);
+        }
+
+        SpatialQcCollector spatialQc = null;
+        if(this.SPATIAL_QC_METRICS_FILE != null){
+            spatialQc = new SpatialQcCollector(this.SPATIAL_QC_BIN_SIZE != null ? this.SPATIAL_QC_BIN_SIZE : 5000);
+            lane.setSpatialQcCollector(spatialQc);
+        }
+
+        CycleHistogram cycleHistogram = null;
+        if(this.CYCLE_METRICS_FILE != null){
+            cycleHistogram = new CycleHistogram();
+            lane.setCycleHistogram(cycleHistogram);
+        }
+        
+        BamIndexDecodingWriter decodingWriter = null;
+        TileWorkQueue workQueue = null;
+        ClusterSink sink;
+        if("null".equalsIgnoreCase(this.OUTPUT_SINK)){
+            log.info("Discarding all reads");
+            sink = new NullClusterSink();
+        }else if("count".equalsIgnoreCase(this.OUTPUT_SINK)){
+            log.info("Counting reads without output");
+            sink = new CountingClusterSink();
+        }else if(this.indexDecoder != null){
+            log.info("Generating bam or sam file output streams per barcode");
+            this.indexDecoder.setProgramRecord(this.getThisProgramRecord("BamIndexDecoder", "Barcodes decoded by " + this.programName));
+            decodingWriter = new BamIndexDecodingWriter(this.indexDecoder, lane.generateHeader());
+            sink = lane.wrapOutputSamStream(decodingWriter);
+        }else if(this.CHECKPOINT_DIR != null){
+            log.info("Checkpointing each tile in " + this.CHECKPOINT_DIR);
+            sink = lane.generateCheckpointSink(this.CHECKPOINT_DIR);
+        }else if(this.WORK_QUEUE_DIR != null){
+            log.info("Sharing tiles with other processes through " + this.WORK_QUEUE_DIR);
+            workQueue = lane.generateWorkQueue(this.WORK_QUEUE_DIR,
+                    1000L * (this.WORK_QUEUE_STALE_SECONDS != null ? this.WORK_QUEUE_STALE_SECONDS : 300));
+            sink = workQueue;
+        }else if(this.SHARD_SIZE != null){
+            log.info("Writing shards with " + this.SHARD_SIZE + " clusters each");
+            sink = lane.generateShardedSink(this.SHARD_SIZE);
+        }else if(this.CREATE_TILE_INDEX){
+            sink = lane.generateTileIndexingSink(this.TILE_INDEX_INTERVAL != null ? this.TILE_INDEX_INTERVAL : 0);
+        }else{
+            log.info("Generating bam or sam file output stream with header");
+            sink = lane.generateOutputSink();
+        }
         
         log.info("Writing Basecall files to bam");
         try {
-            lane.processTiles(outBam);
+            if(workQueue != null){
+                if( !workQueue.processTiles() ){
+                    log.error("Lane already complete in work queue " + this.WORK_QUEUE_DIR
+                            + ", empty the directory to convert the lane again");
+                    return 1;
+                }
+            }else{
+                lane.processTiles(sink);
+            }
         } catch (Exception ex) {
             log.error( "Problems to process tiles " + ex.getMessage() );
             return 1;
         }
 
-        outBam.close();
+        long closeStart = System.nanoTime();
+        sink.close();
+
+        if(stageTimer != null){
+            stageTimer.addFinish(System.nanoTime() - closeStart);
+            log.info("Writing out timing metrics file");
+            final MetricsFile<StageTimer.ConversionTimingMetric, Integer> timingMetrics = getMetricsFile();
+            stageTimer.writeMetrics(timingMetrics, this.TIMING_METRICS_FILE, 5);
+        }
+
+        if(duplicateFinder != null){
+            OpticalDuplicateFinder.OpticalDuplicateMetric all = duplicateFinder.getMetrics().get(0);
+            log.info(all.OPTICAL_DUPLICATES + " optical duplicates in " + all.CLUSTERS + " clusters");
+            if(this.OPTICAL_DUPLICATE_METRICS_FILE != null){
+                log.info("Writing out optical duplicate metrics file");
+                final MetricsFile<OpticalDuplicateFinder.OpticalDuplicateMetric, Integer> duplicateMetrics = getMetricsFile();
+                duplicateFinder.writeMetrics(duplicateMetrics, this.OPTICAL_DUPLICATE_METRICS_FILE);
+            }
+        }
+
+        if(spatialQc != null){
+            log.info("Writing out spatial quality control metrics file");
+            final MetricsFile<SpatialQcCollector.SpatialQcMetric, Integer> spatialMetrics = getMetricsFile();
+            spatialQc.writeMetrics(spatialMetrics, this.SPATIAL_QC_METRICS_FILE);
+        }
+
+        if(cycleHistogram != null){
+            log.info("Writing out cycle metrics file");
+            final MetricsFile<CycleHistogram.CycleMetric, Integer> cycleMetrics = getMetricsFile();
+            cycleHistogram.writeMetrics(cycleMetrics, this.CYCLE_METRICS_FILE);
+        }
+
+        if(cycleBuffer != null){
+            cycleBuffer.delete();
+        }
+
+        if(!"file".equalsIgnoreCase(this.OUTPUT_SINK)){
+            log.info("No output written with " + this.OUTPUT_SINK + " sink");
+            return 0;
+        }
+
+        if(decodingWriter != null){
+            log.info("Writing out metrics file");
+            final MetricsFile<IndexDecoder.BarcodeMetric, Integer> metrics = getMetricsFile();
+            decodingWriter.writeMetrics(metrics, METRICS_FILE);
+            log.info("BAM or SAM files generated per barcode");
+            return 0;
+        }
+        
+        if(this.SHARD_SIZE != null){
+            log.info("BAM shards generated: " + ShardedBamSink.getManifestFile(this.OUTPUT));
+            return 0;
+        }
         
         log.info("BAM or SAM file generated: " + this.OUTPUT);
 
@@ -268,6 +672,186 @@ public class Illumina2bam extends Illumina2bamCommandLine {
         return readGroup;
     }
     
+    /**
+     *
+     * @return null if command line is valid.  If command line is invalid, returns an array of error message
+     *         to be written to the appropriate place.
+     */
+    @Override
+    protected String[] customCommandLineValidation() {
+
+        if (!"file".equalsIgnoreCase(OUTPUT_SINK)
+                && !"null".equalsIgnoreCase(OUTPUT_SINK)
+                && !"count".equalsIgnoreCase(OUTPUT_SINK)) {
+            return new String[]{"OUTPUT_SINK must be file, null or count: " + OUTPUT_SINK};
+        }
+
+        if (CHECKPOINT_DIR != null
+                && (BARCODE_FILE != null || OUTPUT == null || Illumina2bamUtils.isStandardOutput(OUTPUT)
+                    || !OUTPUT.getName().endsWith(".bam") || !"file".equalsIgnoreCase(OUTPUT_SINK))) {
+            return new String[]{"CHECKPOINT_DIR can only be used to write a bam file OUTPUT without BARCODE_FILE"};
+        }
+
+        if (WORK_QUEUE_DIR != null
+                && (BARCODE_FILE != null || CHECKPOINT_DIR != null || OUTPUT == null || Illumina2bamUtils.isStandardOutput(OUTPUT)
+                    || !OUTPUT.getName().endsWith(".bam") || !"file".equalsIgnoreCase(OUTPUT_SINK))) {
+            return new String[]{"WORK_QUEUE_DIR can only be used to write a bam file OUTPUT without BARCODE_FILE or CHECKPOINT_DIR"};
+        }
+        if (WORK_QUEUE_DIR != null
+                && (TIMING_METRICS_FILE != null || OPTICAL_DUPLICATE_METRICS_FILE != null
+                    || SPATIAL_QC_METRICS_FILE != null || CYCLE_METRICS_FILE != null)) {
+            return new String[]{"WORK_QUEUE_DIR can not be used with TIMING_METRICS_FILE, OPTICAL_DUPLICATE_METRICS_FILE, "
+                    + "SPATIAL_QC_METRICS_FILE or CYCLE_METRICS_FILE, which would only count the tiles converted by each process"};
+        }
+        if (WORK_QUEUE_STALE_SECONDS != null && (WORK_QUEUE_STALE_SECONDS < 1 || WORK_QUEUE_DIR == null)) {
+            return new String[]{"WORK_QUEUE_STALE_SECONDS must be positive and used with WORK_QUEUE_DIR: " + WORK_QUEUE_STALE_SECONDS};
+        }
+
+        if (SHARD_SIZE != null) {
+            if (SHARD_SIZE < 1) {
+                return new String[]{"SHARD_SIZE must be positive: " + SHARD_SIZE};
+            }
+            if (BARCODE_FILE != null || CHECKPOINT_DIR != null || WORK_QUEUE_DIR != null || OUTPUT == null || Illumina2bamUtils.isStandardOutput(OUTPUT)
+                    || !OUTPUT.getName().endsWith(".bam") || !"file".equalsIgnoreCase(OUTPUT_SINK)) {
+                return new String[]{"SHARD_SIZE can only be used to write a bam file OUTPUT without BARCODE_FILE, CHECKPOINT_DIR or WORK_QUEUE_DIR"};
+            }
+        }
+
+        if (CREATE_TILE_INDEX
+                && (BARCODE_FILE != null || CHECKPOINT_DIR != null || SHARD_SIZE != null || WORK_QUEUE_DIR != null || !FAST_BAM_ENCODING
+                    || OUTPUT == null || Illumina2bamUtils.isStandardOutput(OUTPUT)
+                    || !OUTPUT.getName().endsWith(".bam") || !"file".equalsIgnoreCase(OUTPUT_SINK))) {
+            return new String[]{"CREATE_TILE_INDEX can only be used to write a bam file OUTPUT with FAST_BAM_ENCODING, "
+                    + "without BARCODE_FILE, CHECKPOINT_DIR, SHARD_SIZE or WORK_QUEUE_DIR"};
+        }
+        String memoryMessage = this.checkMemorySize(MAX_MEMORY);
+        if (memoryMessage != null) {
+            return new String[]{memoryMessage};
+        }
+        if (CYCLE_BUFFER_DIR != null && GENERATE_SECONDARY_BASE_CALLS) {
+            return new String[]{"CYCLE_BUFFER_DIR can not be used with GENERATE_SECONDARY_BASE_CALLS"};
+        }
+        if ((ARCHIVE_DIR != null || ARCHIVE_OUTPUT_DIR != null) && (GENERATE_SECONDARY_BASE_CALLS || CYCLE_BUFFER_DIR != null)) {
+            return new String[]{"ARCHIVE_DIR and ARCHIVE_OUTPUT_DIR can not be used with GENERATE_SECONDARY_BASE_CALLS or CYCLE_BUFFER_DIR"};
+        }
+        if (ARCHIVE_DIR != null && (ARCHIVE_OUTPUT_DIR != null || LANE_SUMMARY_FILE != null
+                || RUN_MANIFEST_CACHE != null || !SELECT_BARCODE.isEmpty())) {
+            return new String[]{"ARCHIVE_DIR can not be used with ARCHIVE_OUTPUT_DIR, LANE_SUMMARY_FILE, RUN_MANIFEST_CACHE or SELECT_BARCODE"};
+        }
+        if (CYCLE_POLL_SECONDS != null && CYCLE_POLL_SECONDS < 1) {
+            return new String[]{"CYCLE_POLL_SECONDS must be positive: " + CYCLE_POLL_SECONDS};
+        }
+        if (AUTOTUNE_SECONDS != null && AUTOTUNE_SECONDS < 1) {
+            return new String[]{"AUTOTUNE_SECONDS must be positive: " + AUTOTUNE_SECONDS};
+        }
+        if (SAMPLE_FRACTION != null && !(SAMPLE_FRACTION > 0 && SAMPLE_FRACTION <= 1)) {
+            return new String[]{"SAMPLE_FRACTION must be greater than 0 and not more than 1: " + SAMPLE_FRACTION};
+        }
+        if (SEED != null && SAMPLE_FRACTION == null) {
+            return new String[]{"SEED is only used with SAMPLE_FRACTION"};
+        }
+        if (OPTICAL_DUPLICATE_PIXEL_DISTANCE != null && OPTICAL_DUPLICATE_PIXEL_DISTANCE < 1) {
+            return new String[]{"OPTICAL_DUPLICATE_PIXEL_DISTANCE must be positive: " + OPTICAL_DUPLICATE_PIXEL_DISTANCE};
+        }
+        if (OPTICAL_DUPLICATE_PREFIX_LENGTH != null
+                && (OPTICAL_DUPLICATE_PREFIX_LENGTH < 1 || OPTICAL_DUPLICATE_PREFIX_LENGTH > OpticalDuplicateFinder.MAX_PREFIX_LENGTH)) {
+            return new String[]{"OPTICAL_DUPLICATE_PREFIX_LENGTH must be between 1 and "
+                    + OpticalDuplicateFinder.MAX_PREFIX_LENGTH + ": " + OPTICAL_DUPLICATE_PREFIX_LENGTH};
+        }
+        if (OPTICAL_DUPLICATE_PIXEL_DISTANCE == null
+                && (OPTICAL_DUPLICATE_PREFIX_LENGTH != null || OPTICAL_DUPLICATE_METRICS_FILE != null)) {
+            return new String[]{"OPTICAL_DUPLICATE_PIXEL_DISTANCE must be given to find optical duplicates"};
+        }
+        if (SPATIAL_QC_BIN_SIZE != null && (SPATIAL_QC_BIN_SIZE < 1 || SPATIAL_QC_METRICS_FILE == null)) {
+            return new String[]{"SPATIAL_QC_BIN_SIZE must be positive and used with SPATIAL_QC_METRICS_FILE: " + SPATIAL_QC_BIN_SIZE};
+        }
+        if (QUALITY_BINNING != null) {
+            try {
+                new QualityBinning(QUALITY_BINNING);
+            } catch (IllegalArgumentException ex) {
+                return new String[]{"Invalid QUALITY_BINNING: " + ex.getMessage()};
+            }
+        }
+        if (READ_IDENTIFIER != null) {
+            try {
+                new ReadStructure(READ_IDENTIFIER);
+            } catch (IllegalArgumentException ex) {
+                return new String[]{"Invalid READ_IDENTIFIER: " + ex.getMessage()};
+            }
+        }
+        if (TILE_INDEX_INTERVAL != null && TILE_INDEX_INTERVAL < 1) {
+            return new String[]{"TILE_INDEX_INTERVAL must be positive: " + TILE_INDEX_INTERVAL};
+        }
+
+        if (OUTPUT == null && OUTPUT_DIR == null) {
+            if (LANE_SUMMARY_FILE == null && ARCHIVE_OUTPUT_DIR == null) {
+                return new String[]{"OUTPUT must be given, or OUTPUT_DIR together with BARCODE_FILE"};
+            }
+            if (BARCODE_FILE != null) {
+                return new String[]{"OUTPUT or OUTPUT_DIR must be given together with BARCODE_FILE"};
+            }
+        }
+
+        if (BARCODE_FILE == null) {
+            if (OUTPUT_DIR != null) {
+                return new String[]{"OUTPUT_DIR can only be used together with BARCODE_FILE"};
+            }
+            if (!SELECT_BARCODE.isEmpty()) {
+                return new String[]{"SELECT_BARCODE can only be used together with BARCODE_FILE"};
+            }
+            return null;
+        }
+        if (!SELECT_BARCODE.isEmpty() && SAMPLE_FRACTION != null) {
+            return new String[]{"SELECT_BARCODE can not be used with SAMPLE_FRACTION"};
+        }
+
+        final ArrayList<String> messages = new ArrayList<String>();
+        if (Illumina2bamUtils.isStandardOutput(OUTPUT)) {
+            messages.add("Decoding with BARCODE_FILE can not write to standard output");
+        }
+        if (METRICS_FILE == null) {
+            messages.add("METRICS_FILE must be given together with BARCODE_FILE");
+        }
+
+        this.indexDecoder = new BamIndexDecoder();
+        this.indexDecoder.BARCODE_FILE = this.BARCODE_FILE;
+        this.indexDecoder.METRICS_FILE = this.METRICS_FILE;
+        this.indexDecoder.OUTPUT = this.OUTPUT;
+        this.indexDecoder.OUTPUT_DIR = this.OUTPUT_DIR;
+        this.indexDecoder.OUTPUT_FORMAT = this.OUTPUT_FORMAT;
+        this.indexDecoder.UNDETERMINED_TIME_ID = this.UNDETERMINED_TIME_ID;
+        this.indexDecoder.BARCODE_TAG_NAME = this.BARCODE_SEQUENCE_TAG_NAME;
+        this.indexDecoder.MAX_MISMATCHES = this.MAX_MISMATCHES;
+        this.indexDecoder.MIN_MISMATCH_DELTA = this.MIN_MISMATCH_DELTA;
+        this.indexDecoder.MAX_NO_CALLS = this.MAX_NO_CALLS;
+        this.indexDecoder.KEEP_UNDETERMINED = this.KEEP_UNDETERMINED;
+
+        String [] decoderMessages = this.indexDecoder.customCommandLineValidation();
+        if (decoderMessages != null) {
+            messages.addAll(Arrays.asList(decoderMessages));
+        }
+
+        if (!SELECT_BARCODE.isEmpty() && messages.isEmpty()) {
+            IndexDecoder selectDecoder = new IndexDecoder(BARCODE_FILE);
+            selectDecoder.setMaxMismatches(MAX_MISMATCHES);
+            selectDecoder.setMinMismatchDelta(MIN_MISMATCH_DELTA);
+            selectDecoder.setMaxNoCalls(MAX_NO_CALLS);
+            selectDecoder.prepareDecode(messages);
+            if (messages.isEmpty()) {
+                try {
+                    this.barcodeSelector = new BarcodeClusterSelector(selectDecoder, SELECT_BARCODE);
+                } catch (IllegalArgumentException ex) {
+                    messages.add(ex.getMessage());
+                }
+            }
+        }
+
+        if (messages.isEmpty()) {
+            return null;
+        }
+        return messages.toArray(new String[messages.size()]);
+    }
+
     /**
      * 
      * @param args example INTENSITY_DIR=testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities BASECALLS_DIR=testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls LANE=1 OUTPUT=testdata/6000_1.sam  VALIDATION_STRINGENCY=STRICT CREATE_INDEX=false CREATE_MD5_FILE=true FIRST_TILE=1101 COMPRESSION_LEVEL=1 TILE_LIMIT=1
@@ -22,6 +22,7 @@ package illumina;
 import java.util.HashMap;
 import java.util.List;
 import net.sf.picard.cmdline.CommandLineProgram;
+import net.sf.picard.util.Log;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMProgramRecord;
 
@@ -68,6 +69,57 @@ public abstract class Illumina2bamCommandLine extends CommandLineProgram {
         header.addProgramRecord(this.makeUniqueProgramId(programList, programRecord));
     }
     
+    /**
+     * set the memory budget of this run as the default one
+     *
+     * @param maxMemory memory size such as 4g, no limit if null
+     * @return the budget, null if no limit
+     */
+    protected MemoryBudget startMemoryBudget(String maxMemory){
+        if(maxMemory == null){
+            MemoryBudget.setDefault(null);
+            return null;
+        }
+        MemoryBudget budget = new MemoryBudget(MemoryBudget.parseSize(maxMemory));
+        if(budget.getMaxBytes() > Runtime.getRuntime().maxMemory()){
+            Log.getInstance(this.getClass()).warn("MAX_MEMORY " + maxMemory + " is more than java heap size "
+                    + Runtime.getRuntime().maxMemory());
+        }
+        MemoryBudget.setDefault(budget);
+        return budget;
+    }
+
+    /**
+     * report the peak of the memory budget and remove it as the default one
+     *
+     * @param budget could be null
+     */
+    protected void finishMemoryBudget(MemoryBudget budget){
+        if(budget != null){
+            Log.getInstance(this.getClass()).info("Peak memory reserved: " + budget.getPeak()
+                    + " bytes out of MAX_MEMORY " + budget.getMaxBytes());
+        }
+        MemoryBudget.setDefault(null);
+    }
+
+    /**
+     * @param maxMemory memory size option, could be null
+     * @return error message if the size is not valid, otherwise null
+     */
+    protected String checkMemorySize(String maxMemory){
+        if(maxMemory == null){
+            return null;
+        }
+        try {
+            if(MemoryBudget.parseSize(maxMemory) <= 0){
+                return "MAX_MEMORY must be positive: " + maxMemory;
+            }
+        } catch (IllegalArgumentException ex) {
+            return ex.getMessage();
+        }
+        return null;
+    }
+
     public SAMProgramRecord makeUniqueProgramId(List<SAMProgramRecord> programList,  SAMProgramRecord programRecord){
         
         HashMap<String, Integer> programIdList = new HashMap<String, Integer>();
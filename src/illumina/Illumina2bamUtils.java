@@ -20,6 +20,8 @@
 
 package illumina;
 
+import java.io.File;
+
 /**
  * illumina2bam util class
  *
@@ -52,5 +54,15 @@ public final class Illumina2bamUtils {
         }
         return builder.toString();
     }
+
+    /**
+     * 
+     * @param output
+     * @return true if the output file is standard output, - or /dev/stdout
+     */
+    public static boolean isStandardOutput(File output){
+        return output != null
+                && ( output.getPath().equals("-") || output.getPath().equals("/dev/stdout") );
+    }
     
 }
@@ -18,6 +18,7 @@
 
 package illumina;
 
+import illumina.file.reader.RunFolderManifest;
 import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
@@ -27,6 +28,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TreeSet;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -78,6 +80,47 @@ public class Lane {
     private final String barcodeSeqTagName;
     private final String barcodeQualTagName;
 
+    //write bam records directly without SAMRecord
+    private boolean fastBamEncoding = false;
+    private boolean createMd5File = false;
+
+    //format for output to standard output, bam or sam
+    private String outputFormat = "bam";
+
+    //fastq output
+    private boolean fastqIndexInReadName = false;
+    private int compressionThreads = 1;
+    private int compressionLevel = 5;
+
+    //base calls buffered while the run was going on
+    private CycleColumnBuffer cycleBuffer;
+
+    //base calls, filter, control and positions archived from the run folder
+    private RunArchive runArchive;
+
+    //listed run folder files, null to check the file system for each file
+    private RunFolderManifest runFolderManifest;
+
+    //time of each stage per tile, null if not timed
+    private StageTimer stageTimer;
+
+    //choose clusters to convert in each tile, null to convert all
+    private ClusterSelector clusterSelector;
+
+    //bin quality scores while reading, null to keep them
+    private QualityBinning qualityBinning;
+
+    //find optical duplicates in each tile, null not to
+    private OpticalDuplicateFinder duplicateFinder;
+
+    //collect spatial quality control metrics of each tile, null not to
+    private SpatialQcCollector spatialQc;
+
+    //base and quality counts by cycle of all tiles, null not to count
+    private CycleHistogram cycleHistogram;
+
+    //read structure overriding cycle ranges of reads and barcodes in config files, null to use config files
+    private ReadStructure readStructure;
 
 
     //config xml file name and XML Documetns
@@ -185,17 +228,68 @@ public class Lane {
      * @return outputSam with header to write bam records
      */
     public SAMFileWriter generateOutputSamStream(){
+        return this.generateOutputSamStream(this.output);
+    }
+
+    /**
+     *
+     * @param output file to write instead of the lane output, of the same kind
+     * @return outputSam with header to write bam records
+     */
+    public SAMFileWriter generateOutputSamStream(File output){
 
         SAMFileWriterFactory factory = new SAMFileWriterFactory();
 
         SAMFileHeader header = this.generateHeader();
 
+        if(Illumina2bamUtils.isStandardOutput(output)){
+            if("sam".equalsIgnoreCase(this.outputFormat)){
+                log.info("Writing sam records to standard output");
+                return new SamTextStreamWriter(header, System.out);
+            }
+            log.info("Writing uncompressed bam records to standard output");
+            return new UnalignedBamWriter(header, System.out, null, 0, this.barcodeSeqTagName, this.barcodeQualTagName);
+        }
+
+        if(FastqWriter.isFastqFile(output)){
+            log.info("Writing fastq files with " + this.compressionThreads + " compression threads");
+            return new FastqWriter(header, output,
+                    this.cycleRangeByRead.containsKey("read2"),
+                    this.getIndexLengths(),
+                    this.fastqIndexInReadName,
+                    this.barcodeSeqTagName,
+                    this.compressionThreads,
+                    this.compressionLevel,
+                    this.createMd5File);
+        }
+
+        if(this.fastBamEncoding && output.getName().endsWith(".bam")){
+            log.info("Encoding bam records directly");
+            return new UnalignedBamWriter(header, output, this.createMd5File, this.barcodeSeqTagName, this.barcodeQualTagName);
+        }
+
         SAMFileWriter outputSam = factory.makeSAMOrBAMWriter(header, false, output);
 
         return outputSam;
     }
 
 
+    /**
+     * @return lengths of index reads in cycle order, empty if not indexed
+     */
+    private int [] getIndexLengths(){
+        int numberOfIndexes = 0;
+        while(this.cycleRangeByRead.containsKey("readIndex" + (numberOfIndexes + 1))){
+            numberOfIndexes++;
+        }
+        int [] indexLengths = new int[numberOfIndexes];
+        for(int i = 0; i < numberOfIndexes; i++){
+            int [] cycleRange = this.cycleRangeByRead.get("readIndex" + (i + 1));
+            indexLengths[i] = cycleRange[1] - cycleRange[0] + 1;
+        }
+        return indexLengths;
+    }
+
     /**
      * write BCL file to output stream tile by tile
      * 
@@ -204,27 +298,348 @@ public class Lane {
      * @throws Exception
      */
     public boolean processTiles(SAMFileWriter outputSam) throws Exception{
+        return this.processTiles(this.wrapOutputSamStream(outputSam));
+    }
+
+    /**
+     * pass BCL files to output sink tile by tile
+     * 
+     * @param sink
+     * @return true if successfully
+     * @throws Exception
+     */
+    public boolean processTiles(ClusterSink sink) throws Exception{
+
+        TileCheckpoint checkpoint = (sink instanceof TileCheckpoint) ? (TileCheckpoint) sink : null;
+
+        if(this.stageTimer != null && sink instanceof SamFileWriterSink){
+            ((SamFileWriterSink) sink).setStageTimer(this.stageTimer);
+        }
 
         for(int tileNumber : this.tileList){
             
             log.info("Tile: " + tileNumber);
             
-            Tile tile = new Tile(intensityDir, baseCallDir, id, laneNumber, tileNumber,
-                                 cycleRangeByRead,
-                                 this.includeSecondCall, this.pfFilter,
-                                 this.barcodeSeqTagName, this.barcodeQualTagName);
-            
+            Tile tile = this.generateTile(tileNumber);
+
+            if(checkpoint != null && checkpoint.isTileComplete(tileNumber, tile.getInputFiles())){
+                log.info("Tile " + tileNumber + " already in checkpoint, skipped");
+                continue;
+            }
+
+            this.processTile(tile, tileNumber, sink);
+        }
+
+        return true;
+    }
+
+    /**
+     * pass BCL files of one tile to output sink
+     *
+     * @param tileNumber
+     * @param sink
+     * @throws Exception
+     */
+    public void processTile(int tileNumber, ClusterSink sink) throws Exception {
+        this.processTile(this.generateTile(tileNumber), tileNumber, sink);
+    }
+
+    /**
+     * @return summary of cluster counts of all tiles from filter and control files only
+     */
+    public LaneSummary generateLaneSummary(){
+        LaneSummary summary = new LaneSummary(this.runFolderManifest);
+        for(int tileNumber : this.tileList){
+            Tile tile = this.generateTile(tileNumber);
+            summary.addTile(tileNumber, tile.getFilterFileName(), tile.getControlFileName());
+        }
+        return summary;
+    }
+
+    private Tile generateTile(int tileNumber){
+        Tile tile = new Tile(intensityDir, baseCallDir, id, laneNumber, tileNumber,
+                             cycleRangeByRead,
+                             this.includeSecondCall, this.pfFilter,
+                             this.barcodeSeqTagName, this.barcodeQualTagName,
+                             this.runFolderManifest);
+        tile.setClusterSelector(this.clusterSelector);
+        tile.setQualityBinning(this.qualityBinning);
+        tile.setOpticalDuplicateFinder(this.duplicateFinder);
+        tile.setSpatialQcCollector(this.spatialQc);
+        tile.setCycleHistogram(this.cycleHistogram);
+        return tile;
+    }
+
+    private void processTile(Tile tile, int tileNumber, ClusterSink sink) throws Exception {
+
+        long openStart = 0;
+        if(this.stageTimer != null){
+            this.stageTimer.startTile(tileNumber);
+            tile.setStageTimer(this.stageTimer);
+            openStart = System.nanoTime();
+        }
+
+        CycleColumns tileColumns = null;
+        if(this.runArchive != null){
+            log.info("Reading tile from run archive");
+            RunArchive.TileArchive tileArchive = this.runArchive.openTile(tileNumber, this.compressionThreads);
+            tile.setTileArchive(tileArchive);
+            tileColumns = tileArchive;
+        }else if(this.cycleBuffer != null){
+            log.info("Reading base calls from cycle buffer");
+            tileColumns = this.cycleBuffer.openTile(tileNumber);
+            tile.setCycleColumns(tileColumns);
+        }else{
             log.info("Opening all basecall files");
             tile.openBaseCallFiles();
-            
+        }
+        if(this.stageTimer != null){
+            this.stageTimer.addOpen(System.nanoTime() - openStart);
+        }
+        
+        try {
             log.info("Reading all base call files");
-            tile.processTile(outputSam);
-            
+            long sinkStart = (this.stageTimer != null) ? System.nanoTime() : 0;
+            sink.startTile(tileNumber);
+            if(this.stageTimer != null){
+                this.stageTimer.addOutput(System.nanoTime() - sinkStart);
+            }
+            tile.processTile(sink);
+            sinkStart = (this.stageTimer != null) ? System.nanoTime() : 0;
+            sink.endTile(tileNumber);
+            if(this.stageTimer != null){
+                this.stageTimer.addOutput(System.nanoTime() - sinkStart);
+            }
+        } finally {
             log.info("Closing base call files");
-            tile.closeBaseCallFiles();
+            if(tileColumns != null){
+                tileColumns.close();
+            }else{
+                tile.closeBaseCallFiles();
+            }
+        }
+        if(this.stageTimer != null){
+            this.stageTimer.endTile();
         }
+    }
 
-        return true;
+    /**
+     * @param readStructure cycle ranges of reads and barcodes used instead of the ones in config files,
+     * must be set before config files are read, null to use config files
+     */
+    public void setReadStructure(ReadStructure readStructure) {
+        this.readStructure = readStructure;
+    }
+
+    /**
+     * @param cycleHistogram histogram to count bases and qualities by cycle of all tiles into, null not to count
+     */
+    public void setCycleHistogram(CycleHistogram cycleHistogram) {
+        this.cycleHistogram = cycleHistogram;
+    }
+
+    /**
+     * @param spatialQc collect spatial quality control metrics of each tile, null not to
+     */
+    public void setSpatialQcCollector(SpatialQcCollector spatialQc) {
+        this.spatialQc = spatialQc;
+    }
+
+    /**
+     * @param duplicateFinder find optical duplicates in each tile, null not to
+     */
+    public void setOpticalDuplicateFinder(OpticalDuplicateFinder duplicateFinder) {
+        this.duplicateFinder = duplicateFinder;
+    }
+
+    /**
+     * @param qualityBinning bin quality scores while reading, null to keep them
+     */
+    public void setQualityBinning(QualityBinning qualityBinning) {
+        this.qualityBinning = qualityBinning;
+    }
+
+    /**
+     * @param clusterSelector choose clusters to convert in each tile, null to convert all
+     */
+    public void setClusterSelector(ClusterSelector clusterSelector) {
+        this.clusterSelector = clusterSelector;
+    }
+
+    /**
+     * @param stageTimer timer to add the time of each stage of each tile to
+     */
+    public void setStageTimer(StageTimer stageTimer) {
+        this.stageTimer = stageTimer;
+    }
+
+    /**
+     * list the run folder directories of this lane once, or load the list from a cache file,
+     * to check files of all tiles without asking the file system for each of them
+     *
+     * @param cacheFile run folder manifest cache, written if missing or out of date
+     * @throws IOException
+     */
+    public void loadRunFolderManifest(File cacheFile) throws IOException {
+        this.runFolderManifest = RunFolderManifest.load(cacheFile, this.intensityDir, this.baseCallDir, this.laneNumber);
+    }
+
+    /**
+     * wait for each cycle of the lane to be complete for all tiles and add it to the cycle buffer,
+     * base calls are read from the buffer afterwards
+     *
+     * @param bufferDir directory for cycle buffer
+     * @param pollMillis time to wait before checking an incomplete cycle again
+     * @return cycle buffer with all cycles
+     * @throws InterruptedException
+     */
+    public CycleColumnBuffer bufferCycles(File bufferDir, long pollMillis) throws InterruptedException {
+
+        this.cycleBuffer = new CycleColumnBuffer(bufferDir, this.baseCallDir, this.laneNumber, this.tileList);
+
+        for(int cycle : this.getCycles()){
+            while( !this.cycleBuffer.hasCycle(cycle) ){
+                if(this.cycleBuffer.isCycleComplete(cycle)){
+                    this.cycleBuffer.ingestCycle(cycle);
+                }else{
+                    log.info("Waiting for cycle " + cycle + " to be complete");
+                    Thread.sleep(pollMillis);
+                }
+            }
+        }
+        return this.cycleBuffer;
+    }
+
+    /**
+     * write an archive file for each tile with base calls of all cycles, filter, control and positions,
+     * cycles skipped by the reads are archived as well to convert again with another read structure
+     *
+     * @param archiveDir directory for tile archive files
+     * @param threads number of tiles archived at the same time
+     * @return the run archive written
+     * @throws Exception
+     */
+    public RunArchive writeRunArchive(File archiveDir, int threads) throws Exception {
+
+        RunArchive archive = new RunArchive(archiveDir, this.laneNumber);
+        List<Tile> tiles = new ArrayList<Tile>(this.tileList.length);
+        for(int tileNumber : this.tileList){
+            tiles.add(this.generateTile(tileNumber));
+        }
+        TreeSet<Integer> cycles = RunArchive.getRunFolderCycles(this.baseCallDir, this.laneNumber);
+        cycles.addAll(this.getCycles());
+        log.info("Archiving " + cycles.size() + " cycles of " + tiles.size() + " tiles");
+        archive.writeTiles(tiles, cycles, threads);
+        return archive;
+    }
+
+    /**
+     * @param runArchive archive to read tiles from instead of run folder files, null to read run folder files
+     */
+    public void setRunArchive(RunArchive runArchive) {
+        this.runArchive = runArchive;
+    }
+
+    private TreeSet<Integer> getCycles(){
+        TreeSet<Integer> cycles = new TreeSet<Integer>();
+        for(int [] cycleRange : this.cycleRangeByRead.values()){
+            for(int cycle = cycleRange[0]; cycle <= cycleRange[1]; cycle++){
+                cycles.add(cycle);
+            }
+        }
+        return cycles;
+    }
+
+    /**
+     *
+     * @return output sink with header to write reads
+     */
+    public ClusterSink generateOutputSink(){
+        return this.wrapOutputSamStream(this.generateOutputSamStream());
+    }
+
+    /**
+     *
+     * @param checkpointDir directory to keep tile fragments and checkpoint manifest
+     * @return output sink checkpointing each tile, the output bam is written when it is closed
+     */
+    public TileCheckpoint generateCheckpointSink(File checkpointDir){
+        return new TileCheckpoint(checkpointDir, this.output, this.generateHeader(),
+                this.barcodeSeqTagName, this.barcodeQualTagName, this.generateOutputSettings(),
+                this.compressionLevel, this.createMd5File);
+    }
+
+    /**
+     * @param queueDir directory shared by all processes converting this lane
+     * @param staleMillis time after which a claim of a tile not touched is taken over by another process
+     * @return work queue to share tiles with other processes and put them into bam output
+     */
+    public TileWorkQueue generateWorkQueue(File queueDir, long staleMillis){
+        return new TileWorkQueue(queueDir, this, this.tileList, this.output, this.generateHeader(),
+                this.barcodeSeqTagName, this.barcodeQualTagName, this.generateOutputSettings(),
+                this.compressionLevel, this.createMd5File, staleMillis);
+    }
+
+    /**
+     * @return conversion settings which change the reads, to reuse output of tiles only with the same settings
+     */
+    private String generateOutputSettings(){
+        StringBuilder settings = new StringBuilder();
+        settings.append("PF_FILTER=").append(this.pfFilter)
+                .append(" GENERATE_SECONDARY_BASE_CALLS=").append(this.includeSecondCall)
+                .append(" READ_GROUP_ID=").append(this.readGroup != null ? this.readGroup.getId() : "")
+                .append(" ").append(this.barcodeSeqTagName).append(" ").append(this.barcodeQualTagName);
+        for(String read : new TreeSet<String>(this.cycleRangeByRead.keySet())){
+            int [] cycleRange = this.cycleRangeByRead.get(read);
+            settings.append(" ").append(read).append("=").append(cycleRange[0]).append("-").append(cycleRange[1]);
+        }
+        if(this.clusterSelector != null){
+            settings.append(" ").append(this.clusterSelector);
+        }
+        if(this.qualityBinning != null){
+            settings.append(" QUALITY_BINNING=").append(this.qualityBinning);
+        }
+        if(this.duplicateFinder != null){
+            settings.append(" ").append(this.duplicateFinder);
+        }
+        return settings.toString();
+    }
+
+    /**
+     *
+     * @param shardSize number of clusters in each shard
+     * @return output sink writing bam shards and a shard manifest instead of one output file
+     */
+    public ShardedBamSink generateShardedSink(long shardSize){
+        return new ShardedBamSink(this.output, this.generateHeader(), shardSize,
+                this.barcodeSeqTagName, this.barcodeQualTagName,
+                this.compressionLevel, this.createMd5File);
+    }
+
+    /**
+     *
+     * @param clusterInterval add a tile index entry every this number of clusters in a tile, 0 for tile starts only
+     * @return output sink writing bam output and a tile index file next to it
+     */
+    public TileIndexingSink generateTileIndexingSink(int clusterInterval){
+        log.info("Encoding bam records directly with a tile index");
+        UnalignedBamWriter writer = new UnalignedBamWriter(this.generateHeader(), this.output, this.createMd5File,
+                this.barcodeSeqTagName, this.barcodeQualTagName);
+        return new TileIndexingSink(writer, TileIndexingSink.getIndexFile(this.output), clusterInterval);
+    }
+
+    /**
+     * 
+     * @param outputSam
+     * @return the writer itself if it is a sink, otherwise a sink writing through it
+     */
+    public ClusterSink wrapOutputSamStream(SAMFileWriter outputSam){
+        if(outputSam instanceof ClusterSink){
+            return (ClusterSink) outputSam;
+        }
+        //let the next program in a pipe read each tile
+        return new SamFileWriterSink(outputSam, this.barcodeSeqTagName, this.barcodeQualTagName,
+                Illumina2bamUtils.isStandardOutput(this.output));
     }
 
     /**
@@ -504,8 +919,16 @@ public class Lane {
         
         HashMap<String, int[]> cycleRangeByReadMap = new HashMap<String, int[]>();
 
-        int [][] cycleRangeByReadConfig = this.readCycleRangeByRead();
-        ArrayList<ArrayList<Integer>> barCodeCycleLists = this.readBarCodeIndexCycles();
+        int [][] cycleRangeByReadConfig;
+        ArrayList<ArrayList<Integer>> barCodeCycleLists;
+        if(this.readStructure != null){
+            log.info("Using read structure " + this.readStructure + " instead of reads and barcode cycles in config file");
+            cycleRangeByReadConfig = this.readStructure.getCycleRanges();
+            barCodeCycleLists = this.readStructure.getBarcodeCycles();
+        }else{
+            cycleRangeByReadConfig = this.readCycleRangeByRead();
+            barCodeCycleLists = this.readBarCodeIndexCycles();
+        }
 
         int numberOfReads = cycleRangeByReadConfig.length;
         log.info("There are " + numberOfReads + " reads returned");
@@ -892,6 +1315,62 @@ public class Lane {
         return runInstrument;
     }
 
+    /**
+     * @param fastBamEncoding encode bam records directly from base calls instead of SAMRecord
+     */
+    public void setFastBamEncoding(boolean fastBamEncoding) {
+        this.fastBamEncoding = fastBamEncoding;
+    }
+
+    /**
+     * @param createMd5File create md5 file for output bam or fastq files written directly
+     */
+    public void setCreateMd5File(boolean createMd5File) {
+        this.createMd5File = createMd5File;
+    }
+
+    /**
+     * @param outputFormat bam or sam, the format written when output is standard output
+     */
+    public void setOutputFormat(String outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * @param fastqIndexInReadName put index reads into fastq read name line instead of index files
+     */
+    public void setFastqIndexInReadName(boolean fastqIndexInReadName) {
+        this.fastqIndexInReadName = fastqIndexInReadName;
+    }
+
+    /**
+     * @param compressionThreads number of threads to compress fastq output
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * @return number of threads to compress fastq output
+     */
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * @return compression level for fastq output
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param compressionLevel compression level for fastq output
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
     /**
      * @return the baseCallProgram
      */
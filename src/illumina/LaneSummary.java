@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.file.reader.ControlFileReader;
+import illumina.file.reader.FilterFileReader;
+import illumina.file.reader.RunFolderManifest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.picard.metrics.MetricBase;
+import net.sf.picard.metrics.MetricsFile;
+import net.sf.picard.util.Log;
+
+/**
+ * Cluster, passing filter and control counts of each tile of a lane from filter and control files only.
+ *
+ * Total clusters come from the file headers and the bits are counted in blocks,
+ * tiles are counted in parallel. No bcl, scl, clocs or pos file is opened.
+ *
+ */
+public class LaneSummary {
+
+    private final Log log = Log.getInstance(LaneSummary.class);
+
+    private final RunFolderManifest manifest;
+
+    private final List<Integer> tileNumbers = new ArrayList<Integer>();
+    private final List<String> filterFileNames = new ArrayList<String>();
+    private final List<String> controlFileNames = new ArrayList<String>();
+
+    /**
+     *
+     * @param manifest run folder manifest to check files instead of the file system, could be null
+     */
+    public LaneSummary(RunFolderManifest manifest){
+        this.manifest = manifest;
+    }
+
+    /**
+     * add a tile to count
+     *
+     * @param tileNumber
+     * @param filterFileName
+     * @param controlFileName control file name, null if there is no control file
+     */
+    public void addTile(int tileNumber, String filterFileName, String controlFileName){
+        if(filterFileName == null){
+            throw new IllegalArgumentException("No filter file found for tile " + tileNumber);
+        }
+        this.tileNumbers.add(tileNumber);
+        this.filterFileNames.add(filterFileName);
+        this.controlFileNames.add(controlFileName);
+    }
+
+    /**
+     * count all tiles
+     *
+     * @param threads number of tiles counted at the same time
+     * @return metrics for the whole lane first, then each tile in the order added
+     * @throws Exception
+     */
+    public List<LaneSummaryMetric> summarize(int threads) throws Exception {
+
+        if(threads < 1){
+            throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+        }
+
+        List<LaneSummaryMetric> tileMetrics = new ArrayList<LaneSummaryMetric>(this.tileNumbers.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, this.tileNumbers.size())));
+        try {
+            List<Future<LaneSummaryMetric>> counts = new ArrayList<Future<LaneSummaryMetric>>(this.tileNumbers.size());
+            for(int i = 0; i < this.tileNumbers.size(); i++){
+                final int tileNumber = this.tileNumbers.get(i);
+                final String filterFileName = this.filterFileNames.get(i);
+                final String controlFileName = this.controlFileNames.get(i);
+                counts.add(executor.submit(new Callable<LaneSummaryMetric>() {
+                    @Override
+                    public LaneSummaryMetric call() throws Exception {
+                        return countTile(tileNumber, filterFileName, controlFileName);
+                    }
+                }));
+            }
+            for(Future<LaneSummaryMetric> count : counts){
+                try {
+                    tileMetrics.add(count.get());
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    throw (cause instanceof Exception) ? (Exception) cause : ex;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        LaneSummaryMetric all = new LaneSummaryMetric();
+        all.TILE = "ALL";
+        for(LaneSummaryMetric metric : tileMetrics){
+            all.CLUSTERS += metric.CLUSTERS;
+            all.PF_CLUSTERS += metric.PF_CLUSTERS;
+            all.CONTROL_CLUSTERS += metric.CONTROL_CLUSTERS;
+        }
+        all.calculatePercentage();
+
+        List<LaneSummaryMetric> metrics = new ArrayList<LaneSummaryMetric>(tileMetrics.size() + 1);
+        metrics.add(all);
+        metrics.addAll(tileMetrics);
+        return metrics;
+    }
+
+    /**
+     * count all tiles and write metrics
+     *
+     * @param threads number of tiles counted at the same time
+     * @param metricsFile
+     * @param output
+     * @throws Exception
+     */
+    public void writeMetrics(int threads, MetricsFile<LaneSummaryMetric, Integer> metricsFile, File output) throws Exception {
+        for(LaneSummaryMetric metric : this.summarize(threads)){
+            metricsFile.addMetric(metric);
+        }
+        metricsFile.write(output);
+    }
+
+    private LaneSummaryMetric countTile(int tileNumber, String filterFileName, String controlFileName) throws Exception {
+
+        LaneSummaryMetric metric = new LaneSummaryMetric();
+        metric.TILE = String.valueOf(tileNumber);
+
+        FilterFileReader filterFileReader = new FilterFileReader(filterFileName, this.manifest);
+        try {
+            metric.CLUSTERS = filterFileReader.getTotalClusters();
+            metric.PF_CLUSTERS = filterFileReader.countPFClusters();
+        } finally {
+            filterFileReader.close();
+        }
+
+        if(controlFileName != null){
+            ControlFileReader controlFileReader = new ControlFileReader(controlFileName, this.manifest);
+            try {
+                if(controlFileReader.getTotalClusters() != metric.CLUSTERS){
+                    throw new Exception("Number of clusters in control file " + controlFileName
+                            + " " + controlFileReader.getTotalClusters()
+                            + " not the same as in filter file " + metric.CLUSTERS);
+                }
+                metric.CONTROL_CLUSTERS = controlFileReader.countControlClusters();
+            } finally {
+                controlFileReader.close();
+            }
+        }
+
+        metric.calculatePercentage();
+        log.info("Tile " + tileNumber + ": " + metric.PF_CLUSTERS + " of " + metric.CLUSTERS
+                + " clusters passing filter, " + metric.CONTROL_CLUSTERS + " controls");
+        return metric;
+    }
+
+    /**
+     * Cluster counts of a tile or of the whole lane.
+     */
+    public static class LaneSummaryMetric extends MetricBase {
+
+        /** Tile number, or ALL for the whole lane. */
+        public String TILE;
+
+        /** Total clusters in the filter file. */
+        public long CLUSTERS;
+
+        /** Clusters passing filter. */
+        public long PF_CLUSTERS;
+
+        /** Percentage of clusters passing filter. */
+        public double PCT_PF;
+
+        /** Clusters identified as controls, 0 without control file. */
+        public long CONTROL_CLUSTERS;
+
+        private void calculatePercentage(){
+            this.PCT_PF = (this.CLUSTERS > 0) ? 100.0 * this.PF_CLUSTERS / this.CLUSTERS : 0;
+        }
+    }
+}
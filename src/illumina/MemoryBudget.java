@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import net.sf.picard.util.Log;
+
+/**
+ * Memory budget shared by reader buffers, second base call arrays and writer buffers.
+ *
+ * Each user reserves the bytes it is going to hold and releases them when done.
+ * Users which can work with less memory ask for a range and shrink their buffers to what is given,
+ * others wait for memory released by other threads and fail with a clear message
+ * if the budget is still too small, instead of the job going over its memory reservation.
+ * The peak of reserved memory is kept to size later jobs.
+ *
+ * A program sets the budget for the current run as the default one, null means no limit.
+ *
+ */
+public class MemoryBudget {
+
+    private static final Log log = Log.getInstance(MemoryBudget.class);
+
+    //time to wait for other threads to release memory before giving up
+    private static final long WAIT_MILLIS = 10000;
+
+    private static volatile MemoryBudget defaultBudget;
+
+    private final long maxBytes;
+    private long reservedBytes = 0;
+    private long peakBytes = 0;
+
+    /**
+     *
+     * @param maxBytes maximum bytes reserved at any time
+     */
+    public MemoryBudget(long maxBytes){
+        if(maxBytes <= 0){
+            throw new IllegalArgumentException("Memory budget must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the budget of the current run, null if there is no limit
+     */
+    public static MemoryBudget getDefault() {
+        return defaultBudget;
+    }
+
+    /**
+     * @param budget the budget of the current run, null for no limit
+     */
+    public static void setDefault(MemoryBudget budget) {
+        defaultBudget = budget;
+    }
+
+    /**
+     * reserve from the default budget if there is one
+     *
+     * @param bytes
+     * @param user what the memory is for, used in error message
+     */
+    public static void reserveDefault(long bytes, String user) {
+        MemoryBudget budget = defaultBudget;
+        if(budget != null){
+            budget.reserve(bytes, user);
+        }
+    }
+
+    /**
+     * reserve from the default budget if there is one, shrinking to what is available
+     *
+     * @param wanted
+     * @param minimum
+     * @param user what the memory is for, used in error message
+     * @return bytes reserved, the wanted bytes if there is no default budget
+     */
+    public static long reserveDefault(long wanted, long minimum, String user) {
+        MemoryBudget budget = defaultBudget;
+        if(budget != null){
+            return budget.reserve(wanted, minimum, user);
+        }
+        return wanted;
+    }
+
+    /**
+     * release to the default budget if there is one
+     *
+     * @param bytes
+     */
+    public static void releaseDefault(long bytes) {
+        MemoryBudget budget = defaultBudget;
+        if(budget != null){
+            budget.release(bytes);
+        }
+    }
+
+    /**
+     * reserve memory, waiting for other threads to release some if not enough
+     *
+     * @param bytes
+     * @param user what the memory is for, used in error message
+     */
+    public synchronized void reserve(long bytes, String user) {
+        this.reserve(bytes, bytes, user);
+    }
+
+    /**
+     * reserve up to the wanted bytes, at least the minimum,
+     * waiting for other threads to release memory if even the minimum is not available
+     *
+     * @param wanted
+     * @param minimum
+     * @param user what the memory is for, used in error message
+     * @return bytes reserved
+     */
+    public synchronized long reserve(long wanted, long minimum, String user) {
+
+        if(minimum > this.maxBytes){
+            throw new RuntimeException(user + " needs " + minimum + " bytes, more than memory budget " + this.maxBytes);
+        }
+
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while(this.getAvailable() < minimum){
+            long wait = deadline - System.currentTimeMillis();
+            if(wait <= 0){
+                throw new RuntimeException("Not enough memory in budget " + this.maxBytes + " for " + user
+                        + ": " + minimum + " bytes needed, " + this.reservedBytes + " bytes in use");
+            }
+            try {
+                this.wait(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for memory for " + user);
+            }
+        }
+
+        long bytes = Math.min(wanted, this.getAvailable());
+        if(bytes < wanted){
+            log.debug("Memory budget low, " + user + " given " + bytes + " bytes instead of " + wanted);
+        }
+        this.reservedBytes += bytes;
+        this.peakBytes = Math.max(this.peakBytes, this.reservedBytes);
+        return bytes;
+    }
+
+    /**
+     * reserve memory only if available now
+     *
+     * @param bytes
+     * @return true if reserved
+     */
+    public synchronized boolean tryReserve(long bytes) {
+        if(this.getAvailable() < bytes){
+            return false;
+        }
+        this.reservedBytes += bytes;
+        this.peakBytes = Math.max(this.peakBytes, this.reservedBytes);
+        return true;
+    }
+
+    /**
+     * @param bytes memory no longer used
+     */
+    public synchronized void release(long bytes) {
+        this.reservedBytes = Math.max(0, this.reservedBytes - bytes);
+        this.notifyAll();
+    }
+
+    /**
+     * @return bytes which could be reserved now
+     */
+    public synchronized long getAvailable() {
+        return this.maxBytes - this.reservedBytes;
+    }
+
+    /**
+     * @return bytes reserved now
+     */
+    public synchronized long getReserved() {
+        return this.reservedBytes;
+    }
+
+    /**
+     * @return the most bytes reserved at any time
+     */
+    public synchronized long getPeak() {
+        return this.peakBytes;
+    }
+
+    /**
+     * @return maximum bytes reserved at any time
+     */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * parse memory size with an optional unit k, m or g, such as 512m or 4g
+     *
+     * @param size
+     * @return size in bytes
+     */
+    public static long parseSize(String size) {
+
+        String value = size.trim().toLowerCase();
+        long unit = 1;
+        if(value.endsWith("k")){
+            unit = 1024L;
+        }else if(value.endsWith("m")){
+            unit = 1024L * 1024;
+        }else if(value.endsWith("g")){
+            unit = 1024L * 1024 * 1024;
+        }
+        if(unit > 1){
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(value) * unit;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid memory size: " + size);
+        }
+    }
+}
@@ -285,106 +285,11 @@ public class ModifyIlluminaConfig extends Illumina2bamCommandLine {
     }
     
     protected HashMap<String, List<ArrayList<Integer>>> getReadsAndBarcodes(String readIdentifier) {
-
-        HashMap<String, List<ArrayList<Integer>>> readsAndBarcodes = new HashMap<String, List<ArrayList<Integer>>>();
-
-       //Parse the read identifier
-        List<ArrayList<Integer>> reads = new ArrayList<ArrayList<Integer>>();
-        List<ArrayList<Integer>> barcodes = new ArrayList<ArrayList<Integer>>();
-        
-        int currentPosition = 1;
-        int basePairs = 0;
-        
-        readIdentifier = readIdentifier.toUpperCase();
-        boolean hasCreatedNewBarcode = false;
-        ArrayList<Integer> barcode;
-        
-        for (int i = 0; i < readIdentifier.length(); i++) {
-            char character = readIdentifier.charAt(i);
-            switch (character) {
-                case 'J':
-                    if (hasCreatedNewBarcode) {
-                        //Fetch last barcode
-                        barcode = barcodes.get(barcodes.size() - 1);
-                        //Remove last end position
-                        barcode.remove(barcode.size() - 1);
-                        //Remove from container lists
-                        barcodes.remove(barcodes.size() - 1);
-                        reads.remove(reads.size() - 1);
-                    } else {
-                        //Create new barcode
-                        barcode = new ArrayList<Integer>();
-                        barcode.add(currentPosition);
-                        hasCreatedNewBarcode = true;
-                    }
-                    //Determine length of index
-                    basePairs = getNextNumber(readIdentifier, i + 1);
-                    currentPosition = currentPosition + basePairs;
-                    barcode.add(currentPosition - 1);
-                    //Add barcode to reads and barcodes
-                    barcodes.add(barcode);
-                    reads.add(barcode);
-                    break;
-                case 'I':
-                    if (hasCreatedNewBarcode) {
-                        //Fetch last barcode
-                        barcode = barcodes.get(barcodes.size() - 1);
-                        //Remove last end position
-                        barcode.remove(barcode.size() - 1);
-                        //Remove from container lists
-                        barcodes.remove(barcodes.size() - 1);
-                        reads.remove(reads.size() - 1);
-                    } else {
-                        //Create new barcode
-                        barcode = new ArrayList<Integer>();
-                        barcode.add(currentPosition);
-                        hasCreatedNewBarcode = true;
-                    }
-                    //Determine length of index
-                    basePairs = getNextNumber(readIdentifier, i + 1);
-                    currentPosition = currentPosition + basePairs;
-                    barcode.add(currentPosition - 1);
-                    //Add barcode to reads and barcodes
-                    barcodes.add(barcode);
-                    reads.add(barcode);
-                    break;
-                case 'Y':
-                    hasCreatedNewBarcode = false;
-                    //Create new read
-                    ArrayList<Integer> read = new ArrayList<Integer>();
-                    //Determine length of index
-                    basePairs = getNextNumber(readIdentifier, i + 1);
-                    read.add(currentPosition);
-                    currentPosition = currentPosition + basePairs;
-                    read.add(currentPosition - 1);
-                    reads.add(read);
-                    break;
-                case 'N':
-                    hasCreatedNewBarcode = false;
-                    basePairs = getNextNumber(readIdentifier, i + 1);
-                    currentPosition = currentPosition + basePairs;
-                    break;
-                default:
-                    break;
-            }
-        }
-
-        readsAndBarcodes.put("reads", reads);
-        readsAndBarcodes.put("barcodes", barcodes);
-        
-        return readsAndBarcodes;
+        return ReadStructure.parseReadsAndBarcodes(readIdentifier);
     }
     
     protected int getNextNumber(String readIdentifier, int startPosition) {
-        String nextNumber = "";
-        for (int i = startPosition; i < readIdentifier.length(); i++) {
-            if (readIdentifier.substring(i, i + 1).matches("[0-9]")) {
-                nextNumber += readIdentifier.substring(i, i + 1);
-            } else {
-                break;
-            }
-        }
-        return Integer.parseInt(nextNumber);
+        return ReadStructure.getNextNumber(readIdentifier, startPosition);
     }
 
     public static void copyFile(File sourceFile, File destFile) throws IOException {
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+/**
+ * Cluster sink discarding all reads, to measure how fast base calls can be read and decoded.
+ *
+ */
+public class NullClusterSink implements ClusterSink {
+
+    @Override
+    public void startTile(int tileNumber) {
+    }
+
+    @Override
+    public void addCluster(String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate){
+    }
+
+    @Override
+    public void endTile(int tileNumber) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
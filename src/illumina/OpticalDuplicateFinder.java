@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.picard.metrics.MetricBase;
+import net.sf.picard.metrics.MetricsFile;
+import net.sf.picard.util.Log;
+
+/**
+ * Find likely optical duplicates while a tile is converted.
+ *
+ * Clusters are put into a grid of cells as wide as the pixel distance, so only the clusters
+ * in the nine cells around a new cluster are compared with it. A cluster is a duplicate if
+ * an earlier cluster within the distance in both x and y has the same prefix of bases in each read.
+ * Coordinates are the ones in read names. Memory is a few arrays with one entry
+ * per cluster of the current tile, reserved from the memory budget and freed when the tile ends.
+ *
+ */
+public class OpticalDuplicateFinder {
+
+    private final Log log = Log.getInstance(OpticalDuplicateFinder.class);
+
+    //two bits per base in a long for both reads, leaving the sign bit
+    public static final int MAX_PREFIX_LENGTH = 15;
+
+    private static final double MAX_LOAD_FACTOR = 0.7;
+
+    private static final long [] BASE_CODES = new long[256];
+    static {
+        Arrays.fill(BASE_CODES, -1);
+        BASE_CODES['A'] = 0;
+        BASE_CODES['C'] = 1;
+        BASE_CODES['G'] = 2;
+        BASE_CODES['T'] = 3;
+    }
+
+    private final int pixelDistance;
+    private final int prefixLength;
+
+    private final List<OpticalDuplicateMetric> tileMetrics = new ArrayList<OpticalDuplicateMetric>();
+
+    //current tile
+    private int tileNumber = -1;
+    private long clustersCompared;
+    private long duplicates;
+
+    //open addressing table of grid cells, each with the last cluster added to it
+    private long [] cellKeys;
+    private int [] cellHeads;
+    private int cellMask;
+
+    //clusters added, chained within their cells
+    private int [] clusterX;
+    private int [] clusterY;
+    private long [] clusterPrefix;
+    private int [] clusterNext;
+    private int clusterCount;
+
+    //bytes reserved from the memory budget for the current tile
+    private long reservedBytes;
+
+    /**
+     *
+     * @param pixelDistance maximum distance in x and y between duplicate clusters, in read name coordinates
+     * @param prefixLength number of bases compared from the start of each read, up to 15
+     */
+    public OpticalDuplicateFinder(int pixelDistance, int prefixLength){
+        if(pixelDistance < 1){
+            throw new IllegalArgumentException("Optical duplicate pixel distance must be positive: " + pixelDistance);
+        }
+        if(prefixLength < 1 || prefixLength > MAX_PREFIX_LENGTH){
+            throw new IllegalArgumentException("Optical duplicate prefix length must be between 1 and "
+                    + MAX_PREFIX_LENGTH + ": " + prefixLength);
+        }
+        this.pixelDistance = pixelDistance;
+        this.prefixLength = prefixLength;
+    }
+
+    /**
+     * start a tile
+     *
+     * @param tileNumber
+     * @param totalClusters number of clusters in the tile
+     */
+    public void startTile(int tileNumber, int totalClusters){
+        if(this.tileNumber != -1){
+            throw new IllegalStateException("Tile " + this.tileNumber + " not ended before tile " + tileNumber);
+        }
+        this.tileNumber = tileNumber;
+        this.clustersCompared = 0;
+        this.duplicates = 0;
+
+        //at most one cell per cluster, so the table is never more than 70% full
+        int minimumSize = Math.max((int) (totalClusters / MAX_LOAD_FACTOR) + 1, 256);
+        int tableSize = Integer.highestOneBit(minimumSize - 1) << 1;
+        this.reservedBytes = 12L * tableSize + 20L * totalClusters;
+        MemoryBudget.reserveDefault(this.reservedBytes, "optical duplicate grid of tile " + tileNumber);
+
+        this.cellKeys = new long[tableSize];
+        this.cellHeads = new int[tableSize];
+        Arrays.fill(this.cellHeads, -1);
+        this.cellMask = tableSize - 1;
+
+        this.clusterX = new int[totalClusters];
+        this.clusterY = new int[totalClusters];
+        this.clusterPrefix = new long[totalClusters];
+        this.clusterNext = new int[totalClusters];
+        this.clusterCount = 0;
+    }
+
+    /**
+     * check a cluster against earlier clusters nearby and add it to the grid
+     *
+     * @param x
+     * @param y
+     * @param bases1 bases of the first read
+     * @param bases2 bases of the second read, could be null
+     * @return true if an earlier cluster nearby has the same prefix
+     */
+    public boolean isDuplicate(int x, int y, byte [] bases1, byte [] bases2){
+
+        long prefix = this.encodePrefix(bases1, bases2);
+        if(prefix < 0){
+            //no-calls in the prefix
+            return false;
+        }
+        this.clustersCompared++;
+
+        long cellX = this.getCell(x);
+        long cellY = this.getCell(y);
+        boolean duplicate = false;
+        for(long i = cellX - 1; i <= cellX + 1 && !duplicate; i++){
+            for(long j = cellY - 1; j <= cellY + 1 && !duplicate; j++){
+                int slot = this.findCell(i, j, false);
+                if(slot == -1){
+                    continue;
+                }
+                for(int c = this.cellHeads[slot]; c != -1; c = this.clusterNext[c]){
+                    if(this.clusterPrefix[c] == prefix
+                            && Math.abs(this.clusterX[c] - x) <= this.pixelDistance
+                            && Math.abs(this.clusterY[c] - y) <= this.pixelDistance){
+                        duplicate = true;
+                        break;
+                    }
+                }
+            }
+        }
+        if(duplicate){
+            this.duplicates++;
+        }
+
+        this.addCluster(x, y, prefix, this.findCell(cellX, cellY, true));
+        return duplicate;
+    }
+
+    /**
+     * end the current tile and free its grid
+     */
+    public void endTile(){
+        OpticalDuplicateMetric metric = new OpticalDuplicateMetric();
+        metric.TILE = String.valueOf(this.tileNumber);
+        metric.CLUSTERS = this.clustersCompared;
+        metric.OPTICAL_DUPLICATES = this.duplicates;
+        metric.calculatePercentage();
+        this.tileMetrics.add(metric);
+        log.info("Tile " + this.tileNumber + ": " + this.duplicates + " optical duplicates in "
+                + this.clustersCompared + " clusters");
+
+        this.tileNumber = -1;
+        this.cellKeys = null;
+        this.cellHeads = null;
+        this.clusterX = null;
+        this.clusterY = null;
+        this.clusterPrefix = null;
+        this.clusterNext = null;
+        MemoryBudget.releaseDefault(this.reservedBytes);
+        this.reservedBytes = 0;
+    }
+
+    /**
+     * @return metrics for the whole lane first, then each tile in the order converted
+     */
+    public List<OpticalDuplicateMetric> getMetrics(){
+        OpticalDuplicateMetric all = new OpticalDuplicateMetric();
+        all.TILE = "ALL";
+        for(OpticalDuplicateMetric metric : this.tileMetrics){
+            all.CLUSTERS += metric.CLUSTERS;
+            all.OPTICAL_DUPLICATES += metric.OPTICAL_DUPLICATES;
+        }
+        all.calculatePercentage();
+
+        List<OpticalDuplicateMetric> metrics = new ArrayList<OpticalDuplicateMetric>();
+        metrics.add(all);
+        metrics.addAll(this.tileMetrics);
+        return metrics;
+    }
+
+    /**
+     * write metrics of all tiles
+     *
+     * @param metricsFile
+     * @param output
+     */
+    public void writeMetrics(MetricsFile<OpticalDuplicateMetric, Integer> metricsFile, File output){
+        for(OpticalDuplicateMetric metric : this.getMetrics()){
+            metricsFile.addMetric(metric);
+        }
+        metricsFile.write(output);
+    }
+
+    private long getCell(int coordinate){
+        return (coordinate >= 0) ? coordinate / this.pixelDistance : (coordinate + 1) / this.pixelDistance - 1;
+    }
+
+    /**
+     * @return slot of the cell in the table, -1 if the cell is not in the table and not added
+     */
+    private int findCell(long cellX, long cellY, boolean add){
+        //cell key never 0, which marks an empty slot
+        long key = ((cellX & 0x7FFFFFFFL) << 32 | (cellY & 0xFFFFFFFFL)) + 1;
+        long hash = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash >>> 32) & this.cellMask;
+        while(this.cellKeys[slot] != 0 && this.cellKeys[slot] != key){
+            slot = (slot + 1) & this.cellMask;
+        }
+        if(this.cellKeys[slot] == 0){
+            if(!add){
+                return -1;
+            }
+            this.cellKeys[slot] = key;
+        }
+        return slot;
+    }
+
+    private void addCluster(int x, int y, long prefix, int slot){
+        if(this.clusterCount == this.clusterX.length){
+            throw new IllegalStateException("More clusters than " + this.clusterCount + " in tile " + this.tileNumber);
+        }
+        int c = this.clusterCount++;
+        this.clusterX[c] = x;
+        this.clusterY[c] = y;
+        this.clusterPrefix[c] = prefix;
+        this.clusterNext[c] = this.cellHeads[slot];
+        this.cellHeads[slot] = c;
+    }
+
+    /**
+     * @return prefixes of both reads, two bits per base, -1 if there is a no-call
+     */
+    private long encodePrefix(byte [] bases1, byte [] bases2){
+        long prefix = 0;
+        for(byte [] bases : new byte[][]{bases1, bases2}){
+            if(bases == null){
+                continue;
+            }
+            int length = Math.min(this.prefixLength, bases.length);
+            for(int i = 0; i < length; i++){
+                long code = BASE_CODES[bases[i] & 0xFF];
+                if(code < 0){
+                    return -1;
+                }
+                prefix = prefix << 2 | code;
+            }
+        }
+        return prefix;
+    }
+
+    @Override
+    public String toString() {
+        return "OPTICAL_DUPLICATE_PIXEL_DISTANCE=" + this.pixelDistance
+                + " OPTICAL_DUPLICATE_PREFIX_LENGTH=" + this.prefixLength;
+    }
+
+    /**
+     * Optical duplicates found during conversion, for the whole lane or one tile.
+     */
+    public static class OpticalDuplicateMetric extends MetricBase {
+
+        /** Tile number, or ALL for the whole lane. */
+        public String TILE;
+
+        /** Clusters compared, without no-calls in the base prefix. */
+        public long CLUSTERS;
+
+        /** Clusters with an earlier cluster nearby with the same base prefix. */
+        public long OPTICAL_DUPLICATES;
+
+        /** Percentage of compared clusters which are optical duplicates. */
+        public double PERCENT_OPTICAL_DUPLICATES;
+
+        private void calculatePercentage(){
+            this.PERCENT_OPTICAL_DUPLICATES = (this.CLUSTERS > 0) ? 100.0 * this.OPTICAL_DUPLICATES / this.CLUSTERS : 0;
+        }
+    }
+}
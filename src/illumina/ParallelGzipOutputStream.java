@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output stream compressing blocks of data in parallel.
+ *
+ * Data is cut into blocks and each block is compressed by the executor
+ * into a complete gzip member. Members are written out in order,
+ * and concatenated gzip members are read by gzip, zcat and java GZIPInputStream as one stream.
+ *
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int compressionLevel;
+    private final int blockSize;
+    private final int maxPendingBlocks;
+
+    //budget to reserve uncompressed blocks from, null if no limit
+    private final MemoryBudget budget;
+
+    //compressed blocks in the order to write
+    private final LinkedList<Future<byte []>> pendingBlocks = new LinkedList<Future<byte []>>();
+
+    private byte [] block;
+    private int blockLength = 0;
+    private boolean closed = false;
+
+    /**
+     *
+     * @param out where to write compressed data
+     * @param executor threads to compress blocks, not shut down by this stream
+     * @param threads number of threads of the executor, used to limit the blocks waiting in memory
+     * @param compressionLevel deflate compression level
+     * @param blockSize size of uncompressed data in each gzip member
+     */
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int threads, int compressionLevel, int blockSize){
+        this.out = out;
+        this.executor = executor;
+        this.compressionLevel = compressionLevel;
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = 2 * Math.max(threads, 1);
+        this.budget = MemoryBudget.getDefault();
+        if(this.budget != null){
+            this.budget.reserve(blockSize, "Gzip block");
+        }
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.block[this.blockLength++] = (byte) b;
+        if(this.blockLength == this.blockSize){
+            this.submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte [] b, int off, int len) throws IOException {
+        while(len > 0){
+            int length = Math.min(len, this.blockSize - this.blockLength);
+            System.arraycopy(b, off, this.block, this.blockLength, length);
+            this.blockLength += length;
+            off += length;
+            len -= length;
+            if(this.blockLength == this.blockSize){
+                this.submitBlock();
+            }
+        }
+    }
+
+    /**
+     * compress the current partial block and write out all blocks
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if(this.blockLength > 0){
+            this.submitBlock();
+        }
+        while(!this.pendingBlocks.isEmpty()){
+            this.writeFirstBlock();
+        }
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(this.closed){
+            return;
+        }
+        this.flush();
+        this.out.close();
+        this.closed = true;
+        if(this.budget != null){
+            this.budget.release(this.blockSize);
+        }
+    }
+
+    private void submitBlock() throws IOException {
+
+        final byte [] data = this.block;
+        final int length = this.blockLength;
+        this.pendingBlocks.add(this.executor.submit(new Callable<byte []>() {
+            @Override
+            public byte [] call() throws IOException {
+                return compress(data, length, compressionLevel);
+            }
+        }));
+
+        while(this.pendingBlocks.size() > this.maxPendingBlocks){
+            this.writeFirstBlock();
+        }
+
+        this.reserveBlock();
+        this.block = new byte[this.blockSize];
+        this.blockLength = 0;
+    }
+
+    /**
+     * reserve the next block from memory budget,
+     * waiting for blocks being compressed to be written out while the budget is low
+     *
+     * @throws IOException
+     */
+    private void reserveBlock() throws IOException {
+        if(this.budget == null){
+            return;
+        }
+        while(!this.budget.tryReserve(this.blockSize)){
+            if(this.pendingBlocks.isEmpty()){
+                this.budget.reserve(this.blockSize, "Gzip block");
+                return;
+            }
+            this.writeFirstBlock();
+        }
+    }
+
+    private void writeFirstBlock() throws IOException {
+        try {
+            byte [] compressed = this.pendingBlocks.removeFirst().get();
+            if(this.budget != null){
+                this.budget.release(this.blockSize);
+            }
+            this.out.write(compressed);
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted while compressing: " + ex.getMessage());
+        } catch (ExecutionException ex) {
+            throw new IOException("Problems to compress", ex.getCause());
+        }
+    }
+
+    /**
+     * compress data as one gzip member
+     *
+     * @param data
+     * @param length
+     * @param compressionLevel
+     * @return gzip member
+     * @throws IOException
+     */
+    public static byte [] compress(byte [] data, int length, final int compressionLevel) throws IOException {
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed, 64 * 1024) {
+            {
+                this.def.setLevel(compressionLevel);
+            }
+        };
+        gzip.write(data, 0, length);
+        gzip.close();
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+/**
+ * Map phred quality scores to a smaller set of values while base calls are read,
+ * so quality strings compress better.
+ *
+ * A scheme is a comma separated list of quality ranges with the value to map to,
+ * such as 2-9:6,10-19:15, or the name of a predefined scheme. Qualities outside
+ * the ranges are not changed.
+ *
+ */
+public class QualityBinning {
+
+    /** Illumina 8 level binning, no-call quality 0 not changed */
+    public static final String ILLUMINA8 = "ILLUMINA8";
+    private static final String ILLUMINA8_SCHEME = "2-9:6,10-19:15,20-24:22,25-29:27,30-34:33,35-39:37,40-63:40";
+
+    //bcl files use six bits for quality
+    private static final int MAX_QUALITY = 63;
+
+    private final byte [] qualityMap = new byte[MAX_QUALITY + 1];
+    private final String scheme;
+
+    /**
+     *
+     * @param scheme predefined scheme name or a list of ranges such as 2-9:6,10-19:15
+     */
+    public QualityBinning(String scheme){
+
+        String ranges = ILLUMINA8.equalsIgnoreCase(scheme) ? ILLUMINA8_SCHEME : scheme;
+
+        for(int i = 0; i <= MAX_QUALITY; i++){
+            this.qualityMap[i] = (byte) i;
+        }
+        boolean [] mapped = new boolean[MAX_QUALITY + 1];
+        for(String range : ranges.split(",")){
+            String [] fields = range.trim().split(":");
+            if(fields.length != 2){
+                throw new IllegalArgumentException("Quality bin must be low-high:value: " + range);
+            }
+            String [] bounds = fields[0].split("-");
+            int low, high, value;
+            try {
+                low = Integer.parseInt(bounds[0].trim());
+                high = (bounds.length > 1) ? Integer.parseInt(bounds[1].trim()) : low;
+                value = Integer.parseInt(fields[1].trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Quality bin must be low-high:value: " + range);
+            }
+            if(bounds.length > 2 || low < 0 || high > MAX_QUALITY || low > high || value < 0 || value > MAX_QUALITY){
+                throw new IllegalArgumentException("Quality bin out of range 0-" + MAX_QUALITY + ": " + range);
+            }
+            for(int i = low; i <= high; i++){
+                if(mapped[i]){
+                    throw new IllegalArgumentException("Quality " + i + " in more than one bin: " + scheme);
+                }
+                mapped[i] = true;
+                this.qualityMap[i] = (byte) value;
+            }
+        }
+        this.scheme = this.generateMapTable();
+    }
+
+    /**
+     * @return quality map indexed by original quality
+     */
+    public byte[] getQualityMap() {
+        return qualityMap;
+    }
+
+    /**
+     * bin qualities in place
+     * @param qualities
+     */
+    public void binQualities(byte [] qualities){
+        this.binQualities(qualities, 0, qualities.length);
+    }
+
+    /**
+     * bin part of an array of qualities in place
+     * @param qualities
+     * @param offset
+     * @param length
+     */
+    public void binQualities(byte [] qualities, int offset, int length){
+        for(int i = offset; i < offset + length; i++){
+            qualities[i] = this.qualityMap[qualities[i]];
+        }
+    }
+
+    /**
+     * @return ranges of qualities mapped to the same value, such as 2-9:6,10-19:15
+     */
+    private String generateMapTable(){
+
+        StringBuilder table = new StringBuilder();
+        int start = 0;
+        while(start <= MAX_QUALITY){
+            int end = start;
+            while(end < MAX_QUALITY && this.qualityMap[end + 1] == this.qualityMap[start]){
+                end++;
+            }
+            if(end > start || this.qualityMap[start] != start){
+                if(table.length() > 0){
+                    table.append(",");
+                }
+                table.append((end > start) ? start + "-" + end : String.valueOf(start));
+                table.append(":").append(this.qualityMap[start]);
+            }
+            start = end + 1;
+        }
+        return table.toString();
+    }
+
+    @Override
+    public String toString() {
+        return this.scheme;
+    }
+}
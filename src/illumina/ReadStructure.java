@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Read structure given as a read identifier string such as I5Y75N5I5Y75N5, to override
+ * the cycle ranges of reads and barcodes in config files without rewriting them.
+ *
+ * I is an index read, Y a read and N skipped cycles, each followed by the number of cycles.
+ * Index cycles next to each other form one barcode. J is parsed the same as I, as in ModifyIlluminaConfig:
+ * its cycles are part of the barcode and used for decoding.
+ *
+ */
+public class ReadStructure {
+
+    private final String readIdentifier;
+    private final int [][] cycleRanges;
+    private final ArrayList<ArrayList<Integer>> barcodeCycles;
+
+    /**
+     *
+     * @param readIdentifier read identifier string, for example I5Y75N5I5Y75N5
+     */
+    public ReadStructure(String readIdentifier){
+
+        if(readIdentifier == null || !readIdentifier.toUpperCase().matches("([IJYN][0-9]+)+")){
+            throw new IllegalArgumentException("Read identifier must be I, J, Y or N each followed by a number of cycles: " + readIdentifier);
+        }
+        if(readIdentifier.toUpperCase().indexOf('Y') < 0){
+            throw new IllegalArgumentException("No read in read identifier: " + readIdentifier);
+        }
+        this.readIdentifier = readIdentifier;
+
+        HashMap<String, List<ArrayList<Integer>>> readsAndBarcodes = parseReadsAndBarcodes(readIdentifier);
+        List<ArrayList<Integer>> reads = readsAndBarcodes.get("reads");
+        this.cycleRanges = new int[reads.size()][2];
+        for(int i = 0; i < reads.size(); i++){
+            this.cycleRanges[i][0] = reads.get(i).get(0);
+            this.cycleRanges[i][1] = reads.get(i).get(1);
+        }
+
+        List<ArrayList<Integer>> barcodes = readsAndBarcodes.get("barcodes");
+        if(barcodes.isEmpty()){
+            this.barcodeCycles = null;
+        }else{
+            this.barcodeCycles = new ArrayList<ArrayList<Integer>>(barcodes.size());
+            for(ArrayList<Integer> barcode : barcodes){
+                ArrayList<Integer> cycles = new ArrayList<Integer>();
+                for(int cycle = barcode.get(0); cycle <= barcode.get(1); cycle++){
+                    cycles.add(cycle);
+                }
+                this.barcodeCycles.add(cycles);
+            }
+        }
+    }
+
+    /**
+     * @return first and last cycle of each read including index reads, in cycle order, the same as Lane.readCycleRangeByRead
+     */
+    public int [][] getCycleRanges() {
+        int [][] copy = new int[this.cycleRanges.length][];
+        for(int i = 0; i < this.cycleRanges.length; i++){
+            copy[i] = this.cycleRanges[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * @return cycles of each barcode, null if there is no barcode, the same as Lane.readBarCodeIndexCycles
+     */
+    public ArrayList<ArrayList<Integer>> getBarcodeCycles() {
+        if(this.barcodeCycles == null){
+            return null;
+        }
+        ArrayList<ArrayList<Integer>> copy = new ArrayList<ArrayList<Integer>>(this.barcodeCycles.size());
+        for(ArrayList<Integer> cycles : this.barcodeCycles){
+            copy.add(new ArrayList<Integer>(cycles));
+        }
+        return copy;
+    }
+
+    @Override
+    public String toString(){
+        return this.readIdentifier;
+    }
+
+    /**
+     * parse a read identifier string into reads and barcodes, the same as used by ModifyIlluminaConfig
+     *
+     * @param readIdentifier
+     * @return first and last cycle of each read including index reads under "reads",
+     * and of each barcode under "barcodes"
+     */
+    static HashMap<String, List<ArrayList<Integer>>> parseReadsAndBarcodes(String readIdentifier) {
+
+        HashMap<String, List<ArrayList<Integer>>> readsAndBarcodes = new HashMap<String, List<ArrayList<Integer>>>();
+
+       //Parse the read identifier
+        List<ArrayList<Integer>> reads = new ArrayList<ArrayList<Integer>>();
+        List<ArrayList<Integer>> barcodes = new ArrayList<ArrayList<Integer>>();
+        
+        int currentPosition = 1;
+        int basePairs = 0;
+        
+        readIdentifier = readIdentifier.toUpperCase();
+        boolean hasCreatedNewBarcode = false;
+        ArrayList<Integer> barcode;
+        
+        for (int i = 0; i < readIdentifier.length(); i++) {
+            char character = readIdentifier.charAt(i);
+            switch (character) {
+                case 'J':
+                    if (hasCreatedNewBarcode) {
+                        //Fetch last barcode
+                        barcode = barcodes.get(barcodes.size() - 1);
+                        //Remove last end position
+                        barcode.remove(barcode.size() - 1);
+                        //Remove from container lists
+                        barcodes.remove(barcodes.size() - 1);
+                        reads.remove(reads.size() - 1);
+                    } else {
+                        //Create new barcode
+                        barcode = new ArrayList<Integer>();
+                        barcode.add(currentPosition);
+                        hasCreatedNewBarcode = true;
+                    }
+                    //Determine length of index
+                    basePairs = getNextNumber(readIdentifier, i + 1);
+                    currentPosition = currentPosition + basePairs;
+                    barcode.add(currentPosition - 1);
+                    //Add barcode to reads and barcodes
+                    barcodes.add(barcode);
+                    reads.add(barcode);
+                    break;
+                case 'I':
+                    if (hasCreatedNewBarcode) {
+                        //Fetch last barcode
+                        barcode = barcodes.get(barcodes.size() - 1);
+                        //Remove last end position
+                        barcode.remove(barcode.size() - 1);
+                        //Remove from container lists
+                        barcodes.remove(barcodes.size() - 1);
+                        reads.remove(reads.size() - 1);
+                    } else {
+                        //Create new barcode
+                        barcode = new ArrayList<Integer>();
+                        barcode.add(currentPosition);
+                        hasCreatedNewBarcode = true;
+                    }
+                    //Determine length of index
+                    basePairs = getNextNumber(readIdentifier, i + 1);
+                    currentPosition = currentPosition + basePairs;
+                    barcode.add(currentPosition - 1);
+                    //Add barcode to reads and barcodes
+                    barcodes.add(barcode);
+                    reads.add(barcode);
+                    break;
+                case 'Y':
+                    hasCreatedNewBarcode = false;
+                    //Create new read
+                    ArrayList<Integer> read = new ArrayList<Integer>();
+                    //Determine length of index
+                    basePairs = getNextNumber(readIdentifier, i + 1);
+                    read.add(currentPosition);
+                    currentPosition = currentPosition + basePairs;
+                    read.add(currentPosition - 1);
+                    reads.add(read);
+                    break;
+                case 'N':
+                    hasCreatedNewBarcode = false;
+                    basePairs = getNextNumber(readIdentifier, i + 1);
+                    currentPosition = currentPosition + basePairs;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        readsAndBarcodes.put("reads", reads);
+        readsAndBarcodes.put("barcodes", barcodes);
+        
+        return readsAndBarcodes;
+    }
+    
+    /**
+     *
+     * @param readIdentifier
+     * @param startPosition
+     * @return the number starting at the position
+     */
+    static int getNextNumber(String readIdentifier, int startPosition) {
+        String nextNumber = "";
+        for (int i = startPosition; i < readIdentifier.length(); i++) {
+            if (readIdentifier.substring(i, i + 1).matches("[0-9]")) {
+                nextNumber += readIdentifier.substring(i, i + 1);
+            } else {
+                break;
+            }
+        }
+        return Integer.parseInt(nextNumber);
+    }
+}
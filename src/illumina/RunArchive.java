@@ -0,0 +1,649 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.file.reader.FilterFileReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.sf.picard.util.Log;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Archive of a lane with one file per tile, to convert the lane again without the BCL files of the run folder.
+ *
+ * Each tile file keeps the filter, control and clocs or pos file of the tile, and the base calls
+ * of each cycle in blocks of clusters, with bases packed in two bits and quality scores in a separate block.
+ * Every block is deflated on its own and listed in a block index at the end of the file,
+ * so the cycles of a block of clusters are read together and decompressed in parallel.
+ *
+ * Second base calls are not archived, and a base call with quality score 0 is kept as a no-call.
+ *
+ */
+public class RunArchive {
+
+    private final Log log = Log.getInstance(RunArchive.class);
+
+    private static final byte [] MAGIC = {'I', '2', 'B', 'A'};
+    private static final int VERSION = 1;
+
+    //magic and offset of the block index at the end of the file
+    private static final int FOOTER_SIZE = 12;
+
+    //clusters in each block of a cycle
+    public static final int DEFAULT_BLOCK_CLUSTERS = 64 * 1024;
+
+    //kinds of blocks in a tile file
+    private static final int FILTER = 0;
+    private static final int CONTROL = 1;
+    private static final int CLOCS = 2;
+    private static final int POS = 3;
+    private static final int BASES = 4;
+    private static final int QUALITIES = 5;
+
+    //the same conversion of a BCL byte as BCLFileReader
+    private static final byte [] BASE_ARRAY = {65, 67, 71, 84};
+    private static final byte NO_CALL = 78;
+    private static final byte MAX_QUALITY_SCORE = 60;
+
+    private static final Pattern CYCLE_DIR_PATTERN = Pattern.compile("C([0-9]+)\\.1");
+
+    private final File archiveDir;
+    private final int laneNumber;
+    private final int blockClusters;
+
+    /**
+     *
+     * @param archiveDir directory of tile files
+     * @param laneNumber
+     */
+    public RunArchive(File archiveDir, int laneNumber){
+        this(archiveDir, laneNumber, DEFAULT_BLOCK_CLUSTERS);
+    }
+
+    /**
+     *
+     * @param archiveDir directory of tile files
+     * @param laneNumber
+     * @param blockClusters clusters in each block of a cycle written
+     */
+    RunArchive(File archiveDir, int laneNumber, int blockClusters){
+        if(blockClusters < 1){
+            throw new IllegalArgumentException("Number of clusters in a block must be positive: " + blockClusters);
+        }
+        this.archiveDir = archiveDir;
+        this.laneNumber = laneNumber;
+        this.blockClusters = blockClusters;
+    }
+
+    /**
+     *
+     * @param tileNumber
+     * @return archive file of a tile
+     */
+    public File getTileFile(int tileNumber){
+        return new File(this.archiveDir, "s_" + this.laneNumber + "_" + tileNumber + ".archive");
+    }
+
+    /**
+     * all cycles of the run, including cycles not used by any read, so they are kept in the archive
+     *
+     * @param baseCallDir base call directory of the run
+     * @param laneNumber
+     * @return cycles with a cycle directory in the lane base call directory
+     */
+    public static TreeSet<Integer> getRunFolderCycles(String baseCallDir, int laneNumber){
+        TreeSet<Integer> cycles = new TreeSet<Integer>();
+        File [] cycleDirs = new File(baseCallDir, "L00" + laneNumber).listFiles();
+        if(cycleDirs != null){
+            for(File cycleDir : cycleDirs){
+                Matcher matcher = CYCLE_DIR_PATTERN.matcher(cycleDir.getName());
+                if(matcher.matches() && cycleDir.isDirectory()){
+                    cycles.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        return cycles;
+    }
+
+    /**
+     * archive tiles in parallel
+     *
+     * @param tiles
+     * @param cycles cycles to archive
+     * @param threads number of tiles archived at the same time
+     * @throws Exception
+     */
+    public void writeTiles(List<Tile> tiles, final Collection<Integer> cycles, int threads) throws Exception {
+
+        if(threads < 1){
+            throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tiles.size())));
+        try {
+            List<Future<Object>> written = new ArrayList<Future<Object>>(tiles.size());
+            for(final Tile tile : tiles){
+                written.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        writeTile(tile, cycles);
+                        return null;
+                    }
+                }));
+            }
+            for(Future<Object> tile : written){
+                try {
+                    tile.get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    throw (cause instanceof Exception) ? (Exception) cause : ex;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * write the archive file of a tile from its run folder files,
+     * the file appears only when it is complete
+     *
+     * @param tile
+     * @param cycles cycles to archive
+     * @throws Exception
+     */
+    public void writeTile(Tile tile, Collection<Integer> cycles) throws Exception {
+
+        String filterFileName = tile.getFilterFileName();
+        if(filterFileName == null){
+            throw new IllegalArgumentException("No filter file for tile " + tile.getTileNumber());
+        }
+        FilterFileReader filterFileReader = new FilterFileReader(filterFileName);
+        int totalClusters = filterFileReader.getTotalClusters();
+        filterFileReader.close();
+
+        File tileFile = this.getTileFile(tile.getTileNumber());
+        File tempFile = new File(tileFile.getPath() + ".tmp");
+        TileWriter writer = new TileWriter(tempFile, totalClusters, this.blockClusters);
+        try {
+            writer.writeFile(FILTER, new File(filterFileName));
+            if(tile.getControlFileName() != null){
+                writer.writeFile(CONTROL, new File(tile.getControlFileName()));
+            }
+            if(new File(tile.getcLocsFileName()).exists()){
+                writer.writeFile(CLOCS, new File(tile.getcLocsFileName()));
+            }else if(new File(tile.getPosFileName()).exists()){
+                writer.writeFile(POS, new File(tile.getPosFileName()));
+            }else{
+                throw new IllegalArgumentException("Both clocs and pos files are not available for tile " + tile.getTileNumber());
+            }
+            for(int cycle : new TreeSet<Integer>(cycles)){
+                writer.writeCycle(cycle, new File(tile.getBaseCallFileName(cycle, true)));
+            }
+            writer.finish();
+        } catch (Exception ex) {
+            writer.close();
+            tempFile.delete();
+            throw ex;
+        }
+
+        if( (tileFile.exists() && !tileFile.delete()) || !tempFile.renameTo(tileFile) ){
+            throw new IOException("Problems to rename " + tempFile + " to " + tileFile);
+        }
+        log.info("Tile " + tile.getTileNumber() + " archived with " + cycles.size() + " cycles: "
+                + tileFile.length() + " bytes");
+    }
+
+    /**
+     *
+     * @param tileNumber
+     * @param threads number of threads to decompress blocks
+     * @return base calls, filter, control and positions of a tile from its archive file
+     */
+    public TileArchive openTile(int tileNumber, int threads){
+        try {
+            return new TileArchive(this.getTileFile(tileNumber), threads);
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to open archive of tile " + tileNumber, ex);
+        }
+    }
+
+    private static int readInt(byte [] header){
+        return (header[0] & 0xFF) | ((header[1] & 0xFF) << 8) | ((header[2] & 0xFF) << 16) | ((header[3] & 0xFF) << 24);
+    }
+
+    private static void inflate(byte [] compressed, byte [] output, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int inflated = 0;
+            while(inflated < length && !inflater.finished() && !inflater.needsInput()){
+                inflated += inflater.inflate(output, inflated, length - inflated);
+            }
+            if(inflated != length){
+                throw new IOException("Archive block with " + inflated + " bytes, expected " + length);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt archive block", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * one block in the block index
+     */
+    private static class BlockEntry {
+
+        private final int kind;
+        private final int cycle;
+        private final int block;
+        private final long offset;
+        private final int compressedLength;
+        private final int length;
+
+        BlockEntry(int kind, int cycle, int block, long offset, int compressedLength, int length) {
+            this.kind = kind;
+            this.cycle = cycle;
+            this.block = block;
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.length = length;
+        }
+    }
+
+    /**
+     * writer of one tile file
+     */
+    private static class TileWriter {
+
+        private final DataOutputStream out;
+        private final int totalClusters;
+        private final int blockClusters;
+        private final List<BlockEntry> index = new ArrayList<BlockEntry>();
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        private final byte [] buffer = new byte[64 * 1024];
+        private long position;
+
+        TileWriter(File file, int totalClusters, int blockClusters) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024));
+            this.totalClusters = totalClusters;
+            this.blockClusters = blockClusters;
+
+            this.out.write(MAGIC);
+            this.out.writeInt(VERSION);
+            this.out.writeInt(totalClusters);
+            this.out.writeInt(blockClusters);
+            this.position = MAGIC.length + 12;
+        }
+
+        void writeFile(int kind, File file) throws IOException {
+            byte [] content = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(content);
+            } finally {
+                in.close();
+            }
+            this.writeBlock(kind, 0, 0, content, content.length);
+        }
+
+        void writeCycle(int cycle, File bclFile) throws IOException {
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bclFile), 64 * 1024));
+            try {
+                byte [] header = new byte[4];
+                in.readFully(header);
+                int clusters = readInt(header);
+                if(clusters != this.totalClusters){
+                    throw new IOException("Number of clusters in BCL file " + bclFile + " " + clusters
+                            + " not as expected:" + this.totalClusters);
+                }
+
+                byte [] calls = new byte[Math.min(this.blockClusters, clusters)];
+                byte [] bases = new byte[(calls.length + 3) / 4];
+                byte [] qualities = new byte[calls.length];
+                for(int block = 0, start = 0; start < clusters; block++, start += this.blockClusters){
+                    int length = Math.min(this.blockClusters, clusters - start);
+                    in.readFully(calls, 0, length);
+                    int packedLength = (length + 3) / 4;
+                    Arrays.fill(bases, 0, packedLength, (byte) 0);
+                    for(int i = 0; i < length; i++){
+                        int quality = (calls[i] & 0xFC) >> 2;
+                        qualities[i] = (byte) quality;
+                        if(quality != 0){
+                            bases[i >> 2] |= (calls[i] & 0x3) << ((i & 0x3) << 1);
+                        }
+                    }
+                    this.writeBlock(BASES, cycle, block, bases, packedLength);
+                    this.writeBlock(QUALITIES, cycle, block, qualities, length);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        void finish() throws IOException {
+            long indexOffset = this.position;
+            this.out.writeInt(this.index.size());
+            for(BlockEntry entry : this.index){
+                this.out.writeInt(entry.kind);
+                this.out.writeInt(entry.cycle);
+                this.out.writeInt(entry.block);
+                this.out.writeLong(entry.offset);
+                this.out.writeInt(entry.compressedLength);
+                this.out.writeInt(entry.length);
+            }
+            this.out.writeLong(indexOffset);
+            this.out.write(MAGIC);
+            this.close();
+        }
+
+        void close() throws IOException {
+            this.deflater.end();
+            this.out.close();
+        }
+
+        private void writeBlock(int kind, int cycle, int block, byte [] data, int length) throws IOException {
+            this.deflated.reset();
+            this.deflater.reset();
+            this.deflater.setInput(data, 0, length);
+            this.deflater.finish();
+            while(!this.deflater.finished()){
+                int compressed = this.deflater.deflate(this.buffer);
+                this.deflated.write(this.buffer, 0, compressed);
+            }
+            this.deflated.writeTo(this.out);
+            this.index.add(new BlockEntry(kind, cycle, block, this.position, this.deflated.size(), length));
+            this.position += this.deflated.size();
+        }
+    }
+
+    /**
+     * base calls, filter, control and positions of one tile, read from its archive file
+     * with all cycles of a block of clusters decompressed at once
+     */
+    public static class TileArchive implements CycleColumns {
+
+        private final File file;
+        private final RandomAccessFile archiveFile;
+        private final int totalClusters;
+        private final int blockClusters;
+        private final BlockEntry [] fileEntries = new BlockEntry[POS + 1];
+
+        //base and quality blocks by column and block number, columns in the order of cycles
+        private final HashMap<Integer, Integer> columnByCycle = new HashMap<Integer, Integer>();
+        private final BlockEntry [][][] cycleEntries;
+
+        //null to decompress in the calling thread
+        private final ExecutorService executor;
+
+        //bases and qualities of the current block by column
+        private final byte [][] bases;
+        private final byte [][] qualities;
+        private int currentBlock = -1;
+
+        TileArchive(File file, int threads) throws IOException {
+
+            this.file = file;
+            this.archiveFile = new RandomAccessFile(file, "r");
+
+            long length = this.archiveFile.length();
+            byte [] magic = new byte[MAGIC.length];
+            this.archiveFile.readFully(magic);
+            if( !Arrays.equals(magic, MAGIC) || this.archiveFile.readInt() != VERSION ){
+                this.archiveFile.close();
+                throw new IOException("Not a tile archive file: " + file);
+            }
+            this.totalClusters = this.archiveFile.readInt();
+            this.blockClusters = this.archiveFile.readInt();
+
+            this.archiveFile.seek(length - FOOTER_SIZE);
+            long indexOffset = this.archiveFile.readLong();
+            this.archiveFile.readFully(magic);
+            if( !Arrays.equals(magic, MAGIC) ){
+                this.archiveFile.close();
+                throw new IOException("Tile archive file is not complete: " + file);
+            }
+            byte [] indexBytes = new byte[(int) (length - FOOTER_SIZE - indexOffset)];
+            this.archiveFile.seek(indexOffset);
+            this.archiveFile.readFully(indexBytes);
+
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(indexBytes));
+            int entries = index.readInt();
+            TreeMap<Integer, List<BlockEntry>> entriesByCycle = new TreeMap<Integer, List<BlockEntry>>();
+            for(int i = 0; i < entries; i++){
+                BlockEntry entry = new BlockEntry(index.readInt(), index.readInt(), index.readInt(),
+                                                  index.readLong(), index.readInt(), index.readInt());
+                if(entry.kind < BASES){
+                    this.fileEntries[entry.kind] = entry;
+                    continue;
+                }
+                List<BlockEntry> cycleList = entriesByCycle.get(entry.cycle);
+                if(cycleList == null){
+                    cycleList = new ArrayList<BlockEntry>();
+                    entriesByCycle.put(entry.cycle, cycleList);
+                }
+                cycleList.add(entry);
+            }
+
+            int blocks = (this.totalClusters + this.blockClusters - 1) / this.blockClusters;
+            this.cycleEntries = new BlockEntry[entriesByCycle.size()][blocks][2];
+            for(Map.Entry<Integer, List<BlockEntry>> cycleList : entriesByCycle.entrySet()){
+                int column = this.columnByCycle.size();
+                this.columnByCycle.put(cycleList.getKey(), column);
+                for(BlockEntry entry : cycleList.getValue()){
+                    this.cycleEntries[column][entry.block][entry.kind - BASES] = entry;
+                }
+            }
+
+            int blockLength = Math.min(this.blockClusters, this.totalClusters);
+            this.bases = new byte[this.cycleEntries.length][blockLength];
+            this.qualities = new byte[this.cycleEntries.length][blockLength];
+            this.executor = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+        }
+
+        /**
+         * @return archive file name
+         */
+        public String getFileName() {
+            return this.file.getPath();
+        }
+
+        /**
+         * @return true if positions are from a clocs file, false if from a pos file
+         */
+        public boolean hasClocs() {
+            return this.fileEntries[CLOCS] != null;
+        }
+
+        /**
+         * @return content of the filter file
+         * @throws IOException
+         */
+        public InputStream openFilter() throws IOException {
+            return this.openFile(FILTER);
+        }
+
+        /**
+         * @return content of the control file, null if the tile has no control file
+         * @throws IOException
+         */
+        public InputStream openControl() throws IOException {
+            return this.openFile(CONTROL);
+        }
+
+        /**
+         * @return content of the clocs or pos file
+         * @throws IOException
+         */
+        public InputStream openPositions() throws IOException {
+            return this.openFile(this.hasClocs() ? CLOCS : POS);
+        }
+
+        @Override
+        public byte [][] getBaseQuals(int [] cycleRange, int cluster){
+            byte [][] baseQuals = new byte[2][cycleRange[1] - cycleRange[0] + 1];
+            this.getBaseQuals(cycleRange, cluster, baseQuals[0], baseQuals[1], 0);
+            return baseQuals;
+        }
+
+        @Override
+        public void getBaseQuals(int [] cycleRange, int cluster, byte [] bases, byte [] qualities, int offset){
+
+            int block = cluster / this.blockClusters;
+            if(block != this.currentBlock){
+                this.readBlock(block);
+            }
+            int position = cluster - block * this.blockClusters;
+            int readLength = cycleRange[1] - cycleRange[0] + 1;
+            for(int i = 0; i < readLength; i++){
+                Integer column = this.columnByCycle.get(cycleRange[0] + i);
+                if(column == null){
+                    throw new IllegalStateException("Cycle " + (cycleRange[0] + i) + " not in archive " + this.file);
+                }
+                byte quality = this.qualities[column][position];
+                if(quality > MAX_QUALITY_SCORE){
+                    throw new IllegalArgumentException("Invalid quality score: " + quality
+                            + " in cycle " + (cycleRange[0] + i) + " in position " + cluster);
+                }
+                bases[offset + i] = this.bases[column][position];
+                qualities[offset + i] = quality;
+            }
+        }
+
+        @Override
+        public int getTotalClusters() {
+            return totalClusters;
+        }
+
+        @Override
+        public void close(){
+            if(this.executor != null){
+                this.executor.shutdownNow();
+            }
+            try {
+                this.archiveFile.close();
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Problems to close archive " + this.file, ex);
+            }
+        }
+
+        private InputStream openFile(int kind) throws IOException {
+            BlockEntry entry = this.fileEntries[kind];
+            if(entry == null){
+                return null;
+            }
+            byte [] content = new byte[entry.length];
+            inflate(this.readCompressed(entry), content, entry.length);
+            return new ByteArrayInputStream(content);
+        }
+
+        private byte [] readCompressed(BlockEntry entry) throws IOException {
+            if(entry == null){
+                throw new IOException("Block missing in archive " + this.file);
+            }
+            byte [] compressed = new byte[entry.compressedLength];
+            this.archiveFile.seek(entry.offset);
+            this.archiveFile.readFully(compressed);
+            return compressed;
+        }
+
+        /**
+         * read the blocks of all cycles one after another, then decompress them in parallel
+         */
+        private void readBlock(int block){
+
+            if(block < 0 || block * (long) this.blockClusters >= this.totalClusters){
+                throw new IllegalArgumentException("Cluster block " + block + " out of range in archive " + this.file);
+            }
+            final int length = Math.min(this.blockClusters, this.totalClusters - block * this.blockClusters);
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(this.cycleEntries.length);
+            try {
+                for(int column = 0; column < this.cycleEntries.length; column++){
+                    final byte [] packedBases = this.readCompressed(this.cycleEntries[column][block][0]);
+                    final byte [] packedQualities = this.readCompressed(this.cycleEntries[column][block][1]);
+                    final byte [] columnBases = this.bases[column];
+                    final byte [] columnQualities = this.qualities[column];
+                    tasks.add(new Callable<Object>() {
+                        @Override
+                        public Object call() throws IOException {
+                            inflate(packedQualities, columnQualities, length);
+                            byte [] codes = new byte[(length + 3) / 4];
+                            inflate(packedBases, codes, codes.length);
+                            for(int i = 0; i < length; i++){
+                                columnBases[i] = (columnQualities[i] != 0)
+                                        ? BASE_ARRAY[(codes[i >> 2] >> ((i & 0x3) << 1)) & 0x3] : NO_CALL;
+                            }
+                            return null;
+                        }
+                    });
+                }
+
+                this.currentBlock = -1;
+                if(this.executor == null){
+                    for(Callable<Object> task : tasks){
+                        task.call();
+                    }
+                }else{
+                    for(Future<Object> task : this.executor.invokeAll(tasks)){
+                        task.get();
+                    }
+                }
+                this.currentBlock = block;
+            } catch (ExecutionException ex) {
+                throw new RuntimeIOException("Problems to decompress archive " + this.file, ex.getCause());
+            } catch (InterruptedException ex) {
+                throw new RuntimeException("Interrupted while decompressing archive " + this.file, ex);
+            } catch (Exception ex) {
+                throw new RuntimeIOException("Problems to read archive " + this.file, ex);
+            }
+        }
+    }
+}
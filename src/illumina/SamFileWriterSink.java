@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Cluster sink writing bam or sam records through a SAMFileWriter.
+ *
+ * Clusters are passed on directly if the writer is a ClusterWriter,
+ * otherwise a SAMRecord is built for each read.
+ *
+ */
+public class SamFileWriterSink implements ClusterSink {
+
+    private final SAMFileWriter writer;
+    private final ClusterWriter clusterWriter;
+    private final String barcodeSeqTagName;
+    private final String barcodeQualTagName;
+    private final boolean flushAfterTile;
+    private StageTimer stageTimer;
+
+    /**
+     *
+     * @param writer
+     * @param barcodeSeqTagName tag name for barcode sequence
+     * @param barcodeQualTagName tag name for barcode quality
+     * @param flushAfterTile flush the writer at the end of each tile if it can be flushed
+     */
+    public SamFileWriterSink(SAMFileWriter writer, String barcodeSeqTagName, String barcodeQualTagName, boolean flushAfterTile){
+        this.writer = writer;
+        this.clusterWriter = (writer instanceof ClusterWriter) ? (ClusterWriter) writer : null;
+        this.barcodeSeqTagName = barcodeSeqTagName;
+        this.barcodeQualTagName = barcodeQualTagName;
+        this.flushAfterTile = flushAfterTile;
+    }
+
+    @Override
+    public void startTile(int tileNumber) {
+    }
+
+    @Override
+    public void addCluster(String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate){
+
+        if(this.clusterWriter != null){
+            this.clusterWriter.addCluster(readName, clusterIndex, baseQuals, secondBases, baseQualsIndex,
+                    filter, paired, firstRead, barcodesMatch, isControl, isDuplicate);
+        }else{
+            long buildStart = (this.stageTimer != null) ? System.nanoTime() : 0;
+            SAMRecord record = Tile.getSAMRecord(this.writer.getFileHeader(),
+                    this.barcodeSeqTagName, this.barcodeQualTagName,
+                    readName, clusterIndex, baseQuals, secondBases, baseQualsIndex,
+                    filter, paired, firstRead, barcodesMatch, isControl, isDuplicate);
+            if(this.stageTimer != null){
+                this.stageTimer.addBuild(System.nanoTime() - buildStart);
+            }
+            this.writer.addAlignment(record);
+        }
+    }
+
+    @Override
+    public void endTile(int tileNumber) {
+        if(this.flushAfterTile && this.writer instanceof Flushable){
+            try {
+                ((Flushable) this.writer).flush();
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Problems to flush output after tile " + tileNumber, ex);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.writer.close();
+    }
+
+    /**
+     * @param stageTimer timer to add the time of building records to
+     */
+    public void setStageTimer(StageTimer stageTimer) {
+        this.stageTimer = stageTimer;
+        if(this.writer instanceof UnalignedBamWriter){
+            ((UnalignedBamWriter) this.writer).setStageTimer(stageTimer);
+        }
+    }
+
+    /**
+     * @return the SAMFileWriter
+     */
+    public SAMFileWriter getWriter() {
+        return writer;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * SAM text writer to a stream which can be flushed,
+ * so records written so far can be read by the next program in a pipe.
+ *
+ * picard SAMTextWriter keeps its buffer private and only flushes when closed,
+ * so records are formatted here the same way.
+ *
+ */
+public class SamTextStreamWriter implements SAMFileWriter, Flushable {
+
+    private final SAMFileHeader header;
+    private final Writer out;
+
+    /**
+     *
+     * @param header SAM header written straight away
+     * @param outputStream
+     */
+    public SamTextStreamWriter(SAMFileHeader header, OutputStream outputStream){
+
+        this.header = header;
+        this.out = new BufferedWriter(new OutputStreamWriter(outputStream), 64 * 1024);
+
+        this.header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+        new SAMTextHeaderCodec().encode(this.out, this.header);
+    }
+
+    /**
+     * write the record as picard SAMTextWriter does
+     *
+     * @param alignment
+     */
+    @Override
+    public void addAlignment(SAMRecord alignment) {
+
+        StringBuilder line = new StringBuilder(512);
+        line.append(alignment.getReadName()).append('\t')
+            .append(alignment.getFlags()).append('\t')
+            .append(alignment.getReferenceName()).append('\t')
+            .append(alignment.getAlignmentStart()).append('\t')
+            .append(alignment.getMappingQuality()).append('\t')
+            .append(alignment.getCigarString()).append('\t');
+
+        if( !alignment.getReferenceName().equals(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME)
+                && alignment.getReferenceName().equals(alignment.getMateReferenceName()) ){
+            line.append('=');
+        }else{
+            line.append(alignment.getMateReferenceName());
+        }
+        line.append('\t')
+            .append(alignment.getMateAlignmentStart()).append('\t')
+            .append(alignment.getInferredInsertSize()).append('\t')
+            .append(alignment.getReadString()).append('\t')
+            .append(alignment.getBaseQualityString());
+
+        for(SAMRecord.SAMTagAndValue tagAndValue : alignment.getAttributes()){
+            line.append('\t');
+            this.appendTag(line, tagAndValue.tag, tagAndValue.value);
+        }
+        line.append('\n');
+
+        try {
+            this.out.write(line.toString());
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to write sam record", ex);
+        }
+    }
+
+    private void appendTag(StringBuilder line, String tag, Object value){
+
+        line.append(tag).append(':');
+        if(value instanceof String){
+            line.append("Z:").append(value);
+        }else if(value instanceof Character){
+            line.append("A:").append(value);
+        }else if(value instanceof Float){
+            line.append("f:").append(value);
+        }else if(value instanceof Number){
+            line.append("i:").append(value);
+        }else if(value instanceof byte []){
+            line.append("B:c");
+            for(byte b : (byte []) value){
+                line.append(',').append(b);
+            }
+        }else if(value instanceof short []){
+            line.append("B:s");
+            for(short v : (short []) value){
+                line.append(',').append(v);
+            }
+        }else if(value instanceof int []){
+            line.append("B:i");
+            for(int v : (int []) value){
+                line.append(',').append(v);
+            }
+        }else if(value instanceof float []){
+            line.append("B:f");
+            for(float v : (float []) value){
+                line.append(',').append(v);
+            }
+        }else{
+            throw new IllegalArgumentException("Tag value type not supported: " + tag + " " + value.getClass());
+        }
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return this.header;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.out.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to close sam output", ex);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.util.Md5CalculatingOutputStream;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Cluster sink splitting output into BAM shards with a fixed number of clusters,
+ * for example to align a lane in many small jobs.
+ *
+ * A new shard is only started before the first read of a cluster, so pairs are never split.
+ * Each shard is written with a .part suffix and renamed when complete,
+ * then a line is added to the shard manifest with its file name, numbers of clusters and reads,
+ * and first and last read names. Shards listed in the manifest can be used
+ * while later tiles are still converting.
+ *
+ */
+public class ShardedBamSink implements ClusterSink {
+
+    private final Log log = Log.getInstance(ShardedBamSink.class);
+
+    public static final String MANIFEST_HEADER = "#shard\tfile\tclusters\treads\tfirst_read\tlast_read";
+
+    private final File output;
+    private final File manifestFile;
+    private final SAMFileHeader header;
+    private final long shardSize;
+    private final String barcodeSeqTagName;
+    private final String barcodeQualTagName;
+    private final int compressionLevel;
+    private final boolean createMd5File;
+
+    private final List<File> shardFiles = new ArrayList<File>();
+
+    //the shard being written
+    private UnalignedBamWriter shardWriter;
+    private File shardFile;
+    private long clusters;
+    private long reads;
+    private String firstReadName;
+    private String lastReadName;
+
+    /**
+     *
+     * @param output lane bam file name, shard numbers are added before .bam
+     * @param header bam header for every shard
+     * @param shardSize number of clusters in each shard
+     * @param barcodeSeqTagName tag name for barcode sequence
+     * @param barcodeQualTagName tag name for barcode quality
+     * @param compressionLevel BGZF compression level
+     * @param createMd5File create md5 file for each shard or not
+     */
+    public ShardedBamSink(File output,
+            SAMFileHeader header,
+            long shardSize,
+            String barcodeSeqTagName,
+            String barcodeQualTagName,
+            int compressionLevel,
+            boolean createMd5File){
+
+        if(shardSize < 1){
+            throw new IllegalArgumentException("Shard size must be positive: " + shardSize);
+        }
+        this.output = output;
+        this.manifestFile = getManifestFile(output);
+        this.header = header;
+        this.shardSize = shardSize;
+        this.barcodeSeqTagName = barcodeSeqTagName;
+        this.barcodeQualTagName = barcodeQualTagName;
+        this.compressionLevel = compressionLevel;
+        this.createMd5File = createMd5File;
+
+        try {
+            FileOutputStream manifestOut = new FileOutputStream(this.manifestFile, false);
+            manifestOut.write((MANIFEST_HEADER + "\n").getBytes());
+            manifestOut.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to write shard manifest " + this.manifestFile, ex);
+        }
+    }
+
+    @Override
+    public void startTile(int tileNumber) {
+    }
+
+    @Override
+    public void addCluster(String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate){
+
+        if(firstRead){
+            if(this.shardWriter != null && this.clusters == this.shardSize){
+                this.closeShard();
+            }
+            if(this.shardWriter == null){
+                this.openShard();
+            }
+            this.clusters++;
+            if(this.firstReadName == null){
+                this.firstReadName = readName;
+            }
+        }
+        this.reads++;
+        this.lastReadName = readName;
+        this.shardWriter.addCluster(readName, clusterIndex, baseQuals, secondBases, baseQualsIndex,
+                filter, paired, firstRead, barcodesMatch, isControl, isDuplicate);
+    }
+
+    @Override
+    public void endTile(int tileNumber) {
+    }
+
+    /**
+     * close the last shard, an empty shard is written if there are no clusters at all
+     */
+    @Override
+    public void close() {
+        if(this.shardWriter == null && this.shardFiles.isEmpty()){
+            this.openShard();
+        }
+        if(this.shardWriter != null){
+            this.closeShard();
+        }
+        log.info(this.shardFiles.size() + " shards written, listed in " + this.manifestFile);
+    }
+
+    private void openShard(){
+
+        this.shardFile = getShardFile(this.output, this.shardFiles.size() + 1);
+        File partFile = new File(this.shardFile.getPath() + ".part");
+        OutputStream out = UnalignedBamWriter.openOutputStream(partFile, false);
+        if(this.createMd5File){
+            out = new Md5CalculatingOutputStream(out, new File(this.shardFile.getPath() + ".md5"));
+        }
+        this.shardWriter = new UnalignedBamWriter(this.header, out, this.shardFile, this.compressionLevel,
+                this.barcodeSeqTagName, this.barcodeQualTagName);
+        this.clusters = 0;
+        this.reads = 0;
+        this.firstReadName = null;
+        this.lastReadName = null;
+    }
+
+    private void closeShard(){
+
+        this.shardWriter.close();
+        this.shardWriter = null;
+
+        File partFile = new File(this.shardFile.getPath() + ".part");
+        if( (this.shardFile.exists() && !this.shardFile.delete()) || !partFile.renameTo(this.shardFile) ){
+            throw new RuntimeIOException("Failed to rename " + partFile + " to " + this.shardFile);
+        }
+        this.shardFiles.add(this.shardFile);
+
+        String line = this.shardFiles.size()
+                + "\t" + this.shardFile.getName()
+                + "\t" + this.clusters
+                + "\t" + this.reads
+                + "\t" + (this.firstReadName != null ? this.firstReadName : "*")
+                + "\t" + (this.lastReadName != null ? this.lastReadName : "*");
+        try {
+            FileOutputStream manifestOut = new FileOutputStream(this.manifestFile, true);
+            manifestOut.write((line + "\n").getBytes());
+            manifestOut.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to write shard manifest " + this.manifestFile, ex);
+        }
+        log.info("Shard " + this.shardFile + " written with " + this.clusters + " clusters");
+    }
+
+    /**
+     * @return shard files written so far
+     */
+    public List<File> getShardFiles() {
+        return shardFiles;
+    }
+
+    /**
+     *
+     * @param output lane bam file name
+     * @param shardNumber starting from 1
+     * @return shard file name, lane_0001.bam for lane.bam
+     */
+    public static File getShardFile(File output, int shardNumber){
+        String name = output.getPath();
+        if(name.endsWith(".bam")){
+            name = name.substring(0, name.length() - 4);
+        }
+        return new File(name + "_" + new DecimalFormat("0000").format(shardNumber) + ".bam");
+    }
+
+    /**
+     *
+     * @param output lane bam file name
+     * @return shard manifest file, lane.shards.txt for lane.bam
+     */
+    public static File getManifestFile(File output){
+        String name = output.getPath();
+        if(name.endsWith(".bam")){
+            name = name.substring(0, name.length() - 4);
+        }
+        return new File(name + ".shards.txt");
+    }
+}
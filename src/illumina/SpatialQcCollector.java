@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.picard.metrics.MetricBase;
+import net.sf.picard.metrics.MetricsFile;
+
+/**
+ * Spatial quality control of each tile, collected while clusters are converted.
+ *
+ * A tile is divided into square bins of read name coordinates. For each bin the number of
+ * clusters, passing filter clusters, quality sum, base count and no-call count are added up
+ * in flat arrays, which grow when a cluster falls outside the bins seen so far.
+ * Quality sums and base counts of each cycle are kept in flat arrays of bins by cycle as well,
+ * so defects of a few cycles in part of a tile are not hidden by the mean over all cycles.
+ *
+ */
+public class SpatialQcCollector {
+
+    private final int binSize;
+
+    private final List<SpatialQcMetric> binMetrics = new ArrayList<SpatialQcMetric>();
+
+    //current tile, bins in rows of xBins
+    private int tileNumber = -1;
+    private int xBins;
+    private int yBins;
+    private int [] clusters;
+    private int [] pfClusters;
+    private long [] qualitySum;
+    private long [] baseCount;
+    private long [] noCallCount;
+
+    //cycles of read 1 then read 2 for each bin
+    private int cycles;
+    private long [] cycleQualitySum;
+    private int [] cycleBaseCount;
+
+    /**
+     *
+     * @param binSize width and height of a bin in read name coordinates
+     */
+    public SpatialQcCollector(int binSize){
+        if(binSize < 1){
+            throw new IllegalArgumentException("Spatial bin size must be positive: " + binSize);
+        }
+        this.binSize = binSize;
+    }
+
+    /**
+     * start a tile
+     *
+     * @param tileNumber
+     */
+    public void startTile(int tileNumber){
+        if(this.tileNumber != -1){
+            throw new IllegalStateException("Tile " + this.tileNumber + " not ended before tile " + tileNumber);
+        }
+        this.tileNumber = tileNumber;
+        this.xBins = 0;
+        this.yBins = 0;
+        this.cycles = 0;
+        this.resize(8, 8, 0);
+    }
+
+    /**
+     * add one cluster to its bin
+     *
+     * @param x
+     * @param y
+     * @param filter 1 if passing filter
+     * @param baseQuals1 bases and qualities of the first read
+     * @param baseQuals2 bases and qualities of the second read, could be null
+     */
+    public void addCluster(int x, int y, int filter, byte [][] baseQuals1, byte [][] baseQuals2){
+
+        int binX = Math.max(x, 0) / this.binSize;
+        int binY = Math.max(y, 0) / this.binSize;
+        int readCycles = baseQuals1[0].length + ((baseQuals2 != null) ? baseQuals2[0].length : 0);
+        if(binX >= this.xBins || binY >= this.yBins || readCycles > this.cycles){
+            this.resize(Math.max(this.xBins, binX + 1),
+                        (binY >= this.yBins) ? Math.max(this.yBins * 2, binY + 1) : this.yBins,
+                        Math.max(this.cycles, readCycles));
+        }
+        int bin = binY * this.xBins + binX;
+
+        this.clusters[bin]++;
+        if(filter == 1){
+            this.pfClusters[bin]++;
+        }
+        this.addBaseQuals(bin, 0, baseQuals1);
+        if(baseQuals2 != null){
+            this.addBaseQuals(bin, baseQuals1[0].length, baseQuals2);
+        }
+    }
+
+    /**
+     * end the current tile, keeping metrics of bins with clusters
+     */
+    public void endTile(){
+        for(int binY = 0; binY < this.yBins; binY++){
+            for(int binX = 0; binX < this.xBins; binX++){
+                int bin = binY * this.xBins + binX;
+                if(this.clusters[bin] == 0){
+                    continue;
+                }
+                SpatialQcMetric metric = new SpatialQcMetric();
+                metric.TILE = this.tileNumber;
+                metric.X = binX * this.binSize;
+                metric.Y = binY * this.binSize;
+                metric.CLUSTERS = this.clusters[bin];
+                metric.PF_CLUSTERS = this.pfClusters[bin];
+                metric.PCT_PF = 100.0 * this.pfClusters[bin] / this.clusters[bin];
+                if(this.baseCount[bin] > 0){
+                    metric.MEAN_QUALITY = (double) this.qualitySum[bin] / this.baseCount[bin];
+                    metric.PCT_NO_CALLS = 100.0 * this.noCallCount[bin] / this.baseCount[bin];
+                    metric.MEAN_QUALITY_BY_CYCLE = this.getMeanQualityByCycle(bin);
+                }
+                this.binMetrics.add(metric);
+            }
+        }
+        this.tileNumber = -1;
+        this.clusters = null;
+        this.pfClusters = null;
+        this.qualitySum = null;
+        this.baseCount = null;
+        this.noCallCount = null;
+        this.cycleQualitySum = null;
+        this.cycleBaseCount = null;
+    }
+
+    /**
+     * @return metrics of all bins with clusters, by tile in the order converted, then by y and x
+     */
+    public List<SpatialQcMetric> getMetrics() {
+        return binMetrics;
+    }
+
+    /**
+     * write metrics of all tiles
+     *
+     * @param metricsFile
+     * @param output
+     */
+    public void writeMetrics(MetricsFile<SpatialQcMetric, Integer> metricsFile, File output){
+        for(SpatialQcMetric metric : this.binMetrics){
+            metricsFile.addMetric(metric);
+        }
+        metricsFile.write(output);
+    }
+
+    private void addBaseQuals(int bin, int firstCycle, byte [][] baseQuals){
+        byte [] bases = baseQuals[0];
+        byte [] quals = baseQuals[1];
+        long sum = 0;
+        int noCalls = 0;
+        int cycleOffset = bin * this.cycles + firstCycle;
+        for(int i = 0; i < bases.length; i++){
+            sum += quals[i];
+            this.cycleQualitySum[cycleOffset + i] += quals[i];
+            this.cycleBaseCount[cycleOffset + i]++;
+            if(bases[i] == 'N'){
+                noCalls++;
+            }
+        }
+        this.qualitySum[bin] += sum;
+        this.baseCount[bin] += bases.length;
+        this.noCallCount[bin] += noCalls;
+    }
+
+    /**
+     * @param bin
+     * @return comma separated mean quality of each cycle of the bin, with one decimal
+     */
+    private String getMeanQualityByCycle(int bin){
+        StringBuilder means = new StringBuilder();
+        int offset = bin * this.cycles;
+        for(int cycle = 0; cycle < this.cycles; cycle++){
+            if(cycle > 0){
+                means.append(',');
+            }
+            int bases = this.cycleBaseCount[offset + cycle];
+            if(bases > 0){
+                means.append(Math.round(10.0 * this.cycleQualitySum[offset + cycle] / bases) / 10.0);
+            }
+        }
+        return means.toString();
+    }
+
+    /**
+     * grow bin arrays, copying the bins so far row by row, and cycles bin by bin
+     */
+    private void resize(int newXBins, int newYBins, int newCycles){
+        int size = newXBins * newYBins;
+        int [] newClusters = new int[size];
+        int [] newPfClusters = new int[size];
+        long [] newQualitySum = new long[size];
+        long [] newBaseCount = new long[size];
+        long [] newNoCallCount = new long[size];
+        for(int binY = 0; binY < this.yBins; binY++){
+            int from = binY * this.xBins;
+            int to = binY * newXBins;
+            System.arraycopy(this.clusters, from, newClusters, to, this.xBins);
+            System.arraycopy(this.pfClusters, from, newPfClusters, to, this.xBins);
+            System.arraycopy(this.qualitySum, from, newQualitySum, to, this.xBins);
+            System.arraycopy(this.baseCount, from, newBaseCount, to, this.xBins);
+            System.arraycopy(this.noCallCount, from, newNoCallCount, to, this.xBins);
+        }
+        long [] newCycleQualitySum = new long[size * newCycles];
+        int [] newCycleBaseCount = new int[size * newCycles];
+        for(int binY = 0; binY < this.yBins; binY++){
+            for(int binX = 0; binX < this.xBins; binX++){
+                int from = (binY * this.xBins + binX) * this.cycles;
+                int to = (binY * newXBins + binX) * newCycles;
+                System.arraycopy(this.cycleQualitySum, from, newCycleQualitySum, to, this.cycles);
+                System.arraycopy(this.cycleBaseCount, from, newCycleBaseCount, to, this.cycles);
+            }
+        }
+        this.cycleQualitySum = newCycleQualitySum;
+        this.cycleBaseCount = newCycleBaseCount;
+        this.cycles = newCycles;
+        this.clusters = newClusters;
+        this.pfClusters = newPfClusters;
+        this.qualitySum = newQualitySum;
+        this.baseCount = newBaseCount;
+        this.noCallCount = newNoCallCount;
+        this.xBins = newXBins;
+        this.yBins = newYBins;
+    }
+
+    /**
+     * Clusters and base call quality in one spatial bin of a tile.
+     */
+    public static class SpatialQcMetric extends MetricBase {
+
+        /** Tile number. */
+        public int TILE;
+
+        /** Smallest x coordinate of the bin, in read name coordinates. */
+        public int X;
+
+        /** Smallest y coordinate of the bin, in read name coordinates. */
+        public int Y;
+
+        /** Number of clusters in the bin. */
+        public int CLUSTERS;
+
+        /** Number of clusters passing filter in the bin. */
+        public int PF_CLUSTERS;
+
+        /** Percentage of clusters passing filter. */
+        public double PCT_PF;
+
+        /** Mean quality of all base calls of all reads, index reads not included. */
+        public double MEAN_QUALITY;
+
+        /** Percentage of no-calls in all reads, index reads not included. */
+        public double PCT_NO_CALLS;
+
+        /** Comma separated mean quality of each cycle of read 1 then read 2, index reads not included. */
+        public String MEAN_QUALITY_BY_CYCLE;
+    }
+}
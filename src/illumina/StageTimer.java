@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.file.reader.InputTiming;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.sf.picard.metrics.MetricBase;
+import net.sf.picard.metrics.MetricsFile;
+import net.sf.picard.util.Log;
+
+/**
+ * Time spent in each stage of a lane conversion, per tile.
+ *
+ * Stages are opening input files, reading them from the file system, decoding clusters,
+ * building output records and writing or compressing them. Tile and Lane add nanoseconds
+ * to the current tile, reading time and bytes per input type come from InputTiming,
+ * and decoding is the time to get clusters from input files less the reading time.
+ *
+ */
+public class StageTimer {
+
+    private final Log log = Log.getInstance(StageTimer.class);
+
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double BYTES_PER_MB = 1024 * 1024;
+
+    private final List<ConversionTimingMetric> tileMetrics = new ArrayList<ConversionTimingMetric>();
+
+    private int tileNumber = -1;
+    private int clusters;
+    private long openNanos;
+    private long inputNanos;
+    private long buildNanos;
+    private long outputNanos;
+    private long finishNanos;
+
+    private final long [] readNanosAtTileStart = new long[InputTiming.INPUT_TYPES.length];
+    private final long [] bytesAtTileStart = new long[InputTiming.INPUT_TYPES.length];
+    private final long [] readNanosAtInputStart = new long[InputTiming.INPUT_TYPES.length];
+    private long inputReadNanos;
+
+    /**
+     * enable timing of input files, it must be created before files are opened
+     */
+    public StageTimer(){
+        InputTiming.setEnabled(true);
+    }
+
+    /**
+     * start timing a tile
+     *
+     * @param tileNumber
+     */
+    public void startTile(int tileNumber) {
+        if(this.tileNumber != -1){
+            throw new IllegalStateException("Tile " + this.tileNumber + " not ended before tile " + tileNumber);
+        }
+        this.tileNumber = tileNumber;
+        this.clusters = 0;
+        this.openNanos = 0;
+        this.inputNanos = 0;
+        this.buildNanos = 0;
+        this.outputNanos = 0;
+        this.inputReadNanos = 0;
+        for(int type = 0; type < InputTiming.INPUT_TYPES.length; type++){
+            this.readNanosAtTileStart[type] = InputTiming.getNanos(type);
+            this.bytesAtTileStart[type] = InputTiming.getBytes(type);
+        }
+    }
+
+    /**
+     * @param nanos time to open input files of the current tile
+     */
+    public void addOpen(long nanos) {
+        this.openNanos += nanos;
+    }
+
+    /**
+     * mark the start of reading clusters, file reading time from here
+     * to endInput is taken off the input time to give decoding time
+     */
+    public void startInput() {
+        for(int type = 0; type < InputTiming.INPUT_TYPES.length; type++){
+            this.readNanosAtInputStart[type] = InputTiming.getNanos(type);
+        }
+    }
+
+    /**
+     * mark the end of reading clusters
+     *
+     * @param nanos time to get clusters from input files, including file reading
+     * @param clusters number of clusters read
+     */
+    public void endInput(long nanos, int clusters) {
+        for(int type = 0; type < InputTiming.INPUT_TYPES.length; type++){
+            this.inputReadNanos += InputTiming.getNanos(type) - this.readNanosAtInputStart[type];
+        }
+        this.inputNanos += nanos;
+        this.clusters += clusters;
+    }
+
+    /**
+     * @param nanos time to build output records, also included in output time
+     */
+    public void addBuild(long nanos) {
+        this.buildNanos += nanos;
+    }
+
+    /**
+     * @param nanos time to pass clusters to the output sink
+     */
+    public void addOutput(long nanos) {
+        this.outputNanos += nanos;
+    }
+
+    /**
+     * @param nanos time to close the output after all tiles, counted as writing time of all tiles
+     */
+    public void addFinish(long nanos) {
+        this.finishNanos += nanos;
+    }
+
+    /**
+     * end timing the current tile
+     */
+    public void endTile() {
+
+        ConversionTimingMetric metric = new ConversionTimingMetric();
+        metric.TILE = Integer.toString(this.tileNumber);
+        metric.CLUSTERS = this.clusters;
+        metric.openNanos = this.openNanos;
+        metric.readNanos = this.inputReadNanos;
+        metric.decodeNanos = Math.max(0, this.inputNanos - this.inputReadNanos);
+        metric.buildNanos = Math.min(this.buildNanos, this.outputNanos);
+        metric.writeNanos = this.outputNanos - metric.buildNanos;
+        for(int type = 0; type < InputTiming.INPUT_TYPES.length; type++){
+            metric.inputNanos[type] = InputTiming.getNanos(type) - this.readNanosAtTileStart[type];
+            metric.inputBytes[type] = InputTiming.getBytes(type) - this.bytesAtTileStart[type];
+        }
+        metric.calculate();
+        this.tileMetrics.add(metric);
+
+        this.tileNumber = -1;
+    }
+
+    /**
+     * @return metrics of all tiles first, then each tile with the slowest one first
+     */
+    public List<ConversionTimingMetric> getMetrics() {
+
+        ConversionTimingMetric all = new ConversionTimingMetric();
+        all.TILE = "ALL";
+        all.writeNanos = this.finishNanos;
+        for(ConversionTimingMetric metric : this.tileMetrics){
+            all.add(metric);
+        }
+        all.calculate();
+
+        List<ConversionTimingMetric> tiles = new ArrayList<ConversionTimingMetric>(this.tileMetrics);
+        Collections.sort(tiles, new Comparator<ConversionTimingMetric>(){
+            @Override
+            public int compare(ConversionTimingMetric m1, ConversionTimingMetric m2) {
+                long total1 = m1.getTotalNanos();
+                long total2 = m2.getTotalNanos();
+                return total1 > total2 ? -1 : (total1 == total2 ? 0 : 1);
+            }
+        });
+
+        List<ConversionTimingMetric> metrics = new ArrayList<ConversionTimingMetric>();
+        metrics.add(all);
+        metrics.addAll(tiles);
+        return metrics;
+    }
+
+    /**
+     * log the total and the slowest tiles, and write all metrics to a file
+     *
+     * @param metricsFile
+     * @param output
+     * @param slowestTiles number of slowest tiles to log
+     */
+    public void writeMetrics(MetricsFile<ConversionTimingMetric, Integer> metricsFile, File output, int slowestTiles) {
+
+        List<ConversionTimingMetric> metrics = this.getMetrics();
+        ConversionTimingMetric all = metrics.get(0);
+        log.info("Converted " + all.CLUSTERS + " clusters in " + all.TOTAL_SECONDS + " seconds: "
+                + all.CLUSTERS_PER_SECOND + " clusters per second");
+        for(int i = 1; i < metrics.size() && i <= slowestTiles; i++){
+            ConversionTimingMetric tile = metrics.get(i);
+            log.info("Slow tile " + tile.TILE + ": " + tile.TOTAL_SECONDS + " seconds, read " + tile.READ_SECONDS
+                    + ", decode " + tile.DECODE_SECONDS + ", build " + tile.BUILD_SECONDS
+                    + ", write " + tile.WRITE_SECONDS);
+        }
+
+        for(ConversionTimingMetric metric : metrics){
+            metricsFile.addMetric(metric);
+        }
+        metricsFile.write(output);
+    }
+
+    /**
+     * Time and throughput of a lane conversion, for all tiles or one tile.
+     */
+    public static class ConversionTimingMetric extends MetricBase {
+
+        /** Tile number, or ALL for the whole lane. */
+        public String TILE;
+        /** The number of clusters read. */
+        public int CLUSTERS;
+        /** Seconds to open input files. */
+        public double OPEN_SECONDS;
+        /** Seconds to read cluster data from input files. */
+        public double READ_SECONDS;
+        /** Seconds to decode clusters from data read. */
+        public double DECODE_SECONDS;
+        /** Seconds to build output records. */
+        public double BUILD_SECONDS;
+        /** Seconds to write and compress output records. */
+        public double WRITE_SECONDS;
+        /** Sum of all stages. */
+        public double TOTAL_SECONDS;
+        public double CLUSTERS_PER_SECOND;
+        /** MB read and MB per second of reading time for each input type. */
+        public double BCL_MB;
+        public double BCL_MB_PER_SECOND;
+        public double SCL_MB;
+        public double SCL_MB_PER_SECOND;
+        public double FILTER_MB;
+        public double FILTER_MB_PER_SECOND;
+        public double CLOCS_MB;
+        public double CLOCS_MB_PER_SECOND;
+        public double CONTROL_MB;
+        public double CONTROL_MB_PER_SECOND;
+
+        private long openNanos;
+        private long readNanos;
+        private long decodeNanos;
+        private long buildNanos;
+        private long writeNanos;
+        private final long [] inputNanos = new long[InputTiming.INPUT_TYPES.length];
+        private final long [] inputBytes = new long[InputTiming.INPUT_TYPES.length];
+
+        private long getTotalNanos() {
+            return this.openNanos + this.readNanos + this.decodeNanos + this.buildNanos + this.writeNanos;
+        }
+
+        private void add(ConversionTimingMetric metric) {
+            this.CLUSTERS += metric.CLUSTERS;
+            this.openNanos += metric.openNanos;
+            this.readNanos += metric.readNanos;
+            this.decodeNanos += metric.decodeNanos;
+            this.buildNanos += metric.buildNanos;
+            this.writeNanos += metric.writeNanos;
+            for(int type = 0; type < InputTiming.INPUT_TYPES.length; type++){
+                this.inputNanos[type] += metric.inputNanos[type];
+                this.inputBytes[type] += metric.inputBytes[type];
+            }
+        }
+
+        private void calculate() {
+            this.OPEN_SECONDS = this.openNanos / NANOS_PER_SECOND;
+            this.READ_SECONDS = this.readNanos / NANOS_PER_SECOND;
+            this.DECODE_SECONDS = this.decodeNanos / NANOS_PER_SECOND;
+            this.BUILD_SECONDS = this.buildNanos / NANOS_PER_SECOND;
+            this.WRITE_SECONDS = this.writeNanos / NANOS_PER_SECOND;
+            this.TOTAL_SECONDS = this.getTotalNanos() / NANOS_PER_SECOND;
+            this.CLUSTERS_PER_SECOND = this.TOTAL_SECONDS > 0 ? this.CLUSTERS / this.TOTAL_SECONDS : 0;
+
+            this.BCL_MB = this.getMB(InputTiming.BCL);
+            this.BCL_MB_PER_SECOND = this.getMBPerSecond(InputTiming.BCL);
+            this.SCL_MB = this.getMB(InputTiming.SCL);
+            this.SCL_MB_PER_SECOND = this.getMBPerSecond(InputTiming.SCL);
+            this.FILTER_MB = this.getMB(InputTiming.FILTER);
+            this.FILTER_MB_PER_SECOND = this.getMBPerSecond(InputTiming.FILTER);
+            this.CLOCS_MB = this.getMB(InputTiming.CLOCS);
+            this.CLOCS_MB_PER_SECOND = this.getMBPerSecond(InputTiming.CLOCS);
+            this.CONTROL_MB = this.getMB(InputTiming.CONTROL);
+            this.CONTROL_MB_PER_SECOND = this.getMBPerSecond(InputTiming.CONTROL);
+        }
+
+        private double getMB(int type) {
+            return this.inputBytes[type] / BYTES_PER_MB;
+        }
+
+        private double getMBPerSecond(int type) {
+            return this.inputNanos[type] > 0 ? this.getMB(type) * NANOS_PER_SECOND / this.inputNanos[type] : 0;
+        }
+    }
+}
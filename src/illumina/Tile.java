@@ -26,11 +26,17 @@ import illumina.file.reader.ControlFileReader;
 import illumina.file.reader.SCLFileReader;
 import illumina.file.reader.IlluminaFileReader;
 import illumina.file.reader.PosFileReader;
+import illumina.file.reader.RunFolderManifest;
 import java.io.File;
+import java.io.InputStream;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileWriter;
@@ -81,6 +87,34 @@ public class Tile {
     private final HashMap<String, BCLFileReader[]> bclFileReaderListByRead;
     private final HashMap<String, SCLFileReader[]> sclFileReaderListByRead;
 
+    //listed run folder files, null to check the file system
+    private final RunFolderManifest manifest;
+
+    //base calls from cycle buffer or run archive instead of BCL files
+    private CycleColumns cycleColumns;
+
+    //filter, control and positions from run archive instead of run folder files
+    private RunArchive.TileArchive tileArchive;
+
+    //time of each stage, null if not timed
+    private StageTimer stageTimer;
+
+    //choose clusters to convert, null to convert all
+    private ClusterSelector clusterSelector;
+    private BitSet selectedClusters;
+
+    //bin quality scores while reading, null to keep them
+    private QualityBinning qualityBinning;
+
+    //find optical duplicates, null not to
+    private OpticalDuplicateFinder duplicateFinder;
+
+    //collect spatial quality control metrics, null not to
+    private SpatialQcCollector spatialQc;
+
+    //lane histogram to merge base and quality counts by cycle into, null not to count
+    private CycleHistogram cycleHistogram;
+
     /**
      * 
      * @param intensityDir intensities directory
@@ -102,6 +136,34 @@ public class Tile {
             String barcodeSeqTagName,
             String barcodeQualTagName) {
 
+        this(intensityDir, baseCallDir, id, laneNumber, tileNumber, cycleRangeByRead,
+                secondCall, pfFilter, barcodeSeqTagName, barcodeQualTagName, null);
+    }
+
+    /**
+     * 
+     * @param intensityDir intensities directory
+     * @param id instrument with run id, which will be used for read name
+     * @param laneNumber the run laneNumber number
+     * @param tileNumber this tile number
+     * @param cycleRangeByRead cycle range for each read, the hash key could be read1, read2 or readIndex[n]
+     * @param secondCall include second base call or not
+     * @param pfFilter include PF filtered reads or not
+     * @param manifest run folder manifest to check files instead of the file system, could be null
+     */
+    public Tile(String intensityDir,
+            String baseCallDir,
+            String id,
+            int laneNumber,
+            int tileNumber,
+            HashMap<String, int[]> cycleRangeByRead,
+            boolean secondCall,
+            boolean pfFilter,
+            String barcodeSeqTagName,
+            String barcodeQualTagName,
+            RunFolderManifest manifest) {
+
+        this.manifest = manifest;
         this.id = id;
         this.laneNumber = laneNumber;
         this.tileNumber = tileNumber;
@@ -166,211 +228,347 @@ public class Tile {
      * @throws Exception
      */
     public void processTile(SAMFileWriter outputSam) throws Exception {
-        
-        log.info("Open filter file: " + this.getFilterFileName());
-        FilterFileReader filterFileReader = new FilterFileReader(this.getFilterFileName());
-        ControlFileReader controlFileReader = null;
-        
-        if (!(this.getControlFileName() == null)) {
-            log.info("Open control file: " + this.getControlFileName());
-            controlFileReader = new ControlFileReader(this.getControlFileName());
+        this.processTile(new SamFileWriterSink(outputSam, this.barcodeSeqTagName, this.barcodeQualTagName, false));
+    }
+
+    /**
+     * read each cluster and pass them to output sink
+     * @param sink
+     * @throws Exception
+     */
+    public void processTile(ClusterSink sink) throws Exception {
+
+        ClusterBufferSink bufferSink = (sink instanceof ClusterBufferSink) ? (ClusterBufferSink) sink : null;
+        if(bufferSink != null && (this.duplicateFinder != null || this.spatialQc != null || this.cycleHistogram != null)){
+            throw new IllegalStateException("Optical duplicates, spatial QC and cycle metrics are not collected "
+                    + "when clusters are read into buffers");
         }
-        
-        File clocsFile = new File( this.getcLocsFileName() );
-        File posFile = new File( this.getPosFileName() );
 
-        CLocsFileReader clocsFileReader = null;
-        PosFileReader posFileReader = null;
-        boolean clocsExisted;
-
-        if(clocsFile.exists()){
-           log.info("open clocs file: " + this.getcLocsFileName());
-           clocsFileReader = new CLocsFileReader(this.getcLocsFileName());
-           clocsExisted = true;
-        }else if( posFile.exists() ) {
-           log.info("open pos file: " + this.getPosFileName());
-           posFileReader = new PosFileReader(this.getPosFileName());
-           clocsExisted = false;
+        boolean timing = this.stageTimer != null;
+        long openStart = timing ? System.nanoTime() : 0;
+        
+        FilterFileReader filterFileReader;
+        if(this.tileArchive != null){
+            log.info("Open filter, control and position data from archive: " + this.tileArchive.getFileName());
+            filterFileReader = new FilterFileReader(this.tileArchive.getFileName(), this.tileArchive.openFilter());
         }else{
-            String errorMessage = "Both clocs and pos files are not available for this tile: "
-                    + this.getcLocsFileName() + " "
-                    + this.getPosFileName();
-            log.error(errorMessage);
-            throw new RuntimeException(errorMessage);
+            log.info("Open filter file: " + this.getFilterFileName());
+            filterFileReader = new FilterFileReader(this.getFilterFileName(), this.manifest);
         }
+        ControlFileReader controlFileReader = null;
+        CLocsFileReader clocsFileReader = null;
+        PosFileReader posFileReader = null;
+        try {
+            InputStream archivedControl = (this.tileArchive != null) ? this.tileArchive.openControl() : null;
+            if (archivedControl != null) {
+                controlFileReader = new ControlFileReader(this.tileArchive.getFileName(), archivedControl);
+            } else if (this.tileArchive == null && !(this.getControlFileName() == null)) {
+                log.info("Open control file: " + this.getControlFileName());
+                controlFileReader = new ControlFileReader(this.getControlFileName(), this.manifest);
+            }
+        
+            boolean clocsExisted;
+
+            if(this.tileArchive != null){
+               clocsExisted = this.tileArchive.hasClocs();
+               if(clocsExisted){
+                   clocsFileReader = new CLocsFileReader(this.tileArchive.getFileName(), this.tileArchive.openPositions());
+               }else{
+                   posFileReader = new PosFileReader(this.tileArchive.getFileName(), this.tileArchive.openPositions());
+               }
+            }else if(this.fileExists(this.getcLocsFileName())){
+               log.info("open clocs file: " + this.getcLocsFileName());
+               clocsFileReader = new CLocsFileReader(this.getcLocsFileName(), this.manifest);
+               clocsExisted = true;
+            }else if( this.fileExists(this.getPosFileName()) ) {
+               log.info("open pos file: " + this.getPosFileName());
+               posFileReader = new PosFileReader(this.getPosFileName());
+               clocsExisted = false;
+            }else{
+                String errorMessage = "Both clocs and pos files are not available for this tile: "
+                        + this.getcLocsFileName() + " "
+                        + this.getPosFileName();
+                log.error(errorMessage);
+                throw new RuntimeException(errorMessage);
+            }
 
-        SAMFileHeader samFileHeader = outputSam.getFileHeader();
-
-        int totalClusterInTile = filterFileReader.getTotalClusters();
-        //log.info("Total cluster from filter file: " + totalClusterInTile);
+            if(timing){
+                this.stageTimer.addOpen(System.nanoTime() - openStart);
+            }
 
-        //the number of cluster in each bcl or scl checked here
-        this.checkBCLClusterNumber(totalClusterInTile);
-        if(this.includeSecondCall){
-            this.checkSCLClusterNumber(totalClusterInTile);
-        }
+            int totalClusterInTile = filterFileReader.getTotalClusters();
+            //log.info("Total cluster from filter file: " + totalClusterInTile);
 
-        log.info("Reading cluster one by one");
-        int clusterIndex = 0;
-        while (filterFileReader.hasNext()) {
+            //the number of cluster in each bcl or scl checked here
+            if(this.cycleColumns != null){
+                if(this.cycleColumns.getTotalClusters() != totalClusterInTile){
+                    throw new Exception("Number of clusters in cycle buffer or archive " + this.cycleColumns.getTotalClusters()
+                            + " not as expected:" + totalClusterInTile);
+                }
+            }else{
+                this.checkBCLClusterNumber(totalClusterInTile);
+            }
+            if(this.includeSecondCall){
+                this.checkSCLClusterNumber(totalClusterInTile);
+            }
 
-            clusterIndex++;
+            this.selectedClusters = null;
+            if(this.clusterSelector != null){
+                this.selectedClusters = this.clusterSelector.selectClusters(this, totalClusterInTile);
+                log.info(this.selectedClusters.cardinality() + " clusters selected out of " + totalClusterInTile);
+            }
 
-            boolean barcodesMatch = true;
+            if(this.duplicateFinder != null){
+                this.duplicateFinder.startTile(this.tileNumber, totalClusterInTile);
+            }
+            if(this.spatialQc != null){
+                this.spatialQc.startTile(this.tileNumber);
+            }
+            CycleHistogram tileHistogram = null;
+            if(this.cycleHistogram != null){
+                tileHistogram = new CycleHistogram();
+                for (Map.Entry<String, int[]> entry : this.cycleRangeByRead.entrySet()) {
+                    tileHistogram.addRead(entry.getKey(), entry.getValue());
+                }
+            }
 
-            //position
-            String[] pos;
-            if(clocsExisted){
-                pos = clocsFileReader.next();
-            }else{
-                pos = posFileReader.next();
+            log.info("Reading cluster one by one");
+            int [] position = new int[2];
+            int clusterIndex = 0;
+            long inputNanos = 0;
+            long outputNanos = 0;
+            if(timing){
+                this.stageTimer.startInput();
             }
-            String readName = this.getReadName(pos);
+            long clusterStart = timing ? System.nanoTime() : 0;
+            while (filterFileReader.hasNext()) {
+
+                clusterIndex++;
 
-            //filtered
-            int filtered = (Integer) filterFileReader.next();
+                boolean barcodesMatch = true;
 
-            //control
-            int controlBit = 0;
+                //position
+                String[] pos = null;
+                String readName = null;
+                if(bufferSink != null){
+                    boolean positionRead = clocsExisted ? clocsFileReader.next(position) : posFileReader.next(position);
+                    if(!positionRead){
+                        throw new Exception("No position for cluster " + clusterIndex + " in tile " + this.tileNumber);
+                    }
+                }else{
+                    if(clocsExisted){
+                        pos = clocsFileReader.next();
+                    }else{
+                        pos = posFileReader.next();
+                    }
+                    readName = this.getReadName(pos);
+                }
+
+                //filtered
+                int filtered = (Integer) filterFileReader.next();
+
+                //control
+                int controlBit = 0;
             
-            if (controlFileReader != null) {
-                if (controlFileReader.hasNext()) {
-                    controlBit = (Integer) controlFileReader.next();
-                } else {
-                    throw new Exception("Number of clusters in control file "
-                            + controlFileReader.getFileName()
-                            + " is incorrect");
+                if (controlFileReader != null) {
+                    if (controlFileReader.hasNext()) {
+                        controlBit = (Integer) controlFileReader.next();
+                    } else {
+                        throw new Exception("Number of clusters in control file "
+                                + controlFileReader.getFileName()
+                                + " is incorrect");
+                    }
+                }
+
+                //base calls only read for selected clusters
+                if(this.selectedClusters != null && !this.selectedClusters.get(clusterIndex - 1)){
+                    continue;
+                }
+
+                //whole cluster read straight into the buffers of the sink,
+                //also for filtered clusters to move the base call readers on
+                if(bufferSink != null){
+                    Cluster cluster = bufferSink.getCluster();
+                    cluster.reset(this.tileNumber, clusterIndex, position[0], position[1],
+                            filtered == 1, controlBit == 1, this.pairedRead);
+                    this.readCluster(cluster, clusterIndex);
+                    if(!(this.pfFilter && filtered == 0)){
+                        bufferSink.addCluster(cluster);
+                    }
+                    continue;
                 }
-            }
 
             
-            //read 1
-            byte [][] basesQuals1 = this.getNextClusterBaseQuals("read1");
+                //read 1
+                byte [][] basesQuals1 = this.getClusterBaseQuals("read1", clusterIndex);
 
-            //read 2
-            byte [][] basesQuals2 = null;
-            if(this.isPairedRead()){
-                basesQuals2 = this.getNextClusterBaseQuals("read2");
-            }
+                //read 2
+                byte [][] basesQuals2 = null;
+                if(this.isPairedRead()){
+                    basesQuals2 = this.getClusterBaseQuals("read2", clusterIndex);
+                }
             
-            //index read
-            byte [][] basesQualsIndex1 = null;
-            byte [][] basesQualsIndex2 = null;
-            byte [][] combinedBasesQualsIndex = null;
-
-            if(this.isIndexed()){
-                //TODO: Make generic in terms of how many readIndexes exist
-                basesQualsIndex1 = this.getNextClusterBaseQuals("readIndex1");
+                //index read
+                byte [][] basesQualsIndex1 = null;
+                byte [][] basesQualsIndex2 = null;
+                byte [][] combinedBasesQualsIndex = null;
+
+                //first index read before combined with the second one, counted in cycle histogram
+                byte [][] firstIndexRead = null;
+
+                if(this.isIndexed()){
+                    //TODO: Make generic in terms of how many readIndexes exist
+                    basesQualsIndex1 = this.getClusterBaseQuals("readIndex1", clusterIndex);
+                    firstIndexRead = basesQualsIndex1;
                  
 
-                if (this.cycleRangeByRead.containsKey("readIndex2")) {
-                    basesQualsIndex2 = this.getNextClusterBaseQuals("readIndex2");
+                    if (this.cycleRangeByRead.containsKey("readIndex2")) {
+                        basesQualsIndex2 = this.getClusterBaseQuals("readIndex2", clusterIndex);
 
-                    byte[] combinedBases = new byte[basesQualsIndex1[0].length + basesQualsIndex2[0].length];
+                        byte[] combinedBases = new byte[basesQualsIndex1[0].length + basesQualsIndex2[0].length];
 
-                    System.arraycopy(basesQualsIndex1[0], 0, combinedBases, 0, basesQualsIndex1[0].length);
-                    System.arraycopy(basesQualsIndex2[0], 0, combinedBases, basesQualsIndex1[0].length, basesQualsIndex2[0].length);
+                        System.arraycopy(basesQualsIndex1[0], 0, combinedBases, 0, basesQualsIndex1[0].length);
+                        System.arraycopy(basesQualsIndex2[0], 0, combinedBases, basesQualsIndex1[0].length, basesQualsIndex2[0].length);
                     
-                    byte[] combinedQuals = new byte[basesQualsIndex1[1].length + basesQualsIndex2[1].length];
+                        byte[] combinedQuals = new byte[basesQualsIndex1[1].length + basesQualsIndex2[1].length];
 
-                    System.arraycopy(basesQualsIndex1[1], 0, combinedQuals, 0, basesQualsIndex1[1].length);
-                    System.arraycopy(basesQualsIndex2[1], 0, combinedQuals, basesQualsIndex1[1].length, basesQualsIndex2[1].length);
+                        System.arraycopy(basesQualsIndex1[1], 0, combinedQuals, 0, basesQualsIndex1[1].length);
+                        System.arraycopy(basesQualsIndex2[1], 0, combinedQuals, basesQualsIndex1[1].length, basesQualsIndex2[1].length);
 
-                    combinedBasesQualsIndex = new byte[2][combinedBases.length];
-                    combinedBasesQualsIndex[0] = combinedBases;
-                    combinedBasesQualsIndex[1] = combinedQuals;
-                    //Set the first barcode to be the combination of the two
-                    basesQualsIndex1 = combinedBasesQualsIndex;
+                        combinedBasesQualsIndex = new byte[2][combinedBases.length];
+                        combinedBasesQualsIndex[0] = combinedBases;
+                        combinedBasesQualsIndex[1] = combinedQuals;
+                        //Set the first barcode to be the combination of the two
+                        basesQualsIndex1 = combinedBasesQualsIndex;
                     
-                    if (!this.convertByteArrayToString(basesQualsIndex1[0]).equals(this.convertByteArrayToString(basesQualsIndex2[0]))) {
-                        //log.info("Indexes differ, not saving: " + this.convertByteArrayToString(basesQualsIndex1[0]) + " != " + this.convertByteArrayToString(basesQualsIndex2[0]));
-                        barcodesMatch = false;
+                        if (!this.convertByteArrayToString(basesQualsIndex1[0]).equals(this.convertByteArrayToString(basesQualsIndex2[0]))) {
+                            //log.info("Indexes differ, not saving: " + this.convertByteArrayToString(basesQualsIndex1[0]) + " != " + this.convertByteArrayToString(basesQualsIndex2[0]));
+                            barcodesMatch = false;
+                        }
+
                     }
 
                 }
 
-            }
+                //second call
+                String secondBases1 = null;
+                String secondBases2 = null;
+                if(this.includeSecondCall){
+                    secondBases1 = this.getClusterSecondBases("read1", clusterIndex);
+                    if(this.isPairedRead()){
+                       secondBases2 = this.getClusterSecondBases("read2", clusterIndex);
+                    }
+                }
 
-            //second call
-            String secondBases1 = null;
-            String secondBases2 = null;
-            if(this.includeSecondCall){
-                secondBases1 = this.getNextClusterSecondBases("read1");
-                if(this.isPairedRead()){
-                   secondBases2 = this.getNextClusterSecondBases("read2");
+                //If matched as control -> mark as control
+                boolean isControl = (controlBit == 1);
+
+                int x = 0;
+                int y = 0;
+                if(this.duplicateFinder != null || this.spatialQc != null){
+                    x = Integer.parseInt(pos[0]);
+                    y = Integer.parseInt(pos[1]);
+                }
+                if(this.spatialQc != null){
+                    this.spatialQc.addCluster(x, y, filtered, basesQuals1, basesQuals2);
                 }
-            }
 
-            //If matched as control -> mark as control
-            boolean isControl = (controlBit == 1);
+                //write to output
+                long outputStart = timing ? System.nanoTime() : 0;
+                if(!(this.pfFilter && filtered == 0)){
 
-            //write to bam
-            if(!(this.pfFilter && filtered == 0)){
-                
-                SAMRecord recordRead1 = this.getSAMRecord(samFileHeader, readName, clusterIndex, basesQuals1, secondBases1, basesQualsIndex1, filtered, pairedRead, true, barcodesMatch, isControl);
-                this.writeToBam(outputSam, recordRead1);
-                if(this.pairedRead){
-                    SAMRecord recordRead2 = this.getSAMRecord(samFileHeader, readName, clusterIndex, basesQuals2, secondBases2, null, filtered, pairedRead, false, barcodesMatch, isControl);
-                    this.writeToBam(outputSam, recordRead2);
+                    boolean isDuplicate = false;
+                    if(this.duplicateFinder != null){
+                        isDuplicate = this.duplicateFinder.isDuplicate(x, y,
+                                basesQuals1[0], (basesQuals2 != null) ? basesQuals2[0] : null);
+                    }
+
+                    if(tileHistogram != null){
+                        tileHistogram.add(this.cycleRangeByRead.get("read1")[0], basesQuals1);
+                        if(basesQuals2 != null){
+                            tileHistogram.add(this.cycleRangeByRead.get("read2")[0], basesQuals2);
+                        }
+                        if(firstIndexRead != null){
+                            tileHistogram.add(this.cycleRangeByRead.get("readIndex1")[0], firstIndexRead);
+                        }
+                        if(basesQualsIndex2 != null){
+                            tileHistogram.add(this.cycleRangeByRead.get("readIndex2")[0], basesQualsIndex2);
+                        }
+                    }
+
+                    sink.addCluster(readName, clusterIndex, basesQuals1, secondBases1, basesQualsIndex1, filtered, pairedRead, true, barcodesMatch, isControl, isDuplicate);
+                    if(this.pairedRead){
+                        sink.addCluster(readName, clusterIndex, basesQuals2, secondBases2, null, filtered, pairedRead, false, barcodesMatch, isControl, isDuplicate);
+                    }
+                }
+                if(timing){
+                    long outputEnd = System.nanoTime();
+                    inputNanos += outputStart - clusterStart;
+                    outputNanos += outputEnd - outputStart;
+                    clusterStart = outputEnd;
                 }
             }
-        }
+            if(timing){
+                this.stageTimer.endInput(inputNanos, clusterIndex);
+                this.stageTimer.addOutput(outputNanos);
+            }
+            if(this.duplicateFinder != null){
+                this.duplicateFinder.endTile();
+            }
+            if(this.spatialQc != null){
+                this.spatialQc.endTile();
+            }
+            if(tileHistogram != null){
+                this.cycleHistogram.merge(tileHistogram);
+            }
 
-        //check number of clusters from filter header is correct
+            //check number of clusters from filter header is correct
 
-        if(totalClusterInTile != filterFileReader.getCurrentCluster()){
-            throw new Exception("Number of clusters in filter file "
-                    + filterFileReader.getFileName()
-                    + " is incorrect");
-        }
-        log.debug("Correct number of clusters processed in filter file: " + filterFileReader.getCurrentCluster());
+            if(totalClusterInTile != filterFileReader.getCurrentCluster()){
+                throw new Exception("Number of clusters in filter file "
+                        + filterFileReader.getFileName()
+                        + " is incorrect");
+            }
+            log.debug("Correct number of clusters processed in filter file: " + filterFileReader.getCurrentCluster());
        
 
-        //check number of clusters from filter file match the cluster number in clocs file
-        if (clocsFileReader != null && clocsFileReader.getCurrentTotalClusters() != totalClusterInTile) {
-            throw new Exception("Number of clusters in clocs file does not match filter file "
-                    + filterFileReader.getTotalClusters() + " "
-                    + clocsFileReader.getCurrentTotalClusters());
-        }
+            //check number of clusters from filter file match the cluster number in clocs file
+            if (clocsFileReader != null && clocsFileReader.getCurrentTotalClusters() != totalClusterInTile) {
+                throw new Exception("Number of clusters in clocs file does not match filter file "
+                        + filterFileReader.getTotalClusters() + " "
+                        + clocsFileReader.getCurrentTotalClusters());
+            }
 
-        //TODO: check number of clusters from control file match the cluster number in clocs file
+            //TODO: check number of clusters from control file match the cluster number in clocs file
         
-        int totalCurrentClusters = 0;
-        if(clocsFileReader != null){
-             totalCurrentClusters = clocsFileReader.getCurrentTotalClusters();
-        }else if(posFileReader != null){
-             totalCurrentClusters = posFileReader.getCurrentTotalClusters();
-        }
-        log.debug("Correct number of clusters processed in clocs or pos file: " + totalCurrentClusters);
+            int totalCurrentClusters = 0;
+            if(clocsFileReader != null){
+                 totalCurrentClusters = clocsFileReader.getCurrentTotalClusters();
+            }else if(posFileReader != null){
+                 totalCurrentClusters = posFileReader.getCurrentTotalClusters();
+            }
+            log.debug("Correct number of clusters processed in clocs or pos file: " + totalCurrentClusters);
         
-        if(clocsFileReader != null && clocsFileReader.hasNext()){
-            log.debug("There may be more clusters in clocs file");
-        }
-
-        log.info(filterFileReader.getCurrentPFClusters() + " PF clusters in this tile out of total " + totalClusterInTile);
+            if(clocsFileReader != null && clocsFileReader.hasNext()){
+                log.debug("There may be more clusters in clocs file");
+            }
 
-        //close clocs or pos, control, and filter file
-        if(clocsFileReader != null){
-            clocsFileReader.close();
-        }
-        if(posFileReader != null){
-            posFileReader.close();
-        }
-        if (controlFileReader != null) {
-            controlFileReader.close();
+            log.info(filterFileReader.getCurrentPFClusters() + " PF clusters in this tile out of total " + totalClusterInTile);
+        } finally {
+            //close clocs or pos, control, and filter file
+            if(clocsFileReader != null){
+                clocsFileReader.close();
+            }
+            if(posFileReader != null){
+                posFileReader.close();
+            }
+            if (controlFileReader != null) {
+                controlFileReader.close();
+            }
+            filterFileReader.close();
         }
-        filterFileReader.close();
     }
     
-    /**
-     * 
-     * @param outputSam where to write bam record
-     * @param recordRead bam record
-     */
-    private void writeToBam(SAMFileWriter outputSam, SAMRecord recordRead ){
-        outputSam.addAlignment(recordRead);
-    }
-
     /**
      *
      * @param expectedClusterNumber
@@ -465,7 +663,10 @@ public class Tile {
 
         int index = 0;
         for (int cycle = start; cycle <= end; cycle++) {
-            bclFileReaderList[index] = new BCLFileReader(this.getBaseCallFileName(cycle, true));
+            bclFileReaderList[index] = new BCLFileReader(this.getBaseCallFileName(cycle, true), this.manifest);
+            if(this.qualityBinning != null){
+                bclFileReaderList[index].setQualityMap(this.qualityBinning.getQualityMap());
+            }
             index++;
         }
         return bclFileReaderList;
@@ -485,12 +686,32 @@ public class Tile {
 
         int index = 0;
         for (int cycle = start; cycle <= end; cycle++) {
-            sclFileReaderList[index] = new SCLFileReader(this.getBaseCallFileName(cycle, false));
+            sclFileReaderList[index] = new SCLFileReader(this.getBaseCallFileName(cycle, false), this.manifest);
             index++;
         }
         return sclFileReaderList;
     }
 
+    /**
+     * open another set of BCL files for index cycles, index read 1 followed by index read 2,
+     * independent from the readers used to convert this tile
+     *
+     * @return an array of BCLFileReader, empty if the tile is not indexed
+     * @throws Exception
+     */
+    public BCLFileReader[] openIndexBCLFiles() throws Exception {
+
+        List<BCLFileReader> indexFileReaderList = new ArrayList<BCLFileReader>();
+        for (String read : new String[]{"readIndex1", "readIndex2"}) {
+            int[] cycleRange = this.cycleRangeByRead.get(read);
+            if (cycleRange != null) {
+                log.info("Opening index BCL Files for " + read);
+                indexFileReaderList.addAll(Arrays.asList(this.openBCLFileByCycles(cycleRange)));
+            }
+        }
+        return indexFileReaderList.toArray(new BCLFileReader[indexFileReaderList.size()]);
+    }
+
     /**
      * close all BCL or SCL file in not closed yet
      *
@@ -520,6 +741,120 @@ public class Tile {
         }
     }
 
+    /**
+     * read bases and qualities of one read for a cluster, from cycle buffer if set or from BCL files
+     * @param read
+     * @param clusterIndex cluster index in the tile, from 1
+     * @return bases and qualities
+     * @throws Exception
+     */
+    private byte[][] getClusterBaseQuals(String read, int clusterIndex) throws Exception {
+        if(this.cycleColumns != null){
+            byte [][] baseQuals = this.cycleColumns.getBaseQuals(this.cycleRangeByRead.get(read), clusterIndex - 1);
+            if(this.qualityBinning != null){
+                this.qualityBinning.binQualities(baseQuals[1]);
+            }
+            return baseQuals;
+        }
+        BCLFileReader[] bclFileList = this.getBclFileReaderListByRead().get(read);
+        if(this.selectedClusters != null){
+            for (BCLFileReader fileReader : bclFileList) {
+                fileReader.skipToCluster(clusterIndex - 1);
+            }
+        }
+        return this.getNextClusterBaseQuals(bclFileList);
+    }
+
+    /**
+     * read second bases of one read for a cluster
+     * @param read
+     * @param clusterIndex cluster index in the tile, from 1
+     * @return second bases
+     * @throws Exception
+     */
+    private String getClusterSecondBases(String read, int clusterIndex) throws Exception {
+        SCLFileReader[] sclFileList = this.getSclFileReaderListByRead().get(read);
+        if(this.selectedClusters != null){
+            for (SCLFileReader fileReader : sclFileList) {
+                fileReader.skipToCluster(clusterIndex - 1);
+            }
+        }
+        return this.getNextClusterSecondBases(sclFileList);
+    }
+
+    /**
+     * read all reads of a cluster into its buffers, both index reads one after the other
+     * @param cluster cluster already reset for this cluster index
+     * @param clusterIndex cluster index in the tile, from 1
+     * @throws Exception
+     */
+    private void readCluster(Cluster cluster, int clusterIndex) throws Exception {
+
+        this.readClusterBaseQuals(cluster, Cluster.READ1, "read1", 0, clusterIndex);
+        if(this.isPairedRead()){
+            this.readClusterBaseQuals(cluster, Cluster.READ2, "read2", 0, clusterIndex);
+        }
+        if(this.isIndexed()){
+            int [] index1 = this.cycleRangeByRead.get("readIndex1");
+            int [] index2 = this.cycleRangeByRead.get("readIndex2");
+            int length1 = index1[1] - index1[0] + 1;
+            cluster.setLength(Cluster.INDEX, length1 + ((index2 != null) ? index2[1] - index2[0] + 1 : 0), false);
+            this.readClusterBaseQuals(cluster, Cluster.INDEX, "readIndex1", 0, clusterIndex);
+            if(index2 != null){
+                this.readClusterBaseQuals(cluster, Cluster.INDEX, "readIndex2", length1, clusterIndex);
+            }
+        }
+    }
+
+    /**
+     * read bases, qualities and second bases of one read into the buffers of a cluster
+     * @param cluster
+     * @param clusterRead READ1, READ2 or INDEX
+     * @param read
+     * @param offset position of the first cycle in the buffers, index reads only set the length beforehand
+     * @param clusterIndex cluster index in the tile, from 1
+     * @throws Exception
+     */
+    private void readClusterBaseQuals(Cluster cluster, int clusterRead, String read, int offset, int clusterIndex) throws Exception {
+
+        int [] cycleRange = this.cycleRangeByRead.get(read);
+        int length = cycleRange[1] - cycleRange[0] + 1;
+        boolean secondCall = this.includeSecondCall && clusterRead != Cluster.INDEX;
+        if(clusterRead != Cluster.INDEX){
+            cluster.setLength(clusterRead, length, secondCall);
+        }
+        byte [] bases = cluster.getBases(clusterRead);
+        byte [] qualities = cluster.getQualities(clusterRead);
+
+        if(this.cycleColumns != null){
+            this.cycleColumns.getBaseQuals(cycleRange, clusterIndex - 1, bases, qualities, offset);
+            if(this.qualityBinning != null){
+                this.qualityBinning.binQualities(qualities, offset, length);
+            }
+        }else{
+            BCLFileReader[] bclFileList = this.getBclFileReaderListByRead().get(read);
+            for(int i = 0; i < length; i++){
+                if(this.selectedClusters != null){
+                    bclFileList[i].skipToCluster(clusterIndex - 1);
+                }
+                if( !bclFileList[i].next(bases, qualities, offset + i) ){
+                    throw new Exception("No more clusters in " + bclFileList[i].getFileName());
+                }
+            }
+        }
+
+        if(secondCall){
+            byte [] secondBases = cluster.getSecondBases(clusterRead);
+            SCLFileReader[] sclFileList = this.getSclFileReaderListByRead().get(read);
+            for(int i = 0; i < length; i++){
+                if(this.selectedClusters != null){
+                    sclFileList[i].skipToCluster(clusterIndex - 1);
+                }
+                secondBases[i] = (byte) sclFileList[i].next().charValue();
+            }
+        }
+    }
+
     /**
      * read bases and qualities for next cluster of one read
      * @param read
@@ -597,6 +932,9 @@ public class Tile {
      * @param filter
      * @param paired
      * @param firstRead
+     * @param barcodesMatch
+     * @param isControl
+     * @param isDuplicate
      * @return SAM record
      */
     public SAMRecord getSAMRecord(
@@ -610,7 +948,48 @@ public class Tile {
             boolean paired,
             boolean firstRead,
             boolean barcodesMatch,
-            boolean isControl) {
+            boolean isControl,
+            boolean isDuplicate) {
+
+        return getSAMRecord(fileHeader, this.barcodeSeqTagName, this.barcodeQualTagName,
+                readName, clusterIndex, baseQuals, secondBases, baseQualsIndex,
+                filter, paired, firstRead, barcodesMatch, isControl, isDuplicate);
+    }
+
+    /**
+     * write all together for one SAM Record with given barcode tag names
+     *
+     * @param fileHeader
+     * @param barcodeSeqTagName
+     * @param barcodeQualTagName
+     * @param readName
+     * @param clusterIndex
+     * @param baseQuals
+     * @param secondBases
+     * @param baseQualsIndex
+     * @param filter
+     * @param paired
+     * @param firstRead
+     * @param barcodesMatch
+     * @param isControl
+     * @param isDuplicate
+     * @return SAM record
+     */
+    public static SAMRecord getSAMRecord(
+            SAMFileHeader fileHeader,
+            String barcodeSeqTagName,
+            String barcodeQualTagName,
+            String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate) {
 
         SAMRecord samRecord = new SAMRecord(fileHeader);
 
@@ -655,8 +1034,8 @@ public class Tile {
 
         if(baseQualsIndex != null){
 
-            samRecord.setAttribute(this.barcodeSeqTagName, this.convertByteArrayToString(baseQualsIndex[0]));
-            samRecord.setAttribute(this.barcodeQualTagName, this.convertPhredQualByteArrayToFastqString(baseQualsIndex[1]));
+            samRecord.setAttribute(barcodeSeqTagName, Illumina2bamUtils.convertByteArrayToString(baseQualsIndex[0]));
+            samRecord.setAttribute(barcodeQualTagName, Illumina2bamUtils.convertPhredQualByteArrayToFastqString(baseQualsIndex[1]));
         }
         
         //Set tag on first read indicating that the barcodes/indexes do not match
@@ -668,6 +1047,11 @@ public class Tile {
         if (firstRead && isControl) {
             samRecord.setAttribute("XC", 1);
         }
+
+        //Set tag on both reads indicating that the cluster is likely an optical duplicate
+        if (isDuplicate) {
+            samRecord.setAttribute("XD", 1);
+        }
         
         return samRecord;
     }
@@ -693,16 +1077,58 @@ public class Tile {
      * @return BCL or SCL base call file name 
      */
     public String getBaseCallFileName(int cycle, boolean firstCall) {
-        String cycleDir = this.baseCallDir
+        return getBaseCallFileName(this.baseCallDir, this.laneNumber, this.tileNumber, cycle, firstCall);
+    }
+
+    /**
+     *
+     * @param baseCallDir
+     * @param laneNumber
+     * @param tileNumber
+     * @param cycle
+     * @param firstCall
+     * @return BCL or SCL base call file name
+     */
+    public static String getBaseCallFileName(String baseCallDir, int laneNumber, int tileNumber, int cycle, boolean firstCall) {
+        String cycleDir = baseCallDir
                 + File.separator
-                + this.laneSubDir
+                + "L00" + laneNumber
                 + File.separator
                 + "C" + cycle + ".1"
                 + File.separator
-                + this.tileName;
+                + "s_" + laneNumber + "_" + tileNumber;
         return firstCall ? cycleDir + ".bcl" : cycleDir + ".scl";
     }
     
+    /**
+     * all input files of this tile: filter, control, clocs or pos, bcl and scl files in cycle order
+     *
+     * @return list of input files
+     */
+    public List<File> getInputFiles() {
+
+        List<File> inputFiles = new ArrayList<File>();
+        inputFiles.add(new File(this.filterFileName));
+        if(this.controlFileName != null){
+            inputFiles.add(new File(this.controlFileName));
+        }
+        inputFiles.add(new File(this.fileExists(this.cLocsFileName) ? this.cLocsFileName : this.posFileName));
+
+        TreeSet<Integer> cycles = new TreeSet<Integer>();
+        for(int [] cycleRange : this.cycleRangeByRead.values()){
+            for(int cycle = cycleRange[0]; cycle <= cycleRange[1]; cycle++){
+                cycles.add(cycle);
+            }
+        }
+        for(int cycle : cycles){
+            inputFiles.add(new File(this.getBaseCallFileName(cycle, true)));
+            if(this.includeSecondCall){
+                inputFiles.add(new File(this.getBaseCallFileName(cycle, false)));
+            }
+        }
+        return inputFiles;
+    }
+    
     private String checkFilterFileName(){
 
         String filterFileNameLocal = this.baseCallDir
@@ -710,17 +1136,14 @@ public class Tile {
                 + this.laneSubDir
                 + File.separator
                 + this.tileNameInFour + ".filter";
-        File filterFile = new File(filterFileNameLocal);
-    
-        if(!filterFile.exists()){
+        if(!this.fileExists(filterFileNameLocal)){
             log.info("Filter file " + filterFileNameLocal + " not in the basecall lane directory");
             filterFileNameLocal = this.baseCallDir
                 + File.separator
                 + this.tileNameInFour + ".filter";
             log.info("Now trying base call directory for the filter file: " + filterFileNameLocal);
         }
-        filterFile = new File(filterFileNameLocal);
-        if( !filterFile.exists() ){
+        if( !this.fileExists(filterFileNameLocal) ){
             log.error("No filter file found for this tile");
             filterFileNameLocal = null;
         }
@@ -832,6 +1255,74 @@ public class Tile {
         outputSam.close();
     }
 
+    private boolean fileExists(String fileName){
+        return (this.manifest != null) ? this.manifest.exists(fileName) : new File(fileName).exists();
+    }
+
+    /**
+     * @param cycleColumns base calls buffered while the run was going on, used instead of BCL files
+     */
+    public void setCycleColumns(CycleColumns cycleColumns) {
+        this.cycleColumns = cycleColumns;
+    }
+
+    /**
+     * @param tileArchive archive of this tile, used instead of run folder files, null to read run folder files
+     */
+    public void setTileArchive(RunArchive.TileArchive tileArchive) {
+        this.tileArchive = tileArchive;
+        this.cycleColumns = tileArchive;
+    }
+
+    /**
+     * @param clusterSelector choose clusters to convert in this tile, null to convert all
+     */
+    public void setClusterSelector(ClusterSelector clusterSelector) {
+        this.clusterSelector = clusterSelector;
+    }
+
+    /**
+     * @param qualityBinning bin quality scores while reading, null to keep them
+     */
+    public void setQualityBinning(QualityBinning qualityBinning) {
+        this.qualityBinning = qualityBinning;
+    }
+
+    /**
+     * @param duplicateFinder find optical duplicates of this tile, null not to
+     */
+    public void setOpticalDuplicateFinder(OpticalDuplicateFinder duplicateFinder) {
+        this.duplicateFinder = duplicateFinder;
+    }
+
+    /**
+     * @param spatialQc collect spatial quality control metrics of this tile, null not to
+     */
+    public void setSpatialQcCollector(SpatialQcCollector spatialQc) {
+        this.spatialQc = spatialQc;
+    }
+
+    /**
+     * @param cycleHistogram lane histogram to merge base and quality counts of this tile into, null not to count
+     */
+    public void setCycleHistogram(CycleHistogram cycleHistogram) {
+        this.cycleHistogram = cycleHistogram;
+    }
+
+    /**
+     * @return the tile number
+     */
+    public int getTileNumber() {
+        return tileNumber;
+    }
+
+    /**
+     * @param stageTimer timer to add the time of opening, reading and writing this tile to
+     */
+    public void setStageTimer(StageTimer stageTimer) {
+        this.stageTimer = stageTimer;
+    }
+
     /**
      * @return the posFileName
      */
@@ -839,7 +1330,10 @@ public class Tile {
         return posFileName;
     }
 
-    private String getControlFileName() {
+    /**
+     * @return the control file name, null if there is no control file
+     */
+    public String getControlFileName() {
         return this.controlFileName;
     }
 
@@ -849,17 +1343,14 @@ public class Tile {
                 + this.laneSubDir
                 + File.separator
                 + this.tileNameInFour + ".control";
-        File controlFile = new File(controlFileNameLocal);
-    
-        if(!controlFile.exists()){
+        if(!this.fileExists(controlFileNameLocal)){
             log.info("Control file " + controlFileNameLocal + " not in the basecall lane directory");
             controlFileNameLocal = this.baseCallDir
                 + File.separator
                 + this.tileNameInFour + ".control";
             log.info("Now trying base call directory for the control file: " + controlFileNameLocal);
         }
-        controlFile = new File(controlFileNameLocal);
-        if( !controlFile.exists() ){
+        if( !this.fileExists(controlFileNameLocal) ){
             log.error("No control file found for this tile");
             controlFileNameLocal = null;
         }
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Cluster sink writing each tile to its own BGZF fragment in a checkpoint directory,
+ * so an interrupted lane conversion can be resumed.
+ *
+ * A line is added to the manifest file for each completed tile with the cluster numbers,
+ * the size of its input files and its fragment. When the conversion is run again,
+ * tiles in the manifest with unchanged input files are skipped.
+ * When all tiles are done, the fragments are concatenated after the bam header by BgzfConcatenator
+ * without recompressing them, and the checkpoint files are removed.
+ *
+ */
+public class TileCheckpoint implements ClusterSink {
+
+    private final Log log = Log.getInstance(TileCheckpoint.class);
+
+    public static final String MANIFEST_FILE_NAME = "checkpoint_manifest.txt";
+    private static final String MANIFEST_HEADER = "#tile\tclusters\tpf_clusters\tinput_files\tinput_bytes\tinput_signature\tfragment\tfragment_bytes";
+
+    private final File checkpointDir;
+    private final File manifestFile;
+    private final File output;
+    private final SAMFileHeader header;
+    private final String barcodeSeqTagName;
+    private final String barcodeQualTagName;
+    private final String settings;
+    private final int compressionLevel;
+    private final boolean createMd5File;
+
+    //tiles in the manifest, and all tiles of the lane in processing order
+    private final HashMap<Integer, TileEntry> completedTiles = new HashMap<Integer, TileEntry>();
+    private final HashMap<Integer, TileEntry> inputsByTile = new HashMap<Integer, TileEntry>();
+    private final List<Integer> tileOrder = new ArrayList<Integer>();
+
+    //the tile being written
+    private TileEntry currentTile;
+    private File currentFragment;
+    private UnalignedBamWriter fragmentWriter;
+
+    /**
+     *
+     * @param checkpointDir directory for fragments and manifest
+     * @param output final bam file
+     * @param header bam header
+     * @param barcodeSeqTagName tag name for barcode sequence
+     * @param barcodeQualTagName tag name for barcode quality
+     * @param settings conversion settings which change the reads, a fragment is only reused with the same settings
+     * @param compressionLevel BGZF compression level of fragments and header
+     * @param createMd5File create md5 file for final bam or not
+     */
+    public TileCheckpoint(File checkpointDir,
+            File output,
+            SAMFileHeader header,
+            String barcodeSeqTagName,
+            String barcodeQualTagName,
+            String settings,
+            int compressionLevel,
+            boolean createMd5File){
+
+        this.checkpointDir = checkpointDir;
+        this.manifestFile = new File(checkpointDir, MANIFEST_FILE_NAME);
+        this.output = output;
+        this.header = header;
+        this.barcodeSeqTagName = barcodeSeqTagName;
+        this.barcodeQualTagName = barcodeQualTagName;
+        this.settings = settings;
+        this.compressionLevel = compressionLevel;
+        this.createMd5File = createMd5File;
+
+        this.readManifest();
+    }
+
+    /**
+     * check whether a tile was done with the same input files,
+     * must be called for every tile of the lane in processing order before the tile is processed
+     *
+     * @param tileNumber
+     * @param inputFiles all input files of the tile
+     * @return true if the tile can be skipped
+     */
+    public boolean isTileComplete(int tileNumber, List<File> inputFiles){
+
+        TileEntry inputs = new TileEntry(tileNumber);
+        CRC32 signature = new CRC32();
+        signature.update(this.settings.getBytes());
+        for(File inputFile : inputFiles){
+            long length = inputFile.length();
+            inputs.inputFiles++;
+            inputs.inputBytes += length;
+            signature.update((inputFile.getAbsolutePath() + "\t" + length + "\n").getBytes());
+        }
+        inputs.inputSignature = Long.toHexString(signature.getValue());
+
+        this.tileOrder.add(tileNumber);
+        this.inputsByTile.put(tileNumber, inputs);
+
+        TileEntry done = this.completedTiles.get(tileNumber);
+        if( done != null
+                && done.inputFiles == inputs.inputFiles
+                && done.inputBytes == inputs.inputBytes
+                && done.inputSignature.equals(inputs.inputSignature)
+                && new File(this.checkpointDir, done.fragment).length() == done.fragmentBytes ){
+            return true;
+        }
+        this.completedTiles.remove(tileNumber);
+        return false;
+    }
+
+    @Override
+    public void startTile(int tileNumber) {
+
+        this.currentTile = this.inputsByTile.get(tileNumber);
+        if(this.currentTile == null){
+            throw new IllegalStateException("Input files not checked for tile " + tileNumber);
+        }
+        this.currentTile.fragment = "tile_" + tileNumber + ".bam.part";
+        this.currentFragment = new File(this.checkpointDir, this.currentTile.fragment + ".tmp");
+
+        OutputStream out = UnalignedBamWriter.openOutputStream(this.currentFragment, false);
+        this.fragmentWriter = new UnalignedBamWriter(this.header, out, this.currentFragment, this.compressionLevel,
+                this.barcodeSeqTagName, this.barcodeQualTagName, false);
+    }
+
+    @Override
+    public void addCluster(String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate){
+
+        this.fragmentWriter.addCluster(readName, clusterIndex, baseQuals, secondBases, baseQualsIndex,
+                filter, paired, firstRead, barcodesMatch, isControl, isDuplicate);
+        if(firstRead){
+            this.currentTile.clusters++;
+            if(filter == 1){
+                this.currentTile.pfClusters++;
+            }
+        }
+    }
+
+    /**
+     * make the fragment durable, then record the tile in the manifest
+     *
+     * @param tileNumber
+     */
+    @Override
+    public void endTile(int tileNumber) {
+
+        this.fragmentWriter.close();
+        this.fragmentWriter = null;
+
+        try {
+            syncFile(this.currentFragment);
+            File fragment = new File(this.checkpointDir, this.currentTile.fragment);
+            if( (fragment.exists() && !fragment.delete()) || !this.currentFragment.renameTo(fragment) ){
+                throw new IOException("Failed to rename " + this.currentFragment + " to " + fragment);
+            }
+            this.currentTile.fragmentBytes = fragment.length();
+
+            boolean newManifest = !this.manifestFile.exists();
+            FileOutputStream manifestOut = new FileOutputStream(this.manifestFile, true);
+            if(newManifest){
+                manifestOut.write((MANIFEST_HEADER + "\n").getBytes());
+            }
+            manifestOut.write((this.currentTile.toString() + "\n").getBytes());
+            manifestOut.getFD().sync();
+            manifestOut.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to checkpoint tile " + tileNumber, ex);
+        }
+
+        this.completedTiles.put(tileNumber, this.currentTile);
+        this.currentTile = null;
+    }
+
+    /**
+     * put all fragments into the output bam and remove checkpoint files
+     */
+    @Override
+    public void close() {
+
+        for(int tileNumber : this.tileOrder){
+            if( !this.completedTiles.containsKey(tileNumber) ){
+                throw new IllegalStateException("Tile " + tileNumber + " not completed, no output bam generated");
+            }
+        }
+
+        log.info("Stitching " + this.tileOrder.size() + " tile fragments into " + this.output);
+        BgzfConcatenator concatenator = new BgzfConcatenator(this.output, this.header, this.compressionLevel, this.createMd5File);
+        for(int tileNumber : this.tileOrder){
+            concatenator.addRecordFragment(new File(this.checkpointDir, this.completedTiles.get(tileNumber).fragment));
+        }
+        concatenator.close();
+
+        for(TileEntry tile : this.completedTiles.values()){
+            new File(this.checkpointDir, tile.fragment).delete();
+        }
+        this.manifestFile.delete();
+    }
+
+    private static void syncFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.getFD().sync();
+        raf.close();
+    }
+
+    private void readManifest(){
+
+        if( !this.manifestFile.exists() ){
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(this.manifestFile));
+            String line;
+            while((line = reader.readLine()) != null){
+                if(line.startsWith("#") || line.trim().length() == 0){
+                    continue;
+                }
+                String [] fields = line.split("\t");
+                if(fields.length != 8){
+                    //a line only partly written when interrupted
+                    log.warn("Ignoring incomplete line in checkpoint manifest: " + line);
+                    continue;
+                }
+                TileEntry entry = new TileEntry(Integer.parseInt(fields[0]));
+                entry.clusters = Long.parseLong(fields[1]);
+                entry.pfClusters = Long.parseLong(fields[2]);
+                entry.inputFiles = Integer.parseInt(fields[3]);
+                entry.inputBytes = Long.parseLong(fields[4]);
+                entry.inputSignature = fields[5];
+                entry.fragment = fields[6];
+                entry.fragmentBytes = Long.parseLong(fields[7]);
+                this.completedTiles.put(entry.tile, entry);
+            }
+            reader.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to read checkpoint manifest " + this.manifestFile, ex);
+        }
+        log.info(this.completedTiles.size() + " tiles found in checkpoint manifest " + this.manifestFile);
+    }
+
+    /**
+     * @return number of clusters written for each tile done
+     */
+    public HashMap<Integer, Long> getClustersByTile(){
+        HashMap<Integer, Long> clustersByTile = new HashMap<Integer, Long>();
+        for(TileEntry tile : this.completedTiles.values()){
+            clustersByTile.put(tile.tile, tile.clusters);
+        }
+        return clustersByTile;
+    }
+
+    /**
+     * one line of the manifest
+     */
+    private static class TileEntry {
+        private final int tile;
+        private long clusters = 0;
+        private long pfClusters = 0;
+        private int inputFiles = 0;
+        private long inputBytes = 0;
+        private String inputSignature;
+        private String fragment;
+        private long fragmentBytes;
+
+        TileEntry(int tile){
+            this.tile = tile;
+        }
+
+        @Override
+        public String toString(){
+            return tile + "\t" + clusters + "\t" + pfClusters
+                    + "\t" + inputFiles + "\t" + inputBytes + "\t" + inputSignature
+                    + "\t" + fragment + "\t" + fragmentBytes;
+        }
+    }
+}
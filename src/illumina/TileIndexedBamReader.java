@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.CloseableIterator;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Read records of one tile from an unaligned bam file with a tile index,
+ * seeking to the offset of the tile instead of reading from the start of the file.
+ *
+ */
+public class TileIndexedBamReader {
+
+    private final File bam;
+    private final SAMFileHeader header;
+
+    //index entries by tile in file order, each as pairs of cluster number and virtual offset
+    private final LinkedHashMap<Integer, List<long[]>> entriesByTile = new LinkedHashMap<Integer, List<long[]>>();
+
+    /**
+     *
+     * @param bam bam file with a tile index file next to it
+     */
+    public TileIndexedBamReader(File bam){
+
+        this.bam = bam;
+        SAMFileReader reader = new SAMFileReader(bam);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        this.header = reader.getFileHeader();
+        reader.close();
+
+        File indexFile = TileIndexingSink.getIndexFile(bam);
+        try {
+            BufferedReader indexReader = new BufferedReader(new FileReader(indexFile));
+            String line;
+            while((line = indexReader.readLine()) != null){
+                if(line.startsWith("#")){
+                    continue;
+                }
+                String [] fields = line.split("\t");
+                int tileNumber = Integer.parseInt(fields[0]);
+                List<long[]> entries = this.entriesByTile.get(tileNumber);
+                if(entries == null){
+                    entries = new ArrayList<long[]>();
+                    this.entriesByTile.put(tileNumber, entries);
+                }
+                entries.add(new long[]{Long.parseLong(fields[1]), Long.parseLong(fields[2])});
+            }
+            indexReader.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to read tile index " + indexFile, ex);
+        }
+    }
+
+    /**
+     * @return tiles in file order
+     */
+    public List<Integer> getTiles(){
+        return new ArrayList<Integer>(this.entriesByTile.keySet());
+    }
+
+    /**
+     * @return bam header
+     */
+    public SAMFileHeader getFileHeader() {
+        return header;
+    }
+
+    /**
+     *
+     * @param tileNumber
+     * @return virtual file offset of the first record of a tile
+     */
+    public long getTileOffset(int tileNumber){
+        return this.getEntries(tileNumber).get(0)[1];
+    }
+
+    /**
+     *
+     * @param tileNumber
+     * @return iterator of all records of a tile
+     */
+    public CloseableIterator<SAMRecord> queryTile(int tileNumber){
+        return this.queryTile(tileNumber, 0);
+    }
+
+    /**
+     *
+     * @param tileNumber
+     * @param firstCluster number of clusters in the tile to skip, using the nearest index entry
+     * @return iterator of records of a tile starting from the given cluster
+     */
+    public CloseableIterator<SAMRecord> queryTile(int tileNumber, long firstCluster){
+
+        long [] start = null;
+        for(long [] entry : this.getEntries(tileNumber)){
+            if(entry[0] <= firstCluster){
+                start = entry;
+            }
+        }
+
+        //the tile ends where the next tile starts
+        long end = -1;
+        boolean found = false;
+        for(int tile : this.entriesByTile.keySet()){
+            if(found){
+                end = this.getTileOffset(tile);
+                break;
+            }
+            found = (tile == tileNumber);
+        }
+
+        try {
+            TileIterator iterator = new TileIterator(start[1], end);
+            long cluster = start[0] - 1;
+            while(iterator.hasNext()){
+                SAMRecord record = iterator.peek();
+                if( !record.getReadPairedFlag() || record.getFirstOfPairFlag() ){
+                    cluster++;
+                    if(cluster == firstCluster){
+                        break;
+                    }
+                }
+                iterator.next();
+            }
+            return iterator;
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to read tile " + tileNumber + " from " + this.bam, ex);
+        }
+    }
+
+    private List<long[]> getEntries(int tileNumber){
+        List<long[]> entries = this.entriesByTile.get(tileNumber);
+        if(entries == null){
+            throw new IllegalArgumentException("Tile " + tileNumber + " not in tile index of " + this.bam);
+        }
+        return entries;
+    }
+
+    /**
+     * records between two virtual file offsets
+     */
+    private class TileIterator implements CloseableIterator<SAMRecord> {
+
+        private final BlockCompressedInputStream in;
+        private final BAMRecordCodec codec;
+        private final long end;
+        private SAMRecord nextRecord;
+
+        TileIterator(long start, long end) throws IOException {
+            this.in = new BlockCompressedInputStream(bam);
+            this.in.seek(start);
+            this.codec = new BAMRecordCodec(header);
+            this.codec.setInputStream(this.in);
+            this.end = end;
+            this.advance();
+        }
+
+        private void advance(){
+            if(this.end >= 0 && this.in.getFilePointer() >= this.end){
+                this.nextRecord = null;
+            }else{
+                this.nextRecord = this.codec.decode();
+            }
+        }
+
+        SAMRecord peek(){
+            return this.nextRecord;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.nextRecord != null;
+        }
+
+        @Override
+        public SAMRecord next() {
+            if(this.nextRecord == null){
+                throw new NoSuchElementException();
+            }
+            SAMRecord record = this.nextRecord;
+            this.advance();
+            return record;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public void close() {
+            try {
+                this.in.close();
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Problems to close " + bam, ex);
+            }
+        }
+    }
+}
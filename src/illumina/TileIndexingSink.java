@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.picard.util.Log;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Cluster sink writing reads through UnalignedBamWriter and recording
+ * the BGZF virtual file offset of the first record of each tile,
+ * and optionally of every N clusters within a tile, into a sidecar tile index file.
+ *
+ * The index is a tab-delimited text file next to the bam file,
+ * see TileIndexedBamReader to read records of one tile.
+ *
+ */
+public class TileIndexingSink implements ClusterSink {
+
+    private final Log log = Log.getInstance(TileIndexingSink.class);
+
+    public static final String INDEX_EXTENSION = ".tileidx";
+    public static final String INDEX_HEADER = "#tile\tcluster\tvirtual_offset";
+
+    private final UnalignedBamWriter writer;
+    private final File indexFile;
+    private final int clusterInterval;
+
+    private final List<String> entries = new ArrayList<String>();
+
+    private int currentTile;
+    private long tileClusters;
+
+    /**
+     *
+     * @param writer bam writer, its file pointer is used as the record offset
+     * @param indexFile tile index file to write when closed
+     * @param clusterInterval add an index entry every this number of clusters in a tile, 0 for tile starts only
+     */
+    public TileIndexingSink(UnalignedBamWriter writer, File indexFile, int clusterInterval){
+        this.writer = writer;
+        this.indexFile = indexFile;
+        this.clusterInterval = clusterInterval;
+    }
+
+    @Override
+    public void startTile(int tileNumber) {
+        this.currentTile = tileNumber;
+        this.tileClusters = 0;
+        this.addEntry();
+    }
+
+    @Override
+    public void addCluster(String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate){
+
+        if(firstRead){
+            if(this.clusterInterval > 0 && this.tileClusters > 0 && this.tileClusters % this.clusterInterval == 0){
+                this.addEntry();
+            }
+            this.tileClusters++;
+        }
+        this.writer.addCluster(readName, clusterIndex, baseQuals, secondBases, baseQualsIndex,
+                filter, paired, firstRead, barcodesMatch, isControl, isDuplicate);
+    }
+
+    @Override
+    public void endTile(int tileNumber) {
+    }
+
+    /**
+     * close bam writer and write the tile index
+     */
+    @Override
+    public void close() {
+
+        this.writer.close();
+        try {
+            FileWriter indexWriter = new FileWriter(this.indexFile);
+            indexWriter.write(INDEX_HEADER + "\n");
+            for(String entry : this.entries){
+                indexWriter.write(entry + "\n");
+            }
+            indexWriter.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to write tile index " + this.indexFile, ex);
+        }
+        log.info(this.entries.size() + " entries written to tile index " + this.indexFile);
+    }
+
+    private void addEntry(){
+        this.entries.add(this.currentTile + "\t" + this.tileClusters + "\t" + this.writer.getFilePointer());
+    }
+
+    /**
+     *
+     * @param bam
+     * @return tile index file for a bam file
+     */
+    public static File getIndexFile(File bam){
+        return new File(bam.getPath() + INDEX_EXTENSION);
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Cluster sink sharing the tiles of a lane with other processes through files in a shared queue directory,
+ * each tile written to its own BGZF fragment and the fragments put into one bam file at the end.
+ *
+ * A process claims a tile by creating its claim file, which only one process can do,
+ * and keeps the claim alive by touching the file while it converts the tile.
+ * A tile is done when its fragment is renamed into place. When no tile is left to claim,
+ * claims not touched for a while are taken over from processes which died, and then tiles
+ * still being converted by slow processes are converted again as a backup, the first fragment
+ * renamed into place is kept. When all tiles are done, one process concatenates the fragments
+ * by BgzfConcatenator while the others wait for the lane to be complete.
+ *
+ * Hosts sharing a queue directory need synchronised clocks. The queue directory keeps a marker
+ * of the complete lane, so it must be emptied to convert the lane again.
+ *
+ */
+public class TileWorkQueue implements ClusterSink {
+
+    private final Log log = Log.getInstance(TileWorkQueue.class);
+
+    public static final String SETTINGS_FILE_NAME = "work_queue_settings.txt";
+    public static final String COMPLETE_FILE_NAME = "lane_complete";
+    private static final String ASSEMBLE_FILE_NAME = "assemble.claim";
+
+    //workers in this JVM
+    private static final AtomicInteger workerCount = new AtomicInteger();
+
+    private final File queueDir;
+    private final Lane lane;
+    private final int [] tileList;
+    private final File output;
+    private final SAMFileHeader header;
+    private final String barcodeSeqTagName;
+    private final String barcodeQualTagName;
+    private final String settings;
+    private final int compressionLevel;
+    private final boolean createMd5File;
+    private final long staleMillis;
+    private final long pollMillis;
+    private final String workerId;
+
+    //claim or backup file touched while a tile or the assembly is going on
+    private volatile File currentClaim;
+
+    //the tile being written
+    private File currentFragment;
+    private UnalignedBamWriter fragmentWriter;
+
+    private int tilesConverted = 0;
+    private int tilesTakenOver = 0;
+    private int tilesBackedUp = 0;
+
+    /**
+     *
+     * @param queueDir directory shared by all processes converting the lane
+     * @param lane lane to convert tiles from, could be null if processTile is overridden
+     * @param tileList all tiles of the lane in output order
+     * @param output final bam file
+     * @param header bam header
+     * @param barcodeSeqTagName tag name for barcode sequence
+     * @param barcodeQualTagName tag name for barcode quality
+     * @param settings conversion settings which change the reads, all processes must have the same settings and output
+     * @param compressionLevel BGZF compression level of fragments and header
+     * @param createMd5File create md5 file for final bam or not
+     * @param staleMillis time after which a claim not touched is taken over by another process
+     */
+    public TileWorkQueue(File queueDir,
+            Lane lane,
+            int [] tileList,
+            File output,
+            SAMFileHeader header,
+            String barcodeSeqTagName,
+            String barcodeQualTagName,
+            String settings,
+            int compressionLevel,
+            boolean createMd5File,
+            long staleMillis){
+
+        if(staleMillis < 4){
+            throw new IllegalArgumentException("Time for a claim to become stale too short: " + staleMillis);
+        }
+        this.queueDir = queueDir;
+        this.lane = lane;
+        this.tileList = tileList;
+        this.output = output;
+        this.header = header;
+        this.barcodeSeqTagName = barcodeSeqTagName;
+        this.barcodeQualTagName = barcodeQualTagName;
+        //only the process assembling the lane writes the output, so all processes must write to the same file
+        this.settings = settings + " OUTPUT=" + output.getAbsolutePath();
+        this.compressionLevel = compressionLevel;
+        this.createMd5File = createMd5File;
+        this.staleMillis = staleMillis;
+        this.pollMillis = Math.max(1, Math.min(1000, staleMillis / 4));
+        this.workerId = (ManagementFactory.getRuntimeMXBean().getName() + "-" + workerCount.incrementAndGet())
+                .replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * claim and convert tiles until all tiles of the lane are done by this or other processes
+     *
+     * @return false if the lane was already complete, nothing is converted
+     * @throws Exception
+     */
+    public boolean processTiles() throws Exception {
+
+        this.checkSettings();
+        if(this.isLaneComplete()){
+            log.info("Lane already complete in work queue " + this.queueDir);
+            return false;
+        }
+        log.info("Worker " + this.workerId + " sharing " + this.tileList.length + " tiles in " + this.queueDir);
+
+        Timer heartbeat = this.startHeartbeat();
+        try {
+            while( !this.isLaneComplete() ){
+                Integer tileNumber = this.claimTile();
+                if(tileNumber == null){
+                    tileNumber = this.takeOverStaleTile();
+                }
+                if(tileNumber == null){
+                    tileNumber = this.backUpSlowTile();
+                }
+                if(tileNumber == null){
+                    if(this.areAllTilesDone()){
+                        break;
+                    }
+                    Thread.sleep(this.pollMillis);
+                    continue;
+                }
+                log.info("Tile: " + tileNumber);
+                try {
+                    this.processTile(tileNumber);
+                } finally {
+                    this.currentClaim = null;
+                    this.discardFragment();
+                }
+                this.tilesConverted++;
+            }
+        } finally {
+            heartbeat.cancel();
+        }
+        log.info("Worker " + this.workerId + " converted " + this.tilesConverted + " tiles, "
+                + this.tilesTakenOver + " taken over from stale claims, " + this.tilesBackedUp + " as backups");
+        return true;
+    }
+
+    /**
+     * convert one tile into this sink
+     *
+     * @param tileNumber
+     * @throws Exception
+     */
+    protected void processTile(int tileNumber) throws Exception {
+        this.lane.processTile(tileNumber, this);
+    }
+
+    @Override
+    public void startTile(int tileNumber) {
+
+        this.currentFragment = new File(this.queueDir, "tile_" + tileNumber + "." + this.workerId + ".tmp");
+        OutputStream out = UnalignedBamWriter.openOutputStream(this.currentFragment, false);
+        this.fragmentWriter = new UnalignedBamWriter(this.header, out, this.currentFragment, this.compressionLevel,
+                this.barcodeSeqTagName, this.barcodeQualTagName, false);
+    }
+
+    @Override
+    public void addCluster(String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate){
+
+        this.fragmentWriter.addCluster(readName, clusterIndex, baseQuals, secondBases, baseQualsIndex,
+                filter, paired, firstRead, barcodesMatch, isControl, isDuplicate);
+    }
+
+    /**
+     * make the fragment durable and rename it into place, unless another process was faster
+     *
+     * @param tileNumber
+     */
+    @Override
+    public void endTile(int tileNumber) {
+
+        this.fragmentWriter.close();
+        this.fragmentWriter = null;
+
+        File fragment = this.getFragmentFile(tileNumber);
+        try {
+            if(fragment.exists() || this.isLaneComplete()){
+                log.info("Tile " + tileNumber + " already done by another process");
+                return;
+            }
+            syncFile(this.currentFragment);
+            //fragments of the same tile are the same, so it does not matter which one ends up in place
+            if( !this.currentFragment.renameTo(fragment) && !fragment.exists() ){
+                throw new IOException("Failed to rename " + this.currentFragment + " to " + fragment);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to finish tile " + tileNumber + " in work queue", ex);
+        }
+    }
+
+    /**
+     * put all fragments into the output bam if no other process does, or wait until one did
+     */
+    @Override
+    public void close() {
+
+        Timer heartbeat = this.startHeartbeat();
+        try {
+            while( !this.isLaneComplete() ){
+                File assembleClaim = new File(this.queueDir, ASSEMBLE_FILE_NAME);
+                if( this.claim(assembleClaim) || this.takeOver(assembleClaim) ){
+                    this.currentClaim = assembleClaim;
+                    this.assemble();
+                    this.currentClaim = null;
+                    return;
+                }
+                Thread.sleep(this.pollMillis);
+            }
+            log.info("Lane assembled by another process into " + this.output);
+        } catch (InterruptedException ex) {
+            throw new RuntimeException("Interrupted while waiting for the lane to be assembled", ex);
+        } finally {
+            heartbeat.cancel();
+        }
+    }
+
+    /**
+     * @return number of tiles converted by this process, including the ones done by another process first
+     */
+    public int getTilesConverted() {
+        return tilesConverted;
+    }
+
+    private void assemble() {
+
+        log.info("Stitching " + this.tileList.length + " tile fragments into " + this.output);
+        BgzfConcatenator concatenator = new BgzfConcatenator(this.output, this.header, this.compressionLevel, this.createMd5File);
+        for(int tileNumber : this.tileList){
+            concatenator.addRecordFragment(this.getFragmentFile(tileNumber));
+        }
+        concatenator.close();
+
+        this.claim(new File(this.queueDir, COMPLETE_FILE_NAME));
+        for(File file : this.queueDir.listFiles()){
+            String name = file.getName();
+            if(name.startsWith("tile_") || name.equals(ASSEMBLE_FILE_NAME)){
+                file.delete();
+            }
+        }
+    }
+
+    private Integer claimTile() {
+        for(int tileNumber : this.tileList){
+            if( !this.getFragmentFile(tileNumber).exists() && this.claim(this.getClaimFile(tileNumber)) ){
+                this.currentClaim = this.getClaimFile(tileNumber);
+                return tileNumber;
+            }
+        }
+        return null;
+    }
+
+    private Integer takeOverStaleTile() {
+        for(int tileNumber : this.tileList){
+            if( !this.getFragmentFile(tileNumber).exists() && this.takeOver(this.getClaimFile(tileNumber)) ){
+                log.warn("Claim of tile " + tileNumber + " stale, taken over");
+                this.currentClaim = this.getClaimFile(tileNumber);
+                this.tilesTakenOver++;
+                return tileNumber;
+            }
+        }
+        return null;
+    }
+
+    private Integer backUpSlowTile() {
+        for(int tileNumber : this.tileList){
+            File backup = new File(this.queueDir, "tile_" + tileNumber + ".backup");
+            if( !this.getFragmentFile(tileNumber).exists() && this.claim(backup) ){
+                log.info("Tile " + tileNumber + " still being converted by another process, converting it as a backup");
+                this.currentClaim = backup;
+                this.tilesBackedUp++;
+                return tileNumber;
+            }
+        }
+        return null;
+    }
+
+    private boolean areAllTilesDone() {
+        for(int tileNumber : this.tileList){
+            if( !this.getFragmentFile(tileNumber).exists() ){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isLaneComplete() {
+        return new File(this.queueDir, COMPLETE_FILE_NAME).exists();
+    }
+
+    /**
+     * @param claimFile
+     * @return true if the file is created by this process
+     */
+    private boolean claim(File claimFile) {
+        try {
+            return claimFile.createNewFile();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to create claim file " + claimFile, ex);
+        }
+    }
+
+    /**
+     * take over a claim not touched for longer than the stale time, only one process can rename it away
+     *
+     * @param claimFile
+     * @return true if the claim is now held by this process
+     */
+    private boolean takeOver(File claimFile) {
+        long lastModified = claimFile.lastModified();
+        if(lastModified == 0 || System.currentTimeMillis() - lastModified <= this.staleMillis){
+            return false;
+        }
+        File staleClaim = new File(this.queueDir, claimFile.getName() + "." + this.workerId + ".stale");
+        if( !claimFile.renameTo(staleClaim) ){
+            return false;
+        }
+        staleClaim.delete();
+        return this.claim(claimFile);
+    }
+
+    private Timer startHeartbeat() {
+        Timer heartbeat = new Timer("TileWorkQueue heartbeat", true);
+        long interval = this.staleMillis / 4;
+        heartbeat.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                File claimFile = currentClaim;
+                if(claimFile != null){
+                    claimFile.setLastModified(System.currentTimeMillis());
+                }
+            }
+        }, interval, interval);
+        return heartbeat;
+    }
+
+    /**
+     * write settings if this is the first process, otherwise check they are the same
+     */
+    private void checkSettings() throws IOException, InterruptedException {
+
+        File settingsFile = new File(this.queueDir, SETTINGS_FILE_NAME);
+        if(this.claim(settingsFile)){
+            FileOutputStream out = new FileOutputStream(settingsFile);
+            out.write((this.settings + "\n").getBytes());
+            out.getFD().sync();
+            out.close();
+            return;
+        }
+
+        //the first process may still be writing
+        long waitStart = System.currentTimeMillis();
+        String queueSettings;
+        while((queueSettings = readSettings(settingsFile)) == null){
+            if(System.currentTimeMillis() - waitStart > this.staleMillis){
+                throw new IllegalStateException("Incomplete settings in work queue " + settingsFile);
+            }
+            Thread.sleep(this.pollMillis);
+        }
+        if( !queueSettings.equals(this.settings) ){
+            throw new IllegalStateException("Settings not the same as other processes in work queue " + this.queueDir
+                    + ": " + this.settings + " instead of " + queueSettings);
+        }
+    }
+
+    /**
+     * @param settingsFile
+     * @return settings, null if the line is not complete
+     */
+    private static String readSettings(File settingsFile) throws IOException {
+        StringBuilder content = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(settingsFile));
+        int c;
+        while((c = reader.read()) != -1){
+            content.append((char) c);
+        }
+        reader.close();
+        int end = content.indexOf("\n");
+        return (end < 0) ? null : content.substring(0, end);
+    }
+
+    private void discardFragment() {
+        if(this.fragmentWriter != null){
+            try {
+                this.fragmentWriter.close();
+            } catch (RuntimeIOException ex) {
+                log.warn("Problems to close unfinished fragment " + this.currentFragment);
+            }
+            this.fragmentWriter = null;
+        }
+        if(this.currentFragment != null){
+            this.currentFragment.delete();
+            this.currentFragment = null;
+        }
+    }
+
+    private File getClaimFile(int tileNumber) {
+        return new File(this.queueDir, "tile_" + tileNumber + ".claim");
+    }
+
+    private File getFragmentFile(int tileNumber) {
+        return new File(this.queueDir, "tile_" + tileNumber + ".bam.part");
+    }
+
+    private static void syncFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.getFD().sync();
+        raf.close();
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.util.Arrays;
+
+/**
+ * Encode unaligned Illumina reads straight into BAM binary records.
+ *
+ * The records written by illumina2bam always have the same shape:
+ * unmapped, no cigar, no mate position and a fixed set of tags.
+ * So the record is written field by field into a reusable byte buffer
+ * without building a SAMRecord, and the constant parts (tag names and
+ * the read group tag) are prepared once when the encoder is created.
+ *
+ * The output is the same as picard BAMRecordCodec for the same record,
+ * including the order of the tags.
+ *
+ */
+public class UnalignedBamRecordEncoder {
+
+    //BAM flag bits
+    private static final int FLAG_PAIRED        = 0x1;
+    private static final int FLAG_UNMAPPED      = 0x4;
+    private static final int FLAG_MATE_UNMAPPED = 0x8;
+    private static final int FLAG_FIRST_OF_PAIR = 0x40;
+    private static final int FLAG_SECOND_OF_PAIR= 0x80;
+    private static final int FLAG_QC_FAIL       = 0x200;
+
+    //bin value picard writes for an unmapped read without position
+    private static final int UNMAPPED_BIN = 0;
+
+    //4 bits base code lookup table, "=ACMGRSVTWYHKDBN"
+    private static final byte [] BASE_CODES = new byte[256];
+    static {
+        Arrays.fill(BASE_CODES, (byte) 15);
+        String bamBases = "=ACMGRSVTWYHKDBN";
+        for(int i = 0; i < bamBases.length(); i++){
+            BASE_CODES[bamBases.charAt(i)] = (byte) i;
+            BASE_CODES[Character.toLowerCase(bamBases.charAt(i))] = (byte) i;
+        }
+    }
+
+    //tag slots, written in the order of their binary tag value as picard does
+    private static final int TAG_CI = 0;
+    private static final int TAG_RG = 1;
+    private static final int TAG_E2 = 2;
+    private static final int TAG_BARCODE_SEQ  = 3;
+    private static final int TAG_BARCODE_QUAL = 4;
+    private static final int TAG_XB = 5;
+    private static final int TAG_XC = 6;
+    private static final int TAG_XD = 7;
+
+    private final byte [][] tagNames = new byte[8][];
+    private final int [] tagOrder;
+
+    //read group tag with its value, the same for every record of a lane
+    private final byte [] readGroupTag;
+
+    private byte [] buffer = new byte[1024];
+    private int position = 0;
+
+    /**
+     *
+     * @param readGroupId read group id to put in RG tag of every record
+     * @param barcodeSeqTagName tag name for barcode sequence
+     * @param barcodeQualTagName tag name for barcode quality
+     */
+    public UnalignedBamRecordEncoder(String readGroupId, String barcodeSeqTagName, String barcodeQualTagName){
+
+        this.tagNames[TAG_CI] = this.checkTagName("ci");
+        this.tagNames[TAG_RG] = this.checkTagName("RG");
+        this.tagNames[TAG_E2] = this.checkTagName("E2");
+        this.tagNames[TAG_BARCODE_SEQ]  = this.checkTagName(barcodeSeqTagName);
+        this.tagNames[TAG_BARCODE_QUAL] = this.checkTagName(barcodeQualTagName);
+        this.tagNames[TAG_XB] = this.checkTagName("XB");
+        this.tagNames[TAG_XC] = this.checkTagName("XC");
+        this.tagNames[TAG_XD] = this.checkTagName("XD");
+
+        this.tagOrder = this.sortTagsByBinaryValue();
+
+        this.readGroupTag = new byte[readGroupId.length() + 4];
+        this.readGroupTag[0] = 'R';
+        this.readGroupTag[1] = 'G';
+        this.readGroupTag[2] = 'Z';
+        for(int i = 0; i < readGroupId.length(); i++){
+            this.readGroupTag[i + 3] = (byte) readGroupId.charAt(i);
+        }
+        this.readGroupTag[this.readGroupTag.length - 1] = 0;
+    }
+
+    /**
+     * encode one read into the internal buffer, including the leading block size
+     *
+     * @param readName
+     * @param clusterIndex
+     * @param baseQuals bases as the first array and phred qualities as the second one
+     * @param secondBases could be null
+     * @param baseQualsIndex could be null
+     * @param filter
+     * @param paired
+     * @param firstRead
+     * @param barcodesMatch
+     * @param isControl
+     * @param isDuplicate
+     * @return the number of bytes of this record in the buffer
+     */
+    public int encode(String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate){
+
+        byte [] bases = baseQuals[0];
+        byte [] quals = baseQuals[1];
+        int readLength = bases.length;
+        int readNameLength = readName.length() + 1;
+
+        int flag = FLAG_UNMAPPED;
+        if(paired){
+            flag |= FLAG_PAIRED | FLAG_MATE_UNMAPPED;
+            flag |= firstRead ? FLAG_FIRST_OF_PAIR : FLAG_SECOND_OF_PAIR;
+        }
+        if(filter == 0){
+            flag |= FLAG_QC_FAIL;
+        }
+
+        int maxSize = 36 + readNameLength + (readLength + 1) / 2 + readLength
+                + 7 + this.readGroupTag.length
+                + (secondBases != null ? secondBases.length() + 4 : 0)
+                + (baseQualsIndex != null ? 2 * baseQualsIndex[0].length + 8 : 0)
+                + 12;
+        this.ensureCapacity(maxSize);
+        this.position = 4;
+
+        this.writeInt(-1);                                  //reference index
+        this.writeInt(-1);                                  //position
+        this.writeInt(UNMAPPED_BIN << 16 | readNameLength); //bin, mapping quality 0 and read name length
+        this.writeInt(flag << 16);                          //flag and no cigar
+        this.writeInt(readLength);
+        this.writeInt(-1);                                  //mate reference index
+        this.writeInt(-1);                                  //mate position
+        this.writeInt(0);                                   //insert size
+
+        for(int i = 0; i < readName.length(); i++){
+            this.buffer[this.position++] = (byte) readName.charAt(i);
+        }
+        this.buffer[this.position++] = 0;
+
+        for(int i = 0; i < readLength; i += 2){
+            int high = BASE_CODES[bases[i] & 0xFF] << 4;
+            int low  = (i + 1 < readLength) ? BASE_CODES[bases[i + 1] & 0xFF] : 0;
+            this.buffer[this.position++] = (byte) (high | low);
+        }
+        System.arraycopy(quals, 0, this.buffer, this.position, readLength);
+        this.position += readLength;
+
+        for(int tag : this.tagOrder){
+            switch(tag){
+                case TAG_CI:
+                    this.writeIntegerTag(this.tagNames[TAG_CI], clusterIndex);
+                    break;
+                case TAG_RG:
+                    System.arraycopy(this.readGroupTag, 0, this.buffer, this.position, this.readGroupTag.length);
+                    this.position += this.readGroupTag.length;
+                    break;
+                case TAG_E2:
+                    if(secondBases != null){
+                        this.writeStringTagName(this.tagNames[TAG_E2]);
+                        for(int i = 0; i < secondBases.length(); i++){
+                            this.buffer[this.position++] = (byte) secondBases.charAt(i);
+                        }
+                        this.buffer[this.position++] = 0;
+                    }
+                    break;
+                case TAG_BARCODE_SEQ:
+                    if(baseQualsIndex != null){
+                        this.writeStringTagName(this.tagNames[TAG_BARCODE_SEQ]);
+                        System.arraycopy(baseQualsIndex[0], 0, this.buffer, this.position, baseQualsIndex[0].length);
+                        this.position += baseQualsIndex[0].length;
+                        this.buffer[this.position++] = 0;
+                    }
+                    break;
+                case TAG_BARCODE_QUAL:
+                    if(baseQualsIndex != null){
+                        this.writeStringTagName(this.tagNames[TAG_BARCODE_QUAL]);
+                        for(byte qual : baseQualsIndex[1]){
+                            this.buffer[this.position++] = (byte) (qual + 33);
+                        }
+                        this.buffer[this.position++] = 0;
+                    }
+                    break;
+                case TAG_XB:
+                    if(firstRead && !barcodesMatch){
+                        this.writeIntegerTag(this.tagNames[TAG_XB], 1);
+                    }
+                    break;
+                case TAG_XC:
+                    if(firstRead && isControl){
+                        this.writeIntegerTag(this.tagNames[TAG_XC], 1);
+                    }
+                    break;
+                case TAG_XD:
+                    if(isDuplicate){
+                        this.writeIntegerTag(this.tagNames[TAG_XD], 1);
+                    }
+                    break;
+            }
+        }
+
+        int blockSize = this.position - 4;
+        this.buffer[0] = (byte) blockSize;
+        this.buffer[1] = (byte) (blockSize >> 8);
+        this.buffer[2] = (byte) (blockSize >> 16);
+        this.buffer[3] = (byte) (blockSize >> 24);
+
+        return this.position;
+    }
+
+    /**
+     * @return the buffer holding the last encoded record from position 0
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the number of bytes of the last encoded record
+     */
+    public int getLength() {
+        return position;
+    }
+
+    private byte [] checkTagName(String tagName){
+        if(tagName == null || tagName.length() != 2){
+            throw new IllegalArgumentException("Tag name must be two characters: " + tagName);
+        }
+        return new byte[]{(byte) tagName.charAt(0), (byte) tagName.charAt(1)};
+    }
+
+    /**
+     * picard keeps the tags of a record sorted by their binary value, second character first
+     * @return tag slots in the order to write
+     */
+    private int [] sortTagsByBinaryValue(){
+
+        int numberOfTags = this.tagNames.length;
+        long [] keys = new long[numberOfTags];
+        for(int i = 0; i < numberOfTags; i++){
+            int binaryTag = (this.tagNames[i][1] << 8) | this.tagNames[i][0];
+            keys[i] = ((long) binaryTag << 8) | i;
+        }
+        Arrays.sort(keys);
+
+        int [] order = new int[numberOfTags];
+        for(int i = 0; i < numberOfTags; i++){
+            order[i] = (int) (keys[i] & 0xFF);
+        }
+        return order;
+    }
+
+    private void writeStringTagName(byte [] tagName){
+        this.buffer[this.position++] = tagName[0];
+        this.buffer[this.position++] = tagName[1];
+        this.buffer[this.position++] = 'Z';
+    }
+
+    /**
+     * write an integer tag using the smallest type, the same rule as picard
+     * @param tagName
+     * @param value
+     */
+    private void writeIntegerTag(byte [] tagName, int value){
+
+        this.buffer[this.position++] = tagName[0];
+        this.buffer[this.position++] = tagName[1];
+
+        if(value > 65535){
+            this.buffer[this.position++] = 'i';
+            this.writeInt(value);
+        }else if(value > 32767){
+            this.buffer[this.position++] = 'S';
+            this.writeShort(value);
+        }else if(value > 255){
+            this.buffer[this.position++] = 's';
+            this.writeShort(value);
+        }else if(value > 127){
+            this.buffer[this.position++] = 'C';
+            this.buffer[this.position++] = (byte) value;
+        }else if(value >= -128){
+            this.buffer[this.position++] = 'c';
+            this.buffer[this.position++] = (byte) value;
+        }else if(value >= -32768){
+            this.buffer[this.position++] = 's';
+            this.writeShort(value);
+        }else{
+            this.buffer[this.position++] = 'i';
+            this.writeInt(value);
+        }
+    }
+
+    private void writeInt(int value){
+        this.buffer[this.position++] = (byte) value;
+        this.buffer[this.position++] = (byte) (value >> 8);
+        this.buffer[this.position++] = (byte) (value >> 16);
+        this.buffer[this.position++] = (byte) (value >> 24);
+    }
+
+    private void writeShort(int value){
+        this.buffer[this.position++] = (byte) value;
+        this.buffer[this.position++] = (byte) (value >> 8);
+    }
+
+    private void ensureCapacity(int size){
+        if(this.buffer.length < size){
+            this.buffer = new byte[Math.max(size, this.buffer.length * 2)];
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.List;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import net.sf.samtools.util.Md5CalculatingOutputStream;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * BAM file writer for unaligned Illumina reads.
+ *
+ * Clusters are encoded by UnalignedBamRecordEncoder straight into the BGZF stream,
+ * any other SAMRecord added is written through picard BAMRecordCodec.
+ *
+ */
+public class UnalignedBamWriter implements SAMFileWriter, ClusterWriter, Flushable {
+
+    private static final byte [] BAM_MAGIC = {'B', 'A', 'M', 1};
+
+    private final SAMFileHeader header;
+    private final String fileName;
+    private final BlockCompressedOutputStream blockCompressedOutputStream;
+    private final UnalignedBamRecordEncoder encoder;
+    private BAMRecordCodec samRecordCodec;
+    private StageTimer stageTimer;
+
+    /**
+     *
+     * @param header BAM header, the first read group id will be used as RG tag for all clusters
+     * @param output output bam file
+     * @param createMd5File create md5 file for output or not
+     * @param barcodeSeqTagName tag name for barcode sequence
+     * @param barcodeQualTagName tag name for barcode quality
+     */
+    public UnalignedBamWriter(SAMFileHeader header,
+            File output,
+            boolean createMd5File,
+            String barcodeSeqTagName,
+            String barcodeQualTagName){
+
+        this(header,
+             openOutputStream(output, createMd5File),
+             output,
+             BlockCompressedOutputStream.getDefaultCompressionLevel(),
+             barcodeSeqTagName,
+             barcodeQualTagName);
+    }
+
+    /**
+     *
+     * @param header BAM header, the first read group id will be used as RG tag for all clusters
+     * @param outputStream where to write compressed bam
+     * @param output output file, only used for its name and could be null
+     * @param compressionLevel BGZF compression level
+     * @param barcodeSeqTagName tag name for barcode sequence
+     * @param barcodeQualTagName tag name for barcode quality
+     */
+    public UnalignedBamWriter(SAMFileHeader header,
+            OutputStream outputStream,
+            File output,
+            int compressionLevel,
+            String barcodeSeqTagName,
+            String barcodeQualTagName){
+
+        this(header, outputStream, output, compressionLevel, barcodeSeqTagName, barcodeQualTagName, true);
+    }
+
+    /**
+     *
+     * @param header BAM header, the first read group id will be used as RG tag for all clusters
+     * @param outputStream where to write compressed bam
+     * @param output output file, only used for its name and could be null
+     * @param compressionLevel BGZF compression level
+     * @param barcodeSeqTagName tag name for barcode sequence
+     * @param barcodeQualTagName tag name for barcode quality
+     * @param writeHeader write BAM header or only records, a BAM fragment to be put after a header later
+     */
+    public UnalignedBamWriter(SAMFileHeader header,
+            OutputStream outputStream,
+            File output,
+            int compressionLevel,
+            String barcodeSeqTagName,
+            String barcodeQualTagName,
+            boolean writeHeader){
+
+        this.header = header;
+        this.fileName = (output != null) ? output.getAbsolutePath() : null;
+        this.blockCompressedOutputStream = new BlockCompressedOutputStream(outputStream, output, compressionLevel);
+
+        String rgId = "1";
+        List<SAMReadGroupRecord> readGroupList = header.getReadGroups();
+        if (readGroupList != null && !readGroupList.isEmpty()) {
+            rgId = readGroupList.get(0).getId();
+        }
+        this.encoder = new UnalignedBamRecordEncoder(rgId, barcodeSeqTagName, barcodeQualTagName);
+
+        if(writeHeader){
+            writeHeader(this.header, this.blockCompressedOutputStream);
+        }
+    }
+
+    @Override
+    public void addCluster(String readName,
+            int clusterIndex,
+            byte [][] baseQuals,
+            String secondBases,
+            byte [][] baseQualsIndex,
+            int filter,
+            boolean paired,
+            boolean firstRead,
+            boolean barcodesMatch,
+            boolean isControl,
+            boolean isDuplicate){
+
+        long buildStart = (this.stageTimer != null) ? System.nanoTime() : 0;
+        int length = this.encoder.encode(readName, clusterIndex, baseQuals, secondBases, baseQualsIndex,
+                                         filter, paired, firstRead, barcodesMatch, isControl, isDuplicate);
+        if(this.stageTimer != null){
+            this.stageTimer.addBuild(System.nanoTime() - buildStart);
+        }
+        try {
+            this.blockCompressedOutputStream.write(this.encoder.getBuffer(), 0, length);
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to write bam record to " + this.fileName, ex);
+        }
+    }
+
+    @Override
+    public void addAlignment(SAMRecord alignment) {
+        if(this.samRecordCodec == null){
+            this.samRecordCodec = new BAMRecordCodec(this.header);
+            this.samRecordCodec.setOutputStream(this.blockCompressedOutputStream);
+        }
+        this.samRecordCodec.encode(alignment);
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return this.header;
+    }
+
+    /**
+     * compress and write out all records added so far
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        this.blockCompressedOutputStream.flush();
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.blockCompressedOutputStream.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to close bam file " + this.fileName, ex);
+        }
+    }
+
+    /**
+     * @return BGZF virtual file offset where the next record will start
+     */
+    public long getFilePointer() {
+        return this.blockCompressedOutputStream.getFilePointer();
+    }
+
+    /**
+     * @param stageTimer timer to add the time of encoding records to
+     */
+    public void setStageTimer(StageTimer stageTimer) {
+        this.stageTimer = stageTimer;
+    }
+
+    /**
+     * @return the BGZF output stream
+     */
+    protected BlockCompressedOutputStream getBlockCompressedOutputStream() {
+        return blockCompressedOutputStream;
+    }
+
+    /**
+     * write BAM magic, header text and reference list, the same as picard BAMFileWriter
+     *
+     * @param header
+     * @param blockCompressedOutputStream
+     */
+    public static void writeHeader(SAMFileHeader header, BlockCompressedOutputStream blockCompressedOutputStream){
+
+        header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+        StringWriter headerText = new StringWriter();
+        new SAMTextHeaderCodec().encode(headerText, header);
+
+        BinaryCodec codec = new BinaryCodec(blockCompressedOutputStream);
+        codec.writeBytes(BAM_MAGIC);
+        codec.writeString(headerText.toString(), true, false);
+        codec.writeInt(header.getSequenceDictionary().size());
+        for (SAMSequenceRecord sequenceRecord : header.getSequenceDictionary().getSequences()) {
+            codec.writeString(sequenceRecord.getSequenceName(), true, true);
+            codec.writeInt(sequenceRecord.getSequenceLength());
+        }
+    }
+
+    /**
+     * open output file, with md5 calculated while writing if required
+     *
+     * @param output
+     * @param createMd5File
+     * @return output stream
+     */
+    public static OutputStream openOutputStream(File output, boolean createMd5File){
+        try {
+            OutputStream outputStream = new FileOutputStream(output, false);
+            if(createMd5File){
+                outputStream = new Md5CalculatingOutputStream(outputStream, new File(output.getAbsolutePath() + ".md5"));
+            }
+            return outputStream;
+        } catch (FileNotFoundException ex) {
+            throw new RuntimeIOException("Problems to open bam file " + output, ex);
+        }
+    }
+}
@@ -41,6 +41,9 @@ public class BCLFileReader extends IlluminaFileReader {
     private final byte MAX_QUALITY_SCORE = 60;
     private final byte MIN_QUALITY_SCORE = 0;
 
+    //quality scores mapped to binned values, null to keep them
+    private byte [] qualityMap;
+
     /**
      * constructor to generate bcl file input stream
      *  and read the number of clusters
@@ -49,8 +52,18 @@ public class BCLFileReader extends IlluminaFileReader {
      * @throws Exception
      */
     public BCLFileReader(String bclFileName) throws Exception {
+        this(bclFileName, null);
+    }
 
-        super(bclFileName);
+    /**
+     *
+     * @param bclFileName bcl file name
+     * @param manifest run folder manifest to check the file, could be null
+     * @throws Exception
+     */
+    public BCLFileReader(String bclFileName, RunFolderManifest manifest) throws Exception {
+
+        super(bclFileName, manifest);
         this.readFileHeader();
     }
 
@@ -84,6 +97,27 @@ public class BCLFileReader extends IlluminaFileReader {
     @Override
     public byte[] next() {
 
+        byte [] currentClusterPair = new byte[2];
+        if( !this.next(currentClusterPair, 0, currentClusterPair, 1) ){
+            return null;
+        }
+        return currentClusterPair;
+    }
+
+    /**
+     * get base and quality for next cluster into arrays owned by the caller
+     *
+     * @param bases
+     * @param qualities
+     * @param index position in both arrays
+     * @return false if there is no more cluster
+     */
+    public boolean next(byte [] bases, byte [] qualities, int index) {
+        return this.next(bases, index, qualities, index);
+    }
+
+    private boolean next(byte [] bases, int basePosition, byte [] qualities, int qualityPosition) {
+
         try {
 
             byte nextBase;
@@ -93,7 +127,7 @@ public class BCLFileReader extends IlluminaFileReader {
                 //end of the file
                 log.error(ex, "There is no more cluster in BCL file after cluster " + this.getCurrentCluster()
                         + " in file " + this.getFileName() );
-                return null;
+                return false;
             }
 
             //last two bits are base index
@@ -110,18 +144,52 @@ public class BCLFileReader extends IlluminaFileReader {
             //convert base to char or unknow
             byte base = (qul != 0) ? this.BASE_ARRAY[baseIndex] : this.UNKNOWN_BASE;
 
-            byte [] currentClusterPair = new byte[2];
-            currentClusterPair[0] = base;
-            currentClusterPair[1] = qul;
+            if(this.qualityMap != null){
+                qul = this.qualityMap[qul];
+            }
+
+            bases[basePosition] = base;
+            qualities[qualityPosition] = qul;
 
             this.currentCluster++;
-            return currentClusterPair;
+            return true;
 
         } catch (IOException ex) {
             log.error(ex, "There is problems to read the file" + this.getFileName());
         }
 
-        return null;
+        return false;
+    }
+
+    /**
+     * @param qualityMap binned quality indexed by quality in the file, null to keep qualities
+     */
+    public void setQualityMap(byte[] qualityMap) {
+        this.qualityMap = qualityMap;
+    }
+
+    /**
+     * skip forward to a cluster, seeking in the file instead of reading if it is beyond the input buffer
+     *
+     * @param cluster index of the next cluster to read, from 0
+     * @throws IOException
+     */
+    public void skipToCluster(int cluster) throws IOException {
+
+        if(cluster < this.currentCluster || cluster > this.totalClusters){
+            throw new IllegalArgumentException("Can not skip from cluster " + this.currentCluster
+                    + " to " + cluster + " in file " + this.getFileName());
+        }
+        long bytes = cluster - this.currentCluster;
+        while(bytes > 0){
+            long skipped = this.inputStream.skip(bytes);
+            if(skipped <= 0){
+                throw new EOFException("There is no more cluster in BCL file after cluster "
+                        + (cluster - bytes) + " in file " + this.getFileName());
+            }
+            bytes -= skipped;
+        }
+        this.currentCluster = cluster;
     }
 
     /**
@@ -19,6 +19,7 @@
 package illumina.file.reader;
 
 import java.io.IOException;
+import java.io.InputStream;
 import net.sf.picard.util.Log;
 
 
@@ -45,8 +46,18 @@ public class CLocsFileReader extends IlluminaFileReader {
      * @param cLocsFileName clocs file name
      */
     public CLocsFileReader(String cLocsFileName) throws Exception {
+        this(cLocsFileName, (RunFolderManifest) null);
+    }
+
+    /**
+     *
+     * @param cLocsFileName clocs file name
+     * @param manifest run folder manifest to check the file, could be null
+     * @throws Exception
+     */
+    public CLocsFileReader(String cLocsFileName, RunFolderManifest manifest) throws Exception {
 
-        super(cLocsFileName);
+        super(cLocsFileName, manifest);
 
 
         this.readFileHeader();
@@ -54,6 +65,18 @@ public class CLocsFileReader extends IlluminaFileReader {
 
     }
 
+    /**
+     *
+     * @param cLocsFileName clocs file name, only used in messages
+     * @param inputStream content of the clocs file
+     * @throws Exception
+     */
+    public CLocsFileReader(String cLocsFileName, InputStream inputStream) throws Exception {
+
+        super(cLocsFileName, inputStream);
+        this.readFileHeader();
+    }
+
     /**
      * read cLocs file header
      * @throws Exception
@@ -99,6 +122,24 @@ public class CLocsFileReader extends IlluminaFileReader {
     @Override
     public String[] next() {
 
+        int [] position = new int[2];
+        if( !this.next(position) ){
+            return null;
+        }
+        String[] pos = new String[2];
+        pos[0] = Integer.toString(position[0]);
+        pos[1] = Integer.toString(position[1]);
+        return pos;
+    }
+
+    /**
+     * read the position of next cluster into an array owned by the caller
+     *
+     * @param position [x, y]
+     * @return false if there is no more cluster
+     */
+    public boolean next(int [] position) {
+
         if (!this.hasNext()) {
            throw new RuntimeException("Try to read a block "
                     + getCurrentBlock()
@@ -118,29 +159,24 @@ public class CLocsFileReader extends IlluminaFileReader {
 
             if (this.currentBlockUnreadClusters < 0) {
                 log.warn("There is no more block in " + this.getFileName() + ". Current block: " + this.getCurrentBlock());
-                return null;
+                return false;
             }
 
             int dx = inputStream.readUnsignedByte();
             int dy = inputStream.readUnsignedByte();
 
-            int x = 10 * BLOCK_SIZE * ((getCurrentBlock() - 1) % BLOCKS_PER_LINE) + dx + 1000;
-            int y = 10 * BLOCK_SIZE * ((getCurrentBlock() - 1) / BLOCKS_PER_LINE) + dy + 1000;
-
-            String[] pos = new String[2];
-            
-            pos[0] = Integer.toString(x);
-            pos[1] = Integer.toString(y);
+            position[0] = 10 * BLOCK_SIZE * ((getCurrentBlock() - 1) % BLOCKS_PER_LINE) + dx + 1000;
+            position[1] = 10 * BLOCK_SIZE * ((getCurrentBlock() - 1) / BLOCKS_PER_LINE) + dy + 1000;
 
             this.currentTotalClusters++;
 
-            return pos;
+            return true;
 
         } catch (IOException ex) {
             log.error(ex, "Problem to read clock file");
         }
 
-        return null;
+        return false;
     }
 
     /**
@@ -20,6 +20,7 @@ package illumina.file.reader;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import net.sf.picard.util.Log;
 import sun.tools.tree.UnsignedShiftRightExpression;
 
@@ -45,8 +46,30 @@ public class ControlFileReader extends IlluminaFileReader {
      * @throws Exception
      */
     public ControlFileReader(String controlFileName) throws Exception {
+        this(controlFileName, (RunFolderManifest) null);
+    }
+
+    /**
+     *
+     * @param controlFileName control file name
+     * @param manifest run folder manifest to check the file, could be null
+     * @throws Exception
+     */
+    public ControlFileReader(String controlFileName, RunFolderManifest manifest) throws Exception {
 
-        super(controlFileName);
+        super(controlFileName, manifest);
+        this.readFileHeader();
+    }
+
+    /**
+     *
+     * @param controlFileName control file name, only used in messages
+     * @param inputStream content of the control file
+     * @throws Exception
+     */
+    public ControlFileReader(String controlFileName, InputStream inputStream) throws Exception {
+
+        super(controlFileName, inputStream);
         this.readFileHeader();
     }
 
@@ -120,6 +143,32 @@ public class ControlFileReader extends IlluminaFileReader {
         return null;
     }
 
+    /**
+     * read all remaining clusters in blocks and count the control ones,
+     * much faster than next() for each cluster when only the counts are needed
+     *
+     * @return the number of control clusters of the whole file
+     * @throws IOException if the file has fewer clusters than its header says
+     */
+    public int countControlClusters() throws IOException {
+
+        byte [] block = new byte[BULK_READ_SIZE];
+        while (this.currentCluster < this.totalClusters) {
+            int length = Math.min(block.length / 2, this.totalClusters - this.currentCluster);
+            try {
+                this.inputStream.readFully(block, 0, 2 * length);
+            } catch (EOFException ex) {
+                throw new EOFException("There is no more cluster in Control file after cluster " + this.currentCluster + " in file " + this.getFileName());
+            }
+            //the same bit as next(), which reads each cluster as a big-endian short
+            for (int i = 1; i < 2 * length; i += 2) {
+                this.currentControlClusters += (block[i] >> 1) & 0x1;
+            }
+            this.currentCluster += length;
+        }
+        return this.currentControlClusters;
+    }
+
     /**
      * @return the currentCluster
      */
@@ -18,7 +18,9 @@
  */
 package illumina.file.reader;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import net.sf.picard.util.Log;
 
 /**
@@ -42,8 +44,30 @@ public class FilterFileReader extends IlluminaFileReader {
      * @throws Exception
      */
     public FilterFileReader(String filterFileName) throws Exception {
+        this(filterFileName, (RunFolderManifest) null);
+    }
+
+    /**
+     *
+     * @param filterFileName filter file name
+     * @param manifest run folder manifest to check the file, could be null
+     * @throws Exception
+     */
+    public FilterFileReader(String filterFileName, RunFolderManifest manifest) throws Exception {
 
-        super(filterFileName);
+        super(filterFileName, manifest);
+        this.readFileHeader();
+    }
+
+    /**
+     *
+     * @param filterFileName filter file name, only used in messages
+     * @param inputStream content of the filter file
+     * @throws Exception
+     */
+    public FilterFileReader(String filterFileName, InputStream inputStream) throws Exception {
+
+        super(filterFileName, inputStream);
         this.readFileHeader();
     }
 
@@ -107,6 +131,31 @@ public class FilterFileReader extends IlluminaFileReader {
         return null;
     }
 
+    /**
+     * read all remaining clusters in blocks and count the passing filter ones,
+     * much faster than next() for each cluster when only the counts are needed
+     *
+     * @return the number of passing filter clusters of the whole file
+     * @throws IOException if the file has fewer clusters than its header says
+     */
+    public int countPFClusters() throws IOException {
+
+        byte [] block = new byte[BULK_READ_SIZE];
+        while (this.currentCluster < this.totalClusters) {
+            int length = Math.min(block.length, this.totalClusters - this.currentCluster);
+            try {
+                this.inputStream.readFully(block, 0, length);
+            } catch (EOFException ex) {
+                throw new EOFException("There is no more cluster in Filter file after cluster " + this.currentCluster + " in file " + this.getFileName());
+            }
+            for (int i = 0; i < length; i++) {
+                this.currentPFClusters += block[i] & 0x1;
+            }
+            this.currentCluster += length;
+        }
+        return this.currentPFClusters;
+    }
+
     /**
      * @return the currentCluster
      */
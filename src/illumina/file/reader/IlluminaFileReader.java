@@ -22,12 +22,13 @@ import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.util.Iterator;
 
-import java.io.FileInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import illumina.MemoryBudget;
 import net.sf.picard.util.Log;
 
 
@@ -43,6 +44,19 @@ public class IlluminaFileReader implements Iterator<Object>, Closeable {
     protected final String fileName;
     protected DataInputStream inputStream;
 
+    //same as BufferedInputStream default
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final int MIN_BUFFER_SIZE = 1024;
+
+    //block size to count bits of many clusters at once
+    protected static final int BULK_READ_SIZE = 65536;
+
+    private static volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    //bytes reserved from memory budget for the input buffer and for data kept by the reader
+    private long reservedBufferBytes = 0;
+    private long reservedBytes = 0;
+
     /**
      *
      * @param fileName bcl, clocs and filter etc illumina file name
@@ -54,6 +68,37 @@ public class IlluminaFileReader implements Iterator<Object>, Closeable {
         this.openInputFile(fileName);
     }
 
+    /**
+     *
+     * @param fileName bcl, clocs and filter etc illumina file name
+     * @param manifest run folder manifest to check the file instead of the file system, could be null
+     * @throws Exception
+     */
+    public IlluminaFileReader(String fileName, RunFolderManifest manifest) throws Exception {
+
+        this.fileName = fileName;
+        if(manifest == null){
+            this.openInputFile(fileName);
+        }else if(fileName == null){
+            throw new IllegalArgumentException("File name must be given.");
+        }else if(!manifest.exists(fileName)){
+            throw new FileNotFoundException("File does not exist: " + fileName);
+        }else{
+            this.inputStream = this.openDataInputStream(new File(fileName));
+        }
+    }
+
+    /**
+     *
+     * @param fileName name of the data, only used in messages
+     * @param inputStream data of the file, such as from a run archive
+     */
+    public IlluminaFileReader(String fileName, InputStream inputStream) {
+
+        this.fileName = fileName;
+        this.inputStream = new DataInputStream(inputStream);
+    }
+
     /**
      * check file, open it if it is valid
      * @param fileName
@@ -72,15 +117,72 @@ public class IlluminaFileReader implements Iterator<Object>, Closeable {
             } else if (!file.canRead()) {
                 throw new FileNotFoundException("File cannot be read: " + fileName);
             } else {
-                this.inputStream = new DataInputStream(
-                        new BufferedInputStream(
-                          new FileInputStream(file)
-                        )
-                );
+                this.inputStream = this.openDataInputStream(file);
             }
         }
     }
 
+    /**
+     * @return input buffer size of files opened from now on
+     */
+    public static int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param size input buffer size of files opened from now on
+     */
+    public static void setBufferSize(int size) {
+        if(size <= 0){
+            throw new IllegalArgumentException("Buffer size must be positive: " + size);
+        }
+        bufferSize = size;
+    }
+
+    /**
+     * open a buffered stream, with the buffer reserved from memory budget
+     * and smaller than default if the budget is low
+     *
+     * @param file
+     * @return data input stream
+     * @throws FileNotFoundException
+     */
+    private DataInputStream openDataInputStream(File file) throws FileNotFoundException {
+        int size = (int) MemoryBudget.reserveDefault(bufferSize, Math.min(bufferSize, MIN_BUFFER_SIZE), "Buffer of " + file.getName());
+        this.reservedBufferBytes += size;
+        return new DataInputStream(
+                new BufferedInputStream(
+                  InputTiming.openInputStream(file), size
+                )
+        );
+    }
+
+    /**
+     * reserve memory from the budget, released when this reader is closed
+     *
+     * @param bytes
+     */
+    protected void reserveMemory(long bytes) {
+        MemoryBudget.reserveDefault(bytes, "Reading " + this.fileName);
+        this.reservedBytes += bytes;
+    }
+
+    /**
+     * close input stream and release its buffer, memory reserved for data is kept until the reader is closed
+     */
+    protected void closeInputStream() {
+        if (this.inputStream != null) {
+            try {
+                this.inputStream.close();
+            } catch (IOException ex) {
+                log.error(ex, "Cannot close file");
+            }
+            this.inputStream = null;
+        }
+        MemoryBudget.releaseDefault(this.reservedBufferBytes);
+        this.reservedBufferBytes = 0;
+    }
+
     @Override
     public boolean hasNext() {
         throw new UnsupportedOperationException("Not supported yet.");
@@ -97,18 +199,14 @@ public class IlluminaFileReader implements Iterator<Object>, Closeable {
     }
 
     /**
-     * close file input stream
+     * close file input stream and release memory reserved
      */
     @Override
     public void close() {
 
-        if (this.inputStream != null) {
-            try {
-                this.inputStream.close();
-            } catch (IOException ex) {
-                log.error(ex, "Cannot close file");
-            }
-        }
+        this.closeInputStream();
+        MemoryBudget.releaseDefault(this.reservedBytes);
+        this.reservedBytes = 0;
     }
 
     /**
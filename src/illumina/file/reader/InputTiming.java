@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina.file.reader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time spent and bytes read from Illumina input files, by input type.
+ *
+ * Disabled by default. When enabled, files opened by IlluminaFileReader are read through
+ * a stream counting each read from the file system, which is once per buffer fill,
+ * so the cost of timing is small compared to reading the file.
+ *
+ */
+public final class InputTiming {
+
+    public static final int BCL     = 0;
+    public static final int SCL     = 1;
+    public static final int FILTER  = 2;
+    public static final int CLOCS   = 3;
+    public static final int CONTROL = 4;
+
+    public static final String [] INPUT_TYPES = {"bcl", "scl", "filter", "clocs", "control"};
+
+    private static volatile boolean enabled = false;
+
+    private static final AtomicLongArray nanos = new AtomicLongArray(INPUT_TYPES.length);
+    private static final AtomicLongArray bytes = new AtomicLongArray(INPUT_TYPES.length);
+
+    private InputTiming(){
+    }
+
+    /**
+     * @param enable start or stop timing files opened from now on
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * @return true if timing is enabled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param type one of the input type constants
+     * @return nanoseconds spent reading files of this type so far
+     */
+    public static long getNanos(int type) {
+        return nanos.get(type);
+    }
+
+    /**
+     * @param type one of the input type constants
+     * @return bytes read from files of this type so far
+     */
+    public static long getBytes(int type) {
+        return bytes.get(type);
+    }
+
+    /**
+     *
+     * @param fileName
+     * @return input type of the file from its extension, -1 if not a known type
+     */
+    public static int getInputType(String fileName) {
+        for(int type = 0; type < INPUT_TYPES.length; type++){
+            if(fileName.endsWith("." + INPUT_TYPES[type])){
+                return type;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * open a file, timed if timing is enabled and the file is a known input type
+     *
+     * @param file
+     * @return input stream
+     * @throws FileNotFoundException
+     */
+    public static InputStream openInputStream(File file) throws FileNotFoundException {
+        int type = getInputType(file.getName());
+        if(enabled && type >= 0){
+            return new TimedFileInputStream(file, type);
+        }
+        return new FileInputStream(file);
+    }
+
+    /**
+     * file input stream adding time and bytes of each read to the counters of its input type
+     */
+    private static class TimedFileInputStream extends FileInputStream {
+
+        private final int type;
+
+        TimedFileInputStream(File file, int type) throws FileNotFoundException {
+            super(file);
+            this.type = type;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int value = super.read();
+            nanos.addAndGet(this.type, System.nanoTime() - start);
+            if(value >= 0){
+                bytes.addAndGet(this.type, 1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int count = super.read(b, off, len);
+            nanos.addAndGet(this.type, System.nanoTime() - start);
+            if(count > 0){
+                bytes.addAndGet(this.type, count);
+            }
+            return count;
+        }
+    }
+}
@@ -23,6 +23,8 @@ import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import net.sf.picard.util.Log;
 
 /**
@@ -46,17 +48,44 @@ public class PosFileReader implements Closeable {
         this.fileReader = new BufferedReader(new FileReader(this.fileName));
     }
 
+    /**
+     *
+     * @param fileName pos file name, only used in messages
+     * @param inputStream content of the pos file
+     */
+    public PosFileReader(String fileName, InputStream inputStream) {
+        this.fileName = fileName;
+        this.fileReader = new BufferedReader(new InputStreamReader(inputStream));
+    }
+
     /**
      * 
      * @return cluster position coordinates as an array
      */
     public String [] next() {
         String [] pos = new String [2];
+        int [] position = new int[2];
+        if( !this.next(position) ){
+            return null;
+        }
+        for (int i= 0; i<2; i++){
+            pos [i] = Integer.toString ( position[i] );
+        }
+        return pos;
+    }
+
+    /**
+     * read the position of next cluster into an array owned by the caller
+     *
+     * @param position [x, y]
+     * @return false if there is no more cluster
+     */
+    public boolean next(int [] position) {
         try {
             String nextLine = this.fileReader.readLine();
             if(nextLine == null){
                 this.log.error("There is no more cluster in this pos file");
-                return null;
+                return false;
             }
             String [] coordinates = nextLine.split(" ");
             if(coordinates.length != 2){
@@ -64,13 +93,14 @@ public class PosFileReader implements Closeable {
             }
             for (int i= 0; i<2; i++){
                 double tempCoor = Math.round( Double.parseDouble(coordinates[i]) * 10.0 );
-                pos [i] = Integer.toString ( (int)tempCoor + 1000 );
+                position [i] = (int)tempCoor + 1000;
             }
             this.currentTotalClusters++;
+            return true;
         } catch (IOException ex) {
             log.error(ex, "Problem to read pos file: " + ex);
         }
-        return pos;
+        return false;
     }
 
 
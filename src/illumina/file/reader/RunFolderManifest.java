@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina.file.reader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.picard.util.Log;
+
+/**
+ * Names and sizes of all files in the directories of one lane in a run folder,
+ * listed once for each directory instead of checking each file on its own.
+ *
+ * The base call directory, its lane directory with all cycle directories,
+ * the intensity directory and its lane directory are listed.
+ * File names are kept the way Tile builds them, directory name with separator and file name.
+ * Files in other directories are checked on the file system.
+ *
+ * The manifest can be saved to a cache file and loaded by the next run on the same run folder,
+ * it is listed again if the modification time of any directory changed.
+ *
+ */
+public class RunFolderManifest {
+
+    private final Log log = Log.getInstance(RunFolderManifest.class);
+
+    private static final String CACHE_HEADER = "#illumina2bam run folder manifest";
+
+    //modification time by directory and size by file
+    private final LinkedHashMap<String, Long> directories = new LinkedHashMap<String, Long>();
+    private final HashMap<String, Long> files = new HashMap<String, Long>();
+
+    private RunFolderManifest(){
+    }
+
+    /**
+     * list all directories of a lane
+     *
+     * @param intensityDir
+     * @param baseCallDir
+     * @param laneNumber
+     * @return manifest
+     */
+    public static RunFolderManifest build(String intensityDir, String baseCallDir, int laneNumber){
+
+        RunFolderManifest manifest = new RunFolderManifest();
+        String laneSubDir = "L00" + laneNumber;
+
+        manifest.listDirectory(intensityDir);
+        manifest.listDirectory(intensityDir + File.separator + laneSubDir);
+        manifest.listDirectory(baseCallDir);
+
+        String laneDir = baseCallDir + File.separator + laneSubDir;
+        String [] cycleDirs = manifest.listDirectory(laneDir);
+        if(cycleDirs != null){
+            for(String cycleDir : cycleDirs){
+                if(cycleDir.matches("C\\d+\\.1")){
+                    manifest.listDirectory(laneDir + File.separator + cycleDir);
+                }
+            }
+        }
+        manifest.log.info(manifest.files.size() + " files listed in " + manifest.directories.size() + " directories");
+        return manifest;
+    }
+
+    /**
+     * load manifest from cache file, or build it and save it to cache file if missing or out of date
+     *
+     * @param cacheFile
+     * @param intensityDir
+     * @param baseCallDir
+     * @param laneNumber
+     * @return manifest
+     * @throws IOException
+     */
+    public static RunFolderManifest load(File cacheFile, String intensityDir, String baseCallDir, int laneNumber) throws IOException {
+
+        if(cacheFile.exists()){
+            RunFolderManifest manifest = readCache(cacheFile);
+            if(manifest.isUpToDate()){
+                manifest.log.info("Run folder manifest loaded from " + cacheFile);
+                return manifest;
+            }
+            manifest.log.info("Run folder changed, listing it again");
+        }
+        RunFolderManifest manifest = build(intensityDir, baseCallDir, laneNumber);
+        manifest.save(cacheFile);
+        return manifest;
+    }
+
+    /**
+     * @param fileName
+     * @return true if the file exists
+     */
+    public boolean exists(String fileName){
+        if(this.isListed(fileName)){
+            return this.files.containsKey(fileName);
+        }
+        return new File(fileName).exists();
+    }
+
+    /**
+     * @param fileName
+     * @return file size, 0 if the file does not exist as File.length
+     */
+    public long length(String fileName){
+        if(this.isListed(fileName)){
+            Long length = this.files.get(fileName);
+            return (length != null) ? length : 0;
+        }
+        return new File(fileName).length();
+    }
+
+    /**
+     * @return true if no listed directory was modified since the manifest was built
+     */
+    public boolean isUpToDate(){
+        for(Map.Entry<String, Long> directory : this.directories.entrySet()){
+            if(new File(directory.getKey()).lastModified() != directory.getValue()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param cacheFile
+     * @throws IOException
+     */
+    public void save(File cacheFile) throws IOException {
+        FileWriter writer = new FileWriter(cacheFile);
+        writer.write(CACHE_HEADER + "\n");
+        for(Map.Entry<String, Long> directory : this.directories.entrySet()){
+            writer.write("D\t" + directory.getKey() + "\t" + directory.getValue() + "\n");
+        }
+        for(Map.Entry<String, Long> file : this.files.entrySet()){
+            writer.write("F\t" + file.getKey() + "\t" + file.getValue() + "\n");
+        }
+        writer.close();
+    }
+
+    private static RunFolderManifest readCache(File cacheFile) throws IOException {
+
+        RunFolderManifest manifest = new RunFolderManifest();
+        BufferedReader reader = new BufferedReader(new FileReader(cacheFile));
+        String line = reader.readLine();
+        if(line == null || !line.equals(CACHE_HEADER)){
+            reader.close();
+            throw new IOException("Not a run folder manifest: " + cacheFile);
+        }
+        while((line = reader.readLine()) != null){
+            String [] fields = line.split("\t");
+            if(fields.length != 3){
+                continue;
+            }
+            if(fields[0].equals("D")){
+                manifest.directories.put(fields[1], Long.parseLong(fields[2]));
+            }else if(fields[0].equals("F")){
+                manifest.files.put(fields[1], Long.parseLong(fields[2]));
+            }
+        }
+        reader.close();
+        return manifest;
+    }
+
+    /**
+     * @param directoryName
+     * @return names in the directory, null if not a directory
+     */
+    private String [] listDirectory(String directoryName){
+
+        File directory = new File(directoryName);
+        File [] entries = directory.listFiles();
+        if(entries == null){
+            return null;
+        }
+        this.directories.put(directoryName, directory.lastModified());
+
+        //one stat for each entry, sub directories are kept as well but never opened as files
+        String [] names = new String[entries.length];
+        for(int i = 0; i < entries.length; i++){
+            names[i] = entries[i].getName();
+            this.files.put(directoryName + File.separator + names[i], entries[i].length());
+        }
+        return names;
+    }
+
+    private boolean isListed(String fileName){
+        int separator = fileName.lastIndexOf(File.separatorChar);
+        return separator > 0 && this.directories.containsKey(fileName.substring(0, separator));
+    }
+}
@@ -31,7 +31,8 @@ public class SCLFileReader extends IlluminaFileReader {
     private final Log log = Log.getInstance(SCLFileReader.class);
     
     private final char[] BASE_ARRAY = {'A', 'C', 'G', 'T'};
-    private char[] bases;
+    //four bases packed in each byte as in the file
+    private byte[] baseBytes;
     private int currentCluster = 0;
     private int totalClusters = 0;
 
@@ -44,11 +45,20 @@ public class SCLFileReader extends IlluminaFileReader {
      * @throws Exception
      */
     public SCLFileReader(String sclFileName) throws Exception {
+        this(sclFileName, null);
+    }
+
+    /**
+     *
+     * @param sclFileName scl file name
+     * @param manifest run folder manifest to check the file, could be null
+     * @throws Exception
+     */
+    public SCLFileReader(String sclFileName, RunFolderManifest manifest) throws Exception {
 
-        super(sclFileName);
+        super(sclFileName, manifest);
 
         this.readFileHeader();
-        //TODO: stop read all bases to memory if using too much memory
         this.readBases();
 
     }
@@ -65,45 +75,32 @@ public class SCLFileReader extends IlluminaFileReader {
     }
 
     /**
-     * read all bases into an array
+     * read all bases into memory, still packed four bases per byte
      * @throws IOException
      */
     private void readBases() throws Exception {
 
-        this.bases = new char[this.getTotalClusters()];
-
         int numberBaseBytes = (int) Math.ceil(this.getTotalClusters() / 4.0);
-        byte[] baseBytes = new byte[numberBaseBytes];
+        this.reserveMemory(numberBaseBytes);
+        this.baseBytes = new byte[numberBaseBytes];
 
-        int read = this.inputStream.read(baseBytes);
+        int read = this.inputStream.read(this.baseBytes);
 
         if (read == -1) {
             log.error("The file does not have the required number of clusters: " + this.getTotalClusters());
             throw new Exception("The file does not have the required number of clusters");
         }
 
-        this.close();
-        this.inputStream = null;
-
-        for (int b = 0; b < this.getTotalClusters(); b++) {
-            int i = b / 4;
-            int j = b % 4;
-            switch (j) {
-                case 0:
-                    bases[b] = BASE_ARRAY[(baseBytes[i] >> 6) & 3];
-                    break;
-                case 1:
-                    bases[b] = BASE_ARRAY[(baseBytes[i] >> 4) & 3];
-                    break;
-                case 2:
-                    bases[b] = BASE_ARRAY[(baseBytes[i] >> 2) & 3];
-                    break;
-                case 3:
-                    bases[b] = BASE_ARRAY[(baseBytes[i]) & 3];
-                    break;
-            }
+        this.closeInputStream();
+    }
 
-        }
+    /**
+     * @param cluster cluster index from 0
+     * @return second base call of the cluster
+     */
+    private char getBase(int cluster) {
+        int shift = 6 - 2 * (cluster % 4);
+        return BASE_ARRAY[(this.baseBytes[cluster / 4] >> shift) & 3];
     }
 
     /**
@@ -128,7 +125,20 @@ public class SCLFileReader extends IlluminaFileReader {
             return null;
         }
 
-        return this.bases[currentCluster++];
+        return this.getBase(currentCluster++);
+    }
+
+    /**
+     * skip forward to a cluster
+     *
+     * @param cluster index of the next cluster to read, from 0
+     */
+    public void skipToCluster(int cluster) {
+        if(cluster < this.currentCluster || cluster > this.totalClusters){
+            throw new IllegalArgumentException("Can not skip from cluster " + this.currentCluster
+                    + " to " + cluster + " in file " + this.getFileName());
+        }
+        this.currentCluster = cluster;
     }
 
     /**
@@ -156,9 +166,9 @@ public class SCLFileReader extends IlluminaFileReader {
 
         System.out.println(scl.getTotalClusters());
 
-        char[] bases = scl.bases;
         int count = 0;
-        for (char b : bases) {
+        for (int i = 0; i < scl.getTotalClusters(); i++) {
+            char b = scl.getBase(i);
             count++;
             if ((count % 1000 == 1) || (count == 2609912)) {
                 System.out.println(b);
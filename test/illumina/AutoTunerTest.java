@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Choice of settings from trial speeds
+ */
+public class AutoTunerTest {
+
+    private static final int [] LEVELS = {1, 3, 5, 7};
+
+    @Test
+    public void highestLevelNearlyAsFast() {
+        assertEquals(AutoTuner.chooseCompressionLevel(LEVELS, new double[]{1000, 950, 700, 400}, 5), 3);
+        assertEquals(AutoTuner.chooseCompressionLevel(LEVELS, new double[]{1000, 990, 980, 970}, 5), 7);
+        assertEquals(AutoTuner.chooseCompressionLevel(LEVELS, new double[]{1000, 500, 300, 200}, 5), 1);
+    }
+
+    @Test
+    public void levelsNotTried() {
+        assertEquals(AutoTuner.chooseCompressionLevel(LEVELS, new double[]{1000, 980, 0, 0}, 5), 3);
+        assertEquals(AutoTuner.chooseCompressionLevel(LEVELS, new double[]{0, 0, 0, 0}, 5), 5);
+    }
+
+    @Test
+    public void threadCandidates() {
+        assertEquals(AutoTuner.getThreadCandidates(1), Arrays.asList(1));
+        assertEquals(AutoTuner.getThreadCandidates(4), Arrays.asList(1, 2, 4));
+        assertEquals(AutoTuner.getThreadCandidates(12), Arrays.asList(1, 2, 4, 8, 12));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Concatenated BAM must have the records of all inputs in order
+ */
+public class BamConcatenatorTest {
+
+    @Test
+    public void testMain() throws IOException {
+
+        File part1 = new File("testdata/concat_part1.bam");
+        File part2 = new File("testdata/concat_part2.bam");
+        File output = new File("testdata/concat.bam");
+        writeBam(part1, smallHeader(), 0, 3000);
+        writeBam(part2, smallHeader(), 3000, 10);
+
+        BamConcatenator concatenator = new BamConcatenator();
+        String[] args = {
+            "I=" + part1.getPath(),
+            "I=" + part2.getPath(),
+            "O=" + output.getPath(),
+            "CREATE_MD5_FILE=true",
+            "TMP_DIR=testdata/",
+            "VALIDATION_STRINGENCY=SILENT"
+        };
+        assertEquals(concatenator.instanceMain(args), 0);
+
+        List<String> expected = readRecords(part1);
+        expected.addAll(readRecords(part2));
+        assertEquals(readRecords(output), expected);
+
+        SAMFileReader reader = new SAMFileReader(output);
+        assertNotNull(reader.getFileHeader().getProgramRecord("BamConcatenator"));
+        assertNotNull(reader.getFileHeader().getReadGroup("1"));
+        reader.close();
+
+        File md5 = new File(output.getPath() + ".md5");
+        assertTrue(md5.exists());
+        part1.delete();
+        part2.delete();
+        output.delete();
+        md5.delete();
+    }
+
+    @Test
+    public void headerSpanningBlocks() throws IOException {
+
+        SAMFileHeader header = smallHeader();
+        for(int i = 0; i < 3000; i++){
+            header.addSequence(new SAMSequenceRecord("a_long_reference_sequence_name_" + i, 1000 + i));
+        }
+        File part1 = new File("testdata/concat_long_header1.bam");
+        File part2 = new File("testdata/concat_long_header2.bam");
+        File output = new File("testdata/concat_long_header.bam");
+        writeBam(part1, header, 0, 5);
+        writeBam(part2, header, 5, 2000);
+
+        BgzfConcatenator concatenator = new BgzfConcatenator(output, header, 5, false);
+        concatenator.addBamFile(part1);
+        concatenator.addBamFile(part2);
+        concatenator.close();
+
+        List<String> expected = readRecords(part1);
+        expected.addAll(readRecords(part2));
+        assertEquals(readRecords(output), expected);
+        assertFalse(new File(output.getPath() + ".part").exists());
+
+        part1.delete();
+        part2.delete();
+        output.delete();
+    }
+
+    private static SAMFileHeader smallHeader(){
+        SAMFileHeader header = new SAMFileHeader();
+        SAMReadGroupRecord readGroup = new SAMReadGroupRecord("1");
+        readGroup.setSample("sample");
+        header.addReadGroup(readGroup);
+        return header;
+    }
+
+    private static void writeBam(File bam, SAMFileHeader header, int first, int numberOfRecords){
+        SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, false, bam);
+        for(int i = first; i < first + numberOfRecords; i++){
+            SAMRecord record = new SAMRecord(header);
+            record.setReadName("read" + i);
+            record.setReadUnmappedFlag(true);
+            record.setReadString("ACGTACGTAC");
+            record.setBaseQualityString("ABCDEFGHIJ");
+            record.setAttribute("RG", "1");
+            writer.addAlignment(record);
+        }
+        writer.close();
+    }
+
+    private static List<String> readRecords(File bam){
+        List<String> records = new ArrayList<String>();
+        SAMFileReader reader = new SAMFileReader(bam);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        for(SAMRecord record : reader){
+            records.add(record.format());
+        }
+        reader.close();
+        return records;
+    }
+}
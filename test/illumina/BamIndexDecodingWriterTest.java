@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.picard.metrics.MetricsFile;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMProgramRecord;
+import net.sf.samtools.SAMRecord;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Decoding while writing must give the same records and metrics as BamIndexDecoder
+ */
+public class BamIndexDecodingWriterTest {
+
+    @Test
+    public void sameAsBamIndexDecoder() throws IOException {
+
+        File outputDir = new File("testdata/6383_8_inline");
+        outputDir.mkdir();
+
+        String twoStepName = outputDir.getPath() + "/two_step";
+        BamIndexDecoder twoStep = new BamIndexDecoder();
+        String[] args = {
+            "I=testdata/bam/6383_8.sam",
+            "O=" + twoStepName + ".sam",
+            "BARCODE_FILE=testdata/decode/6383_8.tag",
+            "METRICS_FILE=" + twoStepName + ".metrics",
+            "KEEP_UNDETERMINED=true",
+            "TMP_DIR=testdata/",
+            "VALIDATION_STRINGENCY=SILENT",
+            "BARCODE_TAG_NAME=RT"
+        };
+        assertEquals(twoStep.instanceMain(args), 0);
+
+        String inlineName = outputDir.getPath() + "/inline";
+        BamIndexDecoder decoder = new BamIndexDecoder();
+        decoder.BARCODE_FILE = new File("testdata/decode/6383_8.tag");
+        decoder.OUTPUT = new File(inlineName + ".sam");
+        decoder.BARCODE_TAG_NAME = "RT";
+        decoder.KEEP_UNDETERMINED = true;
+        assertNull(decoder.customCommandLineValidation());
+        decoder.setProgramRecord(new SAMProgramRecord("BamIndexDecoder"));
+
+        SAMFileReader in = new SAMFileReader(new File("testdata/bam/6383_8.sam"));
+        in.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        BamIndexDecodingWriter writer = new BamIndexDecodingWriter(decoder, in.getFileHeader());
+        for(SAMRecord record : in){
+            writer.addAlignment(record);
+        }
+        in.close();
+        writer.close();
+        writer.writeMetrics(new MetricsFile<IndexDecoder.BarcodeMetric, Integer>(), new File(inlineName + ".metrics"));
+
+        List<String> twoStepRecords = readRecords(new File(twoStepName + ".sam"));
+        assertFalse(twoStepRecords.isEmpty());
+        assertEquals(twoStepRecords, readRecords(new File(inlineName + ".sam")));
+        assertEquals(readMetrics(new File(twoStepName + ".metrics")), readMetrics(new File(inlineName + ".metrics")));
+
+        for(File file : outputDir.listFiles()){
+            file.delete();
+        }
+        outputDir.delete();
+    }
+
+    private static List<String> readRecords(File samFile){
+        List<String> records = new ArrayList<String>();
+        SAMFileReader reader = new SAMFileReader(samFile);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        for(SAMRecord record : reader){
+            records.add(record.format());
+        }
+        reader.close();
+        return records;
+    }
+
+    private static List<String> readMetrics(File metricsFile) throws IOException{
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(metricsFile));
+        String line;
+        while((line = reader.readLine()) != null){
+            if(!line.startsWith("#")){
+                lines.add(line);
+            }
+        }
+        reader.close();
+        return lines;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.file.reader.BCLFileReader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test selecting clusters by decoding index cycles
+ */
+public class BarcodeClusterSelectorTest {
+
+    private static String intensityDir = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities";
+    private static String baseCallDir  = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls";
+    private static Tile tile;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>(2);
+        cycleRangeByRead.put("read1", new int[]{1, 2});
+        cycleRangeByRead.put("readIndex1", new int[]{50, 50});
+        tile = new Tile(intensityDir, baseCallDir, "HS13_6000", 1, 1101, cycleRangeByRead, false, true, "BC", "QT");
+    }
+
+    @Test
+    public void selectClustersByIndexBase() throws Exception {
+
+        IndexDecoder indexDecoder = new IndexDecoder(Arrays.asList("A", "C", "G", "T"));
+        indexDecoder.setMaxMismatches(0);
+        ArrayList<String> messages = new ArrayList<String>();
+        indexDecoder.prepareDecode(messages);
+        assertTrue(messages.isEmpty());
+
+        BarcodeClusterSelector selector = new BarcodeClusterSelector(indexDecoder, Arrays.asList("C", "T"));
+        assertEquals(selector.toString(), "SELECT_BARCODE=C SELECT_BARCODE=T");
+
+        int totalClusters = 20000;
+        BitSet selected = selector.selectClusters(tile, totalClusters);
+
+        BCLFileReader indexFileReader = tile.openIndexBCLFiles()[0];
+        int expected = 0;
+        for(int i = 0; i < totalClusters; i++){
+            char base = (char) indexFileReader.next()[0];
+            boolean wanted = base == 'C' || base == 'T';
+            assertEquals(selected.get(i), wanted);
+            if(wanted){
+                expected++;
+            }
+        }
+        indexFileReader.close();
+        assertEquals(selected.cardinality(), expected);
+        assertTrue(expected > 0);
+        assertTrue(expected < totalClusters);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownBarcodeName() {
+
+        IndexDecoder indexDecoder = new IndexDecoder(Arrays.asList("A", "C"));
+        indexDecoder.prepareDecode(new ArrayList<String>());
+        new BarcodeClusterSelector(indexDecoder, Arrays.asList("sample1"));
+    }
+}
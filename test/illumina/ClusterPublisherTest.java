@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test streaming clusters to a subscriber
+ */
+public class ClusterPublisherTest {
+
+    private static File intensityDir = new File("testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities");
+
+    private static byte [][] read1 = { {78, 71, 65, 67, 84}, {0, 32, 40, 2, 15} };
+    private static byte [][] read2 = { {65, 67, 71}, {30, 31, 32} };
+    private static byte [][] index = { {84, 67, 78}, {37, 34, 0} };
+
+    @Test
+    public void openAndPartition() throws Exception {
+
+        ClusterPublisher publisher = ClusterPublisher.open(intensityDir, null, 1, false, true);
+        assertEquals(publisher.getTileList().length, 32);
+
+        ClusterPublisher fiveTiles = new ClusterPublisher(null, new int[]{1101, 1102, 1103, 1104, 1105});
+        List<ClusterPublisher> partitions = fiveTiles.partition(2);
+        assertEquals(partitions.size(), 2);
+        assertArrayEquals(partitions.get(0).getTileList(), new int[]{1101, 1103, 1105});
+        assertArrayEquals(partitions.get(1).getTileList(), new int[]{1102, 1104});
+        assertEquals(fiveTiles.partition(8).size(), 5);
+    }
+
+    @Test
+    public void passesFilledCluster() {
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        ClusterPublisher.StreamSink sink = new ClusterPublisher.StreamSink(subscriber);
+        subscriber.onSubscribe(sink);
+
+        sink.startTile(1101);
+        Cluster cluster = sink.getCluster();
+        cluster.reset(1101, 7, 1234, 5678, true, true, true);
+        fillRead(cluster, Cluster.READ1, read1, "ACGTA");
+        fillRead(cluster, Cluster.READ2, read2, "TGC");
+        fillRead(cluster, Cluster.INDEX, index, null);
+        sink.addCluster(cluster);
+
+        //buffers are reused for the next cluster
+        cluster.reset(1101, 8, 99, 100, false, false, false);
+        fillRead(cluster, Cluster.READ1, read1, null);
+        sink.addCluster(cluster);
+        sink.endTile(1101);
+
+        assertEquals(subscriber.clusters.size(), 2);
+        assertEquals(subscriber.clusters.get(0), "1101 7 1234 5678 true true NGACT/ACG/TCN ACGTA/TGC");
+        assertEquals(subscriber.clusters.get(1), "1101 8 99 100 false false NGACT// null/null");
+    }
+
+    @Test
+    public void waitsForRequestedClusters() throws Exception {
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        final ClusterPublisher.StreamSink sink = new ClusterPublisher.StreamSink(subscriber);
+        subscriber.onSubscribe(sink);
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Cluster cluster = sink.getCluster();
+                for(int i = 1; i <= 3; i++){
+                    cluster.reset(1101, i, 1, i, true, false, false);
+                    fillRead(cluster, Cluster.READ1, read1, null);
+                    sink.addCluster(cluster);
+                }
+            }
+        });
+        producer.start();
+        producer.join(500);
+        assertTrue(producer.isAlive());
+        assertEquals(subscriber.clusters.size(), 1);
+
+        subscriber.subscription.request(2);
+        producer.join();
+        assertEquals(subscriber.clusters.size(), 3);
+    }
+
+    @Test(expected=ClusterPublisher.StreamCancelledException.class)
+    public void cancelStopsTile() {
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        ClusterPublisher.StreamSink sink = new ClusterPublisher.StreamSink(subscriber);
+        subscriber.onSubscribe(sink);
+        sink.cancel();
+        sink.getCluster().reset(1101, 1, 1, 1, true, false, false);
+        sink.addCluster(sink.getCluster());
+    }
+
+    @Test
+    public void errorEndsStream() throws Exception {
+
+        //no clocs or pos file for the first tile
+        ClusterPublisher firstTile = ClusterPublisher.open(intensityDir, null, 1, false, true).partition(32).get(0);
+        assertArrayEquals(firstTile.getTileList(), new int[]{1101});
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        firstTile.subscribe(subscriber);
+        assertNotNull(subscriber.error);
+        assertFalse(subscriber.complete);
+        assertTrue(subscriber.clusters.isEmpty());
+    }
+
+    @Test
+    public void sameClustersAsIllumina2bam() throws Exception {
+
+        File runDir = new File("testdata/cluster_stream_run");
+        String streamIntensityDir = runDir.getPath() + "/Intensities";
+        String baseCallDir = streamIntensityDir + "/BaseCalls";
+        int clusters = 500;
+        int [] tiles = {1101, 1102, 1103};
+        //read 1, skipped cycles, index read and read 2 of the cycles in the config files
+        String readStructure = "Y2N47I1Y2";
+
+        try {
+            writeFile(new File(streamIntensityDir + "/config.xml"), new byte[0], readFile(new File(intensityDir + "/config.xml")));
+            writeFile(new File(baseCallDir + "/config.xml"), new byte[0], readFile(new File(intensityDir + "/BaseCalls/config.xml")));
+            Random random = new Random(7);
+            for(int tileNumber : tiles){
+                for(int cycle : new int[]{1, 2, 50, 51, 52}){
+                    byte [] calls = new byte[clusters];
+                    for(int i = 0; i < clusters; i++){
+                        calls[i] = (byte) ((random.nextInt(10) == 0 ? 0 : random.nextInt(41) << 2) | random.nextInt(4));
+                    }
+                    writeFile(new File(Tile.getBaseCallFileName(baseCallDir, 1, tileNumber, cycle, true)), header(clusters), calls);
+                }
+                byte [] filter = new byte[clusters];
+                byte [] control = new byte[2 * clusters];
+                StringBuilder positions = new StringBuilder();
+                for(int i = 0; i < clusters; i++){
+                    filter[i] = (byte) random.nextInt(2);
+                    control[2 * i] = (byte) (random.nextInt(20) == 0 ? 2 : 0);
+                    positions.append(random.nextInt(2000) / 10.0).append(' ').append(random.nextInt(20000) / 10.0).append('\n');
+                }
+                writeFile(new File(baseCallDir + "/L001/s_1_" + tileNumber + ".filter"), fileHeader(3, clusters), filter);
+                writeFile(new File(baseCallDir + "/L001/s_1_" + tileNumber + ".control"), fileHeader(2, clusters), control);
+                writeFile(new File(streamIntensityDir + "/s_1_" + tileNumber + "_pos.txt"), new byte[0], positions.toString().getBytes());
+            }
+
+            File samFile = new File(runDir, "lane.sam");
+            String[] args = {"INTENSITY_DIR=" + streamIntensityDir,
+                "LANE=1",
+                "OUTPUT=" + samFile.getPath(),
+                "FIRST_TILE=1101",
+                "TILE_LIMIT=3",
+                "READ_IDENTIFIER=" + readStructure,
+                "TEMP_DIR=" + runDir.getPath()
+            };
+            assertEquals(new Illumina2bam().instanceMain(args), 0);
+            List<String> expected = readClusters(samFile);
+            assertTrue(expected.size() > clusters);
+
+            Lane lane = new Lane(new File(streamIntensityDir).getAbsolutePath(),
+                    new File(baseCallDir).getAbsolutePath(),
+                    runDir.getAbsolutePath(),
+                    1, false, true,
+                    null, "BC", "QT", false);
+            lane.setReadStructure(new ReadStructure(readStructure));
+            lane.readConfigs();
+            ClusterPublisher publisher = new ClusterPublisher(lane, tiles);
+
+            RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+            publisher.subscribe(subscriber);
+            assertNull(subscriber.error);
+            assertTrue(subscriber.complete);
+            Collections.sort(subscriber.records);
+            assertEquals(subscriber.records, expected);
+
+            List<ClusterPublisher> partitions = publisher.partition(2);
+            List<RecordingSubscriber> subscribers = Arrays.asList(
+                    new RecordingSubscriber(Long.MAX_VALUE), new RecordingSubscriber(Long.MAX_VALUE));
+            ClusterPublisher.subscribeInParallel(partitions, subscribers);
+            List<String> records = new ArrayList<String>();
+            for(RecordingSubscriber partitionSubscriber : subscribers){
+                assertNull(partitionSubscriber.error);
+                assertTrue(partitionSubscriber.complete);
+                assertFalse(partitionSubscriber.records.isEmpty());
+                records.addAll(partitionSubscriber.records);
+            }
+            Collections.sort(records);
+            assertEquals(records, expected);
+        } finally {
+            deleteAll(runDir);
+        }
+    }
+
+    /**
+     * @return one line per cluster as written by RecordingSubscriber, sorted
+     */
+    private static List<String> readClusters(File samFile){
+        HashMap<String, SAMRecord> firstReads = new HashMap<String, SAMRecord>();
+        List<String> clusters = new ArrayList<String>();
+        SAMFileReader reader = new SAMFileReader(samFile);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        for(SAMRecord record : reader){
+            if(record.getFirstOfPairFlag()){
+                firstReads.put(record.getReadName(), record);
+                continue;
+            }
+            SAMRecord firstRead = firstReads.remove(record.getReadName());
+            String [] nameFields = record.getReadName().split(":");
+            clusters.add(nameFields[2] + " " + nameFields[3] + " " + nameFields[4]
+                    + " " + firstRead.getReadString() + " " + firstRead.getBaseQualityString()
+                    + " " + record.getReadString() + " " + record.getBaseQualityString()
+                    + " " + firstRead.getAttribute("BC") + " " + firstRead.getAttribute("QT"));
+        }
+        reader.close();
+        assertTrue(firstReads.isEmpty());
+        Collections.sort(clusters);
+        return clusters;
+    }
+
+    private static String toFastq(byte [] qualities, int length){
+        StringBuilder fastq = new StringBuilder(length);
+        for(int i = 0; i < length; i++){
+            fastq.append((char) (qualities[i] + 33));
+        }
+        return fastq.toString();
+    }
+
+    private static byte [] header(int number){
+        return new byte[]{(byte) number, (byte) (number >> 8), (byte) (number >> 16), (byte) (number >> 24)};
+    }
+
+    private static byte [] fileHeader(int version, int number){
+        byte [] header = new byte[12];
+        System.arraycopy(header(version), 0, header, 4, 4);
+        System.arraycopy(header(number), 0, header, 8, 4);
+        return header;
+    }
+
+    private static void writeFile(File file, byte [] header, byte [] content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(header);
+        out.write(content);
+        out.close();
+    }
+
+    private static byte [] readFile(File file) throws IOException {
+        byte [] content = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        in.readFully(content);
+        in.close();
+        return content;
+    }
+
+    private static void deleteAll(File file){
+        File [] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void fillRead(Cluster cluster, int read, byte [][] baseQuals, String secondBases){
+        int length = baseQuals[0].length;
+        cluster.setLength(read, length, secondBases != null);
+        System.arraycopy(baseQuals[0], 0, cluster.getBases(read), 0, length);
+        System.arraycopy(baseQuals[1], 0, cluster.getQualities(read), 0, length);
+        if(secondBases != null){
+            System.arraycopy(secondBases.getBytes(), 0, cluster.getSecondBases(read), 0, length);
+        }
+    }
+
+    private static class RecordingSubscriber implements ClusterSubscriber {
+
+        private final long initialRequest;
+        private final List<String> clusters = new ArrayList<String>();
+        private final List<String> records = new ArrayList<String>();
+        private ClusterSubscription subscription;
+        private Throwable error;
+        private boolean complete = false;
+
+        RecordingSubscriber(long initialRequest){
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(ClusterSubscription subscription) {
+            this.subscription = subscription;
+            if(this.initialRequest > 0){
+                subscription.request(this.initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(Cluster cluster) {
+            StringBuilder reads = new StringBuilder();
+            StringBuilder secondBases = new StringBuilder();
+            for(int read = Cluster.READ1; read <= Cluster.INDEX; read++){
+                if(read > Cluster.READ1){
+                    reads.append('/');
+                }
+                reads.append(new String(cluster.getBases(read), 0, cluster.getLength(read)));
+            }
+            for(int read = Cluster.READ1; read <= Cluster.READ2; read++){
+                if(read > Cluster.READ1){
+                    secondBases.append('/');
+                }
+                byte [] bases = cluster.getSecondBases(read);
+                secondBases.append(bases == null ? "null" : new String(bases, 0, cluster.getLength(read)));
+            }
+            this.clusters.add(cluster.getTileNumber() + " " + cluster.getClusterIndex()
+                    + " " + cluster.getX() + " " + cluster.getY()
+                    + " " + cluster.isPassingFilter() + " " + cluster.isControl()
+                    + " " + reads + " " + secondBases);
+            this.records.add(cluster.getTileNumber() + " " + cluster.getX() + " " + cluster.getY()
+                    + " " + new String(cluster.getBases(Cluster.READ1), 0, cluster.getLength(Cluster.READ1))
+                    + " " + toFastq(cluster.getQualities(Cluster.READ1), cluster.getLength(Cluster.READ1))
+                    + " " + new String(cluster.getBases(Cluster.READ2), 0, cluster.getLength(Cluster.READ2))
+                    + " " + toFastq(cluster.getQualities(Cluster.READ2), cluster.getLength(Cluster.READ2))
+                    + " " + new String(cluster.getBases(Cluster.INDEX), 0, cluster.getLength(Cluster.INDEX))
+                    + " " + toFastq(cluster.getQualities(Cluster.INDEX), cluster.getLength(Cluster.INDEX)));
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            this.complete = true;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test cluster sampling by hash
+ */
+public class ClusterSamplerTest {
+
+    private static String intensityDir = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities";
+    private static String baseCallDir  = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls";
+    private static Tile tile;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>(1);
+        cycleRangeByRead.put("read1", new int[]{1, 2});
+        tile = new Tile(intensityDir, baseCallDir, "HS13_6000", 1, 1101, cycleRangeByRead, false, true, "BC", "QT");
+    }
+
+    @Test
+    public void sameSampleWithSameSeed() {
+
+        BitSet first = new ClusterSampler(0.01, 42).selectClusters(tile, 100000);
+        BitSet second = new ClusterSampler(0.01, 42).selectClusters(tile, 100000);
+        assertEquals(first, second);
+
+        BitSet otherSeed = new ClusterSampler(0.01, 43).selectClusters(tile, 100000);
+        assertFalse(first.equals(otherSeed));
+    }
+
+    @Test
+    public void fractionOfClustersSampled() {
+
+        ClusterSampler sampler = new ClusterSampler(0.01, 7);
+        BitSet selected = sampler.selectClusters(tile, 1000000);
+        assertTrue(selected.cardinality() > 9500);
+        assertTrue(selected.cardinality() < 10500);
+
+        for(int i = 0; i < 1000; i++){
+            assertEquals(selected.get(i), sampler.isSampled(1101, i + 1));
+        }
+
+        assertEquals(new ClusterSampler(1, 7).selectClusters(tile, 5000).cardinality(), 5000);
+    }
+
+    @Test
+    public void differentTilesDifferentSamples() {
+
+        ClusterSampler sampler = new ClusterSampler(0.5, 0);
+        int same = 0;
+        for(int i = 1; i <= 1000; i++){
+            if(sampler.isSampled(1101, i) == sampler.isSampled(1102, i)){
+                same++;
+            }
+        }
+        assertTrue(same < 1000);
+        assertEquals(sampler.toString(), "SAMPLE_FRACTION=0.5 SEED=0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fractionMoreThanOne() {
+        new ClusterSampler(1.5, 0);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test counting sink
+ */
+public class CountingClusterSinkTest {
+
+    private static byte [][] read1 = { {78, 71, 65, 67, 84}, {0, 32, 40, 2, 15} };
+    private static byte [][] read2 = { {65, 67, 71}, {30, 31, 32} };
+    private static byte [][] index = { {84, 67, 78}, {37, 34, 0} };
+
+    @Test
+    public void countsAndChecksum() {
+
+        CountingClusterSink sink = new CountingClusterSink();
+        addClusters(sink);
+        sink.close();
+
+        assertEquals(sink.getClusters(), 2);
+        assertEquals(sink.getReads(), 4);
+        assertEquals(sink.getBases(), 16);
+
+        CountingClusterSink sameSink = new CountingClusterSink();
+        addClusters(sameSink);
+        assertEquals(sink.getChecksum(), sameSink.getChecksum());
+
+        CountingClusterSink otherSink = new CountingClusterSink();
+        otherSink.addCluster("read", 1, read2, null, index, 1, false, true, true, false, false);
+        assertFalse(sink.getChecksum() == otherSink.getChecksum());
+    }
+
+    private static void addClusters(ClusterSink sink){
+        sink.startTile(1101);
+        for(int i = 1; i <= 2; i++){
+            sink.addCluster("read" + i, i, read1, null, index, 1, true, true, true, false, false);
+            sink.addCluster("read" + i, i, read2, null, null, 1, true, false, true, false, false);
+        }
+        sink.endTile(1101);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.file.reader.BCLFileReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Base calls from the cycle buffer must be the same as from BCL files
+ */
+public class CycleColumnBufferTest {
+
+    private static File runDir = new File("testdata/cycle_buffer_run");
+    private static File bufferDir = new File("testdata/cycle_buffer_run/buffer");
+    private static String baseCallDir = runDir.getPath() + "/BaseCalls";
+    private static int [] tiles = {1101, 1102};
+    private static int clusters = 70000;
+
+    @Before
+    public void setUp() throws IOException {
+        bufferDir.mkdirs();
+        Random random = new Random(7);
+        for(int tile : tiles){
+            for(int cycle = 1; cycle <= 3; cycle++){
+                byte [] calls = new byte[clusters];
+                random.nextBytes(calls);
+                for(int i = 0; i < clusters; i++){
+                    //quality up to 40
+                    calls[i] = (byte) (((calls[i] & 0xFF) % 41) << 2 | (i & 3));
+                }
+                writeBcl(tile, cycle, calls, clusters);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(runDir);
+    }
+
+    @Test
+    public void sameAsBclFiles() throws Exception {
+
+        //last cycle still being written
+        File bcl = new File(Tile.getBaseCallFileName(baseCallDir, 1, 1102, 3, true));
+        byte [] partial = new byte[100];
+        writeBcl(1102, 3, partial, clusters);
+
+        CycleColumnBuffer buffer = new CycleColumnBuffer(bufferDir, baseCallDir, 1, tiles);
+        assertTrue(buffer.isCycleComplete(1));
+        assertFalse(buffer.isCycleComplete(3));
+        buffer.ingestCycle(1);
+        buffer.ingestCycle(2);
+        assertTrue(buffer.hasCycle(2));
+        assertFalse(buffer.hasCycle(3));
+
+        //complete the last cycle, then resume with a new buffer
+        Random random = new Random(1);
+        byte [] calls = new byte[clusters];
+        for(int i = 0; i < clusters; i++){
+            calls[i] = (byte) ((random.nextInt(41) << 2) | (i & 3));
+        }
+        writeBcl(1102, 3, calls, clusters);
+        buffer = new CycleColumnBuffer(bufferDir, baseCallDir, 1, tiles);
+        assertTrue(buffer.hasCycle(2));
+        assertTrue(buffer.isCycleComplete(3));
+        buffer.ingestCycle(3);
+
+        for(int tile : tiles){
+            BCLFileReader [] readers = new BCLFileReader[3];
+            for(int cycle = 1; cycle <= 3; cycle++){
+                readers[cycle - 1] = new BCLFileReader(Tile.getBaseCallFileName(baseCallDir, 1, tile, cycle, true));
+            }
+            CycleColumnBuffer.TileColumns columns = buffer.openTile(tile);
+            assertEquals(columns.getTotalClusters(), clusters);
+            for(int cluster = 0; cluster < clusters; cluster++){
+                byte [][] fromBuffer = columns.getBaseQuals(new int[]{1, 3}, cluster);
+                for(int cycle = 0; cycle < 3; cycle++){
+                    byte [] fromBcl = readers[cycle].next();
+                    assertEquals(fromBuffer[0][cycle], fromBcl[0]);
+                    assertEquals(fromBuffer[1][cycle], fromBcl[1]);
+                }
+            }
+            byte [][] allCycles = columns.getBaseQuals(new int[]{1, 3}, 5);
+            byte [][] lastCycles = columns.getBaseQuals(new int[]{2, 3}, 5);
+            assertEquals(lastCycles[0][0], allCycles[0][1]);
+            assertEquals(lastCycles[1][1], allCycles[1][2]);
+            columns.close();
+            for(BCLFileReader reader : readers){
+                reader.close();
+            }
+        }
+        assertTrue(bcl.exists());
+    }
+
+    private static void writeBcl(int tile, int cycle, byte [] calls, int clusterNumber) throws IOException {
+        File bcl = new File(Tile.getBaseCallFileName(baseCallDir, 1, tile, cycle, true));
+        bcl.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(bcl);
+        out.write(new byte[]{(byte) clusterNumber, (byte) (clusterNumber >> 8), (byte) (clusterNumber >> 16), (byte) (clusterNumber >> 24)});
+        out.write(calls);
+        out.close();
+    }
+
+    private static void deleteAll(File file){
+        File [] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
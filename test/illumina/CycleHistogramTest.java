@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test base and quality counts by cycle
+ */
+public class CycleHistogramTest {
+
+    @Test
+    public void mergeTileHistograms() {
+
+        CycleHistogram lane = new CycleHistogram();
+
+        CycleHistogram tile1 = new CycleHistogram();
+        tile1.addRead("read1", new int[]{1, 3});
+        tile1.addRead("readIndex1", new int[]{4, 4});
+        tile1.add(1, new byte[][]{{'A', 'C', 'N'}, {30, 20, 0}});
+        tile1.add(1, new byte[][]{{'A', 'G', 'T'}, {40, 10, 2}});
+        tile1.add(4, new byte[][]{{'G'}, {35}});
+        lane.merge(tile1);
+
+        CycleHistogram tile2 = new CycleHistogram();
+        tile2.addRead("read1", new int[]{1, 3});
+        tile2.add(1, new byte[][]{{'T', 'C', 'N'}, {20, 30, 0}});
+        lane.merge(tile2);
+
+        List<CycleHistogram.CycleMetric> metrics = lane.getMetrics();
+        assertEquals(metrics.size(), 4);
+
+        CycleHistogram.CycleMetric cycle1 = metrics.get(0);
+        assertEquals(cycle1.READ, "read1");
+        assertEquals(cycle1.CYCLE, 1);
+        assertEquals(cycle1.BASES, 3);
+        assertEquals(cycle1.PCT_A, 200.0 / 3, 0.001);
+        assertEquals(cycle1.PCT_T, 100.0 / 3, 0.001);
+        assertEquals(cycle1.MEAN_QUALITY, 30.0, 0.001);
+        assertEquals(cycle1.MEDIAN_QUALITY, 30);
+        assertEquals(cycle1.PCT_Q30, 200.0 / 3, 0.001);
+        assertEquals(cycle1.PCT_Q20, 100.0, 0.001);
+        assertEquals(cycle1.QUALITY_HISTOGRAM, "20:1,30:1,40:1");
+
+        CycleHistogram.CycleMetric cycle3 = metrics.get(2);
+        assertEquals(cycle3.PCT_N, 200.0 / 3, 0.001);
+        assertEquals(cycle3.MEDIAN_QUALITY, 0);
+
+        CycleHistogram.CycleMetric cycle4 = metrics.get(3);
+        assertEquals(cycle4.READ, "readIndex1");
+        assertEquals(cycle4.CYCLE, 4);
+        assertEquals(cycle4.PCT_G, 100.0, 0.001);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test fastq output from base calls
+ */
+public class FastqWriterTest {
+
+    private static byte [][] read1 = { {78, 71, 65, 67, 84}, {0, 32, 40, 2, 15} };
+    private static byte [][] read2 = { {65, 67, 71}, {30, 31, 32} };
+    private static byte [][] index = { {84, 67, 78, 65, 65}, {37, 34, 0, 10, 11} };
+
+    @Test
+    public void fileNames() {
+        assertEquals(FastqWriter.getFastqFile(new File("testdata/lane.fastq.gz"), "R1").getName(), "lane_R1.fastq.gz");
+        assertEquals(FastqWriter.getFastqFile(new File("testdata/lane.fq"), "I2").getName(), "lane_I2.fq");
+        assertTrue(FastqWriter.isFastqFile(new File("lane.fq.gz")));
+        assertFalse(FastqWriter.isFastqFile(new File("lane.bam")));
+    }
+
+    @Test
+    public void pairedGzipWithIndexFiles() throws IOException {
+
+        File output = new File("testdata/fastq_test.fastq.gz");
+        FastqWriter writer = new FastqWriter(new SAMFileHeader(), output, true, new int[]{3, 2}, false, "BC", 2, 5, false);
+        writer.addCluster("HS13_6000:1:1101:1000:1000", 1, read1, null, index, 1, true, true, true, false, false);
+        writer.addCluster("HS13_6000:1:1101:1000:1000", 1, read2, null, null, 1, true, false, true, false, false);
+        writer.addCluster("HS13_6000:1:1101:1000:1001", 2, read1, null, index, 0, true, true, true, true, false);
+        writer.addCluster("HS13_6000:1:1101:1000:1001", 2, read2, null, null, 0, true, false, true, true, false);
+        writer.close();
+
+        List<String> r1 = readLines(FastqWriter.getFastqFile(output, "R1"));
+        assertEquals(r1.size(), 8);
+        assertEquals(r1.get(0), "@HS13_6000:1:1101:1000:1000 1:N:0:");
+        assertEquals(r1.get(1), "NGACT");
+        assertEquals(r1.get(2), "+");
+        assertEquals(r1.get(3), "!AI#0");
+        assertEquals(r1.get(4), "@HS13_6000:1:1101:1000:1001 1:Y:1:");
+
+        List<String> r2 = readLines(FastqWriter.getFastqFile(output, "R2"));
+        assertEquals(r2.get(0), "@HS13_6000:1:1101:1000:1000 2:N:0:");
+        assertEquals(r2.get(1), "ACG");
+        assertEquals(r2.get(3), "?@A");
+
+        List<String> i1 = readLines(FastqWriter.getFastqFile(output, "I1"));
+        assertEquals(i1.get(0), "@HS13_6000:1:1101:1000:1000 1:N:0:");
+        assertEquals(i1.get(1), "TCN");
+        assertEquals(i1.get(3), "FC!");
+
+        List<String> i2 = readLines(FastqWriter.getFastqFile(output, "I2"));
+        assertEquals(i2.get(1), "AA");
+        assertEquals(i2.get(3), "+,");
+    }
+
+    @Test
+    public void singleWithIndexInReadName() throws IOException {
+
+        File output = new File("testdata/fastq_test.fq");
+        FastqWriter writer = new FastqWriter(new SAMFileHeader(), output, false, new int[]{5}, true, "BC", 1, 5, false);
+        writer.addCluster("HS13_6000:1:1101:1000:1000", 1, read1, null, index, 1, false, true, true, false, false);
+        writer.close();
+
+        assertFalse(FastqWriter.getFastqFile(output, "R2").exists());
+        assertFalse(FastqWriter.getFastqFile(output, "I1").exists());
+        List<String> r1 = readLines(FastqWriter.getFastqFile(output, "R1"));
+        assertEquals(r1.size(), 4);
+        assertEquals(r1.get(0), "@HS13_6000:1:1101:1000:1000 1:N:0:TCNAA");
+    }
+
+    @Test
+    public void pairedWithIndexInReadName() throws IOException {
+
+        File output = new File("testdata/fastq_paired_test.fq");
+        FastqWriter writer = new FastqWriter(new SAMFileHeader(), output, true, new int[]{5}, true, "BC", 1, 5, false);
+        writer.addCluster("HS13_6000:1:1101:1000:1000", 1, read1, null, index, 1, true, true, true, false, false);
+        writer.addCluster("HS13_6000:1:1101:1000:1000", 1, read2, null, null, 1, true, false, true, false, false);
+
+        SAMRecord first = new SAMRecord(new SAMFileHeader());
+        first.setReadName("HS13_6000:1:1101:1000:1001");
+        first.setReadPairedFlag(true);
+        first.setFirstOfPairFlag(true);
+        first.setReadBases(read2[0]);
+        first.setBaseQualities(read2[1]);
+        first.setAttribute("BC", "ACGTA");
+        writer.addAlignment(first);
+        SAMRecord second = new SAMRecord(new SAMFileHeader());
+        second.setReadName("HS13_6000:1:1101:1000:1001");
+        second.setReadPairedFlag(true);
+        second.setSecondOfPairFlag(true);
+        second.setReadBases(read2[0]);
+        second.setBaseQualities(read2[1]);
+        writer.addAlignment(second);
+        writer.close();
+
+        assertFalse(FastqWriter.getFastqFile(output, "I1").exists());
+        List<String> r1 = readLines(FastqWriter.getFastqFile(output, "R1"));
+        List<String> r2 = readLines(FastqWriter.getFastqFile(output, "R2"));
+        assertEquals(r1.get(0), "@HS13_6000:1:1101:1000:1000 1:N:0:TCNAA");
+        assertEquals(r2.get(0), "@HS13_6000:1:1101:1000:1000 2:N:0:TCNAA");
+        assertEquals(r1.get(4), "@HS13_6000:1:1101:1000:1001 1:N:0:ACGTA");
+        assertEquals(r2.get(4), "@HS13_6000:1:1101:1000:1001 2:N:0:ACGTA");
+    }
+
+    private static List<String> readLines(File file) throws IOException{
+        file.deleteOnExit();
+        InputStream in = new FileInputStream(file);
+        if(file.getName().endsWith(".gz")){
+            in = new GZIPInputStream(in);
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while((line = reader.readLine()) != null){
+            lines.add(line);
+        }
+        reader.close();
+        return lines;
+    }
+}
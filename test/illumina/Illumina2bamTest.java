@@ -81,7 +81,8 @@ public class Illumina2bamTest {
                 + " STUDY_NAME=testStudy RUN_START_DATE=2011-03-23T00:00:00+0000 FIRST_TILE=1101 TILE_LIMIT=1"
                 + " TMP_DIR=[testdata] VALIDATION_STRINGENCY=STRICT COMPRESSION_LEVEL=1"
                 + " CREATE_MD5_FILE=true    GENERATE_SECONDARY_BASE_CALLS=false PF_FILTER=true"
-                + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT"
+                + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT FAST_BAM_ENCODING=true OUTPUT_SINK=file FASTQ_INDEX_IN_READ_NAME=false"
+                + " OUTPUT_FORMAT=bam MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 KEEP_UNDETERMINED=false CREATE_TILE_INDEX=false AUTOTUNE=false"
                 + " VERBOSITY=INFO QUIET=false MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false"
                );
         
@@ -92,4 +93,38 @@ public class Illumina2bamTest {
         assertEquals(result.getAttribute("DS"), "Convert Illumina BCL to BAM or SAM file");
     }
 
+    @Test
+    public void laneSummaryWithoutOutput() throws IOException {
+
+        File summaryFile = new File("testdata/6000_1_lane_summary.txt");
+        String[] args = {"INTENSITY_DIR=testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities",
+            "LANE=1",
+            "LANE_SUMMARY_FILE=" + summaryFile.getPath(),
+            "FIRST_TILE=1101",
+            "TILE_LIMIT=1",
+            "TEMP_DIR=testdata/"
+        };
+
+        assertEquals(new Illumina2bam().instanceMain(args), 0);
+        assertTrue(summaryFile.exists());
+        summaryFile.delete();
+
+        String[] noOutputArgs = {"INTENSITY_DIR=testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities",
+            "LANE=1",
+            "TEMP_DIR=testdata/"
+        };
+        assertEquals(new Illumina2bam().instanceMain(noOutputArgs), 1);
+    }
+
+    @Test
+    public void workQueueWithoutLaneMetrics() {
+
+        Illumina2bam workQueue = new Illumina2bam();
+        workQueue.OUTPUT = new File("testdata/work_queue.bam");
+        workQueue.WORK_QUEUE_DIR = new File("testdata/work_queue");
+        assertNull(workQueue.customCommandLineValidation());
+
+        workQueue.CYCLE_METRICS_FILE = new File("testdata/work_queue_cycles.txt");
+        assertTrue(workQueue.customCommandLineValidation()[0].startsWith("WORK_QUEUE_DIR can not be used with"));
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.LaneSummary.LaneSummaryMetric;
+import illumina.file.reader.ControlFileReader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Lane summary from filter and control files
+ */
+public class LaneSummaryTest {
+
+    private static String filterFile = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/s_1_1101.filter";
+
+    @Test
+    public void countTilesInParallel() throws Exception {
+
+        File controlFile = writeControlFile(2609912);
+
+        LaneSummary summary = new LaneSummary(null);
+        summary.addTile(1101, filterFile, controlFile.getPath());
+        summary.addTile(1102, filterFile, null);
+        List<LaneSummaryMetric> metrics = summary.summarize(2);
+
+        assertEquals(metrics.size(), 3);
+        assertEquals(metrics.get(0).TILE, "ALL");
+        assertEquals(metrics.get(0).CLUSTERS, 2 * 2609912);
+        assertEquals(metrics.get(0).PF_CLUSTERS, 2 * 2425954);
+        assertEquals(metrics.get(0).PCT_PF, 100.0 * 2425954 / 2609912, 1e-9);
+
+        assertEquals(metrics.get(1).TILE, "1101");
+        assertEquals(metrics.get(1).PF_CLUSTERS, 2425954);
+        assertEquals(metrics.get(1).CONTROL_CLUSTERS, countControlClusters(controlFile));
+        assertTrue(metrics.get(1).CONTROL_CLUSTERS > 0);
+        assertEquals(metrics.get(2).TILE, "1102");
+        assertEquals(metrics.get(2).CONTROL_CLUSTERS, 0);
+        assertEquals(metrics.get(0).CONTROL_CLUSTERS, metrics.get(1).CONTROL_CLUSTERS);
+    }
+
+    @Test(expected=Exception.class)
+    public void controlFileWithOtherClusterNumber() throws Exception {
+
+        LaneSummary summary = new LaneSummary(null);
+        summary.addTile(1101, filterFile, writeControlFile(1000).getPath());
+        summary.summarize(1);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void tileWithoutFilterFile() {
+        new LaneSummary(null).addTile(1101, null, null);
+    }
+
+    private static long countControlClusters(File controlFile) throws Exception {
+        ControlFileReader reader = new ControlFileReader(controlFile.getPath());
+        while(reader.hasNext()){
+            reader.next();
+        }
+        reader.close();
+        return reader.getCurrentControlClusters();
+    }
+
+    private static File writeControlFile(int clusters) throws IOException {
+        File controlFile = File.createTempFile("s_1_1101", ".control", new File("testdata/"));
+        controlFile.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(controlFile)));
+        out.writeInt(0);
+        out.writeInt(Integer.reverseBytes(2));
+        out.writeInt(Integer.reverseBytes(clusters));
+        for(int i = 0; i < clusters; i++){
+            out.writeByte(i);
+            out.writeByte(i % 7 == 0 ? 2 : 0);
+        }
+        out.close();
+        return controlFile;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.file.reader.SCLFileReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Reserve, shrink, wait and release memory from a budget, and its users
+ */
+public class MemoryBudgetTest {
+
+    @After
+    public void tearDown() {
+        MemoryBudget.setDefault(null);
+    }
+
+    @Test
+    public void reserveShrinkAndPeak() {
+
+        MemoryBudget budget = new MemoryBudget(1000);
+        budget.reserve(600, "first");
+        assertFalse(budget.tryReserve(500));
+        assertEquals(budget.reserve(500, 100, "second"), 400);
+        assertEquals(budget.getAvailable(), 0);
+        budget.release(700);
+        assertEquals(budget.getReserved(), 300);
+        assertEquals(budget.getPeak(), 1000);
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void moreThanBudget() {
+        new MemoryBudget(1000).reserve(1001, "too big");
+    }
+
+    @Test
+    public void waitForOtherThread() throws InterruptedException {
+
+        final MemoryBudget budget = new MemoryBudget(1000);
+        budget.reserve(800, "first");
+        Thread releaser = new Thread(){
+            @Override
+            public void run(){
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                }
+                budget.release(800);
+            }
+        };
+        releaser.start();
+        budget.reserve(500, "second");
+        releaser.join();
+        assertEquals(budget.getReserved(), 500);
+    }
+
+    @Test
+    public void parseSize() {
+        assertEquals(MemoryBudget.parseSize("512"), 512);
+        assertEquals(MemoryBudget.parseSize("4k"), 4096);
+        assertEquals(MemoryBudget.parseSize("2M"), 2L * 1024 * 1024);
+        assertEquals(MemoryBudget.parseSize("3g"), 3L * 1024 * 1024 * 1024);
+    }
+
+    @Test
+    public void sclReaderReleasedOnClose() throws Exception {
+
+        MemoryBudget budget = new MemoryBudget(10 * 1024 * 1024);
+        MemoryBudget.setDefault(budget);
+
+        SCLFileReader scl = new SCLFileReader("testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/C1.1/s_1_1101.scl");
+        assertEquals(budget.getReserved(), (scl.getTotalClusters() + 3) / 4);
+        assertTrue(budget.getPeak() > budget.getReserved());
+        scl.close();
+        assertEquals(budget.getReserved(), 0);
+    }
+
+    @Test
+    public void gzipWithinBudget() throws IOException {
+
+        MemoryBudget budget = new MemoryBudget(3 * 4096);
+        MemoryBudget.setDefault(budget);
+
+        byte [] data = new byte[100000];
+        new Random(7).nextBytes(data);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, executor, 4, 6, 4096);
+        out.write(data);
+        out.close();
+        executor.shutdown();
+
+        assertEquals(budget.getPeak(), 3 * 4096);
+        assertEquals(budget.getReserved(), 0);
+
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+        ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+        byte [] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) > 0){
+            uncompressed.write(buffer, 0, read);
+        }
+        in.close();
+        assertArrayEquals(uncompressed.toByteArray(), data);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test finding optical duplicates by cluster position and base prefix
+ */
+public class OpticalDuplicateFinderTest {
+
+    private static byte [] bases(String bases){
+        return bases.getBytes();
+    }
+
+    @Test
+    public void nearbyClustersWithSamePrefix() {
+
+        OpticalDuplicateFinder finder = new OpticalDuplicateFinder(100, 5);
+        finder.startTile(1101, 10);
+
+        assertFalse(finder.isDuplicate(1000, 1000, bases("ACGTACCC"), bases("TTTTT")));
+        //same prefix within distance, different after the prefix
+        assertTrue(finder.isDuplicate(1090, 950, bases("ACGTAGGG"), bases("TTTTT")));
+        //second read differs
+        assertFalse(finder.isDuplicate(1010, 1010, bases("ACGTACCC"), bases("TTTTA")));
+        //too far away in y
+        assertFalse(finder.isDuplicate(1000, 1101, bases("ACGTACCC"), bases("TTTTT")));
+        //no-call in prefix never compared
+        assertFalse(finder.isDuplicate(1000, 1000, bases("NCGTACCC"), bases("TTTTT")));
+        //next to the cluster far in y, across a cell border
+        assertTrue(finder.isDuplicate(999, 1199, bases("ACGTAAAA"), bases("TTTTT")));
+        finder.endTile();
+
+        finder.startTile(1102, 2);
+        assertFalse(finder.isDuplicate(1000, 1000, bases("ACGTACCC"), null));
+        finder.endTile();
+
+        List<OpticalDuplicateFinder.OpticalDuplicateMetric> metrics = finder.getMetrics();
+        assertEquals(metrics.size(), 3);
+        assertEquals(metrics.get(0).TILE, "ALL");
+        assertEquals(metrics.get(0).CLUSTERS, 6);
+        assertEquals(metrics.get(0).OPTICAL_DUPLICATES, 2);
+        assertEquals(metrics.get(1).TILE, "1101");
+        assertEquals(metrics.get(1).CLUSTERS, 5);
+        assertEquals(metrics.get(1).PERCENT_OPTICAL_DUPLICATES, 40.0, 0.001);
+        assertEquals(metrics.get(2).OPTICAL_DUPLICATES, 0);
+    }
+
+    @Test
+    public void manyClustersInGrid() {
+
+        OpticalDuplicateFinder finder = new OpticalDuplicateFinder(10, 15);
+        int clusters = 100000;
+        finder.startTile(1, clusters);
+        int duplicates = 0;
+        byte [] read = bases("ACGTACGTACGTACG");
+        for(int i = 0; i < clusters; i++){
+            //every cluster 20 units apart, except each hundredth cluster put next to the one before
+            int x = (i % 100 == 99) ? ((i - 1) % 1000) * 20 + 5 : (i % 1000) * 20;
+            int y = (i % 100 == 99) ? ((i - 1) / 1000) * 20 : (i / 1000) * 20;
+            if(finder.isDuplicate(x, y, read, null)){
+                duplicates++;
+            }
+        }
+        finder.endTile();
+        assertEquals(duplicates, clusters / 100);
+    }
+
+    @Test
+    public void gridReservedFromMemoryBudget() {
+
+        MemoryBudget budget = new MemoryBudget(1000000);
+        MemoryBudget.setDefault(budget);
+        try {
+            OpticalDuplicateFinder finder = new OpticalDuplicateFinder(100, 5);
+            //table of 4096 slots for a load factor up to 0.7, 12 bytes each, and 20 bytes per cluster
+            finder.startTile(1101, 2100);
+            assertEquals(budget.getReserved(), 12 * 4096 + 20 * 2100);
+            finder.endTile();
+            assertEquals(budget.getReserved(), 0);
+        } finally {
+            MemoryBudget.setDefault(null);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void prefixTooLong() {
+        new OpticalDuplicateFinder(100, 16);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test parallel gzip output is one readable gzip stream
+ */
+public class ParallelGzipOutputStreamTest {
+
+    @Test
+    public void concatenatedMembersReadAsOneStream() throws IOException {
+
+        byte [] data = new byte[100000];
+        Random random = new Random(1);
+        for(int i = 0; i < data.length; i++){
+            data[i] = (byte) "ACGTN\n".charAt(random.nextInt(6));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, executor, 3, 6, 4096);
+        out.write(data, 0, 50001);
+        out.write(data[50001]);
+        out.flush();
+        out.write(data, 50002, data.length - 50002);
+        out.close();
+        executor.shutdown();
+
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+        ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+        byte [] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) > 0){
+            uncompressed.write(buffer, 0, read);
+        }
+        in.close();
+
+        assertArrayEquals(uncompressed.toByteArray(), data);
+    }
+}
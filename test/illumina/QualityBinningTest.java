@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.file.reader.BCLFileReader;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test quality binning schemes
+ */
+public class QualityBinningTest {
+
+    private static String testBCLFile = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/C1.1/s_1_1101.bcl";
+
+    @Test
+    public void illumina8Levels() {
+
+        QualityBinning binning = new QualityBinning("ILLUMINA8");
+        byte [] qualities = {0, 1, 2, 9, 10, 19, 20, 24, 25, 29, 30, 34, 35, 39, 40, 41};
+        binning.binQualities(qualities);
+        assertArrayEquals(qualities, new byte[]{0, 1, 6, 6, 15, 15, 22, 22, 27, 27, 33, 33, 37, 37, 40, 40});
+        assertEquals(binning.toString(), "2-9:6,10-19:15,20-24:22,25-29:27,30-34:33,35-39:37,40-63:40");
+    }
+
+    @Test
+    public void customScheme() {
+
+        QualityBinning binning = new QualityBinning("2-19:10, 20-63:30");
+        assertEquals(binning.getQualityMap()[1], 1);
+        assertEquals(binning.getQualityMap()[2], 10);
+        assertEquals(binning.getQualityMap()[38], 30);
+        assertEquals(binning.toString(), "2-19:10,20-63:30");
+
+        assertEquals(new QualityBinning("5:3").toString(), "5:3");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void overlappingBins() {
+        new QualityBinning("2-20:10,20-40:30");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badBin() {
+        new QualityBinning("2-20");
+    }
+
+    @Test
+    public void binWhileReadingBCL() throws Exception {
+
+        QualityBinning binning = new QualityBinning("ILLUMINA8");
+        BCLFileReader reader = new BCLFileReader(testBCLFile);
+        BCLFileReader binnedReader = new BCLFileReader(testBCLFile);
+        binnedReader.setQualityMap(binning.getQualityMap());
+        for (int i = 0; i < 10000; i++) {
+            byte [] cluster = reader.next();
+            byte [] binnedCluster = binnedReader.next();
+            assertEquals(binnedCluster[0], cluster[0]);
+            assertEquals(binnedCluster[1], binning.getQualityMap()[cluster[1]]);
+        }
+        reader.close();
+        binnedReader.close();
+    }
+}
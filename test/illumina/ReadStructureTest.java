@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Read structure from a read identifier string
+ */
+public class ReadStructureTest {
+
+    @Test
+    public void pairedWithTwoBarcodes() {
+
+        ReadStructure readStructure = new ReadStructure("I5Y75N5i5J1Y75N5");
+        int [][] cycleRanges = readStructure.getCycleRanges();
+        assertEquals(cycleRanges.length, 4);
+        assertArrayEquals(cycleRanges[0], new int[]{1, 5});
+        assertArrayEquals(cycleRanges[1], new int[]{6, 80});
+        assertArrayEquals(cycleRanges[2], new int[]{86, 91});
+        assertArrayEquals(cycleRanges[3], new int[]{92, 166});
+
+        ArrayList<ArrayList<Integer>> barcodeCycles = readStructure.getBarcodeCycles();
+        assertEquals(barcodeCycles.size(), 2);
+        assertEquals(barcodeCycles.get(0), Arrays.asList(1, 2, 3, 4, 5));
+        assertEquals(barcodeCycles.get(1), Arrays.asList(86, 87, 88, 89, 90, 91));
+        assertEquals(readStructure.toString(), "I5Y75N5i5J1Y75N5");
+    }
+
+    @Test
+    public void singleReadWithoutBarcode() {
+
+        ReadStructure readStructure = new ReadStructure("Y76");
+        assertEquals(readStructure.getCycleRanges().length, 1);
+        assertArrayEquals(readStructure.getCycleRanges()[0], new int[]{1, 76});
+        assertNull(readStructure.getBarcodeCycles());
+    }
+
+    @Test
+    public void invalidReadIdentifiers() {
+
+        for(String readIdentifier : new String[]{null, "", "Y75X5", "Y", "75Y", "I8N2"}){
+            try {
+                new ReadStructure(readIdentifier);
+                fail("Invalid read identifier accepted: " + readIdentifier);
+            } catch (IllegalArgumentException ex) {
+            }
+        }
+    }
+
+    @Test
+    public void laneCycleRangesFromReadStructure() throws Exception {
+
+        File tempDir = new File("testdata/read_structure_temp");
+        tempDir.mkdir();
+        Lane lane = new Lane("testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities",
+                "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls",
+                tempDir.getPath(), 1, false, true, null, "BC", "QT", false);
+        lane.setReadStructure(new ReadStructure("Y50N1I6"));
+        HashMap<String, int[]> cycleRangeByRead = lane.checkCycleRangeByRead();
+
+        assertEquals(cycleRangeByRead.size(), 2);
+        assertArrayEquals(cycleRangeByRead.get("read1"), new int[]{1, 50});
+        assertArrayEquals(cycleRangeByRead.get("readIndex1"), new int[]{52, 57});
+
+        //nothing written
+        assertEquals(tempDir.list().length, 0);
+        tempDir.delete();
+    }
+}
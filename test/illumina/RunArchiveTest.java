@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.file.reader.BCLFileReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tiles converted from the run archive must be the same as from run folder files
+ */
+public class RunArchiveTest {
+
+    private static File runDir = new File("testdata/run_archive_run");
+    private static File archiveDir = new File("testdata/run_archive_run/archive");
+    private static String intensityDir = runDir.getPath() + "/Intensities";
+    private static String baseCallDir = intensityDir + "/BaseCalls";
+    private static int clusters = 2500;
+    private static int cycles = 3;
+
+    @Before
+    public void setUp() throws IOException {
+
+        archiveDir.mkdirs();
+        Random random = new Random(5);
+        for(int cycle = 1; cycle <= cycles; cycle++){
+            byte [] calls = new byte[clusters];
+            for(int i = 0; i < clusters; i++){
+                //no-calls with base bits left in some clusters
+                calls[i] = (byte) ((random.nextInt(10) == 0 ? 0 : random.nextInt(41) << 2) | random.nextInt(4));
+            }
+            writeFile(new File(Tile.getBaseCallFileName(baseCallDir, 1, 1101, cycle, true)), header(clusters), calls);
+        }
+
+        byte [] filter = new byte[clusters];
+        byte [] control = new byte[2 * clusters];
+        StringBuilder positions = new StringBuilder();
+        for(int i = 0; i < clusters; i++){
+            filter[i] = (byte) random.nextInt(2);
+            control[2 * i] = (byte) (random.nextInt(20) == 0 ? 2 : 0);
+            positions.append(random.nextInt(2000) / 10.0).append(' ').append(random.nextInt(20000) / 10.0).append('\n');
+        }
+        writeFile(new File(baseCallDir + "/L001/s_1_1101.filter"), fileHeader(3, clusters), filter);
+        writeFile(new File(baseCallDir + "/L001/s_1_1101.control"), fileHeader(2, clusters), control);
+        writeFile(new File(intensityDir + "/s_1_1101_pos.txt"), new byte[0], positions.toString().getBytes());
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(runDir);
+    }
+
+    @Test
+    public void sameBaseCallsAsBclFiles() throws Exception {
+
+        RunArchive archive = new RunArchive(archiveDir, 1, 1000);
+        archive.writeTile(newTile(), new TreeSet<Integer>(Arrays.asList(1, 2, 3)));
+        assertTrue(archive.getTileFile(1101).exists());
+        assertFalse(new File(archive.getTileFile(1101).getPath() + ".tmp").exists());
+
+        RunArchive.TileArchive tileArchive = archive.openTile(1101, 2);
+        assertEquals(tileArchive.getTotalClusters(), clusters);
+        assertFalse(tileArchive.hasClocs());
+        assertArrayEquals(readAll(tileArchive.openFilter()), readFile(new File(baseCallDir + "/L001/s_1_1101.filter")));
+        assertArrayEquals(readAll(tileArchive.openControl()), readFile(new File(baseCallDir + "/L001/s_1_1101.control")));
+        assertArrayEquals(readAll(tileArchive.openPositions()), readFile(new File(intensityDir + "/s_1_1101_pos.txt")));
+
+        BCLFileReader [] readers = new BCLFileReader[cycles];
+        for(int cycle = 1; cycle <= cycles; cycle++){
+            readers[cycle - 1] = new BCLFileReader(Tile.getBaseCallFileName(baseCallDir, 1, 1101, cycle, true));
+        }
+        for(int cluster = 0; cluster < clusters; cluster++){
+            byte [][] fromArchive = tileArchive.getBaseQuals(new int[]{1, 3}, cluster);
+            for(int cycle = 0; cycle < cycles; cycle++){
+                byte [] fromBcl = readers[cycle].next();
+                assertEquals(fromArchive[0][cycle], fromBcl[0]);
+                assertEquals(fromArchive[1][cycle], fromBcl[1]);
+            }
+        }
+        for(BCLFileReader reader : readers){
+            reader.close();
+        }
+
+        //back to an earlier block
+        byte [][] lastCycles = tileArchive.getBaseQuals(new int[]{2, 3}, 5);
+        byte [][] allCycles = tileArchive.getBaseQuals(new int[]{1, 3}, 5);
+        assertEquals(lastCycles[0][0], allCycles[0][1]);
+        assertEquals(lastCycles[1][1], allCycles[1][2]);
+        tileArchive.close();
+    }
+
+    @Test
+    public void convertsSameAsRunFolder() throws Exception {
+
+        File fromRunFolder = new File(runDir, "run_folder.sam");
+        Tile tile = newTile();
+        tile.openBaseCallFiles();
+        convert(tile, fromRunFolder);
+        tile.closeBaseCallFiles();
+
+        new RunArchive(archiveDir, 1, 1000).writeTiles(Arrays.asList(newTile()), Arrays.asList(1, 2, 3), 2);
+
+        //only the archive left
+        deleteAll(new File(baseCallDir));
+        new File(intensityDir + "/s_1_1101_pos.txt").delete();
+
+        File fromArchive = new File(runDir, "archive.sam");
+        tile = newTile();
+        RunArchive.TileArchive tileArchive = new RunArchive(archiveDir, 1).openTile(1101, 2);
+        tile.setTileArchive(tileArchive);
+        convert(tile, fromArchive);
+        tileArchive.close();
+
+        List<String> records = readRecords(fromRunFolder);
+        assertFalse(records.isEmpty());
+        assertEquals(records, readRecords(fromArchive));
+    }
+
+    @Test
+    public void allRunFolderCycles() throws Exception {
+
+        new File(baseCallDir + "/L001/C10.1").mkdirs();
+        new File(baseCallDir + "/L001/C11.2").mkdirs();
+        assertEquals(RunArchive.getRunFolderCycles(baseCallDir, 1), new TreeSet<Integer>(Arrays.asList(1, 2, 3, 10)));
+        assertTrue(RunArchive.getRunFolderCycles(baseCallDir, 2).isEmpty());
+    }
+
+    @Test
+    public void archiveWithoutOutput() throws Exception {
+
+        String configRunDir = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities";
+        writeFile(new File(intensityDir + "/config.xml"), new byte[0], readFile(new File(configRunDir + "/config.xml")));
+        writeFile(new File(baseCallDir + "/config.xml"), new byte[0], readFile(new File(configRunDir + "/BaseCalls/config.xml")));
+        //cycles of the second read and the index read in the config files
+        for(int cycle = 50; cycle <= 52; cycle++){
+            writeFile(new File(Tile.getBaseCallFileName(baseCallDir, 1, 1101, cycle, true)), header(clusters), new byte[clusters]);
+        }
+
+        String[] args = {"INTENSITY_DIR=" + intensityDir,
+            "LANE=1",
+            "ARCHIVE_OUTPUT_DIR=" + archiveDir.getPath(),
+            "FIRST_TILE=1101",
+            "TILE_LIMIT=1",
+            "TEMP_DIR=" + runDir.getPath()
+        };
+        assertEquals(new Illumina2bam().instanceMain(args), 0);
+
+        RunArchive.TileArchive tileArchive = new RunArchive(archiveDir, 1).openTile(1101, 2);
+        assertEquals(tileArchive.getTotalClusters(), clusters);
+        tileArchive.close();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void noFilterFile() throws Exception {
+        new File(baseCallDir + "/L001/s_1_1101.filter").delete();
+        new RunArchive(archiveDir, 1).writeTile(newTile(), Arrays.asList(1));
+    }
+
+    private static Tile newTile(){
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>(1);
+        cycleRangeByRead.put("read1", new int[]{1, cycles});
+        return new Tile(intensityDir, baseCallDir, "HS13_6000", 1, 1101, cycleRangeByRead, false, true, "BC", "QT");
+    }
+
+    private static void convert(Tile tile, File output) throws Exception {
+        SAMFileHeader header = new SAMFileHeader();
+        SAMReadGroupRecord readGroup = new SAMReadGroupRecord("1");
+        readGroup.setSample("sample");
+        header.addReadGroup(readGroup);
+        SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(header, false, output);
+        tile.processTile(writer);
+        writer.close();
+    }
+
+    private static List<String> readRecords(File samFile){
+        List<String> records = new ArrayList<String>();
+        SAMFileReader reader = new SAMFileReader(samFile);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        for(SAMRecord record : reader){
+            records.add(record.format());
+        }
+        reader.close();
+        return records;
+    }
+
+    private static byte [] header(int number){
+        return new byte[]{(byte) number, (byte) (number >> 8), (byte) (number >> 16), (byte) (number >> 24)};
+    }
+
+    private static byte [] fileHeader(int version, int number){
+        byte [] header = new byte[12];
+        System.arraycopy(header(version), 0, header, 4, 4);
+        System.arraycopy(header(number), 0, header, 8, 4);
+        return header;
+    }
+
+    private static void writeFile(File file, byte [] header, byte [] content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(header);
+        out.write(content);
+        out.close();
+    }
+
+    private static byte [] readFile(File file) throws IOException {
+        byte [] content = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        in.readFully(content);
+        in.close();
+        return content;
+    }
+
+    private static byte [] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte [] buffer = new byte[4096];
+        int read;
+        while((read = in.read(buffer)) > 0){
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static void deleteAll(File file){
+        File [] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.ByteArrayOutputStream;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMReadGroupRecord;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test sink writing through SAMFileWriter
+ */
+public class SamFileWriterSinkTest {
+
+    private static byte [][] read1 = { {78, 71, 65, 67, 84}, {0, 32, 40, 2, 15} };
+    private static byte [][] index = { {84, 67, 78}, {37, 34, 0} };
+
+    @Test
+    public void samRecordsAsTile() {
+
+        SAMFileHeader header = new SAMFileHeader();
+        header.addReadGroup(new SAMReadGroupRecord("B039WABXX.1"));
+
+        ByteArrayOutputStream picardOut = new ByteArrayOutputStream();
+        SAMFileWriter picardWriter = new SAMFileWriterFactory().makeSAMWriter(header.clone(), false, picardOut);
+        picardWriter.addAlignment(Tile.getSAMRecord(picardWriter.getFileHeader(), "RT", "QT", "read1", 7, read1, null, index, 1, false, true, false, true, false));
+        picardWriter.close();
+
+        ByteArrayOutputStream sinkOut = new ByteArrayOutputStream();
+        SamFileWriterSink sink = new SamFileWriterSink(new SAMFileWriterFactory().makeSAMWriter(header.clone(), false, sinkOut), "RT", "QT", false);
+        sink.startTile(1101);
+        sink.addCluster("read1", 7, read1, null, index, 1, false, true, false, true, false);
+        sink.endTile(1101);
+        sink.close();
+
+        assertEquals(sinkOut.toString(), picardOut.toString());
+        assertTrue(sinkOut.toString().contains("\tXB:i:1\tXC:i:1\tRG:Z:B039WABXX.1\tQT:Z:FC!\tRT:Z:TCN\tci:i:7"));
+    }
+
+    @Test
+    public void flushAfterTile() {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SamFileWriterSink sink = new SamFileWriterSink(new SamTextStreamWriter(new SAMFileHeader(), out), "BC", "QT", true);
+        int headerSize = out.size();
+        sink.startTile(1101);
+        sink.addCluster("read1", 7, read1, null, null, 1, false, true, true, false, false);
+        assertEquals(out.size(), headerSize);
+        sink.endTile(1101);
+        assertTrue(out.toString().contains("read1\t4\t*\t0\t0\t*\t*\t0\t0\tNGACT\t!AI#0"));
+        sink.close();
+    }
+}
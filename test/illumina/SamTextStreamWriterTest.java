@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMReadGroupRecord;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test sam text written to a stream is the same as picard and can be flushed
+ */
+public class SamTextStreamWriterTest {
+
+    private static String intensityDir = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities";
+    private static String baseCallDir  = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls";
+    private static Tile tile;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>(1);
+        cycleRangeByRead.put("read1", new int[]{1, 2});
+        tile = new Tile(intensityDir, baseCallDir, "HS13_6000", 1, 1101, cycleRangeByRead, true, true, "BC", "QT");
+    }
+
+    @Test
+    public void sameAsPicardAndFlushed() throws IOException {
+
+        SAMFileHeader header = new SAMFileHeader();
+        header.addReadGroup(new SAMReadGroupRecord("B039WABXX.1"));
+
+        ByteArrayOutputStream picardOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream streamOut = new ByteArrayOutputStream();
+        SAMFileWriter picardWriter = new SAMFileWriterFactory().makeSAMWriter(header.clone(), false, picardOut);
+        SamTextStreamWriter streamWriter = new SamTextStreamWriter(header.clone(), streamOut);
+
+        byte [][] baseQuals = { {78, 71, 65, 67, 84}, {0, 32, 40, 2, 15} };
+        byte [][] baseQualsIndex = { {84, 67, 78}, {37, 34, 0} };
+        for(int i = 0; i < 4; i++){
+            boolean paired = (i & 1) == 1;
+            boolean firstRead = (i & 2) == 0;
+            String readName = "HS13_6000:1:1101:1000:" + (i + 1000);
+            picardWriter.addAlignment(tile.getSAMRecord(picardWriter.getFileHeader(), readName, 70000 + i, baseQuals, "ACGTA", firstRead ? baseQualsIndex : null, i % 2, paired, firstRead, i != 1, i == 2, false));
+            streamWriter.addAlignment(tile.getSAMRecord(streamWriter.getFileHeader(), readName, 70000 + i, baseQuals, "ACGTA", firstRead ? baseQualsIndex : null, i % 2, paired, firstRead, i != 1, i == 2, false));
+        }
+        picardWriter.close();
+
+        streamWriter.flush();
+        assertEquals(streamOut.toString(), picardOut.toString());
+        streamWriter.close();
+        assertEquals(streamOut.toString(), picardOut.toString());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMRecord;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Shards must have the given number of clusters with pairs kept together
+ */
+public class ShardedBamSinkTest {
+
+    @Test
+    public void pairsKeptInShards() throws IOException {
+
+        SAMFileHeader header = new SAMFileHeader();
+        SAMReadGroupRecord readGroup = new SAMReadGroupRecord("1");
+        readGroup.setSample("sample");
+        header.addReadGroup(readGroup);
+
+        File output = new File("testdata/sharded.bam");
+        ShardedBamSink sink = new ShardedBamSink(output, header, 2, "BC", "QT", 1, false);
+        byte [][] baseQuals = { {65, 67, 71}, {30, 30, 30} };
+        sink.startTile(1101);
+        for(int i = 0; i < 5; i++){
+            sink.addCluster("c" + i, i, baseQuals, null, null, 1, true, true, true, false, false);
+            sink.addCluster("c" + i, i, baseQuals, null, null, 1, true, false, true, false, false);
+        }
+        sink.endTile(1101);
+        sink.close();
+
+        assertEquals(sink.getShardFiles().size(), 3);
+        assertEquals(sink.getShardFiles().get(0).getPath(), "testdata/sharded_0001.bam");
+        assertEquals(readNames(sink.getShardFiles().get(0)), "c0 c0 c1 c1");
+        assertEquals(readNames(sink.getShardFiles().get(1)), "c2 c2 c3 c3");
+        assertEquals(readNames(sink.getShardFiles().get(2)), "c4 c4");
+
+        File manifest = ShardedBamSink.getManifestFile(output);
+        BufferedReader reader = new BufferedReader(new FileReader(manifest));
+        assertEquals(reader.readLine(), ShardedBamSink.MANIFEST_HEADER);
+        assertEquals(reader.readLine(), "1\tsharded_0001.bam\t2\t4\tc0\tc1");
+        assertEquals(reader.readLine(), "2\tsharded_0002.bam\t2\t4\tc2\tc3");
+        assertEquals(reader.readLine(), "3\tsharded_0003.bam\t1\t2\tc4\tc4");
+        assertNull(reader.readLine());
+        reader.close();
+
+        for(File shard : sink.getShardFiles()){
+            shard.delete();
+        }
+        manifest.delete();
+    }
+
+    private static String readNames(File bam){
+        List<String> names = new ArrayList<String>();
+        SAMFileReader reader = new SAMFileReader(bam);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        for(SAMRecord record : reader){
+            names.add(record.getReadName());
+        }
+        reader.close();
+        StringBuilder joined = new StringBuilder();
+        for(String name : names){
+            joined.append(joined.length() > 0 ? " " : "").append(name);
+        }
+        return joined.toString();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test spatial bins of quality control metrics
+ */
+public class SpatialQcCollectorTest {
+
+    private static byte [][] baseQuals(String bases, int quality){
+        byte [] quals = new byte[bases.length()];
+        Arrays.fill(quals, (byte) quality);
+        return new byte[][]{bases.getBytes(), quals};
+    }
+
+    @Test
+    public void binsOfTiles() {
+
+        SpatialQcCollector collector = new SpatialQcCollector(1000);
+        collector.startTile(1101);
+        collector.addCluster(100, 200, 1, baseQuals("ACGT", 30), baseQuals("ACGT", 20));
+        collector.addCluster(900, 999, 0, baseQuals("NNGT", 0), null);
+        //outside the first 8 x 8 bins, arrays grow
+        collector.addCluster(12500, 20100, 1, baseQuals("ACGN", 10), null);
+        collector.addCluster(1500, 100, 1, baseQuals("ACGT", 40), null);
+        collector.endTile();
+
+        collector.startTile(1102);
+        collector.addCluster(100, 200, 1, baseQuals("ACGT", 30), null);
+        collector.endTile();
+
+        List<SpatialQcCollector.SpatialQcMetric> metrics = collector.getMetrics();
+        assertEquals(metrics.size(), 4);
+
+        SpatialQcCollector.SpatialQcMetric first = metrics.get(0);
+        assertEquals(first.TILE, 1101);
+        assertEquals(first.X, 0);
+        assertEquals(first.Y, 0);
+        assertEquals(first.CLUSTERS, 2);
+        assertEquals(first.PF_CLUSTERS, 1);
+        assertEquals(first.PCT_PF, 50.0, 0.001);
+        assertEquals(first.MEAN_QUALITY, (4 * 30 + 4 * 20) / 12.0, 0.001);
+        assertEquals(first.PCT_NO_CALLS, 100.0 * 2 / 12, 0.001);
+        assertEquals(first.MEAN_QUALITY_BY_CYCLE, "15.0,15.0,15.0,15.0,20.0,20.0,20.0,20.0");
+
+        assertEquals(metrics.get(1).X, 1000);
+        assertEquals(metrics.get(1).Y, 0);
+        assertEquals(metrics.get(1).MEAN_QUALITY, 40.0, 0.001);
+
+        assertEquals(metrics.get(2).X, 12000);
+        assertEquals(metrics.get(2).Y, 20000);
+        assertEquals(metrics.get(2).PCT_NO_CALLS, 25.0, 0.001);
+        assertEquals(metrics.get(2).MEAN_QUALITY_BY_CYCLE, "10.0,10.0,10.0,10.0,,,,");
+
+        assertEquals(metrics.get(3).TILE, 1102);
+        assertEquals(metrics.get(3).CLUSTERS, 1);
+        assertEquals(metrics.get(3).MEAN_QUALITY_BY_CYCLE, "30.0,30.0,30.0,30.0");
+    }
+
+    @Test
+    public void defectOfOneCycle() {
+
+        SpatialQcCollector collector = new SpatialQcCollector(1000);
+        collector.startTile(1101);
+        byte [][] read1 = baseQuals("ACG", 30);
+        byte [][] bubble = baseQuals("ACG", 30);
+        bubble[1][1] = 2;
+        collector.addCluster(100, 100, 1, read1, baseQuals("AC", 35));
+        collector.addCluster(1100, 100, 1, bubble, baseQuals("AC", 35));
+        collector.addCluster(1200, 100, 1, bubble, baseQuals("AC", 35));
+        collector.endTile();
+
+        List<SpatialQcCollector.SpatialQcMetric> metrics = collector.getMetrics();
+        assertEquals(metrics.get(0).MEAN_QUALITY_BY_CYCLE, "30.0,30.0,30.0,35.0,35.0");
+        assertEquals(metrics.get(1).MEAN_QUALITY_BY_CYCLE, "30.0,2.0,30.0,35.0,35.0");
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import illumina.file.reader.BCLFileReader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.picard.metrics.MetricsFile;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Timing metrics per tile, with bytes read from a bcl file
+ */
+public class StageTimerTest {
+
+    private static String bclFileName = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/C1.1/s_1_1101.bcl";
+
+    @Test
+    public void timingMetricsPerTile() throws Exception {
+
+        StageTimer timer = new StageTimer();
+
+        timer.startTile(1101);
+        timer.addOpen(1000000);
+        timer.startInput();
+        BCLFileReader bcl = new BCLFileReader(bclFileName);
+        int clusters = 0;
+        while(bcl.hasNext()){
+            bcl.next();
+            clusters++;
+        }
+        bcl.close();
+        timer.endInput(500000000L, clusters);
+        timer.addOutput(300000000L);
+        timer.addBuild(100000000L);
+        timer.endTile();
+
+        timer.startTile(1102);
+        timer.endInput(100000000L, 10);
+        timer.addOutput(100000000L);
+        timer.endTile();
+
+        timer.addFinish(50000000L);
+
+        List<StageTimer.ConversionTimingMetric> metrics = timer.getMetrics();
+        assertEquals(metrics.size(), 3);
+
+        StageTimer.ConversionTimingMetric all = metrics.get(0);
+        assertEquals(all.TILE, "ALL");
+        assertEquals(all.CLUSTERS, clusters + 10);
+        assertEquals(all.BUILD_SECONDS, 0.1, 1e-9);
+        assertEquals(all.WRITE_SECONDS, 0.35, 1e-9);
+
+        StageTimer.ConversionTimingMetric slowest = metrics.get(1);
+        assertEquals(slowest.TILE, "1101");
+        assertEquals(slowest.OPEN_SECONDS, 0.001, 1e-9);
+        assertEquals(slowest.READ_SECONDS + slowest.DECODE_SECONDS, 0.5, 1e-6);
+        assertEquals(slowest.BCL_MB * 1024 * 1024, new File(bclFileName).length(), 1e-3);
+        assertTrue(slowest.BCL_MB_PER_SECOND > 0);
+        assertEquals(slowest.FILTER_MB, 0, 0);
+        assertEquals(slowest.CLUSTERS_PER_SECOND, clusters / slowest.TOTAL_SECONDS, 1e-6);
+
+        StageTimer.ConversionTimingMetric fastest = metrics.get(2);
+        assertEquals(fastest.TILE, "1102");
+        assertEquals(fastest.TOTAL_SECONDS, 0.2, 1e-9);
+        assertEquals(fastest.BCL_MB, 0, 0);
+
+        File metricsFile = File.createTempFile("timing", ".metrics", new File("testdata/"));
+        metricsFile.deleteOnExit();
+        timer.writeMetrics(new MetricsFile<StageTimer.ConversionTimingMetric, Integer>(), metricsFile, 1);
+
+        List<String> tiles = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(metricsFile));
+        String line;
+        while((line = reader.readLine()) != null){
+            if(!line.startsWith("#") && line.length() > 0){
+                tiles.add(line.split("\t")[0]);
+            }
+        }
+        reader.close();
+        assertEquals(tiles.toString(), "[TILE, ALL, 1101, 1102]");
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void tileNotEnded() {
+        StageTimer timer = new StageTimer();
+        timer.startTile(1);
+        timer.startTile(2);
+    }
+}
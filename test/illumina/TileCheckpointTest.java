@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tiles checkpointed in one run must be reused by the next run
+ */
+public class TileCheckpointTest {
+
+    private File checkpointDir;
+    private File output;
+    private File tile1Input;
+    private File tile2Input;
+
+    @Before
+    public void setUp() throws IOException {
+        checkpointDir = new File("testdata/checkpoint_test");
+        checkpointDir.mkdir();
+        output = new File("testdata/checkpoint_test.bam");
+        tile1Input = new File(checkpointDir, "s_1_1101.bcl");
+        tile2Input = new File(checkpointDir, "s_1_1102.bcl");
+        writeFile(tile1Input, "ACGT");
+        writeFile(tile2Input, "TTGCA");
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : checkpointDir.listFiles()){
+            file.delete();
+        }
+        checkpointDir.delete();
+        output.delete();
+    }
+
+    @Test
+    public void resumeAfterInterruption() throws IOException {
+
+        TileCheckpoint firstRun = newCheckpoint();
+        assertFalse(firstRun.isTileComplete(1101, Arrays.asList(tile1Input)));
+        assertFalse(firstRun.isTileComplete(1102, Arrays.asList(tile2Input)));
+        writeTile(firstRun, 1101, 3);
+        //interrupted in the middle of the second tile
+        firstRun.startTile(1102);
+        firstRun.addCluster("broken", 1, bases(), null, null, 1, false, true, true, false, false);
+        assertFalse(output.exists());
+
+        TileCheckpoint secondRun = newCheckpoint();
+        assertTrue(secondRun.isTileComplete(1101, Arrays.asList(tile1Input)));
+        assertFalse(secondRun.isTileComplete(1102, Arrays.asList(tile2Input)));
+        writeTile(secondRun, 1102, 2);
+        secondRun.close();
+
+        assertEquals(readNames(output), Arrays.asList("1101:0", "1101:1", "1101:2", "1102:0", "1102:1"));
+        assertFalse(new File(checkpointDir, TileCheckpoint.MANIFEST_FILE_NAME).exists());
+    }
+
+    @Test
+    public void changedInputIsConvertedAgain() throws IOException {
+
+        TileCheckpoint firstRun = newCheckpoint();
+        assertFalse(firstRun.isTileComplete(1101, Arrays.asList(tile1Input)));
+        writeTile(firstRun, 1101, 3);
+        assertEquals(firstRun.getClustersByTile().get(1101), new Long(3));
+
+        writeFile(tile1Input, "ACGTACGT");
+        TileCheckpoint secondRun = newCheckpoint();
+        assertFalse(secondRun.isTileComplete(1101, Arrays.asList(tile1Input)));
+        writeTile(secondRun, 1101, 1);
+        secondRun.close();
+
+        assertEquals(readNames(output), Arrays.asList("1101:0"));
+    }
+
+    private TileCheckpoint newCheckpoint(){
+        SAMFileHeader header = new SAMFileHeader();
+        SAMReadGroupRecord readGroup = new SAMReadGroupRecord("1");
+        readGroup.setSample("sample");
+        header.addReadGroup(readGroup);
+        return new TileCheckpoint(checkpointDir, output, header, "BC", "QT", "PF_FILTER=true", 1, false);
+    }
+
+    private static void writeTile(TileCheckpoint checkpoint, int tileNumber, int clusters){
+        checkpoint.startTile(tileNumber);
+        for(int i = 0; i < clusters; i++){
+            checkpoint.addCluster(tileNumber + ":" + i, i, bases(), null, null, 1, false, true, true, false, false);
+        }
+        checkpoint.endTile(tileNumber);
+    }
+
+    private static byte [][] bases(){
+        return new byte [][] { {65, 67, 71}, {30, 30, 30} };
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+    }
+
+    private static List<String> readNames(File bam){
+        List<String> names = new ArrayList<String>();
+        SAMFileReader reader = new SAMFileReader(bam);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        for(SAMRecord record : reader){
+            names.add(record.getReadName());
+        }
+        reader.close();
+        return names;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.CloseableIterator;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Records read by tile through the tile index must be the ones written for that tile
+ */
+public class TileIndexedBamReaderTest {
+
+    private static File bam = new File("testdata/tile_indexed.bam");
+    private static int [] tiles = {1101, 2204, 1102};
+    private static int clustersPerTile = 3000;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+
+        SAMFileHeader header = new SAMFileHeader();
+        SAMReadGroupRecord readGroup = new SAMReadGroupRecord("1");
+        readGroup.setSample("sample");
+        header.addReadGroup(readGroup);
+
+        UnalignedBamWriter writer = new UnalignedBamWriter(header, bam, false, "BC", "QT");
+        TileIndexingSink sink = new TileIndexingSink(writer, TileIndexingSink.getIndexFile(bam), 1000);
+        byte [][] baseQuals = { "ACGTACGTACGTACGTACGTACGTACGTACGTACGT".getBytes(), new byte[36] };
+        for(int tile : tiles){
+            sink.startTile(tile);
+            for(int i = 0; i < clustersPerTile; i++){
+                sink.addCluster(tile + ":" + i, i, baseQuals, null, null, 1, true, true, true, false, false);
+                sink.addCluster(tile + ":" + i, i, baseQuals, null, null, 1, true, false, true, false, false);
+            }
+            sink.endTile(tile);
+        }
+        sink.close();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        bam.delete();
+        TileIndexingSink.getIndexFile(bam).delete();
+    }
+
+    @Test
+    public void readTile() {
+
+        TileIndexedBamReader reader = new TileIndexedBamReader(bam);
+        assertEquals(reader.getTiles(), Arrays.asList(1101, 2204, 1102));
+
+        List<String> names = readNames(reader.queryTile(2204));
+        assertEquals(names.size(), 2 * clustersPerTile);
+        assertEquals(names.get(0), "2204:0");
+        assertEquals(names.get(names.size() - 1), "2204:" + (clustersPerTile - 1));
+
+        assertEquals(readNames(reader.queryTile(1102)).size(), 2 * clustersPerTile);
+    }
+
+    @Test
+    public void readFromCluster() {
+
+        TileIndexedBamReader reader = new TileIndexedBamReader(bam);
+        List<String> names = readNames(reader.queryTile(1101, 1500));
+        assertEquals(names.size(), 2 * (clustersPerTile - 1500));
+        assertEquals(names.get(0), "1101:1500");
+        assertEquals(names.get(1), "1101:1500");
+    }
+
+    private static List<String> readNames(CloseableIterator<SAMRecord> iterator){
+        List<String> names = new ArrayList<String>();
+        while(iterator.hasNext()){
+            names.add(iterator.next().getReadName());
+        }
+        iterator.close();
+        return names;
+    }
+}
@@ -22,7 +22,9 @@ package illumina;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.List;
 
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileWriterFactory;
@@ -97,7 +99,7 @@ public class TileTest {
         String secondBases = "AAA";
         byte [][] baseQualsIndex = {{84, 67}, {37 ,34} };
         SAMRecord record = tile.getSAMRecord(
-                null, readName, 5, baseQuals, secondBases, baseQualsIndex, 0, true, true, true, false);
+                null, readName, 5, baseQuals, secondBases, baseQualsIndex, 0, true, true, true, false, false);
         String result = "HS13_6000:1:1101:21238:9999	589"
                 + "	*	*	0	*	*	*	*	"
                 + "NG	BA	E2:Z:AAA	RG:Z:1	QT:Z:FC	RT:Z:TC	ci:i:5";
@@ -272,4 +274,80 @@ public class TileTest {
         assertEquals(md5, "d5dc58337bb8bb1494344338b5aead91");       
         
     }
+
+    @Test
+    public void dualIndexCycleHistogram() throws Exception {
+
+        File runDir = new File("testdata/dual_index_run");
+        String runIntensityDir = runDir.getPath() + "/Intensities";
+        String runBaseCallDir = runIntensityDir + "/BaseCalls";
+        int clusters = 10;
+        try {
+            for(int cycle = 1; cycle <= 8; cycle++){
+                byte [] calls = new byte[clusters];
+                for(int i = 0; i < clusters; i++){
+                    calls[i] = (byte) (30 << 2 | (cycle & 3));
+                }
+                writeFile(new File(Tile.getBaseCallFileName(runBaseCallDir, 1, 1101, cycle, true)), intBytes(clusters), calls);
+            }
+            byte [] filterHeader = new byte[12];
+            System.arraycopy(intBytes(3), 0, filterHeader, 4, 4);
+            System.arraycopy(intBytes(clusters), 0, filterHeader, 8, 4);
+            byte [] filter = new byte[clusters];
+            StringBuilder positions = new StringBuilder();
+            for(int i = 0; i < clusters; i++){
+                filter[i] = 1;
+                positions.append(i).append(" ").append(i).append("\n");
+            }
+            writeFile(new File(runBaseCallDir + "/L001/s_1_1101.filter"), filterHeader, filter);
+            writeFile(new File(runIntensityDir + "/s_1_1101_pos.txt"), new byte[0], positions.toString().getBytes());
+
+            //indexes not next to each other, the last one ends at the last cycle
+            HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>(4);
+            cycleRangeByRead.put("read1", new int[]{1, 2});
+            cycleRangeByRead.put("readIndex1", new int[]{3, 4});
+            cycleRangeByRead.put("read2", new int[]{5, 6});
+            cycleRangeByRead.put("readIndex2", new int[]{7, 8});
+            Tile dualIndexTile = new Tile(runIntensityDir, runBaseCallDir, id, 1, 1101, cycleRangeByRead, false, true, "BC", "QT");
+            CycleHistogram histogram = new CycleHistogram();
+            dualIndexTile.setCycleHistogram(histogram);
+            dualIndexTile.openBaseCallFiles();
+            dualIndexTile.processTile(new CountingClusterSink());
+            dualIndexTile.closeBaseCallFiles();
+
+            List<CycleHistogram.CycleMetric> metrics = histogram.getMetrics();
+            assertEquals(metrics.size(), 8);
+            for(CycleHistogram.CycleMetric metric : metrics){
+                assertEquals(metric.BASES, clusters);
+                assertEquals(metric.PCT_N, 0.0, 0.001);
+            }
+            assertEquals(metrics.get(2).READ, "readIndex1");
+            assertEquals(metrics.get(4).READ, "read2");
+            assertEquals(metrics.get(4).PCT_C, 100.0, 0.001);
+        } finally {
+            deleteAll(runDir);
+        }
+    }
+
+    private static byte [] intBytes(int number){
+        return new byte[]{(byte) number, (byte) (number >> 8), (byte) (number >> 16), (byte) (number >> 24)};
+    }
+
+    private static void writeFile(File file, byte [] header, byte [] content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(header);
+        out.write(content);
+        out.close();
+    }
+
+    private static void deleteAll(File file){
+        File [] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tiles shared by several workers through a queue directory, each worker in its own process
+ */
+public class TileWorkQueueTest {
+
+    private static byte [][] baseQuals = { {78, 71, 65, 67, 84}, {0, 32, 40, 2, 15} };
+
+    private static final int [] SHARED_TILES = {1101, 1102, 1103, 1104, 1105, 1106, 1107, 1108};
+
+    private static final String TILES_CONVERTED = "Tiles converted: ";
+
+    @Test
+    public void workersShareTiles() throws Exception {
+
+        File queueDir = createQueueDir("shared");
+        File output = new File(queueDir.getParentFile(), "shared.bam");
+        int [] tiles = SHARED_TILES;
+
+        //each worker in its own JVM, running main of this class
+        List<Process> workers = new ArrayList<Process>();
+        for(int i = 0; i < 3; i++){
+            ProcessBuilder builder = new ProcessBuilder(
+                    System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                    "-cp", System.getProperty("java.class.path"),
+                    TileWorkQueueTest.class.getName(),
+                    queueDir.getPath(), output.getPath(), "100");
+            builder.redirectErrorStream(true);
+            workers.add(builder.start());
+        }
+
+        int converted = 0;
+        for(Process worker : workers){
+            int workerConverted = readTilesConverted(worker);
+            assertEquals(worker.waitFor(), 0);
+            //every worker got some of the tiles
+            assertTrue(workerConverted > 0);
+            converted += workerConverted;
+        }
+        assertTrue(converted >= tiles.length);
+
+        assertEquals(readNames(output), expectedReadNames(tiles));
+        assertTrue(new File(queueDir, TileWorkQueue.COMPLETE_FILE_NAME).exists());
+        for(File file : queueDir.listFiles()){
+            assertFalse(file.getName(), file.getName().startsWith("tile_"));
+        }
+
+        //a process started after the lane is complete does nothing
+        TileWorkQueue late = new FakeTileWorkQueue(queueDir, tiles, output, 60000, 0);
+        assertFalse(late.processTiles());
+        assertEquals(late.getTilesConverted(), 0);
+
+        //nor with another output, which would never be written
+        try {
+            new FakeTileWorkQueue(queueDir, tiles, new File(queueDir.getParentFile(), "other.bam"), 60000, 0).processTiles();
+            fail("Different output accepted");
+        } catch (IllegalStateException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("other.bam"));
+        }
+
+        deleteQueue(queueDir, output);
+    }
+
+    @Test
+    public void staleClaimTakenOverAndSlowTileBackedUp() throws Exception {
+
+        File queueDir = createQueueDir("stale");
+        File output = new File(queueDir.getParentFile(), "stale.bam");
+        int [] tiles = {1101, 1102, 1103};
+
+        //tile 1102 claimed by a process which stopped long ago, tile 1103 by a slow one still going
+        File staleClaim = new File(queueDir, "tile_1102.claim");
+        assertTrue(staleClaim.createNewFile());
+        assertTrue(staleClaim.setLastModified(System.currentTimeMillis() - 3600000));
+        assertTrue(new File(queueDir, "tile_1103.claim").createNewFile());
+
+        TileWorkQueue worker = new FakeTileWorkQueue(queueDir, tiles, output, 60000, 0);
+        assertTrue(worker.processTiles());
+        worker.close();
+
+        assertEquals(worker.getTilesConverted(), 3);
+        assertEquals(readNames(output), expectedReadNames(tiles));
+
+        deleteQueue(queueDir, output);
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void differentSettingsRejected() throws Exception {
+
+        File queueDir = createQueueDir("settings");
+        FileWriter settings = new FileWriter(new File(queueDir, TileWorkQueue.SETTINGS_FILE_NAME));
+        settings.write("PF_FILTER=false\n");
+        settings.close();
+
+        try {
+            new FakeTileWorkQueue(queueDir, new int[]{1101}, new File(queueDir, "settings.bam"), 60000, 0).processTiles();
+        } finally {
+            deleteQueue(queueDir, null);
+        }
+    }
+
+    /**
+     * run one worker on the shared tiles and print the number of tiles it converted
+     *
+     * @param args queue directory, output bam and milliseconds to write each cluster
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        TileWorkQueue worker = new FakeTileWorkQueue(new File(args[0]), SHARED_TILES, new File(args[1]), 60000, Long.parseLong(args[2]));
+        worker.processTiles();
+        worker.close();
+        System.out.println(TILES_CONVERTED + worker.getTilesConverted());
+    }
+
+    private static int readTilesConverted(Process worker) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(worker.getInputStream()));
+        Integer converted = null;
+        StringBuilder workerOutput = new StringBuilder();
+        String line;
+        while((line = reader.readLine()) != null){
+            workerOutput.append(line).append('\n');
+            if(line.startsWith(TILES_CONVERTED)){
+                converted = Integer.valueOf(line.substring(TILES_CONVERTED.length()));
+            }
+        }
+        reader.close();
+        assertNotNull(workerOutput.toString(), converted);
+        return converted;
+    }
+
+    private static List<String> expectedReadNames(int [] tiles){
+        List<String> names = new ArrayList<String>();
+        for(int tile : tiles){
+            for(int i = 1; i <= 3; i++){
+                names.add("HS13_6000:1:" + tile + ":" + i + ":" + i);
+            }
+        }
+        return names;
+    }
+
+    private static List<String> readNames(File bam){
+        List<String> names = new ArrayList<String>();
+        SAMFileReader reader = new SAMFileReader(bam);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        for(SAMRecord record : reader){
+            names.add(record.getReadName());
+        }
+        reader.close();
+        return names;
+    }
+
+    private static File createQueueDir(String name){
+        File queueDir = new File("testdata/work_queue_" + name);
+        deleteQueue(queueDir, null);
+        queueDir.mkdir();
+        return queueDir;
+    }
+
+    private static void deleteQueue(File queueDir, File output){
+        if(queueDir.exists()){
+            for(File file : queueDir.listFiles()){
+                file.delete();
+            }
+            queueDir.delete();
+        }
+        if(output != null){
+            output.delete();
+        }
+    }
+
+    /**
+     * work queue writing three clusters for each tile instead of reading base calls
+     */
+    private static class FakeTileWorkQueue extends TileWorkQueue {
+
+        private final long tileMillis;
+
+        FakeTileWorkQueue(File queueDir, int [] tiles, File output, long staleMillis, long tileMillis){
+            super(queueDir, null, tiles, output, new SAMFileHeader(), "BC", "QT", "PF_FILTER=true", 5, false, staleMillis);
+            this.tileMillis = tileMillis;
+        }
+
+        @Override
+        protected void processTile(int tileNumber) throws Exception {
+            this.startTile(tileNumber);
+            for(int i = 1; i <= 3; i++){
+                this.addCluster("HS13_6000:1:" + tileNumber + ":" + i + ":" + i, i, baseQuals, null, null, 1, false, true, true, false, false);
+                Thread.sleep(this.tileMillis);
+            }
+            this.endTile(tileNumber);
+        }
+    }
+}
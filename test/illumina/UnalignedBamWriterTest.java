@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compare bam records encoded directly with the ones from picard
+ */
+public class UnalignedBamWriterTest {
+
+    private static String intensityDir = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities";
+    private static String baseCallDir  = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls";
+    private static Tile tile;
+
+    private static String barcodeSeqTagName = "BC";
+    private static String barcodeQualTagName = "QT";
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>(1);
+        cycleRangeByRead.put("read1", new int[]{1, 2});
+        tile = new Tile(intensityDir, baseCallDir, "HS13_6000", 1, 1101, cycleRangeByRead, true, true, barcodeSeqTagName, barcodeQualTagName);
+    }
+
+    @Test
+    public void sameRecordsAsPicard() throws IOException {
+
+        SAMFileHeader header = new SAMFileHeader();
+        header.addReadGroup(new SAMReadGroupRecord("B039WABXX.1"));
+
+        File picardBam = File.createTempFile("picard", ".bam", new File("testdata/"));
+        picardBam.deleteOnExit();
+        File directBam = File.createTempFile("direct", ".bam", new File("testdata/"));
+        directBam.deleteOnExit();
+
+        SAMFileWriter picardWriter = new SAMFileWriterFactory().makeBAMWriter(header.clone(), false, picardBam);
+        UnalignedBamWriter directWriter = new UnalignedBamWriter(header.clone(), directBam, false, barcodeSeqTagName, barcodeQualTagName);
+
+        byte [][] baseQuals = { {78, 71, 65, 67, 84}, {0, 32, 40, 2, 15} };
+        byte [][] baseQualsIndex = { {84, 67, 78}, {37, 34, 0} };
+        int [] clusterIndexes = {5, 200, 1000, 40000, 2609912};
+
+        for(int clusterIndex : clusterIndexes){
+            for(int i = 0; i < 4; i++){
+                boolean paired = (i & 1) == 1;
+                boolean firstRead = (i & 2) == 0;
+                int filter = clusterIndex % 2;
+                String secondBases = (i == 3) ? null : "ACGTA";
+                byte [][] index = firstRead ? baseQualsIndex : null;
+                boolean barcodesMatch = clusterIndex != 200;
+                boolean isControl = clusterIndex == 1000;
+                boolean isDuplicate = clusterIndex == 40000;
+                String readName = "HS13_6000:1:1101:" + (clusterIndex + 1000) + ":" + (i + 1000);
+
+                picardWriter.addAlignment(tile.getSAMRecord(picardWriter.getFileHeader(), readName, clusterIndex, baseQuals, secondBases, index, filter, paired, firstRead, barcodesMatch, isControl, isDuplicate));
+                directWriter.addCluster(readName, clusterIndex, baseQuals, secondBases, index, filter, paired, firstRead, barcodesMatch, isControl, isDuplicate);
+            }
+        }
+        picardWriter.close();
+        directWriter.close();
+
+        assertArrayEquals(readUncompressed(picardBam), readUncompressed(directBam));
+    }
+
+    @Test
+    public void oddReadLengthAndSamRecord() throws IOException {
+
+        SAMFileHeader header = new SAMFileHeader();
+        File directBam = File.createTempFile("direct", ".bam", new File("testdata/"));
+        directBam.deleteOnExit();
+
+        UnalignedBamWriter directWriter = new UnalignedBamWriter(header, directBam, false, "RT", "QT");
+        byte [][] baseQuals = { {78, 71, 65}, {0, 32, 40} };
+        directWriter.addCluster("read1", 70000, baseQuals, null, null, 1, false, true, true, false, false);
+        directWriter.addAlignment(tile.getSAMRecord(header, "read2", 3, baseQuals, null, null, 0, false, true, false, true, false));
+        directWriter.close();
+
+        SAMFileReader reader = new SAMFileReader(directBam);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        SAMRecordIterator iterator = reader.iterator();
+        SAMRecord record1 = iterator.next();
+        assertEquals(record1.getReadName(), "read1");
+        assertEquals(record1.getFlags(), 4);
+        assertEquals(record1.getReadString(), "NGA");
+        assertEquals(record1.getBaseQualityString(), "!AI");
+        assertEquals(record1.getAttribute("RG"), "1");
+        assertEquals(record1.getAttribute("ci"), 70000);
+        assertNull(record1.getAttribute("XB"));
+
+        SAMRecord record2 = iterator.next();
+        assertEquals(record2.getReadName(), "read2");
+        assertEquals(record2.getFlags(), 516);
+        assertEquals(record2.getAttribute("XB"), 1);
+        assertEquals(record2.getAttribute("XC"), 1);
+        assertEquals(record2.getAttribute("ci"), 3);
+        assertFalse(iterator.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void flushWritesRecordsSoFar() throws IOException {
+
+        ByteArrayOutputStream bamOut = new ByteArrayOutputStream();
+        UnalignedBamWriter directWriter = new UnalignedBamWriter(new SAMFileHeader(), bamOut, null, 0, "BC", "QT");
+        byte [][] baseQuals = { {78, 71, 65}, {0, 32, 40} };
+        directWriter.addCluster("read1", 1, baseQuals, null, null, 1, false, true, true, false, false);
+        directWriter.flush();
+
+        SAMFileReader reader = new SAMFileReader(new ByteArrayInputStream(bamOut.toByteArray()));
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        SAMRecordIterator iterator = reader.iterator();
+        assertEquals(iterator.next().getReadName(), "read1");
+        assertFalse(iterator.hasNext());
+        reader.close();
+
+        directWriter.close();
+    }
+
+    private static byte [] readUncompressed(File bam) throws IOException{
+        BlockCompressedInputStream in = new BlockCompressedInputStream(bam);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte [] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) > 0){
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
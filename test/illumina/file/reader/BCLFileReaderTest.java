@@ -90,6 +90,36 @@ public class BCLFileReaderTest {
         assertNull(bclFileReader.next());
     }
 
+    @Test
+    public void checkSkipToClusterOK() throws Exception {
+
+        BCLFileReader sequentialReader = new BCLFileReader(testBCLFile);
+        BCLFileReader skippingReader = new BCLFileReader(testBCLFile);
+        int [] clusters = {0, 306, 307, 20000, 2609911};
+        for (int cluster : clusters) {
+            while (sequentialReader.getCurrentCluster() < cluster) {
+                sequentialReader.next();
+            }
+            skippingReader.skipToCluster(cluster);
+            assertEquals(skippingReader.getCurrentCluster(), cluster);
+            assertArrayEquals(skippingReader.next(), sequentialReader.next());
+        }
+        assertFalse(skippingReader.hasNext());
+        sequentialReader.close();
+        skippingReader.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkSkipBackwards() throws Exception {
+        BCLFileReader skippingReader = new BCLFileReader(testBCLFile);
+        try {
+            skippingReader.skipToCluster(10);
+            skippingReader.skipToCluster(5);
+        } finally {
+            skippingReader.close();
+        }
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void checkCorruptedFileReading() throws Exception{
         //total cluster in header is correct but the cluster in the scecond half are corrupted
@@ -90,6 +90,19 @@ public class FilterFileReaderTest {
         assertNull(filterFileReader.next());
     }
     
+    @Test
+    public void checkCountPFClusters() throws Exception {
+
+        FilterFileReader reader = new FilterFileReader(testFilterFile);
+        for (int i = 0; i < 318; i++) {
+            reader.next();
+        }
+        assertEquals(reader.countPFClusters(), 2425954);
+        assertEquals(reader.getCurrentCluster(), 2609912);
+        assertFalse(reader.hasNext());
+        reader.close();
+    }
+
     @Test
     public void checkGAFilterFileReading() throws Exception{
         System.out.println("Testing old format filter file");
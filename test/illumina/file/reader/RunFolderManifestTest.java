@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package illumina.file.reader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Run folder manifest must give the same answers as the file system and be reused from cache
+ */
+public class RunFolderManifestTest {
+
+    private File runDir = new File("testdata/manifest_run");
+    private String intensityDir = runDir.getPath() + "/Intensities";
+    private String baseCallDir = intensityDir + "/BaseCalls";
+    private File cacheFile = new File("testdata/manifest_run/manifest.txt");
+
+    @Before
+    public void setUp() throws IOException {
+        writeFile(baseCallDir + "/L001/C1.1/s_1_1101.bcl", 10);
+        writeFile(baseCallDir + "/L001/C2.1/s_1_1101.bcl", 10);
+        writeFile(baseCallDir + "/L001/s_1_1101.filter", 20);
+        writeFile(intensityDir + "/L001/s_1_1101.clocs", 30);
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(runDir);
+    }
+
+    @Test
+    public void sameAsFileSystem() throws Exception {
+
+        RunFolderManifest manifest = RunFolderManifest.build(intensityDir, baseCallDir, 1);
+        assertTrue(manifest.exists(baseCallDir + File.separator + "L001" + File.separator + "C2.1" + File.separator + "s_1_1101.bcl"));
+        assertEquals(manifest.length(baseCallDir + File.separator + "L001" + File.separator + "s_1_1101.filter"), 20);
+        assertFalse(manifest.exists(baseCallDir + File.separator + "L001" + File.separator + "s_1_1101.control"));
+        assertFalse(manifest.exists(baseCallDir + File.separator + "s_1_1101.control"));
+        //not listed, checked on file system
+        assertTrue(manifest.exists(cacheFile.getParent()));
+
+        BCLFileReader reader = new BCLFileReader(baseCallDir + File.separator + "L001" + File.separator + "C1.1" + File.separator + "s_1_1101.bcl", manifest);
+        reader.close();
+    }
+
+    @Test
+    public void reusedFromCache() throws Exception {
+
+        String newBcl = baseCallDir + File.separator + "L001" + File.separator + "C2.1" + File.separator + "s_1_1102.bcl";
+
+        RunFolderManifest.load(cacheFile, intensityDir, baseCallDir, 1);
+        assertTrue(cacheFile.exists());
+        RunFolderManifest cached = RunFolderManifest.load(cacheFile, intensityDir, baseCallDir, 1);
+        assertTrue(cached.isUpToDate());
+        assertFalse(cached.exists(newBcl));
+
+        //a new file changes the directory, so it is listed again
+        File cycleDir = new File(baseCallDir + "/L001/C2.1");
+        long lastModified = cycleDir.lastModified();
+        writeFile(newBcl, 10);
+        cycleDir.setLastModified(lastModified + 2000);
+        assertFalse(cached.isUpToDate());
+        assertTrue(RunFolderManifest.load(cacheFile, intensityDir, baseCallDir, 1).exists(newBcl));
+    }
+
+    private static void writeFile(String fileName, int length) throws IOException {
+        File file = new File(fileName);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[length]);
+        out.close();
+    }
+
+    private static void deleteAll(File file){
+        File [] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}